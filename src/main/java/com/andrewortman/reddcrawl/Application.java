@@ -1,5 +1,9 @@
 package com.andrewortman.reddcrawl;
 
+import com.andrewortman.reddcrawl.benchmark.BenchmarkConfiguration;
+import com.andrewortman.reddcrawl.benchmark.BenchmarkRunner;
+import com.andrewortman.reddcrawl.benchmark.RepositoryBenchmark;
+import com.andrewortman.reddcrawl.benchmark.RepositoryBenchmarkConfiguration;
 import com.andrewortman.reddcrawl.services.BackendServicesConfiguration;
 import com.andrewortman.reddcrawl.services.ServiceManager;
 import com.andrewortman.reddcrawl.web.WebConfiguration;
@@ -62,6 +66,12 @@ public final class Application {
             System.exit(1);
         }
 
+        final boolean benchmark = argList.contains("--benchmark") || argList.contains("--benchmark-repositories");
+        if (benchmark && (argList.contains("--worker") || argList.contains("--web"))) {
+            System.out.println("The benchmark runs on its own - don't combine it with --worker or --web");
+            System.exit(1);
+        }
+
         if (argList.contains("--web")) {
             final AnnotationConfigWebApplicationContext context = getContext();
 
@@ -81,11 +91,23 @@ public final class Application {
             final AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext(BackendServicesConfiguration.class);
 
             final ServiceManager serviceManager = context.getBean(ServiceManager.class);
-            serviceManager.startAllThreads();
+            serviceManager.startAllServices();
+
+            serviceManager.awaitTermination();
+        } else if (argList.contains("--benchmark")) {
+            final AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext(BenchmarkConfiguration.class);
+
+            context.getBean(BenchmarkRunner.class).run(System.out);
+
+            context.close();
+        } else if (argList.contains("--benchmark-repositories")) {
+            final AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext(RepositoryBenchmarkConfiguration.class);
+
+            context.getBean(RepositoryBenchmark.class).run(System.out);
 
-            serviceManager.joinAllThreads();
+            context.close();
         } else {
-            System.out.println("Specify either --worker or --web");
+            System.out.println("Specify either --worker, --web, --benchmark or --benchmark-repositories");
             System.exit(1);
         }
     }
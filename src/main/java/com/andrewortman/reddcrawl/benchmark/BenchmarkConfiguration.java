@@ -0,0 +1,122 @@
+package com.andrewortman.reddcrawl.benchmark;
+
+import com.andrewortman.reddcrawl.client.RedditClient;
+import com.andrewortman.reddcrawl.client.RedditClientOptions;
+import com.andrewortman.reddcrawl.client.authentication.AuthenticatingRequestFilter;
+import com.andrewortman.reddcrawl.client.authentication.NoopAuthenticatingRequestFilter;
+import com.andrewortman.reddcrawl.client.ratelimiting.RateLimiter;
+import com.andrewortman.reddcrawl.events.StoryEventRing;
+import com.andrewortman.reddcrawl.services.BackendServicesConfiguration;
+import com.andrewortman.reddcrawl.services.ServiceManager;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.core.env.Environment;
+
+import javax.annotation.Nonnull;
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Spring config for the benchmark mode. Runs the regular backend services, but points the reddit client at an
+ * embedded fake reddit and the repositories at a scratch database (which is wiped and recreated from schema.sql on
+ * every run). Beans defined here replace the ones of the same name in the imported configs.
+ */
+@SuppressWarnings("NullableProblems")
+@Configuration
+@Import(BackendServicesConfiguration.class)
+public class BenchmarkConfiguration {
+    @Autowired
+    @Nonnull
+    private Environment environment;
+
+    @Autowired
+    @Nonnull
+    private MetricRegistry metricRegistry;
+
+    @Nonnull
+    @Bean
+    public FakeRedditWorkload fakeRedditWorkload() {
+        return new FakeRedditWorkload(
+                environment.getRequiredProperty("benchmark.subreddits", Integer.class),
+                environment.getRequiredProperty("benchmark.postspersecond", Double.class),
+                environment.getRequiredProperty("benchmark.missingfraction", Double.class),
+                environment.getRequiredProperty("benchmark.seed", Long.class),
+                System.currentTimeMillis(),
+                environment.getRequiredProperty("benchmark.backlog", Integer.class));
+    }
+
+    @Nonnull
+    @Bean(destroyMethod = "stop")
+    public FakeRedditServer fakeRedditServer() throws Exception {
+        final FakeRedditServer server = new FakeRedditServer(fakeRedditWorkload(),
+                environment.getRequiredProperty("benchmark.reddit.port", Integer.class),
+                environment.getRequiredProperty("benchmark.reddit.latency", Long.class));
+        server.start();
+        return server;
+    }
+
+    @Nonnull
+    @Bean
+    public AuthenticatingRequestFilter authenticatingRequestFilter() {
+        return new NoopAuthenticatingRequestFilter();
+    }
+
+    @Nonnull
+    @Bean
+    public RedditClient redditClient(@Nonnull final RateLimiter rateLimiter,
+                                     @Nonnull final AuthenticatingRequestFilter authenticatingRequestFilter) throws Exception {
+        final RedditClientOptions options = new RedditClientOptions(
+                fakeRedditServer().getEndpoint(),
+                environment.getRequiredProperty("client.useragent"),
+                environment.getRequiredProperty("client.timeout.read", Integer.class),
+                environment.getRequiredProperty("client.timeout.connect", Integer.class)
+        );
+
+        return new RedditClient(options, rateLimiter, authenticatingRequestFilter, metricRegistry);
+    }
+
+    @Nonnull
+    @Bean
+    public Timer databaseStatementTimer() {
+        return metricRegistry.timer(MetricRegistry.name("reddcrawl", "benchmark", "db", "statements"));
+    }
+
+    /**
+     * Scratch database for the run - the schema is dropped and recreated before anything touches it
+     */
+    @Nonnull
+    @Bean
+    public DataSource pgDataSource() throws SQLException {
+        final BasicDataSource ds = ScratchDatabase.createDataSource(environment);
+        ScratchDatabase.resetSchema(ds);
+        return TimedDataSource.wrap(ds, databaseStatementTimer());
+    }
+
+    @Nonnull
+    @Bean
+    public BenchmarkRunner benchmarkRunner(@Nonnull final ServiceManager serviceManager,
+                                           @Nonnull final StoryEventRing storyEventRing) {
+        final Map<String, Object> settings = new LinkedHashMap<>();
+        for (final String property : new String[]{"benchmark.duration", "benchmark.subreddits", "benchmark.postspersecond",
+                "benchmark.missingfraction", "benchmark.backlog", "benchmark.reddit.latency", "client.rpm",
+                "service.storyhistoryupdater.workers", "service.storyhistoryupdater.interval",
+                "service.newstoryscraper.interval", "db.maxSize"}) {
+            settings.put(property, environment.getProperty(property));
+        }
+
+        return new BenchmarkRunner(serviceManager,
+                storyEventRing,
+                fakeRedditWorkload(),
+                metricRegistry,
+                databaseStatementTimer(),
+                settings,
+                environment.getRequiredProperty("benchmark.duration", Integer.class));
+    }
+}
@@ -0,0 +1,234 @@
+package com.andrewortman.reddcrawl.benchmark;
+
+import com.andrewortman.reddcrawl.events.StoryEvent;
+import com.andrewortman.reddcrawl.events.StoryEventHandler;
+import com.andrewortman.reddcrawl.events.StoryEventRing;
+import com.andrewortman.reddcrawl.services.ServiceManager;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.UniformReservoir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the crawler services against the fake reddit for a fixed amount of time and prints a report of how it kept up:
+ * throughput, how long stories took to be discovered, how far apart their snapshots were, and where the time went
+ * (database statements vs reddit requests).
+ * <p/>
+ * Freshness is measured off the story event ring: discovery lag is the time from a story being posted on the fake
+ * reddit to the crawler discovering it, first update latency is the time from discovering a story to its first update,
+ * and the update interval is the time between two later snapshots of the same story.
+ */
+public class BenchmarkRunner {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BenchmarkRunner.class);
+
+    private static final long EVENT_POLL_INTERVAL_MILLIS = 50;
+
+    @Nonnull
+    private final ServiceManager serviceManager;
+
+    @Nonnull
+    private final StoryEventRing storyEventRing;
+
+    @Nonnull
+    private final FakeRedditWorkload workload;
+
+    @Nonnull
+    private final MetricRegistry metricRegistry;
+
+    @Nonnull
+    private final Timer statementTimer;
+
+    @Nonnull
+    private final Map<String, Object> settings;
+
+    private final int durationSeconds;
+
+    //samples are kept for the whole run so the percentiles cover all of it
+    @Nonnull
+    private final Histogram discoveryLag = new Histogram(new UniformReservoir());
+
+    @Nonnull
+    private final Histogram firstUpdateLatency = new Histogram(new UniformReservoir());
+
+    @Nonnull
+    private final Histogram updateInterval = new Histogram(new UniformReservoir());
+
+    //discovery time of the stories that haven't had their first update yet (only touched by the event polling thread)
+    @Nonnull
+    private final Map<Integer, Long> awaitingFirstUpdate = new HashMap<>();
+
+    //time of the latest update of every story (only touched by the event polling thread)
+    @Nonnull
+    private final Map<Integer, Long> lastSnapshotAt = new HashMap<>();
+
+    /**
+     * @param serviceManager  service manager with all the crawler services added
+     * @param storyEventRing  event ring the crawler services publish to
+     * @param workload        the fake reddit the crawler is pointed at
+     * @param metricRegistry  metric registry the crawler services report to
+     * @param statementTimer  timer that receives the time of every database statement
+     * @param settings        settings of the run, printed at the top of the report
+     * @param durationSeconds how long to run the crawler for
+     */
+    public BenchmarkRunner(@Nonnull final ServiceManager serviceManager,
+                           @Nonnull final StoryEventRing storyEventRing,
+                           @Nonnull final FakeRedditWorkload workload,
+                           @Nonnull final MetricRegistry metricRegistry,
+                           @Nonnull final Timer statementTimer,
+                           @Nonnull final Map<String, Object> settings,
+                           final int durationSeconds) {
+        this.serviceManager = serviceManager;
+        this.storyEventRing = storyEventRing;
+        this.workload = workload;
+        this.metricRegistry = metricRegistry;
+        this.statementTimer = statementTimer;
+        this.settings = settings;
+        this.durationSeconds = durationSeconds;
+    }
+
+    /**
+     * Runs the benchmark and prints the report
+     *
+     * @param out where the report goes
+     */
+    public void run(@Nonnull final PrintStream out) throws InterruptedException {
+        final StoryEventRing.Subscription subscription = storyEventRing.subscribe("benchmark");
+        final Thread eventThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final StoryEventHandler handler = new StoryEventHandler() {
+                    @Override
+                    public void onEvent(@Nonnull final StoryEvent event, final long sequence) {
+                        recordEvent(event);
+                    }
+                };
+
+                while (!Thread.currentThread().isInterrupted()) {
+                    if (subscription.poll(handler, storyEventRing.getCapacity()) == 0) {
+                        try {
+                            Thread.sleep(EVENT_POLL_INTERVAL_MILLIS);
+                        } catch (final InterruptedException e) {
+                            break;
+                        }
+                    }
+                }
+
+                //drain whatever was published before the services stopped
+                subscription.poll(handler, Integer.MAX_VALUE);
+            }
+        }, "benchmark-events");
+
+        LOGGER.info("Running benchmark for " + durationSeconds + " seconds");
+        eventThread.start();
+        final long startedAt = System.nanoTime();
+        serviceManager.startAllServices();
+        try {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(durationSeconds));
+        } finally {
+            serviceManager.stopAllServices();
+            eventThread.interrupt();
+            eventThread.join();
+            subscription.close();
+        }
+        final double elapsedSeconds = (System.nanoTime() - startedAt) / 1e9;
+
+        printReport(out, elapsedSeconds);
+    }
+
+    private void recordEvent(@Nonnull final StoryEvent event) {
+        final long timestamp = event.getTimestamp().getTime();
+        switch (event.getType()) {
+            case DISCOVERED:
+                final long story = workload.getStory(event.getRedditShortId());
+                if (story >= 0) {
+                    discoveryLag.update(timestamp - workload.getCreatedAtMillis(story));
+                }
+                awaitingFirstUpdate.put(event.getStoryId(), timestamp);
+                break;
+            case UPDATED:
+                final Long discoveredAt = awaitingFirstUpdate.remove(event.getStoryId());
+                final Long previous = lastSnapshotAt.put(event.getStoryId(), timestamp);
+                if (discoveredAt != null) {
+                    firstUpdateLatency.update(timestamp - discoveredAt);
+                } else if (previous != null) {
+                    updateInterval.update(timestamp - previous);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void printReport(@Nonnull final PrintStream out, final double elapsedSeconds) {
+        out.println("=== reddcrawl benchmark ===");
+        for (final Map.Entry<String, Object> setting : settings.entrySet()) {
+            out.printf("%-28s %s%n", setting.getKey(), setting.getValue());
+        }
+        out.printf("%-28s %.1f s%n", "elapsed", elapsedSeconds);
+
+        out.println();
+        out.println("--- throughput ---");
+        printMeter(out, "stories discovered", MetricRegistry.name("reddcrawl", "story", "discovered"), elapsedSeconds);
+        printMeter(out, "story checks", MetricRegistry.name("reddcrawl", "story", "history", "checks"), elapsedSeconds);
+        printMeter(out, "story updates", MetricRegistry.name("reddcrawl", "story", "history", "updates"), elapsedSeconds);
+        printMeter(out, "story misses", MetricRegistry.name("reddcrawl", "story", "history", "misses"), elapsedSeconds);
+        printMeter(out, "events dropped", MetricRegistry.name("reddcrawl", "events", "story", "dropped"), elapsedSeconds);
+        out.printf("%-28s %d%n", "stories posted on reddit", workload.getStoryCount(System.currentTimeMillis()));
+
+        out.println();
+        out.println("--- freshness (ms) ---");
+        printHistogram(out, "discovery lag", discoveryLag.getCount(), discoveryLag.getSnapshot());
+        printHistogram(out, "first update latency", firstUpdateLatency.getCount(), firstUpdateLatency.getSnapshot());
+        out.printf("%-28s %d%n", "never updated", awaitingFirstUpdate.size());
+        printHistogram(out, "update interval", updateInterval.getCount(), updateInterval.getSnapshot());
+
+        out.println();
+        out.println("--- time spent (ms) ---");
+        printTimer(out, "db statements", statementTimer);
+        final Timer clientTimer = metricRegistry.getTimers().get(MetricRegistry.name("reddcrawl", "client", "requests", "time"));
+        if (clientTimer != null) {
+            printTimer(out, "reddit requests", clientTimer);
+        }
+        out.flush();
+    }
+
+    private void printMeter(@Nonnull final PrintStream out, @Nonnull final String label, @Nonnull final String metricName, final double elapsedSeconds) {
+        final Meter meter = metricRegistry.getMeters().get(metricName);
+        final long count = meter == null ? 0 : meter.getCount();
+        out.printf("%-28s %8d  (%.2f/s)%n", label, count, count / elapsedSeconds);
+    }
+
+    private void printTimer(@Nonnull final PrintStream out, @Nonnull final String label, @Nonnull final Timer timer) {
+        final Snapshot snapshot = timer.getSnapshot();
+        final double nanosPerMilli = TimeUnit.MILLISECONDS.toNanos(1);
+        out.printf("%-28s count=%d total=%.0f mean=%.2f p95=%.2f p99=%.2f max=%.2f%n",
+                label,
+                timer.getCount(),
+                timer.getCount() * snapshot.getMean() / nanosPerMilli,
+                snapshot.getMean() / nanosPerMilli,
+                snapshot.get95thPercentile() / nanosPerMilli,
+                snapshot.get99thPercentile() / nanosPerMilli,
+                snapshot.getMax() / nanosPerMilli);
+    }
+
+    private void printHistogram(@Nonnull final PrintStream out, @Nonnull final String label, final long count,
+                                @Nonnull final Snapshot snapshot) {
+        out.printf("%-28s count=%d p50=%.0f p95=%.0f p99=%.0f max=%.0f%n",
+                label,
+                count,
+                snapshot.getMedian(),
+                snapshot.get95thPercentile(),
+                snapshot.get99thPercentile(),
+                (double) snapshot.getMax());
+    }
+}
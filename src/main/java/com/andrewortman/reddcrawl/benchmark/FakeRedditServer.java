@@ -0,0 +1,55 @@
+package com.andrewortman.reddcrawl.benchmark;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Embedded jetty server that serves a FakeRedditWorkload over http on localhost, so the real reddit client can be
+ * pointed at it
+ */
+public class FakeRedditServer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FakeRedditServer.class);
+
+    @Nonnull
+    private final Server server;
+
+    @Nonnull
+    private final ServerConnector connector;
+
+    /**
+     * @param workload      the simulated reddit to serve
+     * @param port          port to listen on (0 picks a free port)
+     * @param latencyMillis delay added to every request
+     */
+    public FakeRedditServer(@Nonnull final FakeRedditWorkload workload, final int port, final long latencyMillis) {
+        this.server = new Server();
+        this.connector = new ServerConnector(server);
+        connector.setHost("localhost");
+        connector.setPort(port);
+        server.addConnector(connector);
+
+        final ServletContextHandler contextHandler = new ServletContextHandler();
+        contextHandler.addServlet(new ServletHolder(new FakeRedditServlet(workload, latencyMillis)), "/*");
+        server.setHandler(contextHandler);
+    }
+
+    public void start() throws Exception {
+        server.start();
+        LOGGER.info("Fake reddit listening at " + getEndpoint());
+    }
+
+    public void stop() throws Exception {
+        server.stop();
+    }
+
+    @Nonnull
+    public String getEndpoint() {
+        return "http://localhost:" + connector.getLocalPort();
+    }
+}
@@ -0,0 +1,264 @@
+package com.andrewortman.reddcrawl.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves the parts of the reddit api that reddcrawl uses, backed by a FakeRedditWorkload: the front page, subreddit
+ * listings (new, top and hot), stories by id, subreddit about pages and subreddits by id through the info endpoint.
+ * Every request is delayed by a fixed latency to look like a real round trip.
+ */
+public class FakeRedditServlet extends HttpServlet {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FakeRedditServlet.class);
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    //reddit doesn't page further back than this in a listing
+    private static final int MAX_LISTING_SIZE = 1000;
+
+    private static final int MAX_PAGE_SIZE = 100;
+
+    @Nonnull
+    private final FakeRedditWorkload workload;
+
+    private final long latencyMillis;
+
+    public FakeRedditServlet(@Nonnull final FakeRedditWorkload workload, final long latencyMillis) {
+        this.workload = workload;
+        this.latencyMillis = latencyMillis;
+    }
+
+    @Override
+    protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        try {
+            Thread.sleep(latencyMillis);
+        } catch (@Nonnull final InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+        }
+
+        final long now = System.currentTimeMillis();
+        final String path = request.getRequestURI();
+        final List<String> parts = Splitter.on('/').omitEmptyStrings().splitToList(path.replaceAll("\\.json$", ""));
+
+        final ObjectNode body;
+        if (parts.isEmpty()) {
+            body = storyListing(getFrontPage(now), request, now);
+        } else if (parts.size() == 3 && parts.get(0).equals("r") && parts.get(2).equals("about")) {
+            final int subreddit = workload.getSubreddit(parts.get(1));
+            if (subreddit < 0) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            body = subredditThing(subreddit, now);
+        } else if (parts.size() == 3 && parts.get(0).equals("r")) {
+            body = storyListing(getSubredditListing(parts.get(1), parts.get(2), now), request, now);
+        } else if (parts.size() == 2 && parts.get(0).equals("by_id")) {
+            body = storyListing(getStoriesById(parts.get(1), now), null, now);
+        } else if (parts.size() == 2 && parts.get(0).equals("api") && parts.get(1).equals("info")) {
+            body = subredditListing(Strings.nullToEmpty(request.getParameter("id")), now);
+        } else {
+            LOGGER.warn("Fake reddit doesn't know " + path);
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        OBJECT_MAPPER.writeValue(response.getOutputStream(), body);
+    }
+
+    /**
+     * The front page has the latest story of every subreddit (so every subreddit gets discovered) and then the rest
+     * of the latest stories
+     */
+    @Nonnull
+    private List<Long> getFrontPage(final long now) {
+        final List<Long> frontPage = new ArrayList<>();
+        final List<Long> rest = new ArrayList<>();
+        final Set<Integer> subredditsSeen = new HashSet<>();
+        for (long story = workload.getStoryCount(now) - 1; story >= 0 && frontPage.size() + rest.size() < MAX_LISTING_SIZE; story--) {
+            if (workload.isMissing(story, now)) {
+                continue;
+            }
+            if (subredditsSeen.add(workload.getSubreddit(story))) {
+                frontPage.add(story);
+            } else {
+                rest.add(story);
+            }
+        }
+        frontPage.addAll(rest);
+        return frontPage;
+    }
+
+    @Nonnull
+    private List<Long> getSubredditListing(@Nonnull final String subredditNames, @Nonnull final String sort, final long now) {
+        final Set<Integer> subreddits = new HashSet<>();
+        for (final String subredditName : Splitter.on('+').split(subredditNames)) {
+            subreddits.add(workload.getSubreddit(subredditName));
+        }
+
+        final boolean newest = sort.equals("new");
+        final long oldestCreatedAt = now - TimeUnit.HOURS.toMillis(1);
+
+        final List<Long> stories = new ArrayList<>();
+        for (long story = workload.getStoryCount(now) - 1; story >= 0 && stories.size() < MAX_LISTING_SIZE; story--) {
+            if (!newest && workload.getCreatedAtMillis(story) < oldestCreatedAt) {
+                break; //top and hot only look at the last hour
+            }
+            if (subreddits.contains(workload.getSubreddit(story)) && !workload.isMissing(story, now)) {
+                stories.add(story);
+            }
+        }
+
+        if (!newest) {
+            Collections.sort(stories, new Comparator<Long>() {
+                @Override
+                public int compare(final Long a, final Long b) {
+                    return Integer.compare(workload.getScore(b, now), workload.getScore(a, now));
+                }
+            });
+        }
+        return stories;
+    }
+
+    @Nonnull
+    private List<Long> getStoriesById(@Nonnull final String fullIds, final long now) {
+        final List<Long> stories = new ArrayList<>();
+        for (final String fullId : Splitter.on(',').omitEmptyStrings().split(fullIds)) {
+            final long story = workload.getStory(fullId.replaceFirst("^t3_", ""));
+            if (story >= 0 && story < workload.getStoryCount(now) && !workload.isMissing(story, now)) {
+                stories.add(story);
+            }
+        }
+        return stories;
+    }
+
+    /**
+     * Builds one page of a story listing, starting after the story named in the "after" parameter
+     */
+    @Nonnull
+    private ObjectNode storyListing(@Nonnull final List<Long> stories, @Nullable final HttpServletRequest request, final long now) {
+        int start = 0;
+        int pageSize = stories.size();
+        if (request != null) {
+            final String after = request.getParameter("after");
+            if (!Strings.isNullOrEmpty(after) && !after.equals("null")) {
+                start = stories.indexOf(workload.getStory(after.replaceFirst("^t3_", ""))) + 1;
+                if (start == 0) {
+                    start = stories.size(); //unknown cursor - reddit returns an empty page
+                }
+            }
+            pageSize = MAX_PAGE_SIZE;
+            if (request.getParameter("limit") != null) {
+                pageSize = Math.min(MAX_PAGE_SIZE, Integer.parseInt(request.getParameter("limit")));
+            }
+        }
+
+        final int end = Math.min(stories.size(), start + pageSize);
+        final ArrayNode children = OBJECT_MAPPER.createArrayNode();
+        for (int i = start; i < end; i++) {
+            children.add(storyThing(stories.get(i), now));
+        }
+
+        final ObjectNode listing = OBJECT_MAPPER.createObjectNode();
+        listing.put("kind", "Listing");
+        final ObjectNode data = listing.putObject("data");
+        data.putNull("before");
+        if (end < stories.size() && end > start) {
+            data.put("after", "t3_" + workload.getStoryId(stories.get(end - 1)));
+        } else {
+            data.putNull("after");
+        }
+        data.set("children", children);
+        return listing;
+    }
+
+    @Nonnull
+    private ObjectNode storyThing(final long story, final long now) {
+        final String id = workload.getStoryId(story);
+        final String subreddit = workload.getSubredditName(workload.getSubreddit(story));
+
+        final ObjectNode thing = OBJECT_MAPPER.createObjectNode();
+        thing.put("kind", "t3");
+        final ObjectNode data = thing.putObject("data");
+        data.put("id", id);
+        data.put("title", "Benchmark story " + story);
+        data.put("author", "benchmark");
+        data.put("created_utc", TimeUnit.MILLISECONDS.toSeconds(workload.getCreatedAtMillis(story)));
+        data.put("domain", "self." + subreddit);
+        data.put("num_comments", workload.getComments(story, now));
+        data.put("gilded", 0);
+        data.put("score", workload.getScore(story, now));
+        data.put("permalink", "/r/" + subreddit + "/comments/" + id + "/benchmark_story/");
+        data.put("selftext", "");
+        data.put("subreddit", subreddit);
+        data.put("thumbnail", "self");
+        data.put("url", "https://www.reddit.com/r/" + subreddit + "/comments/" + id + "/benchmark_story/");
+        data.putNull("distinguished");
+        data.put("is_self", true);
+        data.put("over_18", false);
+        data.put("sticked", false);
+        return thing;
+    }
+
+    @Nonnull
+    private ObjectNode subredditListing(@Nonnull final String fullIds, final long now) {
+        final ArrayNode children = OBJECT_MAPPER.createArrayNode();
+        for (final String fullId : Splitter.on(',').omitEmptyStrings().split(fullIds)) {
+            final int subreddit = workload.getSubredditById(fullId.replaceFirst("^t5_", ""));
+            if (subreddit >= 0) {
+                children.add(subredditThing(subreddit, now));
+            }
+        }
+
+        final ObjectNode listing = OBJECT_MAPPER.createObjectNode();
+        listing.put("kind", "Listing");
+        final ObjectNode data = listing.putObject("data");
+        data.putNull("before");
+        data.putNull("after");
+        data.set("children", children);
+        return listing;
+    }
+
+    @Nonnull
+    private ObjectNode subredditThing(final int subreddit, final long now) {
+        final String name = workload.getSubredditName(subreddit);
+
+        final ObjectNode thing = OBJECT_MAPPER.createObjectNode();
+        thing.put("kind", "t5");
+        final ObjectNode data = thing.putObject("data");
+        data.put("id", workload.getSubredditId(subreddit));
+        data.put("display_name", name);
+        data.put("created", TimeUnit.MILLISECONDS.toSeconds(now) - TimeUnit.DAYS.toSeconds(365));
+        data.put("title", "Benchmark subreddit " + subreddit);
+        data.put("public_description", "");
+        data.put("description", "");
+        data.put("subreddit_type", "public");
+        data.put("submission_type", "any");
+        data.put("comment_score_hide_mins", 0);
+        data.put("subscribers", workload.getSubscribers(subreddit));
+        data.put("accounts_active", workload.getActiveUsers(subreddit));
+        data.put("over18", false);
+        data.put("url", "/r/" + name + "/");
+        return thing;
+    }
+}
@@ -0,0 +1,155 @@
+package com.andrewortman.reddcrawl.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A deterministic, simulated reddit used by the benchmark. Stories are posted at a fixed rate starting a bit before the
+ * benchmark starts (so there is a backlog to work on right away), spread over the subreddits with a skew so a few
+ * subreddits are busy and most are quiet. Scores grow with age at a per-story rate, and a fraction of the stories is
+ * "deleted" a minute after being posted. Everything is derived from the story number and the seed, so two runs with the
+ * same settings see the same reddit.
+ */
+public class FakeRedditWorkload {
+    //offsets so the generated base 36 ids look like real reddit ids
+    private static final long STORY_ID_OFFSET = 100000000L;
+    private static final long SUBREDDIT_ID_OFFSET = 1000000L;
+
+    //stories are only deleted once they are this old, so they get discovered first
+    private static final long MISSING_AFTER_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final int subredditCount;
+
+    private final double postsPerSecond;
+
+    private final double missingFraction;
+
+    private final long seed;
+
+    //creation time of story 0
+    private final long originMillis;
+
+    public FakeRedditWorkload(final int subredditCount,
+                              final double postsPerSecond,
+                              final double missingFraction,
+                              final long seed,
+                              final long startMillis,
+                              final int backlogSeconds) {
+        this.subredditCount = subredditCount;
+        this.postsPerSecond = postsPerSecond;
+        this.missingFraction = missingFraction;
+        this.seed = seed;
+        this.originMillis = startMillis - TimeUnit.SECONDS.toMillis(backlogSeconds);
+    }
+
+    public int getSubredditCount() {
+        return subredditCount;
+    }
+
+    /**
+     * @return number of stories posted up until now (stories are numbered 0 to count - 1 in posting order)
+     */
+    public long getStoryCount(final long nowMillis) {
+        if (nowMillis < originMillis) {
+            return 0;
+        }
+        return (long) ((nowMillis - originMillis) / 1000.0 * postsPerSecond) + 1;
+    }
+
+    public long getCreatedAtMillis(final long story) {
+        return originMillis + (long) (story * 1000.0 / postsPerSecond);
+    }
+
+    /**
+     * Squaring a uniform number puts most of the stories in the first few subreddits
+     */
+    public int getSubreddit(final long story) {
+        final double u = unit(story, 1);
+        return Math.min(subredditCount - 1, (int) (subredditCount * u * u));
+    }
+
+    public boolean isMissing(final long story, final long nowMillis) {
+        return unit(story, 2) < missingFraction && nowMillis - getCreatedAtMillis(story) > MISSING_AFTER_MILLIS;
+    }
+
+    public int getScore(final long story, final long nowMillis) {
+        final double ageMinutes = Math.max(0, nowMillis - getCreatedAtMillis(story)) / 60000.0;
+        return (int) (ageMinutes * (1 + 20 * unit(story, 3)));
+    }
+
+    public int getComments(final long story, final long nowMillis) {
+        return getScore(story, nowMillis) / 3;
+    }
+
+    public String getStoryId(final long story) {
+        return Long.toString(STORY_ID_OFFSET + story, 36);
+    }
+
+    /**
+     * @return the story number for a story id, or -1 if the id isn't one of ours
+     */
+    public long getStory(final String storyId) {
+        try {
+            final long story = Long.parseLong(storyId, 36) - STORY_ID_OFFSET;
+            return story >= 0 ? story : -1;
+        } catch (final NumberFormatException ignored) {
+            return -1;
+        }
+    }
+
+    public String getSubredditName(final int subreddit) {
+        return "bench" + subreddit;
+    }
+
+    /**
+     * @return the subreddit number for a subreddit name, or -1 if the name isn't one of ours
+     */
+    public int getSubreddit(final String subredditName) {
+        if (!subredditName.toLowerCase().startsWith("bench")) {
+            return -1;
+        }
+        try {
+            final int subreddit = Integer.parseInt(subredditName.substring("bench".length()));
+            return subreddit < subredditCount ? subreddit : -1;
+        } catch (final NumberFormatException ignored) {
+            return -1;
+        }
+    }
+
+    public String getSubredditId(final int subreddit) {
+        return Long.toString(SUBREDDIT_ID_OFFSET + subreddit, 36);
+    }
+
+    /**
+     * @return the subreddit number for a subreddit id, or -1 if the id isn't one of ours
+     */
+    public int getSubredditById(final String subredditId) {
+        try {
+            final long subreddit = Long.parseLong(subredditId, 36) - SUBREDDIT_ID_OFFSET;
+            return subreddit >= 0 && subreddit < subredditCount ? (int) subreddit : -1;
+        } catch (final NumberFormatException ignored) {
+            return -1;
+        }
+    }
+
+    public int getActiveUsers(final int subreddit) {
+        return 50 * (subredditCount - subreddit);
+    }
+
+    public long getSubscribers(final int subreddit) {
+        return 100L * getActiveUsers(subreddit);
+    }
+
+    /**
+     * Deterministic pseudo random number in [0, 1) for a story and a "salt" (which property it is for)
+     */
+    private double unit(final long story, final int salt) {
+        //murmur3 finalizer
+        long h = story * 0x9E3779B97F4A7C15L + seed * 31 + salt;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (h >>> 11) / (double) (1L << 53);
+    }
+}
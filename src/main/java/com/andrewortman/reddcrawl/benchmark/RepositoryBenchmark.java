@@ -0,0 +1,292 @@
+package com.andrewortman.reddcrawl.benchmark;
+
+import com.andrewortman.reddcrawl.repository.StoryRepository;
+import com.andrewortman.reddcrawl.repository.SubredditRepository;
+import com.andrewortman.reddcrawl.repository.model.StoryHistoryModel;
+import com.andrewortman.reddcrawl.repository.model.StoryModel;
+import com.andrewortman.reddcrawl.repository.model.StoryWorkItem;
+import com.andrewortman.reddcrawl.repository.model.SubredditModel;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.UniformReservoir;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.sql.DataSource;
+import java.io.PrintStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the same repository workload against several StoryRepository/SubredditRepository implementations (JPA, jdbc
+ * and jdbc with packed history) on the scratch database and prints the time per call of each repository method side
+ * by side. The workload follows the crawler: subreddits are saved, stories are discovered in pages of 100 (subreddit
+ * lookup plus one save per story), then every story gets a number of history rounds in pages of 100 where a few
+ * stories come back missing, and finally the read paths of the web api are exercised.
+ * <p/>
+ * The schema is recreated before each implementation runs, and each implementation gets an unmeasured warm-up pass
+ * so JIT and statement caches don't favour whichever runs later.
+ */
+public class RepositoryBenchmark {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RepositoryBenchmark.class);
+
+    private static final int PAGE_SIZE = 100;
+
+    //the warm-up pass uses this fraction of the stories
+    private static final double WARMUP_FRACTION = 0.1;
+
+    /**
+     * One repository implementation under test
+     */
+    public static class Implementation {
+        @Nonnull
+        private final String name;
+
+        @Nonnull
+        private final StoryRepository storyRepository;
+
+        @Nonnull
+        private final SubredditRepository subredditRepository;
+
+        public Implementation(@Nonnull final String name,
+                              @Nonnull final StoryRepository storyRepository,
+                              @Nonnull final SubredditRepository subredditRepository) {
+            this.name = name;
+            this.storyRepository = storyRepository;
+            this.subredditRepository = subredditRepository;
+        }
+    }
+
+    @Nonnull
+    private final DataSource dataSource;
+
+    @Nonnull
+    private final FakeRedditWorkload workload;
+
+    @Nonnull
+    private final List<Implementation> implementations;
+
+    private final int storyCount;
+
+    private final int historyRounds;
+
+    /**
+     * @param dataSource      the scratch database
+     * @param workload        generates the subreddits and stories
+     * @param implementations the implementations to compare
+     * @param storyCount      number of stories to save
+     * @param historyRounds   number of times every story gets a history update
+     */
+    public RepositoryBenchmark(@Nonnull final DataSource dataSource,
+                               @Nonnull final FakeRedditWorkload workload,
+                               @Nonnull final List<Implementation> implementations,
+                               final int storyCount,
+                               final int historyRounds) {
+        this.dataSource = dataSource;
+        this.workload = workload;
+        this.implementations = implementations;
+        this.storyCount = storyCount;
+        this.historyRounds = historyRounds;
+    }
+
+    public void run(@Nonnull final PrintStream out) throws SQLException {
+        final Map<String, Map<String, Timer>> results = new LinkedHashMap<>();
+        for (final Implementation implementation : implementations) {
+            LOGGER.info("Warming up " + implementation.name);
+            ScratchDatabase.resetSchema(dataSource);
+            runWorkload(implementation, (int) (storyCount * WARMUP_FRACTION), new LinkedHashMap<String, Timer>());
+
+            LOGGER.info("Measuring " + implementation.name);
+            ScratchDatabase.resetSchema(dataSource);
+            final Map<String, Timer> timers = new LinkedHashMap<>();
+            runWorkload(implementation, storyCount, timers);
+            results.put(implementation.name, timers);
+        }
+
+        printReport(out, results);
+    }
+
+    private void runWorkload(@Nonnull final Implementation implementation, final int stories, @Nonnull final Map<String, Timer> timers) {
+        final StoryRepository storyRepository = implementation.storyRepository;
+        final SubredditRepository subredditRepository = implementation.subredditRepository;
+        final long now = System.currentTimeMillis();
+
+        final List<SubredditModel> newSubreddits = new ArrayList<>();
+        for (int subreddit = 0; subreddit < workload.getSubredditCount(); subreddit++) {
+            newSubreddits.add(createSubreddit(subreddit));
+        }
+        Timer.Context context = timer(timers, "saveNewSubreddits").time();
+        subredditRepository.saveNewSubreddits(newSubreddits);
+        context.stop();
+
+        //discovery, a page at a time like the story scraper
+        final List<Long> allStories = new ArrayList<>(stories);
+        for (long story = 0; story < stories; story++) {
+            allStories.add(story);
+        }
+        for (final List<Long> page : Iterables.partition(allStories, PAGE_SIZE)) {
+            final Set<String> subredditNames = new HashSet<>();
+            for (final Long story : page) {
+                subredditNames.add(workload.getSubredditName(workload.getSubreddit(story)));
+            }
+
+            context = timer(timers, "findSubredditsByNames").time();
+            final Map<String, SubredditModel> subreddits = subredditRepository.findSubredditsByNames(subredditNames);
+            context.stop();
+
+            context = timer(timers, "markSubredditsAsSeen").time();
+            subredditRepository.markSubredditsAsSeen(subreddits.values());
+            context.stop();
+
+            for (final Long story : page) {
+                final StoryModel storyModel = createStory(story, subreddits.get(workload.getSubredditName(workload.getSubreddit(story))));
+                context = timer(timers, "saveNewStory").time();
+                storyRepository.saveNewStory(storyModel, createHistory(story, now));
+                context.stop();
+            }
+        }
+
+        //history updates
+        final Date earliestCreateTime = new Date(0);
+        for (int round = 0; round < historyRounds; round++) {
+            final Date roundTime = new Date();
+            context = timer(timers, "findStoriesNeedingUpdate").time();
+            final List<StoryWorkItem> due = storyRepository.findStoriesNeedingUpdate(earliestCreateTime, roundTime, Integer.MAX_VALUE, stories);
+            context.stop();
+
+            //a page of stories at a time, like the history updater
+            for (final List<StoryWorkItem> page : Lists.partition(due, PAGE_SIZE)) {
+                final List<StoryHistoryModel> historyItems = new ArrayList<>(page.size());
+                for (final StoryWorkItem storyWorkItem : page) {
+                    final StoryModel storyModel = storyWorkItem.toStoryReference();
+                    final long story = workload.getStory(storyModel.getRedditShortId());
+                    if (workload.isMissing(story, Long.MAX_VALUE)) {
+                        context = timer(timers, "markStoryMissing").time();
+                        storyRepository.markStoryMissing(storyModel, roundTime);
+                        context.stop();
+                    } else {
+                        final StoryHistoryModel historyItem = createHistory(story, roundTime.getTime());
+                        historyItem.setStory(storyModel);
+                        historyItems.add(historyItem);
+                    }
+                }
+
+                context = timer(timers, "addStoryHistories").time();
+                storyRepository.addStoryHistories(historyItems);
+                context.stop();
+            }
+        }
+
+        //web api reads
+        for (int i = 0; i < 10; i++) {
+            context = timer(timers, "getHottestStories").time();
+            final List<StoryModel> hottest = storyRepository.getHottestStories(PAGE_SIZE, true);
+            context.stop();
+
+            for (final StoryModel storyModel : hottest.subList(0, Math.min(10, hottest.size()))) {
+                context = timer(timers, "getStoryHistory").time();
+                storyRepository.getStoryHistory(storyModel);
+                context.stop();
+            }
+        }
+    }
+
+    @Nonnull
+    private SubredditModel createSubreddit(final int subreddit) {
+        final SubredditModel subredditModel = new SubredditModel();
+        subredditModel.setSubredditShortId(workload.getSubredditId(subreddit));
+        subredditModel.setName(workload.getSubredditName(subreddit));
+        subredditModel.setTitle("Benchmark subreddit " + subreddit);
+        subredditModel.setUrl("/r/" + workload.getSubredditName(subreddit) + "/");
+        subredditModel.setSummary("");
+        subredditModel.setDescription("");
+        subredditModel.setSubmissionType("any");
+        return subredditModel;
+    }
+
+    @Nonnull
+    private StoryModel createStory(final long story, @Nonnull final SubredditModel subreddit) {
+        final String id = workload.getStoryId(story);
+        final StoryModel storyModel = new StoryModel();
+        storyModel.setRedditShortId(id);
+        storyModel.setSubreddit(subreddit);
+        storyModel.setTitle("Benchmark story " + story);
+        storyModel.setAuthor("benchmark");
+        storyModel.setUrl("https://www.reddit.com/r/" + subreddit.getName() + "/comments/" + id + "/benchmark_story/");
+        storyModel.setPermalink("/r/" + subreddit.getName() + "/comments/" + id + "/benchmark_story/");
+        storyModel.setDomain("self." + subreddit.getName());
+        storyModel.setThumbnail("self");
+        storyModel.setIsSelf(true);
+        storyModel.setSelftext("");
+        storyModel.setCreatedAt(new Date(workload.getCreatedAtMillis(story)));
+        return storyModel;
+    }
+
+    @Nonnull
+    private StoryHistoryModel createHistory(final long story, final long timestamp) {
+        final StoryHistoryModel history = new StoryHistoryModel();
+        history.setTimestamp(new Date(timestamp));
+        history.setScore(workload.getScore(story, timestamp));
+        history.setComments(workload.getComments(story, timestamp));
+        history.setHotness(history.getScore() / (1.0 + (timestamp - workload.getCreatedAtMillis(story)) / 3600000.0));
+        return history;
+    }
+
+    @Nonnull
+    private static Timer timer(@Nonnull final Map<String, Timer> timers, @Nonnull final String operation) {
+        Timer timer = timers.get(operation);
+        if (timer == null) {
+            timer = new Timer(new UniformReservoir());
+            timers.put(operation, timer);
+        }
+        return timer;
+    }
+
+    private void printReport(@Nonnull final PrintStream out, @Nonnull final Map<String, Map<String, Timer>> results) {
+        out.println("=== reddcrawl repository benchmark ===");
+        out.printf("%-28s %d%n", "stories", storyCount);
+        out.printf("%-28s %d%n", "history rounds", historyRounds);
+        out.printf("%-28s %d%n", "subreddits", workload.getSubredditCount());
+        out.println();
+
+        final Set<String> operations = new LinkedHashSet<>();
+        final StringBuilder header = new StringBuilder(String.format("%-26s %8s", "operation (ms per call)", "calls"));
+        for (final Map.Entry<String, Map<String, Timer>> result : results.entrySet()) {
+            operations.addAll(result.getValue().keySet());
+            header.append(String.format(" %10s %10s %10s", result.getKey() + " mean", "p95", "total"));
+        }
+        out.println(header);
+
+        final double nanosPerMilli = TimeUnit.MILLISECONDS.toNanos(1);
+        for (final String operation : operations) {
+            final StringBuilder line = new StringBuilder();
+            long calls = 0;
+            for (final Map<String, Timer> timers : results.values()) {
+                final Timer timer = timers.get(operation);
+                if (timer == null) {
+                    line.append(String.format(" %10s %10s %10s", "-", "-", "-"));
+                    continue;
+                }
+                final Snapshot snapshot = timer.getSnapshot();
+                calls = Math.max(calls, timer.getCount());
+                line.append(String.format(" %10.3f %10.3f %10.0f",
+                        snapshot.getMean() / nanosPerMilli,
+                        snapshot.get95thPercentile() / nanosPerMilli,
+                        timer.getCount() * snapshot.getMean() / nanosPerMilli));
+            }
+            out.println(String.format("%-26s %8d", operation, calls) + line);
+        }
+        out.flush();
+    }
+}
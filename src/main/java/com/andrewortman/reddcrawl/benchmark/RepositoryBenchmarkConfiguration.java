@@ -0,0 +1,118 @@
+package com.andrewortman.reddcrawl.benchmark;
+
+import com.andrewortman.reddcrawl.repository.ArchivableStoryReader;
+import com.andrewortman.reddcrawl.repository.JdbcStoryRepository;
+import com.andrewortman.reddcrawl.repository.JdbcSubredditRepository;
+import com.andrewortman.reddcrawl.repository.PackedStoryHistory;
+import com.andrewortman.reddcrawl.repository.PackedStoryHistoryStore;
+import com.andrewortman.reddcrawl.repository.PersistenceConfiguration;
+import com.andrewortman.reddcrawl.repository.StoryHistoryCopyLoader;
+import com.andrewortman.reddcrawl.repository.StoryRepository;
+import com.andrewortman.reddcrawl.repository.StoryRepositoryImpl;
+import com.andrewortman.reddcrawl.repository.SubredditRepository;
+import com.andrewortman.reddcrawl.repository.SubredditRepositoryImpl;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.core.env.Environment;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+
+import javax.annotation.Nonnull;
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * Spring config for the repository benchmark - the repository implementations side by side on the scratch database,
+ * including the jdbc one with packed story history (regardless of db.repository and db.historystore)
+ */
+@SuppressWarnings("NullableProblems")
+@Configuration
+@Import(PersistenceConfiguration.class)
+public class RepositoryBenchmarkConfiguration {
+    @Autowired
+    @Nonnull
+    private Environment environment;
+
+    @Autowired
+    @Nonnull
+    private NamedParameterJdbcTemplate jdbcTemplate;
+
+    @Autowired
+    @Nonnull
+    private PackedStoryHistory packedStoryHistory;
+
+    @Autowired
+    @Nonnull
+    private PackedStoryHistoryStore packedStoryHistoryStore;
+
+    @Nonnull
+    @Bean
+    public DataSource pgDataSource() {
+        return ScratchDatabase.createDataSource(environment);
+    }
+
+    @Nonnull
+    @Bean
+    public StoryRepository jpaStoryRepository() {
+        return new StoryRepositoryImpl(new StoryHistoryCopyLoader(pgDataSource(), null),
+                new ArchivableStoryReader(pgDataSource(), getArchiveFetchSize(), null), getCopyThreshold(), null);
+    }
+
+    @Nonnull
+    @Bean
+    public SubredditRepository jpaSubredditRepository() {
+        return new SubredditRepositoryImpl();
+    }
+
+    @Nonnull
+    @Bean
+    public StoryRepository jdbcStoryRepository() {
+        return new JdbcStoryRepository(jdbcTemplate, new StoryHistoryCopyLoader(pgDataSource(), null),
+                new ArchivableStoryReader(pgDataSource(), getArchiveFetchSize(), null), getCopyThreshold(), null);
+    }
+
+    @Nonnull
+    @Bean
+    public StoryRepository jdbcPackedStoryRepository() {
+        return new JdbcStoryRepository(jdbcTemplate, new StoryHistoryCopyLoader(pgDataSource(), packedStoryHistory),
+                new ArchivableStoryReader(pgDataSource(), getArchiveFetchSize(), packedStoryHistory),
+                getCopyThreshold(), packedStoryHistoryStore);
+    }
+
+    @Nonnull
+    @Bean
+    public SubredditRepository jdbcSubredditRepository() {
+        return new JdbcSubredditRepository(jdbcTemplate);
+    }
+
+    @Nonnull
+    @Bean
+    public RepositoryBenchmark repositoryBenchmark() throws SQLException {
+        final FakeRedditWorkload workload = new FakeRedditWorkload(
+                environment.getRequiredProperty("benchmark.subreddits", Integer.class),
+                environment.getRequiredProperty("benchmark.postspersecond", Double.class),
+                environment.getRequiredProperty("benchmark.missingfraction", Double.class),
+                environment.getRequiredProperty("benchmark.seed", Long.class),
+                System.currentTimeMillis(),
+                environment.getRequiredProperty("benchmark.backlog", Integer.class));
+
+        return new RepositoryBenchmark(pgDataSource(),
+                workload,
+                Arrays.asList(
+                        new RepositoryBenchmark.Implementation("jpa", jpaStoryRepository(), jpaSubredditRepository()),
+                        new RepositoryBenchmark.Implementation("jdbc", jdbcStoryRepository(), jdbcSubredditRepository()),
+                        new RepositoryBenchmark.Implementation("packed", jdbcPackedStoryRepository(), jdbcSubredditRepository())),
+                environment.getRequiredProperty("benchmark.repository.stories", Integer.class),
+                environment.getRequiredProperty("benchmark.repository.rounds", Integer.class));
+    }
+
+    private int getCopyThreshold() {
+        return environment.getRequiredProperty("db.copythreshold", Integer.class);
+    }
+
+    private int getArchiveFetchSize() {
+        return environment.getRequiredProperty("db.archive.fetchsize", Integer.class);
+    }
+}
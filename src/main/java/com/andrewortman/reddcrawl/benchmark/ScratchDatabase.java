@@ -0,0 +1,56 @@
+package com.andrewortman.reddcrawl.benchmark;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.env.Environment;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.datasource.init.ScriptUtils;
+
+import javax.annotation.Nonnull;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * The scratch database the benchmarks run against (benchmark.db.*). Its schema is dropped and recreated from
+ * schema.sql, so it must never point at real data
+ */
+public final class ScratchDatabase {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ScratchDatabase.class);
+
+    private ScratchDatabase() {
+    }
+
+    /**
+     * @return a connection pool for the scratch database, sized like the regular one
+     */
+    @Nonnull
+    public static BasicDataSource createDataSource(@Nonnull final Environment environment) {
+        final String url = environment.getRequiredProperty("benchmark.db.url");
+        Preconditions.checkState(!Strings.isNullOrEmpty(url),
+                "Set benchmark.db.url to a scratch database - it is wiped on every benchmark run");
+
+        final BasicDataSource ds = new BasicDataSource();
+        ds.setDriverClassName(environment.getProperty("db.driver"));
+        ds.setUrl(url);
+        ds.setUsername(environment.getRequiredProperty("benchmark.db.username"));
+        ds.setPassword(environment.getRequiredProperty("benchmark.db.password"));
+        ds.setInitialSize(environment.getProperty("db.initialSize", Integer.class, 8));
+        ds.setMaxTotal(environment.getProperty("db.maxSize", Integer.class, 48));
+        ds.setMaxIdle(environment.getProperty("db.minIdle", Integer.class, 4));
+        return ds;
+    }
+
+    /**
+     * Drops and recreates all tables
+     */
+    public static void resetSchema(@Nonnull final DataSource dataSource) throws SQLException {
+        LOGGER.info("Recreating the benchmark schema");
+        try (final Connection connection = dataSource.getConnection()) {
+            ScriptUtils.executeSqlScript(connection, new ClassPathResource("schema.sql"));
+        }
+    }
+}
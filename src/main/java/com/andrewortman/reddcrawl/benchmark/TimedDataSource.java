@@ -0,0 +1,84 @@
+package com.andrewortman.reddcrawl.benchmark;
+
+import com.codahale.metrics.Timer;
+
+import javax.annotation.Nonnull;
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Statement;
+
+/**
+ * Wraps a DataSource so the time spent in every statement execution (including batches) is recorded in a timer. Only
+ * used by the benchmark - the proxies cost a little on every call
+ */
+public final class TimedDataSource {
+    private TimedDataSource() {
+    }
+
+    @Nonnull
+    public static DataSource wrap(@Nonnull final DataSource dataSource, @Nonnull final Timer statementTimer) {
+        return proxy(DataSource.class, dataSource, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                final Object result = invokeTarget(dataSource, method, args);
+                if (result instanceof Connection) {
+                    return wrapConnection((Connection) result, statementTimer);
+                }
+                return result;
+            }
+        });
+    }
+
+    @Nonnull
+    private static Connection wrapConnection(@Nonnull final Connection connection, @Nonnull final Timer statementTimer) {
+        return proxy(Connection.class, connection, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                final Object result = invokeTarget(connection, method, args);
+                if (result instanceof Statement) {
+                    return wrapStatement((Statement) result, method.getReturnType(), statementTimer);
+                }
+                return result;
+            }
+        });
+    }
+
+    @Nonnull
+    private static Statement wrapStatement(@Nonnull final Statement statement,
+                                           @Nonnull final Class<?> statementInterface,
+                                           @Nonnull final Timer statementTimer) {
+        return (Statement) proxy(statementInterface, statement, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                if (!method.getName().startsWith("execute")) {
+                    return invokeTarget(statement, method, args);
+                }
+
+                final Timer.Context timerContext = statementTimer.time();
+                try {
+                    return invokeTarget(statement, method, args);
+                } finally {
+                    timerContext.stop();
+                }
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    @Nonnull
+    private static <T> T proxy(@Nonnull final Class<T> type, @Nonnull final Object target, @Nonnull final InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(TimedDataSource.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    private static Object invokeTarget(@Nonnull final Object target, @Nonnull final Method method, final Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (final InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -25,9 +25,11 @@ import javax.ws.rs.RedirectionException;
 import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.MediaType;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -79,6 +81,34 @@ public class RedditClient {
                                                          @Nonnull final TimeRange timeRange,
                                                          final int limit) throws RedditClientException {
         final Set<RedditStory> stories = new LinkedHashSet<>();
+        streamStoryListingForSubreddits(subreddits, sort, timeRange, limit, new StoryListingPageHandler() {
+            @Override
+            public boolean handlePage(@Nonnull final List<RedditStory> page) {
+                stories.addAll(page);
+                return true;
+            }
+        });
+
+        return stories;
+    }
+
+    /**
+     * Same as getStoryListingForSubreddits, but hands each page to the page handler as soon as it arrives instead of
+     * waiting for the whole listing to be fetched. The handler is called on the calling thread.
+     *
+     * @param subreddits  the subreddits to look at
+     * @param sort        the sort style
+     * @param timeRange   the time range to filter on
+     * @param limit       the max number of stories
+     * @param pageHandler receives the newly seen stories of every page, in listing order, and decides if paging continues
+     * @throws RedditClientException
+     */
+    public void streamStoryListingForSubreddits(@Nonnull final Set<String> subreddits,
+                                                @Nonnull final SortStyle sort,
+                                                @Nonnull final TimeRange timeRange,
+                                                final int limit,
+                                                @Nonnull final StoryListingPageHandler pageHandler) throws RedditClientException {
+        final Set<RedditStory> stories = new LinkedHashSet<>();
         String currentAfter = "";
         int lastCount = 0;
         while (stories.size() < limit) {
@@ -101,19 +131,24 @@ public class RedditClient {
                 break; //no more listing!
             }
 
+            final List<RedditStory> newlySeenStories = new ArrayList<>(subListing.getChildren().size());
             for (int i = 0; i < subListing.getChildren().size() && stories.size() < limit; i++) {
-                stories.add(subListing.getChildren().get(i));
+                if (stories.add(subListing.getChildren().get(i))) {
+                    newlySeenStories.add(subListing.getChildren().get(i));
+                }
             }
 
             if (stories.size() == lastCount) {
                 break; //no more stories added, fail early
             }
 
+            if (!pageHandler.handlePage(newlySeenStories)) {
+                break; //the caller has seen enough
+            }
+
             lastCount = stories.size();
             currentAfter = subListing.getAfter();
         }
-
-        return stories;
     }
 
     /**
@@ -218,6 +253,44 @@ public class RedditClient {
         return storyMap;
     }
 
+    /**
+     * Given (up to MAX_ITEMS_PER_LISTING_PAGE) subreddit ids, fetch the latest details of those subreddits in a single
+     * request through the info endpoint and return a map of (subreddit id -> subreddit). Banned and deleted subreddits
+     * are left out of the response, private ones come back with subreddit type "private" and mostly empty details.
+     *
+     * @param subredditShortIds list of SHORT reddit subreddit ids to fetch (can be max MAX_ITEMS_PER_LISTING_PAGE) size
+     * @return map of subreddit id -> subreddit pairs, not guaranteed though to exist
+     * @throws RedditClientException
+     */
+    @Nonnull
+    public Map<String, RedditSubreddit> getSubredditsById(@Nonnull final Set<String> subredditShortIds) throws RedditClientException {
+        Preconditions.checkArgument(subredditShortIds.size() <= MAX_ITEMS_PER_LISTING_PAGE,
+                "Cannot request more than " + MAX_ITEMS_PER_LISTING_PAGE + " subreddits by id at a given time");
+        Preconditions.checkArgument(subredditShortIds.size() > 0, "Empty list of ids passed to getSubredditsById");
+
+        final Set<String> subredditLongIds = new HashSet<>(subredditShortIds.size());
+        for (final String subredditId : subredditShortIds) subredditLongIds.add(RedditKind.SUBREDDIT.getKey() + "_" + subredditId);
+
+        final RedditListing<RedditSubreddit> subreddits;
+        try {
+            final JsonNode jsonNodeResponse = redditEndpoint.path("/api/info.json")
+                    .queryParam("id", Joiner.on(",").join(subredditLongIds))
+                    .request(MediaType.APPLICATION_JSON)
+                    .get(JsonNode.class);
+            subreddits = new RedditListing<>(jsonNodeResponse, RedditSubreddit.class);
+        } catch (@Nonnull RedirectionException | ProcessingException | ClientErrorException | JsonProcessingException e) {
+            this.clientExceptionMeter.mark();
+            throw new RedditClientException(e);
+        }
+
+        final Map<String, RedditSubreddit> subredditMap = new LinkedHashMap<>(subredditShortIds.size());
+        for (final RedditSubreddit subreddit : subreddits) {
+            subredditMap.put(subreddit.getId(), subreddit);
+        }
+
+        return subredditMap;
+    }
+
     /**
      * Gets the details about a specific subreddit
      *
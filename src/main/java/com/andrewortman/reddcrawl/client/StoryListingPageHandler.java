@@ -0,0 +1,18 @@
+package com.andrewortman.reddcrawl.client;
+
+import com.andrewortman.reddcrawl.client.models.RedditStory;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+
+/**
+ * Receives each page of a story listing as soon as it comes back from reddit, so callers can start working
+ * on the first page while the next one is still being requested
+ */
+public interface StoryListingPageHandler {
+    /**
+     * @param stories the stories on this page that were not already seen on a previous page of the same listing
+     * @return true to keep paging through the listing, false to stop after this page
+     */
+    boolean handlePage(@Nonnull List<RedditStory> stories);
+}
@@ -0,0 +1,130 @@
+package com.andrewortman.reddcrawl.events;
+
+import com.andrewortman.reddcrawl.repository.model.StoryHistoryModel;
+import com.andrewortman.reddcrawl.repository.model.StoryModel;
+
+import javax.annotation.Nonnull;
+import java.util.Date;
+
+/**
+ * Something that happened to a story in the crawler, published on the StoryEventRing. Events are immutable so
+ * they can be handed to any number of subscribers
+ */
+public class StoryEvent {
+
+    public enum Type {
+        //a story was seen for the first time and saved
+        DISCOVERED,
+        //a new history item was added to a story
+        UPDATED,
+        //reddit didn't return a story we checked (deleted, removed or private subreddit)
+        MISSING
+    }
+
+    @Nonnull
+    private final Type type;
+
+    private final int storyId;
+
+    @Nonnull
+    private final String redditShortId;
+
+    @Nonnull
+    private final String subreddit;
+
+    @Nonnull
+    private final Date timestamp;
+
+    private final int score;
+
+    private final double hotness;
+
+    private final int comments;
+
+    private final int gilded;
+
+    public StoryEvent(@Nonnull final Type type,
+                      final int storyId,
+                      @Nonnull final String redditShortId,
+                      @Nonnull final String subreddit,
+                      @Nonnull final Date timestamp,
+                      final int score,
+                      final double hotness,
+                      final int comments,
+                      final int gilded) {
+        this.type = type;
+        this.storyId = storyId;
+        this.redditShortId = redditShortId;
+        this.subreddit = subreddit;
+        this.timestamp = new Date(timestamp.getTime());
+        this.score = score;
+        this.hotness = hotness;
+        this.comments = comments;
+        this.gilded = gilded;
+    }
+
+    /**
+     * Creates an event from a story and the history item that was just added to it
+     */
+    @Nonnull
+    public static StoryEvent fromHistory(@Nonnull final Type type,
+                                         @Nonnull final StoryModel story,
+                                         @Nonnull final StoryHistoryModel history) {
+        return new StoryEvent(type, story.getId(), story.getRedditShortId(), story.getSubreddit().getName(),
+                history.getTimestamp(), history.getScore(), history.getHotness(), history.getComments(), history.getGilded());
+    }
+
+    /**
+     * Creates an event from the last known state of a story (for events without a new history item)
+     */
+    @Nonnull
+    public static StoryEvent fromStory(@Nonnull final Type type, @Nonnull final StoryModel story, @Nonnull final Date timestamp) {
+        return new StoryEvent(type, story.getId(), story.getRedditShortId(), story.getSubreddit().getName(),
+                timestamp, story.getScore(), story.getHotness(), story.getComments(), story.getGilded());
+    }
+
+    @Nonnull
+    public Type getType() {
+        return type;
+    }
+
+    public int getStoryId() {
+        return storyId;
+    }
+
+    @Nonnull
+    public String getRedditShortId() {
+        return redditShortId;
+    }
+
+    @Nonnull
+    public String getSubreddit() {
+        return subreddit;
+    }
+
+    @Nonnull
+    public Date getTimestamp() {
+        return new Date(timestamp.getTime());
+    }
+
+    public int getScore() {
+        return score;
+    }
+
+    public double getHotness() {
+        return hotness;
+    }
+
+    public int getComments() {
+        return comments;
+    }
+
+    public int getGilded() {
+        return gilded;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + redditShortId + " (/r/" + subreddit + ") score=" + score + " hotness=" + hotness;
+    }
+}
@@ -0,0 +1,14 @@
+package com.andrewortman.reddcrawl.events;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Receives events polled from a StoryEventRing subscription
+ */
+public interface StoryEventHandler {
+    /**
+     * @param event    the event
+     * @param sequence sequence number of the event in the ring - consecutive for a subscriber, starting where it subscribed
+     */
+    void onEvent(@Nonnull StoryEvent event, long sequence);
+}
@@ -0,0 +1,249 @@
+package com.andrewortman.reddcrawl.events;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded in-process fan-out of story events, built like a Disruptor ring buffer: producers claim a sequence number
+ * with a CAS on the cursor, write the event into the slot for that sequence and then mark the slot as published.
+ * Every subscriber tracks the last sequence it consumed and reads the slots after it, so there are no locks on either
+ * side and every subscriber sees every event in the same order.
+ * <p/>
+ * A slot can only be reused once all subscribers are past it. If a subscriber falls a full ring behind, producers wait
+ * for it up to the publish timeout and then drop the event rather than stall the crawler - the dropped meter shows when
+ * that happens. Subscribers that stop polling should close their subscription so they don't hold the ring up.
+ */
+public class StoryEventRing {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StoryEventRing.class);
+
+    //how long a producer parks between checks while waiting on a slow subscriber
+    private static final long PUBLISH_WAIT_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final int capacity;
+
+    private final int mask;
+
+    @Nonnull
+    private final StoryEvent[] events;
+
+    //sequence of the event currently in each slot - written after the event, so seeing it means the event is readable
+    @Nonnull
+    private final AtomicLongArray publishedSequences;
+
+    //last claimed sequence
+    @Nonnull
+    private final AtomicLong cursor = new AtomicLong(-1);
+
+    @Nonnull
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    private final long publishTimeoutNanos;
+
+    @Nonnull
+    private final MetricRegistry metricRegistry;
+
+    @Nonnull
+    private final Meter publishedMeter;
+
+    @Nonnull
+    private final Meter droppedMeter;
+
+    /**
+     * @param capacity              number of slots in the ring, must be a power of two
+     * @param publishTimeoutMillis  how long a producer waits on a slow subscriber before dropping the event
+     * @param metricRegistry        metric registry
+     */
+    public StoryEventRing(final int capacity, final long publishTimeoutMillis, @Nonnull final MetricRegistry metricRegistry) {
+        Preconditions.checkArgument(capacity > 0 && Integer.bitCount(capacity) == 1, "Ring capacity must be a power of two");
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.events = new StoryEvent[capacity];
+        this.publishedSequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            publishedSequences.set(i, -1);
+        }
+        this.publishTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(publishTimeoutMillis);
+        this.metricRegistry = metricRegistry;
+
+        this.publishedMeter = metricRegistry.meter(MetricRegistry.name("reddcrawl", "events", "story", "published"));
+        this.droppedMeter = metricRegistry.meter(MetricRegistry.name("reddcrawl", "events", "story", "dropped"));
+        metricRegistry.register(MetricRegistry.name("reddcrawl", "events", "story", "subscribers"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return subscriptions.size();
+            }
+        });
+    }
+
+    /**
+     * Publishes an event to all subscribers. Safe to call from any number of threads
+     *
+     * @param event the event
+     * @return true if the event was published, false if it was dropped because a subscriber was a full ring behind
+     */
+    public boolean publish(@Nonnull final StoryEvent event) {
+        final long deadline = System.nanoTime() + publishTimeoutNanos;
+        while (true) {
+            final long current = cursor.get();
+            final long next = current + 1;
+
+            //the slot for next still holds next - capacity, which every subscriber has to be past before we reuse it
+            if (next - capacity > getMinimumSubscriberSequence(current)) {
+                if (System.nanoTime() - deadline >= 0) {
+                    droppedMeter.mark();
+                    return false;
+                }
+                LockSupport.parkNanos(PUBLISH_WAIT_PARK_NANOS);
+                continue;
+            }
+
+            if (cursor.compareAndSet(current, next)) {
+                final int index = (int) (next & mask);
+                events[index] = event;
+                publishedSequences.set(index, next);
+                publishedMeter.mark();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Subscribes to the ring. The subscription sees every event published after this call
+     *
+     * @param name name of the subscriber (used in metric names, so keep it unique and short)
+     * @return the subscription - poll it for events, and close it when done
+     */
+    @Nonnull
+    public Subscription subscribe(@Nonnull final String name) {
+        final Subscription subscription = new Subscription(name, cursor.get());
+        subscriptions.add(subscription);
+        metricRegistry.register(subscription.getLagMetricName(), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return subscription.getLag();
+            }
+        });
+        return subscription;
+    }
+
+    /**
+     * @return sequence of the last claimed event (-1 if nothing was published yet)
+     */
+    public long getCursor() {
+        return cursor.get();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    private long getMinimumSubscriberSequence(final long defaultSequence) {
+        long minimum = defaultSequence;
+        for (final Subscription subscription : subscriptions) {
+            minimum = Math.min(minimum, subscription.sequence.get());
+        }
+        return minimum;
+    }
+
+    /**
+     * A subscriber's position in the ring. A subscription must only be polled by one thread at a time
+     */
+    public class Subscription implements Closeable {
+        @Nonnull
+        private final String name;
+
+        //last consumed sequence
+        @Nonnull
+        private final AtomicLong sequence;
+
+        private Subscription(@Nonnull final String name, final long startSequence) {
+            this.name = name;
+            this.sequence = new AtomicLong(startSequence);
+        }
+
+        /**
+         * Hands the events published since the last poll to the handler, in sequence order
+         *
+         * @param handler   receives the events
+         * @param maxEvents max number of events to hand over in this call
+         * @return number of events handled
+         */
+        public int poll(@Nonnull final StoryEventHandler handler, final int maxEvents) {
+            long consumed = sequence.get();
+            int count = 0;
+            try {
+                while (count < maxEvents) {
+                    final long next = consumed + 1;
+                    final int index = (int) (next & mask);
+                    final long published = publishedSequences.get(index);
+                    if (published < next) {
+                        break; //not published yet (a producer may still be writing it)
+                    }
+
+                    if (published > next) {
+                        //only possible if producers lapped us while we were subscribing - skip to what's in the slot
+                        LOGGER.warn("Subscriber " + name + " was lapped - skipping " + (published - next) + " events");
+                        consumed = published - 1;
+                        continue;
+                    }
+
+                    handler.onEvent(events[index], next);
+                    consumed = next;
+                    count++;
+
+                    //let producers reuse the slot as soon as possible
+                    sequence.lazySet(consumed);
+                }
+            } finally {
+                sequence.set(consumed);
+            }
+            return count;
+        }
+
+        /**
+         * @return the sequence of the last event this subscriber consumed
+         */
+        public long getSequence() {
+            return sequence.get();
+        }
+
+        /**
+         * @return number of events published that this subscriber hasn't consumed yet
+         */
+        public long getLag() {
+            return cursor.get() - sequence.get();
+        }
+
+        @Nonnull
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Stops the subscription so it no longer holds up producers
+         */
+        @Override
+        public void close() {
+            subscriptions.remove(this);
+            metricRegistry.remove(getLagMetricName());
+        }
+
+        @Nonnull
+        private String getLagMetricName() {
+            return MetricRegistry.name("reddcrawl", "events", "story", "subscriber", name, "lag");
+        }
+    }
+}
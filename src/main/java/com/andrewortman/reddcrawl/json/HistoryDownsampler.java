@@ -0,0 +1,96 @@
+package com.andrewortman.reddcrawl.json;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Thins out a history to a given number of points while keeping its shape, with Largest-Triangle-Three-Buckets: the
+ * points are split into buckets, and from every bucket the point that forms the largest triangle with the point kept
+ * from the previous bucket and the average of the next bucket is kept. Peaks and dips survive, flat stretches don't.
+ * <p/>
+ * All series share the timestamps, so the points are picked for all of them at once - the triangle areas of the series
+ * are added up, each scaled by the range of its series so a large score doesn't drown out the comments.
+ */
+public final class HistoryDownsampler {
+    //the first point, the last point and at least one in between
+    private static final int MIN_POINTS = 3;
+
+    private HistoryDownsampler() {
+    }
+
+    /**
+     * @param timestamps the timestamps of the points, in ascending order
+     * @param series     the values of every series, each as long as timestamps
+     * @param maxPoints  number of points to keep
+     * @return the indices of the points to keep, in ascending order - all of them if there are no more than maxPoints
+     */
+    @Nonnull
+    public static int[] selectIndices(@Nonnull final long[] timestamps, @Nonnull final double[][] series, final int maxPoints) {
+        final int size = timestamps.length;
+        final int points = Math.max(maxPoints, MIN_POINTS);
+        if (size <= points) {
+            final int[] all = new int[size];
+            for (int i = 0; i < size; i++) {
+                all[i] = i;
+            }
+            return all;
+        }
+
+        final double[] scales = new double[series.length];
+        for (int s = 0; s < series.length; s++) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (final double value : series[s]) {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            scales[s] = max > min ? 1.0 / (max - min) : 0; //a flat series has no shape to keep
+        }
+
+        final int[] selected = new int[points];
+        final double bucketSize = (double) (size - 2) / (points - 2);
+        int previous = 0;
+        selected[0] = 0;
+
+        for (int bucket = 0; bucket < points - 2; bucket++) {
+            //the average point of the next bucket (the last point when this is the last bucket)
+            final int nextStart = (int) Math.floor((bucket + 1) * bucketSize) + 1;
+            final int nextEnd = Math.min((int) Math.floor((bucket + 2) * bucketSize) + 1, size);
+            final int nextCount = nextEnd - nextStart;
+            double averageTimestamp = 0;
+            final double[] averages = new double[series.length];
+            for (int i = nextStart; i < nextEnd; i++) {
+                averageTimestamp += timestamps[i];
+                for (int s = 0; s < series.length; s++) {
+                    averages[s] += series[s][i];
+                }
+            }
+            averageTimestamp /= nextCount;
+            for (int s = 0; s < series.length; s++) {
+                averages[s] /= nextCount;
+            }
+
+            //the point of this bucket forming the largest triangle with the previous point and that average
+            final int start = (int) Math.floor(bucket * bucketSize) + 1;
+            final int end = nextStart;
+            double largestArea = -1;
+            int largest = start;
+            for (int i = start; i < end; i++) {
+                double area = 0;
+                for (int s = 0; s < series.length; s++) {
+                    area += scales[s] * Math.abs((timestamps[previous] - averageTimestamp) * (series[s][i] - series[s][previous]) -
+                            (double) (timestamps[previous] - timestamps[i]) * (averages[s] - series[s][previous]));
+                }
+                if (area > largestArea) {
+                    largestArea = area;
+                    largest = i;
+                }
+            }
+
+            selected[bucket + 1] = largest;
+            previous = largest;
+        }
+
+        selected[points - 1] = size - 1;
+        return selected;
+    }
+}
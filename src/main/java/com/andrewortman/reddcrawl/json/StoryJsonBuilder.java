@@ -8,6 +8,7 @@ import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import javax.annotation.Nonnull;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
@@ -41,14 +42,27 @@ public class StoryJsonBuilder {
     }
 
     public static JsonNode renderJsonDetailForStory(@Nonnull final StoryModel storyModel, @Nonnull final List<StoryHistoryModel> storyHistoryModels) {
+        return renderJsonDetailForStory(storyModel, storyHistoryModels, 0);
+    }
+
+    /**
+     * @param maxPoints number of history points to thin the history out to (see HistoryDownsampler), or 0 for all
+     */
+    public static JsonNode renderJsonDetailForStory(@Nonnull final StoryModel storyModel,
+                                                    @Nonnull final List<StoryHistoryModel> storyHistoryModels,
+                                                    final int maxPoints) {
         final ObjectNode storyNode = JsonNodeFactory.instance.objectNode();
         storyNode.set("summary", renderJsonSummaryForStory(storyModel));
-        storyNode.set("history", renderJsonForStoryHistory(storyHistoryModels));
+        storyNode.set("history", renderJsonForStoryHistory(storyHistoryModels, maxPoints));
 
         return storyNode;
     }
 
     public static JsonNode renderJsonForStoryHistory(@Nonnull final List<StoryHistoryModel> historyModels) {
+        return renderJsonForStoryHistory(historyModels, 0);
+    }
+
+    public static JsonNode renderJsonForStoryHistory(@Nonnull final List<StoryHistoryModel> historyModels, final int maxPoints) {
         final JsonNodeFactory jsonNodeFactory = JsonNodeFactory.instance;
         final ObjectNode rootNode = jsonNodeFactory.objectNode();
 
@@ -66,7 +80,7 @@ public class StoryJsonBuilder {
             }
         });
 
-        for (final StoryHistoryModel historyModel : historyModels) {
+        for (final StoryHistoryModel historyModel : downsample(historyModels, maxPoints)) {
             timestampArray.add(historyModel.getTimestamp().getTime());
             scoreArray.add(historyModel.getScore());
             hotnessArray.add(historyModel.getHotness());
@@ -82,4 +96,30 @@ public class StoryJsonBuilder {
 
         return rootNode;
     }
+
+    @Nonnull
+    private static List<StoryHistoryModel> downsample(@Nonnull final List<StoryHistoryModel> historyModels, final int maxPoints) {
+        if (maxPoints <= 0 || historyModels.size() <= maxPoints) {
+            return historyModels;
+        }
+
+        final int size = historyModels.size();
+        final long[] timestamps = new long[size];
+        final double[][] series = new double[4][size];
+        for (int i = 0; i < size; i++) {
+            final StoryHistoryModel historyModel = historyModels.get(i);
+            timestamps[i] = historyModel.getTimestamp().getTime();
+            series[0][i] = historyModel.getScore();
+            series[1][i] = historyModel.getHotness();
+            series[2][i] = historyModel.getComments();
+            series[3][i] = historyModel.getGilded();
+        }
+
+        final int[] indices = HistoryDownsampler.selectIndices(timestamps, series, maxPoints);
+        final List<StoryHistoryModel> downsampled = new ArrayList<>(indices.length);
+        for (final int index : indices) {
+            downsampled.add(historyModels.get(index));
+        }
+        return downsampled;
+    }
 }
@@ -0,0 +1,63 @@
+package com.andrewortman.reddcrawl.json;
+
+import com.andrewortman.reddcrawl.repository.model.SubredditHistoryRollupModel;
+import com.andrewortman.reddcrawl.repository.model.SubredditModel;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+
+/**
+ * Builds up the subreddit json serialization, in the same column per value layout as the story history
+ */
+public class SubredditJsonBuilder {
+    public static JsonNode renderJsonGrowthForSubreddit(@Nonnull final SubredditModel subredditModel,
+                                                        @Nonnull final SubredditHistoryRollupModel.Resolution resolution,
+                                                        @Nonnull final List<SubredditHistoryRollupModel> rollups) {
+        final JsonNodeFactory jsonNodeFactory = JsonNodeFactory.instance;
+        final ObjectNode rootNode = jsonNodeFactory.objectNode()
+                .put("subreddit", subredditModel.getName())
+                .put("resolution", resolution.name().toLowerCase());
+
+        //change from the end of the first period to the end of the last one
+        if (!rollups.isEmpty()) {
+            final SubredditHistoryRollupModel first = rollups.get(0);
+            final SubredditHistoryRollupModel last = rollups.get(rollups.size() - 1);
+            rootNode.put("subscriberGrowth", last.getLastSubscribers() - first.getLastSubscribers());
+            rootNode.put("activeGrowth", last.getLastActive() - first.getLastActive());
+        }
+
+        final ArrayNode timestampArray = jsonNodeFactory.arrayNode();
+        final ArrayNode subscribersArray = jsonNodeFactory.arrayNode();
+        final ArrayNode minSubscribersArray = jsonNodeFactory.arrayNode();
+        final ArrayNode maxSubscribersArray = jsonNodeFactory.arrayNode();
+        final ArrayNode activeArray = jsonNodeFactory.arrayNode();
+        final ArrayNode minActiveArray = jsonNodeFactory.arrayNode();
+        final ArrayNode maxActiveArray = jsonNodeFactory.arrayNode();
+
+        for (final SubredditHistoryRollupModel rollup : rollups) {
+            timestampArray.add(rollup.getBucket().getTime());
+            subscribersArray.add(rollup.getLastSubscribers());
+            minSubscribersArray.add(rollup.getMinSubscribers());
+            maxSubscribersArray.add(rollup.getMaxSubscribers());
+            activeArray.add(rollup.getLastActive());
+            minActiveArray.add(rollup.getMinActive());
+            maxActiveArray.add(rollup.getMaxActive());
+        }
+
+        final ObjectNode historyNode = jsonNodeFactory.objectNode();
+        historyNode.set("timestamp", timestampArray);
+        historyNode.set("subscribers", subscribersArray);
+        historyNode.set("minSubscribers", minSubscribersArray);
+        historyNode.set("maxSubscribers", maxSubscribersArray);
+        historyNode.set("active", activeArray);
+        historyNode.set("minActive", minActiveArray);
+        historyNode.set("maxActive", maxActiveArray);
+        rootNode.set("history", historyNode);
+
+        return rootNode;
+    }
+}
@@ -0,0 +1,168 @@
+package com.andrewortman.reddcrawl.repository;
+
+import com.andrewortman.reddcrawl.repository.model.StoryHistoryModel;
+import com.andrewortman.reddcrawl.repository.model.StoryModel;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.sql.DataSource;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static com.andrewortman.reddcrawl.repository.JdbcModelMappers.STORY_COLUMNS;
+import static com.andrewortman.reddcrawl.repository.JdbcModelMappers.STORY_ROW_MAPPER;
+import static com.andrewortman.reddcrawl.repository.JdbcModelMappers.SUBREDDIT_COLUMNS;
+import static com.andrewortman.reddcrawl.repository.JdbcModelMappers.timestamp;
+
+/**
+ * Reads the stories to archive together with their history in a single query, instead of a history query per story.
+ * The history of every story is aggregated into arrays (or the concatenated chunks with packed history), so each
+ * story is one row and its selftext isn't repeated for every history item. The rows come through a server side cursor,
+ * so only fetchSize stories are held in memory at a time.
+ * <p/>
+ * Must be called inside a transaction on the same datasource - postgres only keeps the cursor open in a transaction.
+ */
+public class ArchivableStoryReader {
+    //the stories are picked in id order (see story_created_at_idx), then joined to the rest
+    private static final String ARCHIVABLE_STORIES = "WITH archivable AS (SELECT id FROM story " +
+            "WHERE created_at <= ? AND id > ? ORDER BY id LIMIT ?) " +
+            "SELECT " + STORY_COLUMNS + ", " + SUBREDDIT_COLUMNS + ", h.* FROM archivable a " +
+            "JOIN story s ON s.id = a.id JOIN story_stats ss ON ss.story = s.id JOIN subreddit sr ON sr.id = s.subreddit ";
+
+    //history is never older than the story's discovery - lets postgres skip the partitions of earlier days
+    private static final String AGGREGATE_HISTORY_ROWS = "(SELECT array_agg(id ORDER BY \"timestamp\") AS history_ids, " +
+            "array_agg(\"timestamp\" ORDER BY \"timestamp\") AS history_timestamps, " +
+            "array_agg(score ORDER BY \"timestamp\") AS history_scores, " +
+            "array_agg(hotness ORDER BY \"timestamp\") AS history_hotness, " +
+            "array_agg(comments ORDER BY \"timestamp\") AS history_comments, " +
+            "array_agg(gilded ORDER BY \"timestamp\") AS history_gilded " +
+            "FROM story_history WHERE story = s.id AND \"timestamp\" >= s.discovered_at)";
+
+    private static final String SELECT_WITH_HISTORY_ROWS = ARCHIVABLE_STORIES +
+            "LEFT JOIN LATERAL " + AGGREGATE_HISTORY_ROWS + " h ON TRUE ORDER BY s.id";
+
+    //history rows from before the switch to packed history are read along with the packed samples (both aggregates
+    //are a single row, even without history)
+    private static final String SELECT_WITH_PACKED_HISTORY = ARCHIVABLE_STORIES +
+            "LEFT JOIN LATERAL (SELECT p.history_data, r.* FROM (SELECT string_agg(data, ''::BYTEA ORDER BY chunk) AS history_data " +
+            "FROM story_history_packed WHERE story = s.id) p, " + AGGREGATE_HISTORY_ROWS + " r) h ON TRUE ORDER BY s.id";
+
+    @Nonnull
+    private final DataSource dataSource;
+
+    private final int fetchSize;
+
+    @Nullable
+    private final PackedStoryHistory packedStoryHistory;
+
+    /**
+     * @param dataSource         datasource the repositories run their transactions on
+     * @param fetchSize          number of stories fetched from the cursor at a time
+     * @param packedStoryHistory encoding of packed history, or null to read the story_history rows
+     */
+    public ArchivableStoryReader(@Nonnull final DataSource dataSource,
+                                 final int fetchSize,
+                                 @Nullable final PackedStoryHistory packedStoryHistory) {
+        this.dataSource = dataSource;
+        this.fetchSize = fetchSize;
+        this.packedStoryHistory = packedStoryHistory;
+    }
+
+    /**
+     * See StoryRepository.streamArchivableStories
+     *
+     * @return number of stories streamed
+     */
+    public int read(@Nonnull final Date latestCreateDate,
+                    final int afterId,
+                    final int limit,
+                    @Nonnull final StoryWithHistoryHandler handler) throws SQLException {
+        final Connection connection = DataSourceUtils.getConnection(dataSource);
+        try (final PreparedStatement statement = connection.prepareStatement(
+                packedStoryHistory != null ? SELECT_WITH_PACKED_HISTORY : SELECT_WITH_HISTORY_ROWS)) {
+            statement.setFetchSize(fetchSize);
+            statement.setTimestamp(1, timestamp(latestCreateDate));
+            statement.setInt(2, afterId);
+            statement.setInt(3, limit);
+
+            int stories = 0;
+            try (final ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    final StoryModel story = STORY_ROW_MAPPER.mapRow(rs, stories);
+                    handler.handleStory(story, packedStoryHistory != null ? mapPackedHistory(rs, story) : mapHistory(rs, story));
+                    stories++;
+                }
+            }
+            return stories;
+        } finally {
+            DataSourceUtils.releaseConnection(connection, dataSource);
+        }
+    }
+
+    @Nonnull
+    private List<StoryHistoryModel> mapPackedHistory(@Nonnull final ResultSet rs, @Nonnull final StoryModel story) throws SQLException {
+        final byte[] data = rs.getBytes("history_data");
+        final List<StoryHistoryModel> history = new ArrayList<>();
+        if (data != null && packedStoryHistory != null) {
+            history.addAll(packedStoryHistory.decode(story, data));
+        }
+
+        final List<StoryHistoryModel> historyRows = mapHistory(rs, story);
+        if (!historyRows.isEmpty()) {
+            history.addAll(historyRows);
+            Collections.sort(history, PackedStoryHistory.BY_TIMESTAMP);
+        }
+        return history;
+    }
+
+    @Nonnull
+    private static List<StoryHistoryModel> mapHistory(@Nonnull final ResultSet rs, @Nonnull final StoryModel story) throws SQLException {
+        final Long[] ids = getArray(rs, "history_ids", Long[].class);
+        if (ids == null) {
+            return Collections.emptyList(); //no history (the aggregates of no rows are null)
+        }
+
+        final Timestamp[] timestamps = getArray(rs, "history_timestamps", Timestamp[].class);
+        final Integer[] scores = getArray(rs, "history_scores", Integer[].class);
+        final Double[] hotness = getArray(rs, "history_hotness", Double[].class);
+        final Integer[] comments = getArray(rs, "history_comments", Integer[].class);
+        final Integer[] gilded = getArray(rs, "history_gilded", Integer[].class);
+
+        final List<StoryHistoryModel> history = new ArrayList<>(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            final StoryHistoryModel historyItem = new StoryHistoryModel();
+            historyItem.setId(ids[i]);
+            historyItem.setStory(story);
+            historyItem.setTimestamp(timestamps[i]);
+            historyItem.setScore(scores[i]);
+            historyItem.setHotness(hotness[i]);
+            historyItem.setComments(comments[i]);
+            historyItem.setGilded(gilded[i]);
+            history.add(historyItem);
+        }
+        return history;
+    }
+
+    @Nullable
+    private static <T> T getArray(@Nonnull final ResultSet rs, @Nonnull final String column, @Nonnull final Class<T> type) throws SQLException {
+        final Array array = rs.getArray(column);
+        if (array == null) {
+            return null;
+        }
+
+        try {
+            return type.cast(array.getArray());
+        } finally {
+            array.free();
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.andrewortman.reddcrawl.repository;
+
+import com.andrewortman.reddcrawl.repository.model.SubredditHistoryModel;
+import com.andrewortman.reddcrawl.repository.model.SubredditHistoryRollupModel;
+import com.andrewortman.reddcrawl.repository.model.SubredditModel;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read-through cache in front of another SubredditRepository. Subreddits hardly ever change, but the scrapers look them
+ * up all the time - the story scraper loads all recently seen subreddits every run and the subreddit scraper resolves
+ * the front page names every run.
+ * <p/>
+ * Subreddits are cached by name for a limited time. The recently seen subreddits are kept as one snapshot, which
+ * answers any later lastSeenTime by filtering (the window only moves forward). Saving a subreddit or marking it as seen
+ * drops it and the snapshot, so the next read goes to the database again. Adding history only changes the update time,
+ * which the snapshot doesn't depend on, so that just drops the subreddit. Other nodes writing to the same database are
+ * only picked up once the entries expire.
+ */
+public class CachingSubredditRepository implements SubredditRepository {
+    @Nonnull
+    private final SubredditRepository delegate;
+
+    private final long ttlNanos;
+
+    @Nonnull
+    private final Cache<String, SubredditModel> subredditsByName;
+
+    @Nonnull
+    private final Meter hitMeter;
+
+    @Nonnull
+    private final Meter missMeter;
+
+    //guarded by this
+    @Nullable
+    private RecentlySeenSnapshot recentlySeenSnapshot;
+
+    //bumped by every invalidation, so a snapshot loaded while subreddits were written isn't kept (guarded by this)
+    private long invalidations = 0;
+
+    public CachingSubredditRepository(@Nonnull final SubredditRepository delegate,
+                                      final int maxSize,
+                                      final int ttlSeconds,
+                                      @Nonnull final MetricRegistry metricRegistry) {
+        this.delegate = delegate;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.subredditsByName = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .build();
+        this.hitMeter = metricRegistry.meter(MetricRegistry.name("reddcrawl", "subreddit", "cache", "hits"));
+        this.missMeter = metricRegistry.meter(MetricRegistry.name("reddcrawl", "subreddit", "cache", "misses"));
+    }
+
+    @Override
+    @Nonnull
+    public List<SubredditModel> getAllRecentlySeenSubreddits(@Nonnull final Date lastSeenTime) {
+        final long invalidationsBeforeLoad;
+        synchronized (this) {
+            if (recentlySeenSnapshot != null && recentlySeenSnapshot.covers(lastSeenTime, System.nanoTime())) {
+                hitMeter.mark();
+                return recentlySeenSnapshot.filter(lastSeenTime);
+            }
+            invalidationsBeforeLoad = invalidations;
+        }
+
+        missMeter.mark();
+        final long loadedAt = System.nanoTime();
+        final List<SubredditModel> subredditModels = delegate.getAllRecentlySeenSubreddits(lastSeenTime);
+        for (final SubredditModel subredditModel : subredditModels) {
+            subredditsByName.put(subredditModel.getName(), subredditModel);
+        }
+
+        synchronized (this) {
+            if (invalidations == invalidationsBeforeLoad) {
+                recentlySeenSnapshot = new RecentlySeenSnapshot(lastSeenTime, loadedAt + ttlNanos, subredditModels);
+            }
+        }
+        return new ArrayList<>(subredditModels);
+    }
+
+    @Override
+    @Nonnull
+    public List<SubredditModel> findSubredditsNeedingUpdate(@Nonnull final Date lastUpdateTime) {
+        //depends on the update time, which changes with every history item - not worth caching
+        return delegate.findSubredditsNeedingUpdate(lastUpdateTime);
+    }
+
+    @Override
+    @Nullable
+    public SubredditModel findSubredditByName(@Nonnull final String name) {
+        final SubredditModel cachedSubreddit = subredditsByName.getIfPresent(name);
+        if (cachedSubreddit != null) {
+            hitMeter.mark();
+            return cachedSubreddit;
+        }
+
+        missMeter.mark();
+        final SubredditModel subredditModel = delegate.findSubredditByName(name);
+        if (subredditModel != null) {
+            subredditsByName.put(name, subredditModel);
+        }
+        return subredditModel;
+    }
+
+    @Override
+    @Nonnull
+    public Map<String, SubredditModel> findSubredditsByNames(@Nonnull final Collection<String> names) {
+        final Map<String, SubredditModel> subredditsByNames = new HashMap<>(subredditsByName.getAllPresent(names));
+        hitMeter.mark(subredditsByNames.size());
+
+        final List<String> missingNames = new ArrayList<>();
+        for (final String name : names) {
+            if (!subredditsByNames.containsKey(name)) {
+                missingNames.add(name);
+            }
+        }
+
+        if (!missingNames.isEmpty()) {
+            missMeter.mark(missingNames.size());
+            final Map<String, SubredditModel> loadedSubreddits = delegate.findSubredditsByNames(missingNames);
+            subredditsByName.putAll(loadedSubreddits);
+            subredditsByNames.putAll(loadedSubreddits);
+        }
+
+        return subredditsByNames;
+    }
+
+    @Override
+    @Nonnull
+    public SubredditModel saveNewSubreddit(@Nonnull final SubredditModel subredditModel) {
+        try {
+            return delegate.saveNewSubreddit(subredditModel);
+        } finally {
+            invalidate(Collections.singletonList(subredditModel));
+        }
+    }
+
+    @Override
+    @Nonnull
+    public List<SubredditModel> saveNewSubreddits(@Nonnull final Collection<SubredditModel> subredditModels) {
+        try {
+            return delegate.saveNewSubreddits(subredditModels);
+        } finally {
+            invalidate(subredditModels);
+        }
+    }
+
+    @Override
+    @Nonnull
+    public SubredditHistoryModel addSubredditHistory(@Nonnull final SubredditModel subredditModel,
+                                                     @Nonnull final SubredditHistoryModel historyItem) {
+        try {
+            return delegate.addSubredditHistory(subredditModel, historyItem);
+        } finally {
+            //runs for some subreddit every few minutes - dropping the snapshot each time would make it useless
+            subredditsByName.invalidate(subredditModel.getName());
+        }
+    }
+
+    @Override
+    @Nullable
+    public SubredditHistoryModel getSubredditHistoryModelFirstBeforeDate(@Nonnull final SubredditModel subredditModel,
+                                                                        @Nonnull final Date date) {
+        return delegate.getSubredditHistoryModelFirstBeforeDate(subredditModel, date);
+    }
+
+    @Override
+    @Nonnull
+    public List<SubredditHistoryRollupModel> getSubredditHistoryRollups(@Nonnull final SubredditModel subredditModel,
+                                                                        @Nonnull final SubredditHistoryRollupModel.Resolution resolution,
+                                                                        @Nonnull final Date from,
+                                                                        @Nonnull final Date to) {
+        return delegate.getSubredditHistoryRollups(subredditModel, resolution, from, to);
+    }
+
+    @Override
+    public boolean markSubredditAsSeen(@Nonnull final SubredditModel subredditModel) {
+        try {
+            return delegate.markSubredditAsSeen(subredditModel);
+        } finally {
+            invalidate(Collections.singletonList(subredditModel));
+        }
+    }
+
+    @Override
+    public int markSubredditsAsSeen(@Nonnull final Collection<SubredditModel> subredditModels) {
+        try {
+            return delegate.markSubredditsAsSeen(subredditModels);
+        } finally {
+            invalidate(subredditModels);
+        }
+    }
+
+    /**
+     * Drops the subreddits, and the recently seen snapshot since they may have moved into (or been added to) it
+     */
+    private void invalidate(@Nonnull final Collection<SubredditModel> subredditModels) {
+        if (subredditModels.isEmpty()) {
+            return;
+        }
+
+        for (final SubredditModel subredditModel : subredditModels) {
+            subredditsByName.invalidate(subredditModel.getName());
+        }
+
+        synchronized (this) {
+            recentlySeenSnapshot = null;
+            invalidations++;
+        }
+    }
+
+    /**
+     * The recently seen subreddits as of one load
+     */
+    private static class RecentlySeenSnapshot {
+        @Nonnull
+        private final Date lastSeenTime;
+
+        private final long expiresAt;
+
+        @Nonnull
+        private final List<SubredditModel> subredditModels;
+
+        RecentlySeenSnapshot(@Nonnull final Date lastSeenTime,
+                             final long expiresAt,
+                             @Nonnull final List<SubredditModel> subredditModels) {
+            this.lastSeenTime = new Date(lastSeenTime.getTime());
+            this.expiresAt = expiresAt;
+            this.subredditModels = new ArrayList<>(subredditModels);
+        }
+
+        /**
+         * @return true if the snapshot still holds every subreddit seen after the given time - subreddits only get into
+         * the window by being seen or saved, which drops the snapshot
+         */
+        boolean covers(@Nonnull final Date lastSeenTime, final long now) {
+            return now - expiresAt < 0 && !lastSeenTime.before(this.lastSeenTime);
+        }
+
+        @Nonnull
+        List<SubredditModel> filter(@Nonnull final Date lastSeenTime) {
+            final List<SubredditModel> filtered = new ArrayList<>(subredditModels.size());
+            for (final SubredditModel subredditModel : subredditModels) {
+                if (subredditModel.getSeenAt().after(lastSeenTime)) {
+                    filtered.add(subredditModel);
+                }
+            }
+            return filtered;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.andrewortman.reddcrawl.repository;
+
+import com.andrewortman.reddcrawl.repository.model.StoryHistoryModel;
+import com.andrewortman.reddcrawl.repository.model.StoryModel;
+import com.andrewortman.reddcrawl.repository.model.StoryWorkItem;
+import com.andrewortman.reddcrawl.repository.model.SubredditHistoryModel;
+import com.andrewortman.reddcrawl.repository.model.SubredditModel;
+import org.springframework.jdbc.core.RowMapper;
+
+import javax.annotation.Nonnull;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Date;
+
+/**
+ * Column lists and row mappers shared by the jdbc repositories. Stories are always selected together with their
+ * story_stats row and their subreddit (callers use the subreddit name), so the subreddit columns are aliased with a
+ * "sr_" prefix to keep them apart from the story columns.
+ */
+final class JdbcModelMappers {
+    static final String SUBREDDIT_COLUMNS = "sr.id AS sr_id, sr.reddit_short_id AS sr_reddit_short_id, sr.name AS sr_name, " +
+            "sr.title AS sr_title, sr.url AS sr_url, sr.summary AS sr_summary, sr.description AS sr_description, " +
+            "sr.submission_type AS sr_submission_type, sr.created_at AS sr_created_at, sr.updated_at AS sr_updated_at, " +
+            "sr.seen_at AS sr_seen_at";
+
+    //"ss" is the story_stats row of the story
+    static final String STORY_COLUMNS = "s.id, s.reddit_short_id, s.title, s.author, s.url, s.permalink, s.domain, s.thumbnail, " +
+            "s.distinguished, s.over18, s.is_self, s.selftext, s.stickied, s.created_at, ss.score, ss.hotness, ss.comments, " +
+            "ss.gilded, s.discovered_at, ss.updated_at, ss.checked_at, ss.missed_checks, ss.lease_owner, ss.lease_until";
+
+    //the history updater's work queue only needs these (see StoryWorkItem)
+    static final String STORY_WORK_ITEM_COLUMNS = "s.id, s.reddit_short_id, sr.name AS sr_name, s.discovered_at, ss.checked_at, ss.missed_checks";
+
+    static final RowMapper<StoryWorkItem> STORY_WORK_ITEM_ROW_MAPPER = new RowMapper<StoryWorkItem>() {
+        @Override
+        public StoryWorkItem mapRow(final ResultSet rs, final int rowNum) throws SQLException {
+            return new StoryWorkItem(rs.getInt("id"),
+                    rs.getString("reddit_short_id"),
+                    rs.getString("sr_name"),
+                    rs.getTimestamp("discovered_at"),
+                    rs.getTimestamp("checked_at"),
+                    rs.getInt("missed_checks"));
+        }
+    };
+
+    static final RowMapper<SubredditModel> SUBREDDIT_ROW_MAPPER = new RowMapper<SubredditModel>() {
+        @Override
+        public SubredditModel mapRow(final ResultSet rs, final int rowNum) throws SQLException {
+            return mapSubreddit(rs);
+        }
+    };
+
+    static final RowMapper<StoryModel> STORY_ROW_MAPPER = new RowMapper<StoryModel>() {
+        @Override
+        public StoryModel mapRow(final ResultSet rs, final int rowNum) throws SQLException {
+            final StoryModel story = new StoryModel();
+            story.setId(rs.getInt("id"));
+            story.setRedditShortId(rs.getString("reddit_short_id"));
+            story.setSubreddit(mapSubreddit(rs));
+            story.setTitle(rs.getString("title"));
+            story.setAuthor(rs.getString("author"));
+            story.setUrl(rs.getString("url"));
+            story.setPermalink(rs.getString("permalink"));
+            story.setDomain(rs.getString("domain"));
+            story.setThumbnail(rs.getString("thumbnail"));
+            story.setDistinguished(rs.getString("distinguished"));
+            story.setOver18(rs.getBoolean("over18"));
+            story.setIsSelf(rs.getBoolean("is_self"));
+            story.setSelftext(rs.getString("selftext"));
+            story.setStickied(rs.getBoolean("stickied"));
+            story.setCreatedAt(rs.getTimestamp("created_at"));
+            story.setScore(rs.getInt("score"));
+            story.setHotness(rs.getDouble("hotness"));
+            story.setComments(rs.getInt("comments"));
+            story.setGilded(rs.getInt("gilded"));
+            story.setDiscoveredAt(rs.getTimestamp("discovered_at"));
+            story.setUpdatedAt(rs.getTimestamp("updated_at"));
+            story.setCheckedAt(rs.getTimestamp("checked_at"));
+            story.setMissedChecks(rs.getInt("missed_checks"));
+            story.setLeaseOwner(rs.getString("lease_owner"));
+            story.setLeaseUntil(rs.getTimestamp("lease_until"));
+            return story;
+        }
+    };
+
+    private JdbcModelMappers() {
+    }
+
+    @Nonnull
+    static SubredditModel mapSubreddit(@Nonnull final ResultSet rs) throws SQLException {
+        final SubredditModel subreddit = new SubredditModel();
+        subreddit.setId(rs.getInt("sr_id"));
+        subreddit.setSubredditShortId(rs.getString("sr_reddit_short_id"));
+        subreddit.setName(rs.getString("sr_name"));
+        subreddit.setTitle(rs.getString("sr_title"));
+        subreddit.setUrl(rs.getString("sr_url"));
+        subreddit.setSummary(rs.getString("sr_summary"));
+        subreddit.setDescription(rs.getString("sr_description"));
+        subreddit.setSubmissionType(rs.getString("sr_submission_type"));
+        subreddit.setCreatedAt(rs.getTimestamp("sr_created_at"));
+        subreddit.setUpdatedAt(rs.getTimestamp("sr_updated_at"));
+        subreddit.setSeenAt(rs.getTimestamp("sr_seen_at"));
+        return subreddit;
+    }
+
+    @Nonnull
+    static StoryHistoryModel mapStoryHistory(@Nonnull final ResultSet rs, @Nonnull final StoryModel story) throws SQLException {
+        final StoryHistoryModel history = new StoryHistoryModel();
+        history.setId(rs.getLong("id"));
+        history.setStory(story);
+        history.setTimestamp(rs.getTimestamp("timestamp"));
+        history.setScore(rs.getInt("score"));
+        history.setHotness(rs.getDouble("hotness"));
+        history.setComments(rs.getInt("comments"));
+        history.setGilded(rs.getInt("gilded"));
+        return history;
+    }
+
+    @Nonnull
+    static SubredditHistoryModel mapSubredditHistory(@Nonnull final ResultSet rs) throws SQLException {
+        final SubredditHistoryModel history = new SubredditHistoryModel();
+        history.setId(rs.getLong("id"));
+        history.setSubreddit(mapSubreddit(rs));
+        history.setTimestamp(rs.getTimestamp("timestamp"));
+        history.setSubscribers(rs.getLong("subscribers"));
+        history.setActive(rs.getInt("active"));
+        history.setCommentHideMins(rs.getInt("comment_hide_mins"));
+        return history;
+    }
+
+    /**
+     * Dates are bound as timestamps so the driver doesn't have to guess the type (the columns are timestamps without
+     * time zone)
+     */
+    static Timestamp timestamp(final Date date) {
+        return date == null ? null : new Timestamp(date.getTime());
+    }
+}
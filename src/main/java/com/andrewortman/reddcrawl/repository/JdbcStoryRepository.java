@@ -0,0 +1,430 @@
+package com.andrewortman.reddcrawl.repository;
+
+import com.andrewortman.reddcrawl.repository.model.StoryHistoryModel;
+import com.andrewortman.reddcrawl.repository.model.StoryModel;
+import com.andrewortman.reddcrawl.repository.model.StoryWorkItem;
+import org.springframework.jdbc.UncategorizedSQLException;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.transaction.Transactional;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.andrewortman.reddcrawl.repository.JdbcModelMappers.STORY_COLUMNS;
+import static com.andrewortman.reddcrawl.repository.JdbcModelMappers.STORY_ROW_MAPPER;
+import static com.andrewortman.reddcrawl.repository.JdbcModelMappers.STORY_WORK_ITEM_COLUMNS;
+import static com.andrewortman.reddcrawl.repository.JdbcModelMappers.STORY_WORK_ITEM_ROW_MAPPER;
+import static com.andrewortman.reddcrawl.repository.JdbcModelMappers.SUBREDDIT_COLUMNS;
+import static com.andrewortman.reddcrawl.repository.JdbcModelMappers.timestamp;
+
+/**
+ * StoryRepository on plain jdbc. Same behaviour as the JPA implementation, but every call is a single prepared
+ * statement (or one round trip for lists), nothing goes through the entity manager's dirty checking and merge, and the
+ * subreddit of each story comes from a join instead of a second select per story.
+ * <p/>
+ * Transactions come from the same transaction manager as the JPA repositories, so the two can be mixed.
+ */
+public class JdbcStoryRepository implements StoryRepository {
+    private static final String FROM_STORIES = " FROM story s JOIN story_stats ss ON ss.story = s.id JOIN subreddit sr ON sr.id = s.subreddit ";
+
+    private static final String SELECT_STORIES = "SELECT " + STORY_COLUMNS + ", " + SUBREDDIT_COLUMNS + FROM_STORIES;
+
+    //the work queue is filtered on story_stats alone (story_stats_work_queue_idx), story and subreddit are only joined
+    //for the stories that make the cut
+    private static final String SELECT_STORY_WORK_ITEMS = "SELECT " + STORY_WORK_ITEM_COLUMNS + " FROM (SELECT ss.story, " +
+            "ss.checked_at, ss.missed_checks, ss.hotness FROM story_stats ss WHERE ss.checked_at <= :lastUpdateTime " +
+            "AND ss.discovered_at >= :earliestCreateTime AND ss.missed_checks < :maxMissedChecks " +
+            "ORDER BY ss.hotness DESC LIMIT :limit) ss JOIN story s ON s.id = ss.story " +
+            "JOIN subreddit sr ON sr.id = s.subreddit ORDER BY ss.hotness DESC";
+
+    //also used by the JPA repository - SKIP LOCKED and the lease columns are explained there
+    static final String LEASE_STORY_WORK_ITEMS = "WITH leased AS (UPDATE story_stats SET lease_owner = :leaseOwner, " +
+            "lease_until = now() + :leaseDurationSeconds * interval '1 second' " +
+            "WHERE story IN (SELECT ss.story FROM story_stats ss " +
+            "WHERE ss.checked_at <= :lastUpdateTime AND ss.discovered_at >= :earliestCreateTime " +
+            "AND ss.missed_checks < :maxMissedChecks AND (ss.lease_until IS NULL OR ss.lease_until < now()) " +
+            "ORDER BY ss.hotness DESC LIMIT :limit FOR UPDATE OF ss SKIP LOCKED) " +
+            "RETURNING story, checked_at, missed_checks, hotness) " +
+            "SELECT " + STORY_WORK_ITEM_COLUMNS + " FROM leased ss JOIN story s ON s.id = ss.story " +
+            "JOIN subreddit sr ON sr.id = s.subreddit ORDER BY ss.hotness DESC";
+
+    //the story_stats updates are shared with the JPA repository as well - hibernate would run bulk updates of the
+    //story entity through temporary tables, since it spans two tables. A history item that isn't newer than the last
+    //update is already stored (replayed from the journal), so it doesn't update anything and isn't inserted again
+    static final String UPDATE_STORY_STATS = "UPDATE story_stats SET updated_at = :timestamp, checked_at = :timestamp, " +
+            "hotness = :hotness, score = :score, comments = :comments, gilded = :gilded, " +
+            "missed_checks = 0, lease_owner = NULL, lease_until = NULL WHERE story = :id AND updated_at < :timestamp";
+
+    static final String MARK_STORY_CHECKED = "UPDATE story_stats SET checked_at = current_timestamp WHERE story = :id";
+
+    static final String MARK_STORY_MISSING = "UPDATE story_stats SET checked_at = :checkedAt, missed_checks = missed_checks + 1, " +
+            "lease_owner = NULL, lease_until = NULL WHERE story = :id";
+
+    static final String RELEASE_STORY_LEASES = "UPDATE story_stats SET lease_owner = NULL, lease_until = NULL " +
+            "WHERE story IN (:ids) AND lease_owner = :leaseOwner";
+
+    //the story_stats rows go with their stories (ON DELETE CASCADE)
+    static final String DELETE_STORIES = "DELETE FROM story WHERE id IN (:ids)";
+
+    @Nonnull
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+
+    //the ids are allocated in blocks - see SequenceIdAllocator
+    @Nonnull
+    private final SequenceIdAllocator sequenceIdAllocator;
+
+    @Nonnull
+    private final StoryHistoryCopyLoader storyHistoryCopyLoader;
+
+    @Nonnull
+    private final ArchivableStoryReader archivableStoryReader;
+
+    //batches of at least this many history items go through COPY
+    private final int copyThreshold;
+
+    //keeps the history instead of story_history when set
+    @Nullable
+    private final PackedStoryHistoryStore packedStoryHistoryStore;
+
+    public JdbcStoryRepository(@Nonnull final NamedParameterJdbcTemplate jdbcTemplate,
+                               @Nonnull final StoryHistoryCopyLoader storyHistoryCopyLoader,
+                               @Nonnull final ArchivableStoryReader archivableStoryReader,
+                               final int copyThreshold,
+                               @Nullable final PackedStoryHistoryStore packedStoryHistoryStore) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.sequenceIdAllocator = new SequenceIdAllocator(jdbcTemplate);
+        this.storyHistoryCopyLoader = storyHistoryCopyLoader;
+        this.archivableStoryReader = archivableStoryReader;
+        this.copyThreshold = copyThreshold;
+        this.packedStoryHistoryStore = packedStoryHistoryStore;
+    }
+
+    @Override
+    @Nullable
+    public StoryModel findStoryByRedditShortId(@Nonnull final String redditShortId) {
+        final List<StoryModel> stories = jdbcTemplate.query(SELECT_STORIES + "WHERE s.reddit_short_id = :redditShortId",
+                new MapSqlParameterSource("redditShortId", redditShortId),
+                STORY_ROW_MAPPER);
+
+        return stories.isEmpty() ? null : stories.get(0);
+    }
+
+    @Override
+    @Nonnull
+    public Map<String, StoryWorkItem> findStoryWorkItemsByRedditShortIds(@Nonnull final Collection<String> redditShortIds) {
+        if (redditShortIds.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        final Map<String, StoryWorkItem> storyWorkItems = new HashMap<>();
+        for (final StoryWorkItem storyWorkItem : jdbcTemplate.query("SELECT " + STORY_WORK_ITEM_COLUMNS +
+                        " FROM story s JOIN story_stats ss ON ss.story = s.id JOIN subreddit sr ON sr.id = s.subreddit " +
+                        "WHERE s.reddit_short_id IN (:redditShortIds)",
+                new MapSqlParameterSource("redditShortIds", redditShortIds),
+                STORY_WORK_ITEM_ROW_MAPPER)) {
+            storyWorkItems.put(storyWorkItem.getRedditShortId(), storyWorkItem);
+        }
+        return storyWorkItems;
+    }
+
+    @Override
+    @Nonnull
+    public List<StoryModel> getHottestStories(final int limit, final boolean fetchSubreddit) {
+        //the subreddit comes with the join either way
+        return jdbcTemplate.query(SELECT_STORIES + "ORDER BY ss.hotness DESC LIMIT :limit",
+                new MapSqlParameterSource("limit", limit),
+                STORY_ROW_MAPPER);
+    }
+
+    @Override
+    @Nonnull
+    public List<StoryModel> findStoriesUpdatedSince(@Nonnull final Date updatedAfter, final int afterId, final int limit) {
+        //checked_at is never before updated_at, so the work queue index narrows it down
+        return jdbcTemplate.query(SELECT_STORIES + "WHERE ss.checked_at >= :updatedAfter " +
+                        "AND (ss.updated_at, ss.story) > (:updatedAfter, :afterId) ORDER BY ss.updated_at, ss.story LIMIT :limit",
+                new MapSqlParameterSource("updatedAfter", timestamp(updatedAfter))
+                        .addValue("afterId", afterId)
+                        .addValue("limit", limit),
+                STORY_ROW_MAPPER);
+    }
+
+    @Override
+    @Nonnull
+    @Transactional
+    public StoryModel saveNewStory(@Nonnull final StoryModel partialStory, @Nonnull final StoryHistoryModel partialHistory) {
+        final StoryModel foundStory = findStoryByRedditShortId(partialStory.getRedditShortId());
+        if (foundStory != null) {
+            return foundStory;
+        }
+
+        partialStory.setDiscoveredAt(partialHistory.getTimestamp());
+        partialStory.setUpdatedAt(partialHistory.getTimestamp());
+        partialStory.setCheckedAt(partialHistory.getTimestamp());
+        partialStory.setHotness(partialHistory.getHotness());
+        partialStory.setScore(partialHistory.getScore());
+        partialStory.setComments(partialHistory.getComments());
+        partialStory.setGilded(partialHistory.getGilded());
+
+        final MapSqlParameterSource storyParams = new MapSqlParameterSource()
+                .addValue("id", (int) sequenceIdAllocator.nextId("story_id_seq"))
+                .addValue("redditShortId", partialStory.getRedditShortId())
+                .addValue("subreddit", partialStory.getSubreddit().getId())
+                .addValue("title", partialStory.getTitle())
+                .addValue("author", partialStory.getAuthor())
+                .addValue("url", partialStory.getUrl())
+                .addValue("permalink", partialStory.getPermalink())
+                .addValue("domain", partialStory.getDomain())
+                .addValue("thumbnail", partialStory.getThumbnail())
+                .addValue("distinguished", partialStory.getDistinguished())
+                .addValue("over18", partialStory.getOver18())
+                .addValue("isSelf", partialStory.getIsSelf())
+                .addValue("selftext", partialStory.getSelftext())
+                .addValue("stickied", partialStory.getStickied())
+                .addValue("createdAt", timestamp(partialStory.getCreatedAt()))
+                .addValue("score", partialStory.getScore())
+                .addValue("hotness", partialStory.getHotness())
+                .addValue("comments", partialStory.getComments())
+                .addValue("gilded", partialStory.getGilded())
+                .addValue("discoveredAt", timestamp(partialStory.getDiscoveredAt()))
+                .addValue("updatedAt", timestamp(partialStory.getUpdatedAt()))
+                .addValue("checkedAt", timestamp(partialStory.getCheckedAt()));
+
+        final Integer storyId = jdbcTemplate.queryForObject("WITH s AS (INSERT INTO story (id, reddit_short_id, subreddit, title, " +
+                "author, url, permalink, domain, thumbnail, distinguished, over18, is_self, selftext, stickied, created_at, " +
+                "discovered_at) VALUES (:id, :redditShortId, :subreddit, :title, :author, :url, :permalink, :domain, :thumbnail, " +
+                ":distinguished, :over18, :isSelf, :selftext, :stickied, :createdAt, :discoveredAt) RETURNING id) " +
+                "INSERT INTO story_stats (story, discovered_at, score, hotness, comments, gilded, updated_at, checked_at) " +
+                "SELECT id, :discoveredAt, :score, :hotness, :comments, :gilded, :updatedAt, :checkedAt FROM s RETURNING story",
+                storyParams, Integer.class);
+        partialStory.setId(storyId);
+
+        partialHistory.setStory(partialStory);
+        saveStoryHistory(partialHistory);
+
+        return partialStory;
+    }
+
+    @Override
+    @Transactional
+    public boolean addStoryHistory(@Nonnull final StoryModel storyModel,
+                                   @Nullable final StoryHistoryModel historyItem) {
+        if (historyItem == null) {
+            //no history item was returned by reddit, but we should still mark it as checked
+            return jdbcTemplate.update(MARK_STORY_CHECKED, new MapSqlParameterSource("id", storyModel.getId())) > 0;
+        }
+
+        final int numRows = jdbcTemplate.update(UPDATE_STORY_STATS,
+                new MapSqlParameterSource()
+                        .addValue("timestamp", timestamp(historyItem.getTimestamp()))
+                        .addValue("hotness", historyItem.getHotness())
+                        .addValue("score", historyItem.getScore())
+                        .addValue("comments", historyItem.getComments())
+                        .addValue("gilded", historyItem.getGilded())
+                        .addValue("id", storyModel.getId()));
+
+        if (numRows == 0) {
+            return false;
+        }
+
+        historyItem.setStory(storyModel);
+        saveStoryHistory(historyItem);
+        return true;
+    }
+
+    @Override
+    @Nonnull
+    @Transactional
+    public List<StoryHistoryModel> addStoryHistories(@Nonnull final Collection<StoryHistoryModel> historyItems) {
+        if (historyItems.size() < copyThreshold) {
+            final List<StoryHistoryModel> added = new ArrayList<>(historyItems.size());
+            for (final StoryHistoryModel historyItem : historyItems) {
+                if (addStoryHistory(historyItem.getStory(), historyItem)) {
+                    added.add(historyItem);
+                }
+            }
+            return added;
+        }
+
+        try {
+            return storyHistoryCopyLoader.load(historyItems);
+        } catch (@Nonnull final SQLException e) {
+            throw new UncategorizedSQLException("addStoryHistories", null, e);
+        }
+    }
+
+    @Override
+    @Transactional
+    public boolean markStoryMissing(@Nonnull final StoryModel storyModel, @Nonnull final Date checkedAt) {
+        return jdbcTemplate.update(MARK_STORY_MISSING,
+                new MapSqlParameterSource()
+                        .addValue("checkedAt", timestamp(checkedAt))
+                        .addValue("id", storyModel.getId())) > 0;
+    }
+
+    @Override
+    @Nonnull
+    public List<StoryWorkItem> findStoriesNeedingUpdate(@Nonnull final Date earliestCreateTime,
+                                                        @Nonnull final Date lastCheckTime,
+                                                        final int maxMissedChecks,
+                                                        final int limit) {
+        return jdbcTemplate.query(SELECT_STORY_WORK_ITEMS,
+                new MapSqlParameterSource()
+                        .addValue("lastUpdateTime", timestamp(lastCheckTime))
+                        .addValue("earliestCreateTime", timestamp(earliestCreateTime))
+                        .addValue("maxMissedChecks", maxMissedChecks)
+                        .addValue("limit", limit),
+                STORY_WORK_ITEM_ROW_MAPPER);
+    }
+
+    @Override
+    @Nonnull
+    @Transactional
+    public List<StoryWorkItem> leaseStoriesNeedingUpdate(@Nonnull final Date earliestCreateTime,
+                                                         @Nonnull final Date lastCheckTime,
+                                                         final int maxMissedChecks,
+                                                         final int limit,
+                                                         @Nonnull final String leaseOwner,
+                                                         final int leaseDurationSeconds) {
+        return jdbcTemplate.query(LEASE_STORY_WORK_ITEMS,
+                new MapSqlParameterSource()
+                        .addValue("leaseOwner", leaseOwner)
+                        .addValue("leaseDurationSeconds", leaseDurationSeconds)
+                        .addValue("lastUpdateTime", timestamp(lastCheckTime))
+                        .addValue("earliestCreateTime", timestamp(earliestCreateTime))
+                        .addValue("maxMissedChecks", maxMissedChecks)
+                        .addValue("limit", limit),
+                STORY_WORK_ITEM_ROW_MAPPER);
+    }
+
+    @Override
+    @Transactional
+    public int releaseStoryLeases(@Nonnull final Collection<StoryModel> stories, @Nonnull final String leaseOwner) {
+        if (stories.isEmpty()) {
+            return 0;
+        }
+
+        return jdbcTemplate.update(RELEASE_STORY_LEASES,
+                new MapSqlParameterSource()
+                        .addValue("ids", getIds(stories))
+                        .addValue("leaseOwner", leaseOwner));
+    }
+
+    @Override
+    public long countStoriesWithMissedChecks(@Nonnull final Date earliestCreateTime, final int minMissedChecks, final int maxMissedChecks) {
+        return jdbcTemplate.queryForObject("SELECT count(*) FROM story_stats ss " +
+                        "WHERE ss.discovered_at >= :earliestCreateTime " +
+                        "AND ss.missed_checks >= :minMissedChecks AND ss.missed_checks < :maxMissedChecks",
+                new MapSqlParameterSource()
+                        .addValue("earliestCreateTime", timestamp(earliestCreateTime))
+                        .addValue("minMissedChecks", minMissedChecks)
+                        .addValue("maxMissedChecks", maxMissedChecks),
+                Long.class);
+    }
+
+    @Nonnull
+    @Override
+    public Map<String, Long> countStoriesDiscoveredBySubreddit(@Nonnull final Date discoveredAfter) {
+        final Map<String, Long> storyCounts = new HashMap<>();
+        jdbcTemplate.query("SELECT sr.name, count(*) AS stories FROM story s JOIN subreddit sr ON sr.id = s.subreddit " +
+                        "WHERE s.discovered_at >= :discoveredAfter GROUP BY sr.name",
+                new MapSqlParameterSource("discoveredAfter", timestamp(discoveredAfter)),
+                new RowCallbackHandler() {
+                    @Override
+                    public void processRow(final ResultSet rs) throws SQLException {
+                        storyCounts.put(rs.getString("name"), rs.getLong("stories"));
+                    }
+                });
+
+        return storyCounts;
+    }
+
+    @Override
+    @Transactional
+    public int streamArchivableStories(@Nonnull final Date latestCreateDate,
+                                       final int afterId,
+                                       final int limit,
+                                       @Nonnull final StoryWithHistoryHandler handler) {
+        try {
+            return archivableStoryReader.read(latestCreateDate, afterId, limit, handler);
+        } catch (@Nonnull final SQLException e) {
+            throw new UncategorizedSQLException("streamArchivableStories", null, e);
+        }
+    }
+
+    @Nonnull
+    @Override
+    @Transactional
+    public Integer deleteStories(@Nonnull final List<StoryModel> stories) {
+        if (stories.isEmpty()) {
+            return 0;
+        }
+
+        final List<Integer> ids = getIds(stories);
+        if (packedStoryHistoryStore != null) {
+            packedStoryHistoryStore.delete(ids);
+        }
+
+        //story history rows stay until their partition is dropped
+        return jdbcTemplate.update(DELETE_STORIES, new MapSqlParameterSource("ids", ids));
+    }
+
+    @Override
+    @Nonnull
+    public List<StoryHistoryModel> getStoryHistory(@Nonnull final StoryModel storyModel) {
+        if (packedStoryHistoryStore != null) {
+            return packedStoryHistoryStore.getHistory(storyModel);
+        }
+
+        return jdbcTemplate.query("SELECT id, \"timestamp\", score, hotness, comments, gilded FROM story_history " +
+                        "WHERE story = :story AND \"timestamp\" >= :discoveredAt ORDER BY \"timestamp\" ASC",
+                new MapSqlParameterSource("story", storyModel.getId())
+                        .addValue("discoveredAt", timestamp(storyModel.getDiscoveredAt())),
+                new RowMapper<StoryHistoryModel>() {
+                    @Override
+                    public StoryHistoryModel mapRow(final ResultSet rs, final int rowNum) throws SQLException {
+                        return JdbcModelMappers.mapStoryHistory(rs, storyModel);
+                    }
+                });
+    }
+
+    private void saveStoryHistory(@Nonnull final StoryHistoryModel historyItem) {
+        if (packedStoryHistoryStore != null) {
+            packedStoryHistoryStore.append(Collections.singletonList(historyItem));
+            return;
+        }
+
+        final long historyId = sequenceIdAllocator.nextId("story_history_id_seq");
+        jdbcTemplate.update("INSERT INTO story_history (id, \"timestamp\", story, score, hotness, comments, gilded) " +
+                        "VALUES (:id, :timestamp, :story, :score, :hotness, :comments, :gilded)",
+                new MapSqlParameterSource()
+                        .addValue("id", historyId)
+                        .addValue("timestamp", timestamp(historyItem.getTimestamp()))
+                        .addValue("story", historyItem.getStory().getId())
+                        .addValue("score", historyItem.getScore())
+                        .addValue("hotness", historyItem.getHotness())
+                        .addValue("comments", historyItem.getComments())
+                        .addValue("gilded", historyItem.getGilded()));
+        historyItem.setId(historyId);
+    }
+
+    @Nonnull
+    private static List<Integer> getIds(@Nonnull final Collection<StoryModel> stories) {
+        final List<Integer> ids = new ArrayList<>(stories.size());
+        for (final StoryModel story : stories) {
+            ids.add(story.getId());
+        }
+        return ids;
+    }
+}
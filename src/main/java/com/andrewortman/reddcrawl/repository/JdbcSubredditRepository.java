@@ -0,0 +1,252 @@
+package com.andrewortman.reddcrawl.repository;
+
+import com.andrewortman.reddcrawl.repository.model.SubredditHistoryModel;
+import com.andrewortman.reddcrawl.repository.model.SubredditHistoryRollupModel;
+import com.andrewortman.reddcrawl.repository.model.SubredditModel;
+import com.google.common.collect.Iterables;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.transaction.Transactional;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.andrewortman.reddcrawl.repository.JdbcModelMappers.SUBREDDIT_COLUMNS;
+import static com.andrewortman.reddcrawl.repository.JdbcModelMappers.SUBREDDIT_ROW_MAPPER;
+import static com.andrewortman.reddcrawl.repository.JdbcModelMappers.timestamp;
+
+/**
+ * SubredditRepository on plain jdbc - see JdbcStoryRepository. Sets of new subreddits are inserted with one multi-row
+ * insert per chunk instead of one insert per subreddit.
+ */
+public class JdbcSubredditRepository implements SubredditRepository {
+    private static final String SELECT_SUBREDDITS = "SELECT " + SUBREDDIT_COLUMNS + " FROM subreddit sr ";
+
+    //rows per multi-row insert - keeps the statement well under postgres' bind parameter limit
+    private static final int INSERT_CHUNK_SIZE = 500;
+
+    @Nonnull
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+
+    //the ids are allocated in blocks - see SequenceIdAllocator
+    @Nonnull
+    private final SequenceIdAllocator sequenceIdAllocator;
+
+    public JdbcSubredditRepository(@Nonnull final NamedParameterJdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.sequenceIdAllocator = new SequenceIdAllocator(jdbcTemplate);
+    }
+
+    @Override
+    @Nullable
+    public SubredditModel findSubredditByName(@Nonnull final String name) {
+        final List<SubredditModel> subreddits = jdbcTemplate.query(SELECT_SUBREDDITS + "WHERE sr.name = :name",
+                new MapSqlParameterSource("name", name),
+                SUBREDDIT_ROW_MAPPER);
+
+        return subreddits.isEmpty() ? null : subreddits.get(0);
+    }
+
+    @Override
+    @Nonnull
+    public Map<String, SubredditModel> findSubredditsByNames(@Nonnull final Collection<String> names) {
+        final Map<String, SubredditModel> subredditsByName = new HashMap<>();
+        if (names.isEmpty()) {
+            return subredditsByName; //an empty IN () list isn't valid sql
+        }
+
+        for (final SubredditModel subredditModel : jdbcTemplate.query(SELECT_SUBREDDITS + "WHERE sr.name IN (:names)",
+                new MapSqlParameterSource("names", names),
+                SUBREDDIT_ROW_MAPPER)) {
+            subredditsByName.put(subredditModel.getName(), subredditModel);
+        }
+
+        return subredditsByName;
+    }
+
+    @Override
+    @Nonnull
+    public List<SubredditModel> getAllRecentlySeenSubreddits(@Nonnull final Date lastSeenTime) {
+        return jdbcTemplate.query(SELECT_SUBREDDITS + "WHERE sr.seen_at > :lastSeenTime",
+                new MapSqlParameterSource("lastSeenTime", timestamp(lastSeenTime)),
+                SUBREDDIT_ROW_MAPPER);
+    }
+
+    @Override
+    @Nonnull
+    public List<SubredditModel> findSubredditsNeedingUpdate(@Nonnull final Date lastUpdateTime) {
+        return jdbcTemplate.query(SELECT_SUBREDDITS + "WHERE sr.updated_at < :lastUpdateTime",
+                new MapSqlParameterSource("lastUpdateTime", timestamp(lastUpdateTime)),
+                SUBREDDIT_ROW_MAPPER);
+    }
+
+    @Override
+    @Nonnull
+    @Transactional
+    public SubredditModel saveNewSubreddit(@Nonnull final SubredditModel subredditModel) {
+        final List<SubredditModel> saved = new ArrayList<>(1);
+        saved.add(subredditModel);
+        return saveNewSubreddits(saved).get(0);
+    }
+
+    @Override
+    @Nonnull
+    @Transactional
+    public List<SubredditModel> saveNewSubreddits(@Nonnull final Collection<SubredditModel> subredditModels) {
+        final Date now = new Date();
+        final List<SubredditModel> savedSubredditModels = new ArrayList<>(subredditModels.size());
+        for (final List<SubredditModel> chunk : Iterables.partition(subredditModels, INSERT_CHUNK_SIZE)) {
+            final long[] ids = sequenceIdAllocator.nextIds("subreddit_id_seq", chunk.size());
+            final StringBuilder sql = new StringBuilder("INSERT INTO subreddit (id, reddit_short_id, name, title, url, summary, " +
+                    "description, submission_type, created_at, updated_at, seen_at) VALUES ");
+            final MapSqlParameterSource params = new MapSqlParameterSource("now", timestamp(now));
+            for (int i = 0; i < chunk.size(); i++) {
+                final SubredditModel subredditModel = chunk.get(i);
+                subredditModel.setCreatedAt(now);
+                subredditModel.setUpdatedAt(now);
+                subredditModel.setSeenAt(now);
+
+                sql.append(i == 0 ? "" : ", ")
+                        .append("(:id").append(i).append(", :shortId").append(i).append(", :name").append(i).append(", :title").append(i)
+                        .append(", :url").append(i).append(", :summary").append(i).append(", :description").append(i)
+                        .append(", :submissionType").append(i).append(", :now, :now, :now)");
+                params.addValue("id" + i, (int) ids[i])
+                        .addValue("shortId" + i, subredditModel.getSubredditShortId())
+                        .addValue("name" + i, subredditModel.getName())
+                        .addValue("title" + i, subredditModel.getTitle())
+                        .addValue("url" + i, subredditModel.getUrl())
+                        .addValue("summary" + i, subredditModel.getSummary())
+                        .addValue("description" + i, subredditModel.getDescription())
+                        .addValue("submissionType" + i, subredditModel.getSubmissionType());
+            }
+
+            jdbcTemplate.update(sql.toString(), params);
+            for (int i = 0; i < chunk.size(); i++) {
+                chunk.get(i).setId((int) ids[i]);
+            }
+            savedSubredditModels.addAll(chunk);
+        }
+        return savedSubredditModels;
+    }
+
+    @Override
+    @Nonnull
+    @Transactional
+    public SubredditHistoryModel addSubredditHistory(@Nonnull final SubredditModel subredditModel, @Nonnull final SubredditHistoryModel historyItem) {
+        final Date now = new Date();
+        jdbcTemplate.update("UPDATE subreddit SET updated_at = :now WHERE id = :id",
+                new MapSqlParameterSource()
+                        .addValue("now", timestamp(now))
+                        .addValue("id", subredditModel.getId()));
+        subredditModel.setUpdatedAt(now);
+
+        historyItem.setTimestamp(now);
+        historyItem.setSubreddit(subredditModel);
+        final long historyId = sequenceIdAllocator.nextId("subreddit_history_id_seq");
+        jdbcTemplate.update("INSERT INTO subreddit_history (id, \"timestamp\", subreddit, subscribers, " +
+                        "active, comment_hide_mins) VALUES (:id, :timestamp, :subreddit, :subscribers, :active, :commentHideMins)",
+                new MapSqlParameterSource()
+                        .addValue("id", historyId)
+                        .addValue("timestamp", timestamp(now))
+                        .addValue("subreddit", subredditModel.getId())
+                        .addValue("subscribers", historyItem.getSubscribers())
+                        .addValue("active", historyItem.getActive())
+                        .addValue("commentHideMins", historyItem.getCommentHideMins()));
+        historyItem.setId(historyId);
+
+        for (final SubredditHistoryRollupModel.Resolution resolution : SubredditHistoryRollupModel.Resolution.values()) {
+            jdbcTemplate.update(SubredditHistoryRollups.upsertSql(resolution),
+                    new MapSqlParameterSource()
+                            .addValue("subreddit", subredditModel.getId())
+                            .addValue("timestamp", timestamp(now))
+                            .addValue("subscribers", historyItem.getSubscribers())
+                            .addValue("active", historyItem.getActive()));
+        }
+
+        return historyItem;
+    }
+
+    @Override
+    @Nullable
+    public SubredditHistoryModel getSubredditHistoryModelFirstBeforeDate(@Nonnull final SubredditModel subredditModel,
+                                                                        @Nonnull final Date date) {
+        final RowMapper<SubredditHistoryModel> rowMapper = new RowMapper<SubredditHistoryModel>() {
+            @Override
+            public SubredditHistoryModel mapRow(final ResultSet rs, final int rowNum) throws SQLException {
+                return JdbcModelMappers.mapSubredditHistory(rs);
+            }
+        };
+        //both ends of subreddit_history_subreddit_idx - a single index probe either way
+        final String selectHistory = "SELECT h.id, h.\"timestamp\", h.subscribers, h.active, h.comment_hide_mins, " + SUBREDDIT_COLUMNS +
+                " FROM subreddit_history h JOIN subreddit sr ON sr.id = h.subreddit WHERE h.subreddit = :subreddit ";
+
+        final List<SubredditHistoryModel> beforeDate = jdbcTemplate.query(selectHistory +
+                        "AND h.\"timestamp\" < :date ORDER BY h.\"timestamp\" DESC LIMIT 1",
+                new MapSqlParameterSource()
+                        .addValue("subreddit", subredditModel.getId())
+                        .addValue("date", timestamp(date)),
+                rowMapper);
+        if (!beforeDate.isEmpty()) {
+            return beforeDate.get(0);
+        }
+
+        //if there was no history before the date, try to select the subreddit's first one instead
+        final List<SubredditHistoryModel> first = jdbcTemplate.query(selectHistory + "ORDER BY h.\"timestamp\" ASC LIMIT 1",
+                new MapSqlParameterSource("subreddit", subredditModel.getId()),
+                rowMapper);
+        return first.isEmpty() ? null : first.get(0);
+    }
+
+    @Override
+    @Nonnull
+    public List<SubredditHistoryRollupModel> getSubredditHistoryRollups(@Nonnull final SubredditModel subredditModel,
+                                                                        @Nonnull final SubredditHistoryRollupModel.Resolution resolution,
+                                                                        @Nonnull final Date from,
+                                                                        @Nonnull final Date to) {
+        return jdbcTemplate.query(SubredditHistoryRollups.selectSql(resolution),
+                new MapSqlParameterSource()
+                        .addValue("subreddit", subredditModel.getId())
+                        .addValue("from", timestamp(from))
+                        .addValue("to", timestamp(to)),
+                new RowMapper<SubredditHistoryRollupModel>() {
+                    @Override
+                    public SubredditHistoryRollupModel mapRow(final ResultSet rs, final int rowNum) throws SQLException {
+                        return SubredditHistoryRollups.createRollup(rs.getTimestamp("bucket"), rs.getInt("samples"),
+                                rs.getLong("min_subscribers"), rs.getLong("max_subscribers"), rs.getLong("last_subscribers"),
+                                rs.getInt("min_active"), rs.getInt("max_active"), rs.getInt("last_active"));
+                    }
+                });
+    }
+
+    @Override
+    @Transactional
+    public boolean markSubredditAsSeen(@Nonnull final SubredditModel subredditModel) {
+        return jdbcTemplate.update("UPDATE subreddit SET seen_at = current_timestamp WHERE id = :id",
+                new MapSqlParameterSource("id", subredditModel.getId())) > 0;
+    }
+
+    @Override
+    @Transactional
+    public int markSubredditsAsSeen(@Nonnull final Collection<SubredditModel> subredditModels) {
+        if (subredditModels.isEmpty()) {
+            return 0;
+        }
+
+        final List<Integer> ids = new ArrayList<>(subredditModels.size());
+        for (final SubredditModel subredditModel : subredditModels) {
+            ids.add(subredditModel.getId());
+        }
+
+        return jdbcTemplate.update("UPDATE subreddit SET seen_at = current_timestamp WHERE id IN (:ids)",
+                new MapSqlParameterSource("ids", ids));
+    }
+}
@@ -0,0 +1,128 @@
+package com.andrewortman.reddcrawl.repository;
+
+import com.andrewortman.reddcrawl.repository.model.StoryHistoryModel;
+import com.andrewortman.reddcrawl.repository.model.StoryModel;
+
+import javax.annotation.Nonnull;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Encodes story history samples into the compact form kept in story_history_packed. The history of a story is split
+ * into chunks covering a fixed span of its lifetime (counted from its discovery), and every chunk is one row holding
+ * its samples back to back.
+ * <p/>
+ * A sample is the timestamp as milliseconds since the story's discovery, score, comments and gilded as zigzag varints
+ * and the hotness as a raw double - around 16 bytes, instead of a ~70 byte row plus an index entry. Samples only
+ * depend on their story, not on the sample before them, so appending one never has to read the chunk.
+ */
+public class PackedStoryHistory {
+    static final Comparator<StoryHistoryModel> BY_TIMESTAMP = new Comparator<StoryHistoryModel>() {
+        @Override
+        public int compare(final StoryHistoryModel a, final StoryHistoryModel b) {
+            return a.getTimestamp().compareTo(b.getTimestamp());
+        }
+    };
+
+    private final long chunkMillis;
+
+    /**
+     * @param chunkSeconds span of a story's lifetime covered by one chunk
+     */
+    public PackedStoryHistory(final int chunkSeconds) {
+        if (chunkSeconds <= 0) {
+            throw new IllegalArgumentException("chunkSeconds must be positive");
+        }
+        this.chunkMillis = chunkSeconds * 1000L;
+    }
+
+    /**
+     * @return the chunk of the story that the history item goes into
+     */
+    public int getChunk(@Nonnull final StoryModel story, @Nonnull final StoryHistoryModel historyItem) {
+        return (int) (getOffsetMillis(story, historyItem) / chunkMillis);
+    }
+
+    /**
+     * @return the encoded sample, ready to be appended to its chunk
+     */
+    @Nonnull
+    public byte[] encode(@Nonnull final StoryModel story, @Nonnull final StoryHistoryModel historyItem) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(24);
+        writeVarLong(out, getOffsetMillis(story, historyItem));
+        writeVarLong(out, zigzag(historyItem.getScore()));
+        writeVarLong(out, zigzag(historyItem.getComments()));
+        writeVarLong(out, zigzag(historyItem.getGilded()));
+
+        final long hotness = Double.doubleToLongBits(historyItem.getHotness());
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (hotness >>> shift));
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes any number of samples (one or more chunks put together)
+     *
+     * @param story the story the samples belong to
+     * @param data  encoded samples
+     * @return history items in timestamp order
+     */
+    @Nonnull
+    public List<StoryHistoryModel> decode(@Nonnull final StoryModel story, @Nonnull final byte[] data) {
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+        final List<StoryHistoryModel> historyItems = new ArrayList<>();
+        while (buffer.hasRemaining()) {
+            final StoryHistoryModel historyItem = new StoryHistoryModel();
+            historyItem.setStory(story);
+            historyItem.setTimestamp(new Date(story.getDiscoveredAt().getTime() + readVarLong(buffer)));
+            historyItem.setScore((int) unzigzag(readVarLong(buffer)));
+            historyItem.setComments((int) unzigzag(readVarLong(buffer)));
+            historyItem.setGilded((int) unzigzag(readVarLong(buffer)));
+            historyItem.setHotness(Double.longBitsToDouble(buffer.getLong()));
+            historyItems.add(historyItem);
+        }
+
+        //two updates of the same story can race, so appends aren't guaranteed to be in order
+        Collections.sort(historyItems, BY_TIMESTAMP);
+        return historyItems;
+    }
+
+    //history is never older than the story's discovery, but clamp in case the clocks of two nodes disagree
+    private static long getOffsetMillis(@Nonnull final StoryModel story, @Nonnull final StoryHistoryModel historyItem) {
+        return Math.max(0, historyItem.getTimestamp().getTime() - story.getDiscoveredAt().getTime());
+    }
+
+    private static long zigzag(final long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(final long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarLong(@Nonnull final ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(@Nonnull final ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Malformed packed story history");
+    }
+}
@@ -0,0 +1,120 @@
+package com.andrewortman.reddcrawl.repository;
+
+import com.andrewortman.reddcrawl.repository.model.StoryHistoryModel;
+import com.andrewortman.reddcrawl.repository.model.StoryModel;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+
+import javax.annotation.Nonnull;
+import java.io.ByteArrayOutputStream;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps story history in story_history_packed instead of one story_history row per sample (db.historystore=packed,
+ * see PackedStoryHistory for the format). The story repositories go through this for their history when it's enabled;
+ * bulk loads go through the StoryHistoryCopyLoader, which appends the same way.
+ * <p/>
+ * Stories are updated by the repositories as usual - this only stores the samples.
+ * <p/>
+ * History written to story_history before the store was switched to packed isn't converted - it is read along with the
+ * packed samples until it goes away with its stories (an index probe that finds nothing from then on).
+ */
+public class PackedStoryHistoryStore {
+    //appends a sample to its chunk, creating the chunk on the first sample
+    static final String APPEND_SAMPLE = "ON CONFLICT (story, chunk) DO UPDATE SET " +
+            "samples = story_history_packed.samples + excluded.samples, data = story_history_packed.data || excluded.data";
+
+    @Nonnull
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+
+    @Nonnull
+    private final PackedStoryHistory packedStoryHistory;
+
+    public PackedStoryHistoryStore(@Nonnull final NamedParameterJdbcTemplate jdbcTemplate,
+                                   @Nonnull final PackedStoryHistory packedStoryHistory) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.packedStoryHistory = packedStoryHistory;
+    }
+
+    /**
+     * Appends the history items to the history of their stories
+     *
+     * @param historyItems history items, each with its story set
+     */
+    public void append(@Nonnull final Collection<StoryHistoryModel> historyItems) {
+        if (historyItems.isEmpty()) {
+            return;
+        }
+
+        final List<SqlParameterSource> batch = new ArrayList<>(historyItems.size());
+        for (final StoryHistoryModel historyItem : historyItems) {
+            final StoryModel story = historyItem.getStory();
+            batch.add(new MapSqlParameterSource()
+                    .addValue("story", story.getId())
+                    .addValue("chunk", packedStoryHistory.getChunk(story, historyItem))
+                    .addValue("data", packedStoryHistory.encode(story, historyItem)));
+        }
+
+        jdbcTemplate.batchUpdate("INSERT INTO story_history_packed (story, chunk, samples, data) VALUES (:story, :chunk, 1, :data) " +
+                APPEND_SAMPLE, batch.toArray(new SqlParameterSource[batch.size()]));
+    }
+
+    //history rows from before the switch to packed history
+    private static final String SELECT_HISTORY_ROWS = "SELECT id, \"timestamp\", score, hotness, comments, gilded " +
+            "FROM story_history WHERE story = :story AND \"timestamp\" >= :discoveredAt";
+
+    /**
+     * @return all the history of the story, in timestamp order
+     */
+    @Nonnull
+    public List<StoryHistoryModel> getHistory(@Nonnull final StoryModel storyModel) {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        jdbcTemplate.query("SELECT data FROM story_history_packed WHERE story = :story ORDER BY chunk ASC",
+                new MapSqlParameterSource("story", storyModel.getId()),
+                new RowCallbackHandler() {
+                    @Override
+                    public void processRow(final ResultSet rs) throws SQLException {
+                        final byte[] chunk = rs.getBytes("data");
+                        data.write(chunk, 0, chunk.length);
+                    }
+                });
+
+        final List<StoryHistoryModel> history = new ArrayList<>(packedStoryHistory.decode(storyModel, data.toByteArray()));
+        final List<StoryHistoryModel> historyRows = jdbcTemplate.query(SELECT_HISTORY_ROWS,
+                new MapSqlParameterSource("story", storyModel.getId())
+                        .addValue("discoveredAt", JdbcModelMappers.timestamp(storyModel.getDiscoveredAt())),
+                new RowMapper<StoryHistoryModel>() {
+                    @Override
+                    public StoryHistoryModel mapRow(final ResultSet rs, final int rowNum) throws SQLException {
+                        return JdbcModelMappers.mapStoryHistory(rs, storyModel);
+                    }
+                });
+        if (!historyRows.isEmpty()) {
+            history.addAll(historyRows);
+            Collections.sort(history, PackedStoryHistory.BY_TIMESTAMP);
+        }
+        return history;
+    }
+
+    /**
+     * Removes all the history of the stories
+     *
+     * @param storyIds ids of the stories
+     * @return number of chunks removed
+     */
+    public int delete(@Nonnull final Collection<Integer> storyIds) {
+        if (storyIds.isEmpty()) {
+            return 0;
+        }
+
+        return jdbcTemplate.update("DELETE FROM story_history_packed WHERE story IN (:ids)", new MapSqlParameterSource("ids", storyIds));
+    }
+}
@@ -1,13 +1,20 @@
 package com.andrewortman.reddcrawl.repository;
 
 import com.andrewortman.reddcrawl.ReddcrawlCommonConfiguration;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
 import org.apache.commons.dbcp2.BasicDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
-import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
+import org.springframework.context.annotation.Primary;
 import org.springframework.core.env.Environment;
+import org.springframework.core.env.PropertyResolver;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
 import org.springframework.orm.jpa.JpaTransactionManager;
 import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
 import org.springframework.orm.jpa.vendor.HibernateJpaDialect;
@@ -18,6 +25,7 @@ import org.springframework.transaction.annotation.EnableTransactionManagement;
 import javax.annotation.Nonnull;
 import javax.persistence.EntityManagerFactory;
 import javax.sql.DataSource;
+import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.Properties;
 
@@ -26,24 +34,90 @@ import java.util.Properties;
  */
 @Configuration
 @EnableTransactionManagement
-@ComponentScan("com.andrewortman.reddcrawl.repository")
 @Import(ReddcrawlCommonConfiguration.class)
 public class PersistenceConfiguration {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PersistenceConfiguration.class);
 
     @Autowired
     private Environment env;
 
+    @Autowired
+    private MetricRegistry metricRegistry;
+
     @Bean
     @Nonnull
     public DataSource pgDataSource() throws SQLException {
+        final BasicDataSource primary = createPool("primary",
+                env.getRequiredProperty("db.url"),
+                env.getRequiredProperty("db.username"),
+                env.getRequiredProperty("db.password"),
+                env.getProperty("db.initialSize", Integer.class, 8),
+                env.getProperty("db.maxSize", Integer.class, 48),
+                env.getProperty("db.minIdle", Integer.class, 4));
+
+        final String replicaUrl = env.getProperty("db.replica.url");
+        if (replicaUrl == null || replicaUrl.isEmpty()) {
+            return primary;
+        }
+
+        LOGGER.info("Sending read only transactions to the replica at " + replicaUrl);
+        final BasicDataSource replica = createPool("replica",
+                replicaUrl,
+                env.getRequiredProperty("db.replica.username"),
+                env.getRequiredProperty("db.replica.password"),
+                env.getProperty("db.replica.initialSize", Integer.class, 4),
+                env.getProperty("db.replica.maxSize", Integer.class, 16),
+                env.getProperty("db.replica.minIdle", Integer.class, 4));
+        //a replica that's down or out of connections must not hang the web requests (the default is to wait forever)
+        replica.setMaxWaitMillis(env.getRequiredProperty("db.replica.maxwait", Long.class));
+        replica.addConnectionProperty("connectTimeout", env.getRequiredProperty("db.replica.connecttimeout"));
+
+        final ReplicaRoutingDataSource routingDataSource = new ReplicaRoutingDataSource(primary, replica,
+                env.getRequiredProperty("db.replica.maxlagseconds", Integer.class),
+                env.getRequiredProperty("db.replica.lagcheckinterval", Integer.class),
+                metricRegistry);
+
+        //defaults are given so the proxy doesn't have to connect to find them out
+        final LazyConnectionDataSourceProxy lazyDataSource = new LazyConnectionDataSourceProxy();
+        lazyDataSource.setTargetDataSource(routingDataSource);
+        lazyDataSource.setDefaultAutoCommit(true);
+        lazyDataSource.setDefaultTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+        lazyDataSource.afterPropertiesSet();
+        return lazyDataSource;
+    }
+
+    /**
+     * Creates a connection pool, with its usage reported under reddcrawl.db.pool.[name]
+     */
+    @Nonnull
+    private BasicDataSource createPool(@Nonnull final String name,
+                                       @Nonnull final String url,
+                                       @Nonnull final String username,
+                                       @Nonnull final String password,
+                                       final int initialSize,
+                                       final int maxSize,
+                                       final int maxIdle) {
         final BasicDataSource ds = new BasicDataSource();
         ds.setDriverClassName(env.getProperty("db.driver"));
-        ds.setUrl(env.getRequiredProperty("db.url"));
-        ds.setUsername(env.getRequiredProperty("db.username"));
-        ds.setPassword(env.getRequiredProperty("db.password"));
-        ds.setInitialSize(env.getProperty("db.initialSize", Integer.class, 8));
-        ds.setMaxTotal(env.getProperty("db.maxSize", Integer.class, 48));
-        ds.setMaxIdle(env.getProperty("db.minIdle", Integer.class, 4));
+        ds.setUrl(url);
+        ds.setUsername(username);
+        ds.setPassword(password);
+        ds.setInitialSize(initialSize);
+        ds.setMaxTotal(maxSize);
+        ds.setMaxIdle(maxIdle);
+
+        metricRegistry.register(MetricRegistry.name("reddcrawl", "db", "pool", name, "active"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return ds.getNumActive();
+            }
+        });
+        metricRegistry.register(MetricRegistry.name("reddcrawl", "db", "pool", name, "idle"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return ds.getNumIdle();
+            }
+        });
         return ds;
     }
 
@@ -51,27 +125,143 @@ public class PersistenceConfiguration {
     @Nonnull
     public EntityManagerFactory entityManagerFactory() throws SQLException {
 
-        final Properties properties = new Properties();
-        properties.setProperty("hibernate.dialect", env.getProperty("db.hibernate.dialect"));
-        properties.setProperty("hibernate.hbm2ddl.auto", env.getProperty("db.hibernate.hbm2ddl.auto"));
-        properties.setProperty("hibernate.temp.use_jdbc_metadata_defaults", "false");
-
         final LocalContainerEntityManagerFactoryBean factory = new LocalContainerEntityManagerFactoryBean();
         factory.setJpaVendorAdapter(new HibernateJpaVendorAdapter());
         factory.setJpaDialect(new HibernateJpaDialect());
         factory.setDataSource(pgDataSource());
         factory.setPackagesToScan(this.getClass().getPackage().getName());
-        factory.setJpaProperties(properties);
+        factory.setJpaProperties(getJpaProperties(env));
         factory.afterPropertiesSet();
 
         return factory.getObject();
     }
 
+    /**
+     * @return the hibernate settings for the entity manager factory
+     */
+    @Nonnull
+    public static Properties getJpaProperties(@Nonnull final PropertyResolver env) {
+        final Properties properties = new Properties();
+        properties.setProperty("hibernate.dialect", env.getProperty("db.hibernate.dialect"));
+        properties.setProperty("hibernate.hbm2ddl.auto", env.getProperty("db.hibernate.hbm2ddl.auto"));
+        properties.setProperty("hibernate.temp.use_jdbc_metadata_defaults", "false");
+
+        //sequence ids with the pooled optimizer (see IdGeneration), so inserts don't need the database for their id...
+        properties.setProperty("hibernate.id.new_generator_mappings", "true");
+        //...and can be sent in batches, grouped by table
+        properties.setProperty("hibernate.jdbc.batch_size", env.getRequiredProperty("db.hibernate.batchsize"));
+        properties.setProperty("hibernate.order_inserts", "true");
+        properties.setProperty("hibernate.order_updates", "true");
+        return properties;
+    }
+
     @Bean
     @Nonnull
     PlatformTransactionManager transactionManager() throws SQLException {
         final JpaTransactionManager transactionManager = new JpaTransactionManager();
         transactionManager.setEntityManagerFactory(entityManagerFactory());
+        //lets the jdbc repositories take part in the same transactions
+        transactionManager.setDataSource(pgDataSource());
         return transactionManager;
     }
+
+    @Bean
+    @Nonnull
+    public NamedParameterJdbcTemplate jdbcTemplate() throws SQLException {
+        return new NamedParameterJdbcTemplate(pgDataSource());
+    }
+
+    @Bean
+    @Nonnull
+    public StoryRepository storyRepository() throws SQLException {
+        if (isJdbcRepositoryEnabled()) {
+            return new JdbcStoryRepository(jdbcTemplate(), storyHistoryCopyLoader(), archivableStoryReader(), getCopyThreshold(),
+                    isPackedHistoryEnabled() ? packedStoryHistoryStore() : null);
+        }
+        return new StoryRepositoryImpl(storyHistoryCopyLoader(), archivableStoryReader(), getCopyThreshold(),
+                isPackedHistoryEnabled() ? packedStoryHistoryStore() : null);
+    }
+
+    @Bean
+    @Nonnull
+    public ArchivableStoryReader archivableStoryReader() throws SQLException {
+        return new ArchivableStoryReader(pgDataSource(), env.getRequiredProperty("db.archive.fetchsize", Integer.class),
+                isPackedHistoryEnabled() ? packedStoryHistory() : null);
+    }
+
+    @Bean
+    @Nonnull
+    public StoryHistoryCopyLoader storyHistoryCopyLoader() throws SQLException {
+        return new StoryHistoryCopyLoader(pgDataSource(), isPackedHistoryEnabled() ? packedStoryHistory() : null);
+    }
+
+    @Bean
+    @Nonnull
+    public PackedStoryHistory packedStoryHistory() {
+        return new PackedStoryHistory(env.getRequiredProperty("db.historystore.chunkseconds", Integer.class));
+    }
+
+    @Bean
+    @Nonnull
+    public PackedStoryHistoryStore packedStoryHistoryStore() throws SQLException {
+        return new PackedStoryHistoryStore(jdbcTemplate(), packedStoryHistory());
+    }
+
+    @Bean
+    @Nonnull
+    public StoryHistoryPartitions storyHistoryPartitions() throws SQLException {
+        return new StoryHistoryPartitions(jdbcTemplate());
+    }
+
+    @Bean
+    @Primary
+    @Nonnull
+    public SubredditRepository subredditRepository() throws SQLException {
+        final int ttlSeconds = env.getRequiredProperty("db.subredditcache.ttlseconds", Integer.class);
+        if (ttlSeconds <= 0) {
+            return uncachedSubredditRepository();
+        }
+        return new CachingSubredditRepository(uncachedSubredditRepository(),
+                env.getRequiredProperty("db.subredditcache.maxsize", Integer.class), ttlSeconds, metricRegistry);
+    }
+
+    //a bean of its own so it still gets its entity manager and transactions
+    @Bean
+    @Nonnull
+    public SubredditRepository uncachedSubredditRepository() throws SQLException {
+        if (isJdbcRepositoryEnabled()) {
+            return new JdbcSubredditRepository(jdbcTemplate());
+        }
+        return new SubredditRepositoryImpl();
+    }
+
+    private int getCopyThreshold() {
+        return env.getRequiredProperty("db.copythreshold", Integer.class);
+    }
+
+    private boolean isPackedHistoryEnabled() {
+        final String historyStore = env.getProperty("db.historystore", "rows");
+        switch (historyStore) {
+            case "packed":
+                LOGGER.info("Keeping story history in packed chunks");
+                return true;
+            case "rows":
+                return false;
+            default:
+                throw new IllegalStateException("Unknown db.historystore " + historyStore + " - use rows or packed");
+        }
+    }
+
+    private boolean isJdbcRepositoryEnabled() {
+        final String repository = env.getProperty("db.repository", "jpa");
+        switch (repository) {
+            case "jdbc":
+                LOGGER.info("Using the jdbc repositories");
+                return true;
+            case "jpa":
+                return false;
+            default:
+                throw new IllegalStateException("Unknown db.repository " + repository + " - use jpa or jdbc");
+        }
+    }
 }
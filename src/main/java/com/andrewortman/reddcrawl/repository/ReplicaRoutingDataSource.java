@@ -0,0 +1,135 @@
+package com.andrewortman.reddcrawl.repository;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.Nonnull;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the connections of read only transactions (the web api) to a streaming replica, and everything else to the
+ * primary, so dashboard traffic can't slow down the crawler's writes. While the replica is further behind than the
+ * allowed lag (or can't be reached) the read only transactions go to the primary as well. The lag is measured on a
+ * background thread, so routing a connection never waits on the replica.
+ * <p/>
+ * The transaction is only known to be read only once it has started, so this has to sit behind a
+ * LazyConnectionDataSourceProxy - the transaction manager then gets its connection on the first statement.
+ */
+public class ReplicaRoutingDataSource extends AbstractRoutingDataSource {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReplicaRoutingDataSource.class);
+
+    private static final String PRIMARY = "primary";
+
+    private static final String REPLICA = "replica";
+
+    //no lag while the replica has replayed everything it received - the last replay timestamp only moves with writes
+    private static final String LAG_QUERY = "SELECT COALESCE(CASE WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() " +
+            "THEN 0 ELSE EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000 END, 0)::BIGINT";
+
+    private static final int LAG_QUERY_TIMEOUT_SECONDS = 5;
+
+    @Nonnull
+    private final DataSource replica;
+
+    private final long maxLagMillis;
+
+    //a measurement older than this is no good - the checks are stuck (e.g. the replica stopped answering)
+    private final long maxMeasurementAgeMillis;
+
+    @Nonnull
+    private final Meter fallbackMeter;
+
+    @Nonnull
+    private final ScheduledExecutorService lagCheckExecutor;
+
+    private volatile long lagMillis = Long.MAX_VALUE;
+
+    private volatile long lagMeasuredAt = 0;
+
+    public ReplicaRoutingDataSource(@Nonnull final DataSource primary,
+                                    @Nonnull final DataSource replica,
+                                    final int maxLagSeconds,
+                                    final int lagCheckIntervalSeconds,
+                                    @Nonnull final MetricRegistry metricRegistry) {
+        this.replica = replica;
+        this.maxLagMillis = TimeUnit.SECONDS.toMillis(maxLagSeconds);
+        this.maxMeasurementAgeMillis = 3 * TimeUnit.SECONDS.toMillis(lagCheckIntervalSeconds);
+
+        final Map<Object, Object> targetDataSources = new HashMap<>();
+        targetDataSources.put(PRIMARY, primary);
+        targetDataSources.put(REPLICA, replica);
+        setTargetDataSources(targetDataSources);
+        setDefaultTargetDataSource(primary);
+        afterPropertiesSet();
+
+        this.fallbackMeter = metricRegistry.meter(MetricRegistry.name("reddcrawl", "db", "replica", "fallbacks"));
+        metricRegistry.register(MetricRegistry.name("reddcrawl", "db", "replica", "lag"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return lagMillis;
+            }
+        });
+
+        this.lagCheckExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("replica-lag-check-%d").setDaemon(true).build());
+        lagCheckExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                final long measuredLagMillis = measureLagMillis();
+                if (measuredLagMillis > maxLagMillis && lagMillis <= maxLagMillis) {
+                    LOGGER.warn("Replica is " + measuredLagMillis + "ms behind - reading from the primary");
+                }
+                lagMillis = measuredLagMillis;
+                lagMeasuredAt = System.currentTimeMillis();
+            }
+        }, 0, lagCheckIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        if (!TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+            return PRIMARY;
+        }
+
+        if (isReplicaCaughtUp()) {
+            return REPLICA;
+        }
+
+        fallbackMeter.mark();
+        return PRIMARY;
+    }
+
+    private boolean isReplicaCaughtUp() {
+        //only reads the last measurement of the lag check thread
+        return lagMillis <= maxLagMillis && System.currentTimeMillis() - lagMeasuredAt <= maxMeasurementAgeMillis;
+    }
+
+    private long measureLagMillis() {
+        try (final Connection connection = replica.getConnection();
+             final Statement statement = connection.createStatement()) {
+            statement.setQueryTimeout(LAG_QUERY_TIMEOUT_SECONDS);
+            try (final ResultSet rs = statement.executeQuery(LAG_QUERY)) {
+                rs.next();
+                return rs.getLong(1);
+            }
+        } catch (@Nonnull final SQLException e) {
+            LOGGER.warn("Couldn't check the replica lag", e);
+            return Long.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.andrewortman.reddcrawl.repository;
+
+import com.andrewortman.reddcrawl.repository.model.IdGeneration;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hands out ids for the jdbc inserts the same way hibernate's pooled optimizer does for the entities: the sequences
+ * step by IdGeneration.ID_ALLOCATION_SIZE, and every value taken from a sequence is the top of a block of that many
+ * ids, which are then handed out from memory. Inserts that left the id to the column default would burn a whole block
+ * per row - with the int4 story ids that runs out after ~43M stories.
+ * <p/>
+ * Blocks never overlap with the ones hibernate (or another node) takes, since each sequence value is only returned
+ * once. Ids left over in a block when the process stops are skipped.
+ */
+public class SequenceIdAllocator {
+    @Nonnull
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+
+    //unused blocks of every sequence, in order (guarded by this)
+    @Nonnull
+    private final Map<String, Deque<Block>> blocksBySequence = new HashMap<>();
+
+    public SequenceIdAllocator(@Nonnull final NamedParameterJdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * @param sequence name of the sequence, e.g. story_id_seq
+     * @return the next id
+     */
+    public long nextId(@Nonnull final String sequence) {
+        return nextIds(sequence, 1)[0];
+    }
+
+    /**
+     * @param sequence name of the sequence, e.g. story_id_seq
+     * @param count    number of ids
+     * @return the next count ids - the blocks they need are taken from the sequence in a single round trip
+     */
+    @Nonnull
+    public synchronized long[] nextIds(@Nonnull final String sequence, final int count) {
+        Deque<Block> blocks = blocksBySequence.get(sequence);
+        if (blocks == null) {
+            blocks = new ArrayDeque<>();
+            blocksBySequence.put(sequence, blocks);
+        }
+
+        final long[] ids = new long[count];
+        int filled = 0;
+        while (filled < count) {
+            final Block block = blocks.peekFirst();
+            if (block == null) {
+                final int blockCount = (count - filled + IdGeneration.ID_ALLOCATION_SIZE - 1) / IdGeneration.ID_ALLOCATION_SIZE;
+                final List<Long> blockTops = jdbcTemplate.queryForList(
+                        "SELECT nextval(CAST(:sequence AS REGCLASS)) FROM generate_series(1, :blocks)",
+                        new MapSqlParameterSource("sequence", sequence).addValue("blocks", blockCount),
+                        Long.class);
+                for (final Long blockTop : blockTops) {
+                    blocks.addLast(new Block(blockTop));
+                }
+                continue;
+            }
+
+            ids[filled++] = block.next++;
+            if (block.next > block.top) {
+                blocks.removeFirst();
+            }
+        }
+        return ids;
+    }
+
+    private static class Block {
+        private final long top;
+
+        private long next;
+
+        private Block(final long top) {
+            this.top = top;
+            //the sequences start at 1, so the first value is the top of a block of its own
+            this.next = Math.max(1, top - IdGeneration.ID_ALLOCATION_SIZE + 1);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.andrewortman.reddcrawl.repository;
+
+import com.andrewortman.reddcrawl.repository.model.StoryHistoryModel;
+import com.google.common.io.BaseEncoding;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyOutputStream;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.sql.DataSource;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bulk loads story history with postgres' COPY. The rows are streamed into a temporary staging table, and then a
+ * single statement updates the stories from the staging table and moves the rows into story_history - so a batch of
+ * any size costs four round trips instead of two statements per story. A story can have several items in a batch (the
+ * journal backs up while the database is slow): all of them are stored, and the story takes the values of the latest.
+ * Items that aren't newer than what the story already has are skipped, so a replayed batch is only stored once.
+ * <p/>
+ * The staging table is a temp table (no WAL, private to the connection) that is created once per pooled connection
+ * and emptied on commit. Must be called inside a transaction on the same datasource, so the copy and the merge see the
+ * same staging rows.
+ * <p/>
+ * With packed history (see PackedStoryHistoryStore) the samples are encoded before the copy and appended to their
+ * chunks in story_history_packed by the merge instead.
+ */
+public class StoryHistoryCopyLoader {
+    private static final String CREATE_STAGING_TABLE = "CREATE TEMP TABLE IF NOT EXISTS story_history_staging (" +
+            "id BIGINT, \"timestamp\" TIMESTAMP WITHOUT TIME ZONE NOT NULL, story INTEGER NOT NULL, score INTEGER NOT NULL, " +
+            "hotness DOUBLE PRECISION NOT NULL, comments INTEGER NOT NULL, gilded INTEGER NOT NULL, chunk INTEGER, sample BYTEA) " +
+            "ON COMMIT DELETE ROWS";
+
+    private static final String COPY_STAGING = "COPY story_history_staging (id, \"timestamp\", story, score, hotness, comments, gilded, " +
+            "chunk, sample) FROM STDIN WITH (FORMAT csv)";
+
+    //stories that were deleted in the meantime (e.g. archived) are skipped by the join, like the single row update does.
+    //Items that aren't newer than the story's last update are already stored (the journal replays a batch when the
+    //process stopped before it was committed) and are skipped as well - the UPDATE checks again in case another writer
+    //got to the story first
+    private static final String UPDATE_STORIES = "WITH fresh AS (SELECT st.* FROM story_history_staging st " +
+            "JOIN story_stats ss ON ss.story = st.story WHERE st.\"timestamp\" > ss.updated_at), " +
+            "latest AS (SELECT DISTINCT ON (story) * FROM fresh ORDER BY story, \"timestamp\" DESC), " +
+            "updated AS (UPDATE story_stats ss SET updated_at = st.\"timestamp\", " +
+            "checked_at = st.\"timestamp\", hotness = st.hotness, score = st.score, comments = st.comments, gilded = st.gilded, " +
+            "missed_checks = 0, lease_owner = NULL, lease_until = NULL FROM latest st " +
+            "WHERE ss.story = st.story AND ss.updated_at < st.\"timestamp\" RETURNING ss.story AS id) ";
+
+    private static final String SELECT_ADDED = "SELECT st.story, st.\"timestamp\" FROM fresh st JOIN updated u ON u.id = st.story";
+
+    private static final String MERGE_STAGING = UPDATE_STORIES +
+            ", inserted AS (INSERT INTO story_history (id, \"timestamp\", story, score, hotness, comments, gilded) " +
+            "SELECT st.id, st.\"timestamp\", st.story, st.score, st.hotness, st.comments, st.gilded " +
+            "FROM fresh st JOIN updated u ON u.id = st.story) " + SELECT_ADDED;
+
+    //the samples of a story are put together per chunk, so each chunk takes a single append. Packed samples don't have
+    //ids of their own
+    private static final String MERGE_STAGING_PACKED = UPDATE_STORIES +
+            ", appended AS (INSERT INTO story_history_packed (story, chunk, samples, data) " +
+            "SELECT st.story, st.chunk, count(*), string_agg(st.sample, ''::BYTEA ORDER BY st.\"timestamp\") " +
+            "FROM fresh st JOIN updated u ON u.id = st.story GROUP BY st.story, st.chunk " +
+            PackedStoryHistoryStore.APPEND_SAMPLE + ") " + SELECT_ADDED;
+
+    private static final int COPY_BUFFER_SIZE = 65536;
+
+    @Nonnull
+    private final DataSource dataSource;
+
+    @Nullable
+    private final PackedStoryHistory packedStoryHistory;
+
+    //ids of the story_history rows are allocated in blocks - see SequenceIdAllocator
+    @Nonnull
+    private final SequenceIdAllocator sequenceIdAllocator;
+
+    /**
+     * @param dataSource         datasource the repositories run their transactions on
+     * @param packedStoryHistory encoding of packed history, or null to load into the story_history rows
+     */
+    public StoryHistoryCopyLoader(@Nonnull final DataSource dataSource, @Nullable final PackedStoryHistory packedStoryHistory) {
+        this.dataSource = dataSource;
+        this.packedStoryHistory = packedStoryHistory;
+        this.sequenceIdAllocator = new SequenceIdAllocator(new NamedParameterJdbcTemplate(dataSource));
+    }
+
+    /**
+     * Adds the history items to their stories (see StoryRepository.addStoryHistory). If a story shows up more than once,
+     * every item is stored and the story is updated from its latest one. Items that are not newer than the story's last
+     * update are taken to be stored already and are left out
+     *
+     * @param historyItems history items, each with its story set
+     * @return the items that were added, with their ids filled in
+     */
+    @Nonnull
+    public List<StoryHistoryModel> load(@Nonnull final Collection<StoryHistoryModel> historyItems) throws SQLException {
+        final Connection connection = DataSourceUtils.getConnection(dataSource);
+        try {
+            try (final Statement statement = connection.createStatement()) {
+                statement.execute(CREATE_STAGING_TABLE);
+            }
+
+            //packed samples don't have ids of their own
+            final long[] ids = packedStoryHistory == null ? sequenceIdAllocator.nextIds("story_history_id_seq", historyItems.size()) : null;
+            copyToStaging(connection, historyItems, ids);
+
+            //timestamps of the items that were added, by story
+            final Map<Integer, Set<Long>> addedTimestamps = new HashMap<>();
+            try (final Statement statement = connection.createStatement();
+                 final ResultSet rs = statement.executeQuery(packedStoryHistory == null ? MERGE_STAGING : MERGE_STAGING_PACKED)) {
+                while (rs.next()) {
+                    Set<Long> storyTimestamps = addedTimestamps.get(rs.getInt("story"));
+                    if (storyTimestamps == null) {
+                        storyTimestamps = new HashSet<>();
+                        addedTimestamps.put(rs.getInt("story"), storyTimestamps);
+                    }
+                    storyTimestamps.add(rs.getTimestamp("timestamp").getTime());
+                }
+            }
+
+            //empty the staging table now in case we're not the last thing in the transaction
+            try (final Statement statement = connection.createStatement()) {
+                statement.execute("TRUNCATE story_history_staging");
+            }
+
+            final List<StoryHistoryModel> added = new ArrayList<>(historyItems.size());
+            int index = 0;
+            for (final StoryHistoryModel historyItem : historyItems) {
+                final int itemIndex = index++;
+                final Set<Long> storyTimestamps = addedTimestamps.get(historyItem.getStory().getId());
+                if (storyTimestamps == null || !storyTimestamps.contains(historyItem.getTimestamp().getTime())) {
+                    continue;
+                }
+
+                if (ids != null) {
+                    historyItem.setId(ids[itemIndex]);
+                }
+                added.add(historyItem);
+            }
+            return added;
+        } finally {
+            DataSourceUtils.releaseConnection(connection, dataSource);
+        }
+    }
+
+    private void copyToStaging(@Nonnull final Connection connection,
+                               @Nonnull final Collection<StoryHistoryModel> historyItems,
+                               @Nullable final long[] ids) throws SQLException {
+        //timestamps are written in local time, the same way the driver binds them for columns without time zone
+        final SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        int index = 0;
+        final PGCopyOutputStream copyStream = new PGCopyOutputStream(connection.unwrap(PGConnection.class), COPY_STAGING, COPY_BUFFER_SIZE);
+        try {
+            final Writer writer = new BufferedWriter(new OutputStreamWriter(copyStream, StandardCharsets.UTF_8), COPY_BUFFER_SIZE);
+            for (final StoryHistoryModel historyItem : historyItems) {
+                if (ids != null) {
+                    writer.write(Long.toString(ids[index++]));
+                }
+                writer.write(',');
+                writer.write(timestampFormat.format(historyItem.getTimestamp()));
+                writer.write(',');
+                writer.write(Integer.toString(historyItem.getStory().getId()));
+                writer.write(',');
+                writer.write(Integer.toString(historyItem.getScore()));
+                writer.write(',');
+                writer.write(Double.toString(historyItem.getHotness()));
+                writer.write(',');
+                writer.write(Integer.toString(historyItem.getComments()));
+                writer.write(',');
+                writer.write(Integer.toString(historyItem.getGilded()));
+                writer.write(',');
+                if (packedStoryHistory != null) {
+                    writer.write(Integer.toString(packedStoryHistory.getChunk(historyItem.getStory(), historyItem)));
+                    writer.write(",\\x");
+                    writer.write(BaseEncoding.base16().lowerCase().encode(packedStoryHistory.encode(historyItem.getStory(), historyItem)));
+                } else {
+                    writer.write(','); //empty fields are nulls
+                }
+                writer.write('\n');
+            }
+            writer.close(); //ends the copy
+        } catch (@Nonnull final IOException e) {
+            if (copyStream.isActive()) {
+                copyStream.cancelCopy();
+            }
+            throw new SQLException("Could not copy story history into the staging table", e);
+        }
+    }
+}
@@ -0,0 +1,423 @@
+package com.andrewortman.reddcrawl.repository;
+
+import com.andrewortman.reddcrawl.repository.model.StoryHistoryModel;
+import com.andrewortman.reddcrawl.repository.model.StoryModel;
+import com.andrewortman.reddcrawl.repository.model.SubredditModel;
+import com.google.common.base.Charsets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * A local, memory mapped journal of story history items that still have to be written to the database. The history
+ * updater appends what it fetched and moves on right away; a writer takes the items out in batches and commits them
+ * once they are in the database. Whatever wasn't committed is read back when the journal is opened again, so a crash
+ * or a stalled database doesn't lose fetched history.
+ * <p/>
+ * The file starts with a header holding the position of the first uncommitted record, followed by the records back to
+ * back: payload length, CRC32 of the payload, payload. A zero length marks the end. A record is written before its
+ * length, so a record cut off by a crash is never read back (and the checksum catches pages that only partly made it
+ * to disk). Committed records are reclaimed by moving the uncommitted ones to the front of the file once they fit in
+ * the free space there. When the database is down long enough for the journal to fill up, appends block until the
+ * writer catches up.
+ * <p/>
+ * Appends are only forced to disk by force() - the page cache survives a crash of the process, but not of the machine.
+ * Items are delivered at least once: a crash between writing a batch and committing it writes the batch again.
+ * Any number of threads can append, but only one may take batches.
+ */
+public class StoryHistoryJournal implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StoryHistoryJournal.class);
+
+    private static final int MAGIC = 0x52434a31; //"RCJ1"
+
+    //magic, padding and the position of the first uncommitted record
+    private static final int HEADER_SIZE = 16;
+
+    private static final int READ_POSITION_OFFSET = 8;
+
+    //length and checksum in front of every payload
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    //the zero length marking the end of the records
+    private static final int TERMINATOR_SIZE = 4;
+
+    @Nonnull
+    private final RandomAccessFile file;
+
+    @Nonnull
+    private final FileLock fileLock;
+
+    @Nonnull
+    private final MappedByteBuffer buffer;
+
+    private final int capacity;
+
+    //position of the first uncommitted record, and of the end of the records (guarded by this)
+    private int readPosition;
+
+    private int writePosition;
+
+    //number of uncommitted records (guarded by this)
+    private int depth;
+
+    //number of uncommitted records per story id, so the updater can leave those stories out (guarded by this)
+    @Nonnull
+    private final Map<Integer, Integer> pendingStoryCounts = new HashMap<>();
+
+    /**
+     * Opens the journal, creating it if it doesn't exist yet. Records that weren't committed before the journal was
+     * closed (or the process died) are the first ones taken again
+     *
+     * @param journalFile   the journal file - only one process can have it open
+     * @param capacityBytes size of a new journal file (existing journals keep their size)
+     */
+    public StoryHistoryJournal(@Nonnull final File journalFile, final int capacityBytes) throws IOException {
+        final File directory = journalFile.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create journal directory " + directory);
+        }
+
+        this.file = new RandomAccessFile(journalFile, "rw");
+        final FileChannel channel = file.getChannel();
+        final FileLock lock = channel.tryLock();
+        if (lock == null) {
+            file.close();
+            throw new IOException("Journal " + journalFile + " is used by another process");
+        }
+        this.fileLock = lock;
+
+        this.capacity = (int) Math.max(file.length(), capacityBytes);
+        if (capacity < HEADER_SIZE + TERMINATOR_SIZE) {
+            close();
+            throw new IllegalArgumentException("capacityBytes is too small");
+        }
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+
+        if (buffer.getInt(0) != MAGIC) {
+            buffer.putInt(HEADER_SIZE, 0);
+            buffer.putLong(READ_POSITION_OFFSET, HEADER_SIZE);
+            buffer.putInt(0, MAGIC);
+            buffer.force();
+        }
+        recover();
+    }
+
+    /**
+     * Finds the end of the records that made it to the journal, starting from the first uncommitted one
+     */
+    private void recover() {
+        final long storedReadPosition = buffer.getLong(READ_POSITION_OFFSET);
+        readPosition = storedReadPosition >= HEADER_SIZE && storedReadPosition <= capacity - TERMINATOR_SIZE ?
+                (int) storedReadPosition : HEADER_SIZE;
+
+        int position = readPosition;
+        while (position <= capacity - RECORD_HEADER_SIZE - TERMINATOR_SIZE) {
+            final int length = buffer.getInt(position);
+            if (length <= 0 || length > capacity - position - RECORD_HEADER_SIZE - TERMINATOR_SIZE) {
+                break;
+            }
+
+            final byte[] payload = readPayload(position, length);
+            if (buffer.getInt(position + 4) != checksum(payload)) {
+                LOGGER.warn("Dropping the torn record at the end of the story history journal");
+                break;
+            }
+
+            depth++;
+            addPendingStory(decode(ByteBuffer.wrap(payload)).getStory().getId(), 1);
+            position += RECORD_HEADER_SIZE + length;
+        }
+
+        writePosition = position;
+        buffer.putInt(writePosition, 0);
+        if (depth > 0) {
+            LOGGER.info("Replaying " + depth + " story history items left in the journal");
+        }
+    }
+
+    /**
+     * Appends history items to the journal. Each item needs its story's id, short id, discovery time and subreddit name.
+     * Blocks while the journal is full
+     */
+    public void append(@Nonnull final Collection<StoryHistoryModel> historyItems) throws InterruptedException {
+        if (historyItems.isEmpty()) {
+            return;
+        }
+
+        final List<byte[]> payloads = new ArrayList<>(historyItems.size());
+        int totalSize = 0;
+        for (final StoryHistoryModel historyItem : historyItems) {
+            final byte[] payload = encode(historyItem);
+            payloads.add(payload);
+            totalSize += RECORD_HEADER_SIZE + payload.length;
+        }
+
+        if (totalSize > capacity - HEADER_SIZE - TERMINATOR_SIZE) {
+            throw new IllegalArgumentException("Journal is too small for " + historyItems.size() + " history items");
+        }
+
+        synchronized (this) {
+            while (writePosition + totalSize + TERMINATOR_SIZE > capacity && !compact()) {
+                wait();
+            }
+
+            for (final byte[] payload : payloads) {
+                final int position = writePosition;
+                final ByteBuffer record = buffer.duplicate();
+                record.position(position + 4);
+                record.putInt(checksum(payload));
+                record.put(payload);
+                record.putInt(0);
+                //the length goes in last - until then the record ends the journal
+                buffer.putInt(position, payload.length);
+                writePosition = position + RECORD_HEADER_SIZE + payload.length;
+            }
+
+            depth += payloads.size();
+            for (final StoryHistoryModel historyItem : historyItems) {
+                addPendingStory(historyItem.getStory().getId(), 1);
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Takes the oldest uncommitted items, without removing them - commit the batch once it has been written
+     *
+     * @param maxItems max number of items in the batch
+     * @return the batch, empty if the journal is empty
+     */
+    @Nonnull
+    public synchronized Batch take(final int maxItems) {
+        final List<StoryHistoryModel> historyItems = new ArrayList<>(Math.min(depth, maxItems));
+        int position = readPosition;
+        while (position < writePosition && historyItems.size() < maxItems) {
+            final int length = buffer.getInt(position);
+            historyItems.add(decode(ByteBuffer.wrap(readPayload(position, length))));
+            position += RECORD_HEADER_SIZE + length;
+        }
+
+        return new Batch(historyItems, position - readPosition);
+    }
+
+    /**
+     * Removes a batch from the journal once its items are in the database
+     */
+    public synchronized void commit(@Nonnull final Batch batch) {
+        if (batch.historyItems.isEmpty()) {
+            return;
+        }
+
+        //uncommitted records may have moved to the front since the batch was taken, but they stay in the same order
+        readPosition += batch.size;
+        if (readPosition == writePosition) {
+            readPosition = HEADER_SIZE;
+            writePosition = HEADER_SIZE;
+            buffer.putInt(HEADER_SIZE, 0);
+        }
+        buffer.putLong(READ_POSITION_OFFSET, readPosition);
+
+        depth -= batch.historyItems.size();
+        for (final StoryHistoryModel historyItem : batch.historyItems) {
+            addPendingStory(historyItem.getStory().getId(), -1);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Moves the uncommitted records to the front of the file, if they fit in the committed space there - they are
+     * copied before the header is switched over to them, so a crash on the way leaves the old copy in use
+     *
+     * @return true if space was freed
+     */
+    private boolean compact() {
+        final int uncommittedSize = writePosition - readPosition;
+        //the copy and its terminator must not touch the old copy, which stays in use until the header is switched
+        if (readPosition == HEADER_SIZE || uncommittedSize + TERMINATOR_SIZE > readPosition - HEADER_SIZE) {
+            return false;
+        }
+
+        final byte[] uncommitted = new byte[uncommittedSize];
+        final ByteBuffer source = buffer.duplicate();
+        source.position(readPosition);
+        source.get(uncommitted);
+
+        final ByteBuffer target = buffer.duplicate();
+        target.position(HEADER_SIZE);
+        target.put(uncommitted);
+        target.putInt(0);
+        buffer.putLong(READ_POSITION_OFFSET, HEADER_SIZE);
+
+        readPosition = HEADER_SIZE;
+        writePosition = HEADER_SIZE + uncommittedSize;
+        return true;
+    }
+
+    /**
+     * Waits until the journal has items to take
+     *
+     * @return true if there are items, false if the timeout passed first
+     */
+    public synchronized boolean awaitItems(final long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        long remaining = timeoutMillis;
+        while (depth == 0 && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return depth > 0;
+    }
+
+    /**
+     * @return ids of the stories that have uncommitted items - their history isn't in the database yet, so the
+     * database still has them as due for an update
+     */
+    @Nonnull
+    public synchronized Set<Integer> getPendingStoryIds() {
+        return new HashSet<>(pendingStoryCounts.keySet());
+    }
+
+    private void addPendingStory(final int storyId, final int delta) {
+        final Integer count = pendingStoryCounts.get(storyId);
+        final int newCount = (count == null ? 0 : count) + delta;
+        if (newCount > 0) {
+            pendingStoryCounts.put(storyId, newCount);
+        } else {
+            pendingStoryCounts.remove(storyId);
+        }
+    }
+
+    /**
+     * @return number of uncommitted items
+     */
+    public synchronized int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Writes the journal out to disk, so it also survives a crash of the machine
+     */
+    public void force() {
+        buffer.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            fileLock.release();
+        } finally {
+            file.close();
+        }
+    }
+
+    @Nonnull
+    private byte[] readPayload(final int position, final int length) {
+        final byte[] payload = new byte[length];
+        final ByteBuffer record = buffer.duplicate();
+        record.position(position + RECORD_HEADER_SIZE);
+        record.get(payload);
+        return payload;
+    }
+
+    private static int checksum(@Nonnull final byte[] payload) {
+        final CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    @Nonnull
+    private static byte[] encode(@Nonnull final StoryHistoryModel historyItem) {
+        final StoryModel story = historyItem.getStory();
+        final byte[] redditShortId = story.getRedditShortId().getBytes(Charsets.UTF_8);
+        final byte[] subredditName = story.getSubreddit().getName().getBytes(Charsets.UTF_8);
+
+        final ByteBuffer payload = ByteBuffer.allocate(4 + 8 + 8 + 4 + 8 + 4 + 4 + 4 + redditShortId.length + 4 + subredditName.length);
+        payload.putInt(story.getId());
+        payload.putLong(story.getDiscoveredAt().getTime());
+        payload.putLong(historyItem.getTimestamp().getTime());
+        payload.putInt(historyItem.getScore());
+        payload.putDouble(historyItem.getHotness());
+        payload.putInt(historyItem.getComments());
+        payload.putInt(historyItem.getGilded());
+        payload.putInt(redditShortId.length);
+        payload.put(redditShortId);
+        payload.putInt(subredditName.length);
+        payload.put(subredditName);
+        return payload.array();
+    }
+
+    @Nonnull
+    private static StoryHistoryModel decode(@Nonnull final ByteBuffer payload) {
+        final StoryModel story = new StoryModel();
+        story.setId(payload.getInt());
+        story.setDiscoveredAt(new Date(payload.getLong()));
+
+        final StoryHistoryModel historyItem = new StoryHistoryModel();
+        historyItem.setTimestamp(new Date(payload.getLong()));
+        historyItem.setScore(payload.getInt());
+        historyItem.setHotness(payload.getDouble());
+        historyItem.setComments(payload.getInt());
+        historyItem.setGilded(payload.getInt());
+
+        story.setRedditShortId(readString(payload));
+        final SubredditModel subreddit = new SubredditModel();
+        subreddit.setName(readString(payload));
+        story.setSubreddit(subreddit);
+        historyItem.setStory(story);
+        return historyItem;
+    }
+
+    @Nonnull
+    private static String readString(@Nonnull final ByteBuffer payload) {
+        final byte[] bytes = new byte[payload.getInt()];
+        payload.get(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    /**
+     * History items taken from the journal, to be committed once they are written
+     */
+    public static class Batch {
+        @Nonnull
+        private final List<StoryHistoryModel> historyItems;
+
+        //bytes the batch takes up in the journal
+        private final int size;
+
+        Batch(@Nonnull final List<StoryHistoryModel> historyItems, final int size) {
+            this.historyItems = Collections.unmodifiableList(historyItems);
+            this.size = size;
+        }
+
+        /**
+         * @return the history items, each with a reference to its story (id, short id, discovery time and subreddit name)
+         */
+        @Nonnull
+        public List<StoryHistoryModel> getHistoryItems() {
+            return historyItems;
+        }
+
+        public boolean isEmpty() {
+            return historyItems.isEmpty();
+        }
+    }
+}
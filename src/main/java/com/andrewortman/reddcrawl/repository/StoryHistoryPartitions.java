@@ -0,0 +1,201 @@
+package com.andrewortman.reddcrawl.repository;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.transaction.Transactional;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Manages the daily range partitions of story_history (requires postgres 11+). Every partition holds the history
+ * items with a timestamp in one day, so once all the stories of a day are archived the whole day can be dropped at
+ * once instead of deleting its rows one story at a time.
+ * <p/>
+ * Partitions are named story_history_pYYYYMMDD. Anything outside of the existing partitions ends up in the default
+ * partition, which is never dropped - its rows are moved into the daily partition of their day when that gets created
+ * late, and purged once their stories are archived.
+ */
+public class StoryHistoryPartitions {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StoryHistoryPartitions.class);
+
+    private static final String LIST_PARTITIONS = "SELECT c.relname AS name, pg_get_expr(c.relpartbound, c.oid) AS bound " +
+            "FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid WHERE i.inhparent = 'story_history'::regclass";
+
+    private static final String DEFAULT_PARTITION = "story_history_default";
+
+    //upper bound of a range partition, e.g. FOR VALUES FROM ('2016-01-01 00:00:00') TO ('2016-01-02 00:00:00')
+    private static final Pattern UPPER_BOUND = Pattern.compile("TO \\('([^']+)'\\)");
+
+    @Nonnull
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+
+    public StoryHistoryPartitions(@Nonnull final NamedParameterJdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Creates the daily partitions from today up to the given number of days ahead, starting after the newest existing
+     * partition
+     *
+     * @param now       current time
+     * @param daysAhead number of days after today to create partitions for
+     * @return number of partitions created
+     */
+    @Transactional
+    public int createPartitions(@Nonnull final Date now, final int daysAhead) {
+        //partitions may not overlap, so start where the newest one ends (it doesn't have to end at midnight)
+        Date start = startOfDay(now, 0);
+        for (final Partition partition : getPartitions()) {
+            if (partition.upperBound != null && partition.upperBound.after(start)) {
+                start = partition.upperBound;
+            }
+        }
+
+        final Date horizon = startOfDay(now, daysAhead + 1);
+        int created = 0;
+        while (start.before(horizon)) {
+            final Date end = startOfDay(start, 1);
+            final String name = "story_history_p" + new SimpleDateFormat("yyyyMMdd").format(start);
+            final SimpleDateFormat boundFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            final String createPartition = "CREATE TABLE " + name + " PARTITION OF story_history FOR VALUES FROM ('" +
+                    boundFormat.format(start) + "') TO ('" + boundFormat.format(end) + "') WITH (fillfactor=60)";
+
+            final MapSqlParameterSource range = new MapSqlParameterSource()
+                    .addValue("start", JdbcModelMappers.timestamp(start))
+                    .addValue("end", JdbcModelMappers.timestamp(end));
+            final Boolean inDefaultPartition = jdbcTemplate.queryForObject("SELECT EXISTS (SELECT 1 FROM " + DEFAULT_PARTITION +
+                    " WHERE \"timestamp\" >= :start AND \"timestamp\" < :end)", range, Boolean.class);
+            if (Boolean.TRUE.equals(inDefaultPartition)) {
+                //we fell behind and history of the day went into the default partition. Postgres won't create a
+                //partition whose rows are in the default partition, so take the default partition out while the rows
+                //are moved over
+                jdbcTemplate.update("ALTER TABLE story_history DETACH PARTITION " + DEFAULT_PARTITION, new MapSqlParameterSource());
+                jdbcTemplate.update(createPartition, new MapSqlParameterSource());
+                final int moved = jdbcTemplate.update("WITH moved AS (DELETE FROM " + DEFAULT_PARTITION +
+                        " WHERE \"timestamp\" >= :start AND \"timestamp\" < :end RETURNING *) " +
+                        "INSERT INTO story_history SELECT * FROM moved", range);
+                jdbcTemplate.update("ALTER TABLE story_history ATTACH PARTITION " + DEFAULT_PARTITION + " DEFAULT", new MapSqlParameterSource());
+                LOGGER.info("Created story history partition " + name + " and moved " + moved + " rows from the default partition into it");
+            } else {
+                jdbcTemplate.update(createPartition, new MapSqlParameterSource());
+                LOGGER.info("Created story history partition " + name);
+            }
+
+            created++;
+            start = end;
+        }
+
+        return created;
+    }
+
+    /**
+     * Detaches and drops all the partitions that only hold history from before the given time. The caller has to make
+     * sure all of their contents are archived
+     *
+     * @param cutoff partitions that end at or before this time are dropped
+     * @return names of the dropped partitions
+     */
+    @Nonnull
+    @Transactional
+    public List<String> dropPartitionsBefore(@Nonnull final Date cutoff) {
+        final List<String> dropped = new ArrayList<>();
+        for (final Partition partition : getPartitions()) {
+            if (partition.upperBound == null || partition.upperBound.after(cutoff)) {
+                continue;
+            }
+
+            jdbcTemplate.update("ALTER TABLE story_history DETACH PARTITION \"" + partition.name + "\"", new MapSqlParameterSource());
+            jdbcTemplate.update("DROP TABLE \"" + partition.name + "\"", new MapSqlParameterSource());
+            LOGGER.info("Dropped story history partition " + partition.name);
+            dropped.add(partition.name);
+        }
+
+        return dropped;
+    }
+
+    /**
+     * Deletes the history in the default partition from before the given time - like dropPartitionsBefore, the caller
+     * has to make sure it is archived. The default partition is never dropped, so this is the only way its rows go
+     *
+     * @param cutoff history items from before this time are deleted
+     * @return number of history items deleted
+     */
+    @Transactional
+    public int purgeDefaultPartitionBefore(@Nonnull final Date cutoff) {
+        return jdbcTemplate.update("DELETE FROM " + DEFAULT_PARTITION + " WHERE \"timestamp\" < :cutoff",
+                new MapSqlParameterSource("cutoff", JdbcModelMappers.timestamp(cutoff)));
+    }
+
+    /**
+     * @return the discovery time of the oldest story still in the database - every history item from before this
+     * time belongs to a story that is gone already. Null if there are no stories
+     */
+    @Nullable
+    public Date getOldestStoryDiscoveryTime() {
+        return jdbcTemplate.queryForObject("SELECT min(discovered_at) FROM story", new MapSqlParameterSource(), Date.class);
+    }
+
+    @Nonnull
+    private List<Partition> getPartitions() {
+        return jdbcTemplate.query(LIST_PARTITIONS, new MapSqlParameterSource(), new RowMapper<Partition>() {
+            @Override
+            public Partition mapRow(final ResultSet rs, final int rowNum) throws SQLException {
+                return new Partition(rs.getString("name"), parseUpperBound(rs.getString("bound")));
+            }
+        });
+    }
+
+    @Nullable
+    private static Date parseUpperBound(@Nonnull final String bound) {
+        final Matcher matcher = UPPER_BOUND.matcher(bound);
+        if (!matcher.find()) {
+            return null; //the default partition, or a partition open towards MAXVALUE
+        }
+
+        try {
+            return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").parse(matcher.group(1));
+        } catch (@Nonnull final ParseException e) {
+            throw new IllegalStateException("Unexpected story history partition bound " + bound, e);
+        }
+    }
+
+    //bounds are in local time, the same way the driver binds timestamps without time zone
+    @Nonnull
+    private static Date startOfDay(@Nonnull final Date date, final int daysLater) {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.setTime(date);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        calendar.add(Calendar.DAY_OF_MONTH, daysLater);
+        return calendar.getTime();
+    }
+
+    private static class Partition {
+        @Nonnull
+        private final String name;
+
+        @Nullable
+        private final Date upperBound;
+
+        private Partition(@Nonnull final String name, @Nullable final Date upperBound) {
+            this.name = name;
+            this.upperBound = upperBound;
+        }
+    }
+}
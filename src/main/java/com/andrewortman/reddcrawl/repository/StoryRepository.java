@@ -2,12 +2,15 @@ package com.andrewortman.reddcrawl.repository;
 
 import com.andrewortman.reddcrawl.repository.model.StoryHistoryModel;
 import com.andrewortman.reddcrawl.repository.model.StoryModel;
+import com.andrewortman.reddcrawl.repository.model.StoryWorkItem;
 import org.springframework.stereotype.Repository;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 @Repository
 public interface StoryRepository {
@@ -20,6 +23,16 @@ public interface StoryRepository {
     @Nullable
     StoryModel findStoryByRedditShortId(@Nonnull final String redditShortId);
 
+    /**
+     * Finds the stories we already track out of a page of reddit short ids. Only the work item columns are loaded (see
+     * StoryWorkItem.toStoryReference), so this is cheap enough to run for every listing page
+     *
+     * @param redditShortIds the short ids from reddit
+     * @return work items of the stories that exist, by reddit short id
+     */
+    @Nonnull
+    Map<String, StoryWorkItem> findStoryWorkItemsByRedditShortIds(@Nonnull Collection<String> redditShortIds);
+
     /**
      * Gets a Top N list of the hottest stories being tracked
      *
@@ -31,28 +44,93 @@ public interface StoryRepository {
     List<StoryModel> getHottestStories(int limit, boolean fetchSubreddit);
 
     /**
-     * Finds stories that need an update
+     * Finds the stories whose counters were updated (a history item was added, or the story was discovered) after a
+     * given time, with their subreddits. Stories updated at the same time are ordered by id, so pages can continue
+     * from the last (update time, id) of the previous page without skipping any
+     *
+     * @param updatedAfter only stories updated after this time are returned
+     * @param afterId      stories updated at exactly updatedAfter are only returned if their id is above this
+     * @param limit        max number of results
+     * @return List of storyModels, oldest update first
+     */
+    @Nonnull
+    List<StoryModel> findStoriesUpdatedSince(@Nonnull Date updatedAfter, int afterId, int limit);
+
+    /**
+     * Finds stories that need an update. Only the few columns needed for the update are loaded - use
+     * StoryWorkItem.toStoryReference for the calls that write the update
      *
      * @param earliestCreateTime create time of the oldest story to consider
      * @param lastUpdateTime     the latest time the story has been updated before
+     * @param maxMissedChecks    stories that reddit didn't return this many checks in a row are retired and left out
      * @param limit              the max number of results to return
-     * @return a list of stories needing update
+     * @return a list of stories needing update, hottest first
      */
     @Nonnull
-    List<StoryModel> findStoriesNeedingUpdate(@Nonnull Date earliestCreateTime, @Nonnull Date lastUpdateTime, int limit);
+    List<StoryWorkItem> findStoriesNeedingUpdate(@Nonnull Date earliestCreateTime, @Nonnull Date lastUpdateTime, int maxMissedChecks, int limit);
 
     /**
-     * Get stories that were created before a specific time
+     * Same as findStoriesNeedingUpdate, but also takes an update lease on the stories it returns so other worker nodes
+     * leasing at the same time get a different set. Stories leased by another node are skipped until the lease runs out.
+     * The lease is released when the story history is added or the story is marked missing
      *
-     * @param latestCreateDate the latest timestamp in which the story was created
-     * @param limit            max number of stories to return
-     * @return list of all stories created before latestCreateDate
+     * @param earliestCreateTime   create time of the oldest story to consider
+     * @param lastUpdateTime       the latest time the story has been updated before
+     * @param maxMissedChecks      stories that reddit didn't return this many checks in a row are retired and left out
+     * @param limit                the max number of results to return
+     * @param leaseOwner           id of the worker node taking the lease
+     * @param leaseDurationSeconds how long the lease lasts if it isn't released
+     * @return a list of leased stories needing update, hottest first
+     */
+    @Nonnull
+    List<StoryWorkItem> leaseStoriesNeedingUpdate(@Nonnull Date earliestCreateTime, @Nonnull Date lastUpdateTime, int maxMissedChecks,
+                                                  int limit, @Nonnull String leaseOwner, int leaseDurationSeconds);
+
+    /**
+     * Releases update leases without updating the stories (e.g. when the batch request failed) so they can be
+     * picked up again right away
+     *
+     * @param stories    stories to release
+     * @param leaseOwner id of the worker node holding the lease - leases held by other nodes are left alone
+     * @return number of leases released
+     */
+    int releaseStoryLeases(@Nonnull Collection<StoryModel> stories, @Nonnull String leaseOwner);
+
+    /**
+     * Counts the tracked stories whose number of missed checks in a row is within a range
+     *
+     * @param earliestCreateTime create time of the oldest story to consider
+     * @param minMissedChecks    minimum number of missed checks (inclusive)
+     * @param maxMissedChecks    maximum number of missed checks (exclusive)
+     * @return number of stories
+     */
+    long countStoriesWithMissedChecks(@Nonnull Date earliestCreateTime, int minMissedChecks, int maxMissedChecks);
+
+    /**
+     * Counts the stories discovered per subreddit since a given time
+     *
+     * @param discoveredAfter the earliest discovery time to count
+     * @return map of subreddit name to the number of stories discovered in it (subreddits without stories are left out)
      */
     @Nonnull
-    List<StoryModel> findArchivableStories(@Nonnull final Date latestCreateDate, int limit);
+    Map<String, Long> countStoriesDiscoveredBySubreddit(@Nonnull Date discoveredAfter);
+
+    /**
+     * Streams the stories that were created before a specific time in id order, each together with its whole history.
+     * The stories and their history come from one query through a cursor, so a batch of any size only holds a few
+     * stories in memory at a time
+     *
+     * @param latestCreateDate the latest timestamp in which the story was created
+     * @param afterId          only stories with a higher id are streamed (the last id of the previous batch, or 0)
+     * @param limit            max number of stories to stream
+     * @param handler          called for every story, with its in-order (by time) history
+     * @return number of stories streamed
+     */
+    int streamArchivableStories(@Nonnull Date latestCreateDate, int afterId, int limit, @Nonnull StoryWithHistoryHandler handler);
 
     /**
-     * Removes the stories and associated data with those stories from the database. Use this after archiving to a file
+     * Removes the stories from the database. Use this after archiving to a file. Their history is left in place until
+     * the daily story_history partitions it is in get dropped (see StoryHistoryPartitions)
      *
      * @param stories List of story models to remove
      * @return Number of stories actually removed
@@ -71,7 +149,8 @@ public interface StoryRepository {
     StoryModel saveNewStory(@Nonnull StoryModel partialStory, @Nonnull StoryHistoryModel partialHistory);
 
     /**
-     * Adds a story history item to a story
+     * Adds a story history item to a story. A history item also resets the story's missed check count. Items that are
+     * not newer than the story's last update are already stored and are skipped, so adding the same item twice is safe
      *
      * @param story       Story Model to update
      * @param historyItem History item to insert - if null, this will not create a history line item, but update the checked time
@@ -79,6 +158,26 @@ public interface StoryRepository {
      */
     boolean addStoryHistory(@Nonnull StoryModel story, @Nullable StoryHistoryModel historyItem);
 
+    /**
+     * Adds history items to many stories at once - the same as calling addStoryHistory for every item, but batches of
+     * at least db.copythreshold items are streamed in with COPY instead of two statements per story
+     *
+     * @param historyItems history items, each with its story set
+     * @return the history items that were added (items for stories that no longer exist, or that were already stored,
+     * are left out)
+     */
+    @Nonnull
+    List<StoryHistoryModel> addStoryHistories(@Nonnull Collection<StoryHistoryModel> historyItems);
+
+    /**
+     * Marks a story as checked but not returned by reddit, bumping its missed check count
+     *
+     * @param story     Story Model to update
+     * @param checkedAt the checked time to store - set this in the future to back off checking the story again
+     * @return boolean if story model was updated
+     */
+    boolean markStoryMissing(@Nonnull StoryModel story, @Nonnull Date checkedAt);
+
     /**
      * Returns an list of all associated history items for the story
      *
@@ -2,7 +2,8 @@ package com.andrewortman.reddcrawl.repository;
 
 import com.andrewortman.reddcrawl.repository.model.StoryHistoryModel;
 import com.andrewortman.reddcrawl.repository.model.StoryModel;
-import org.springframework.stereotype.Component;
+import com.andrewortman.reddcrawl.repository.model.StoryWorkItem;
+import org.springframework.jdbc.UncategorizedSQLException;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -10,19 +11,51 @@ import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
 import javax.persistence.PersistenceContext;
 import javax.transaction.Transactional;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
-@Component
+/**
+ * StoryRepository on JPA/hibernate. The selftext of a story is lazy, so the queries whose stories end up rendered
+ * (API) fetch all properties; the story_stats updates are native (see JdbcStoryRepository).
+ */
 public class StoryRepositoryImpl implements StoryRepository {
     @PersistenceContext
     private EntityManager entityManager;
 
+    @Nonnull
+    private final StoryHistoryCopyLoader storyHistoryCopyLoader;
+
+    @Nonnull
+    private final ArchivableStoryReader archivableStoryReader;
+
+    //batches of at least this many history items go through COPY
+    private final int copyThreshold;
+
+    //keeps the history instead of story_history when set
+    @Nullable
+    private final PackedStoryHistoryStore packedStoryHistoryStore;
+
+    public StoryRepositoryImpl(@Nonnull final StoryHistoryCopyLoader storyHistoryCopyLoader,
+                               @Nonnull final ArchivableStoryReader archivableStoryReader,
+                               final int copyThreshold,
+                               @Nullable final PackedStoryHistoryStore packedStoryHistoryStore) {
+        this.storyHistoryCopyLoader = storyHistoryCopyLoader;
+        this.archivableStoryReader = archivableStoryReader;
+        this.copyThreshold = copyThreshold;
+        this.packedStoryHistoryStore = packedStoryHistoryStore;
+    }
+
     @Override
     @Nullable
     public StoryModel findStoryByRedditShortId(@Nonnull final String redditShortId) {
         try {
-            return entityManager.createQuery("SELECT s from story s where s.redditShortId = :redditShortId", StoryModel.class)
+            return entityManager.createQuery("SELECT s from story s fetch all properties where s.redditShortId = :redditShortId", StoryModel.class)
                     .setParameter("redditShortId", redditShortId)
                     .getSingleResult();
         } catch (@Nonnull final NoResultException ignored) {
@@ -30,15 +63,46 @@ public class StoryRepositoryImpl implements StoryRepository {
         }
     }
 
+    @Override
+    @Nonnull
+    public Map<String, StoryWorkItem> findStoryWorkItemsByRedditShortIds(@Nonnull final Collection<String> redditShortIds) {
+        if (redditShortIds.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        final Map<String, StoryWorkItem> storyWorkItems = new HashMap<>();
+        for (final StoryWorkItem storyWorkItem : entityManager.createQuery("SELECT NEW com.andrewortman.reddcrawl.repository.model.StoryWorkItem(" +
+                "s.id, s.redditShortId, sr.name, s.discoveredAt, s.checkedAt, s.missedChecks) FROM story s JOIN s.subreddit sr " +
+                "WHERE s.redditShortId IN :redditShortIds", StoryWorkItem.class)
+                .setParameter("redditShortIds", redditShortIds)
+                .getResultList()) {
+            storyWorkItems.put(storyWorkItem.getRedditShortId(), storyWorkItem);
+        }
+        return storyWorkItems;
+    }
+
     @Override
     @Nonnull
     public List<StoryModel> getHottestStories(final int limit, final boolean fetchSubreddit) {
-        final String query = "SELECT s FROM story s " + (fetchSubreddit ? "left join fetch s.subreddit as subreddit" : "") + " order by s.hotness desc";
+        final String query = "SELECT s FROM story s fetch all properties " + (fetchSubreddit ? "left join fetch s.subreddit as subreddit" : "") + " order by s.hotness desc";
         return entityManager.createQuery(query, StoryModel.class)
                 .setMaxResults(limit)
                 .getResultList();
     }
 
+    @Override
+    @Nonnull
+    public List<StoryModel> findStoriesUpdatedSince(@Nonnull final Date updatedAfter, final int afterId, final int limit) {
+        //checked_at is never before updated_at, so the work queue index narrows it down
+        return entityManager.createQuery("SELECT s FROM story s fetch all properties JOIN FETCH s.subreddit " +
+                "WHERE s.checkedAt >= :updatedAfter AND (s.updatedAt > :updatedAfter OR (s.updatedAt = :updatedAfter AND s.id > :afterId)) " +
+                "ORDER BY s.updatedAt, s.id", StoryModel.class)
+                .setParameter("updatedAfter", updatedAfter)
+                .setParameter("afterId", afterId)
+                .setMaxResults(limit)
+                .getResultList();
+    }
+
     @Override
     @Nonnull
     @Transactional
@@ -62,7 +126,7 @@ public class StoryRepositoryImpl implements StoryRepository {
         final StoryModel managedStory = entityManager.merge(partialStory);
 
         partialHistory.setStory(managedStory);
-        entityManager.persist(partialHistory);
+        saveStoryHistory(partialHistory);
 
         return managedStory;
     }
@@ -73,9 +137,7 @@ public class StoryRepositoryImpl implements StoryRepository {
                                    @Nullable final StoryHistoryModel historyItem) {
         if (historyItem != null) {
             //the history item exists
-            final int numRows = entityManager.createQuery("UPDATE story s set " +
-                    "s.updatedAt=:timestamp, s.checkedAt=:timestamp, s.hotness=:hotness, s.score=:score, s.comments=:comments, s.gilded=:gilded " +
-                    "where s.id=:id")
+            final int numRows = entityManager.createNativeQuery(JdbcStoryRepository.UPDATE_STORY_STATS)
                     .setParameter("timestamp", historyItem.getTimestamp())
                     .setParameter("hotness", historyItem.getHotness())
                     .setParameter("score", historyItem.getScore())
@@ -86,12 +148,12 @@ public class StoryRepositoryImpl implements StoryRepository {
 
             if (numRows > 0) {
                 historyItem.setStory(storyModel);
-                entityManager.persist(historyItem);
+                saveStoryHistory(historyItem);
                 return true;
             }
         } else {
             //history item was null (no history item was returned by reddit, but we should still mark it as checked)
-            final int numRows = entityManager.createQuery("UPDATE story s set s.checkedAt=current_timestamp where s.id=:id")
+            final int numRows = entityManager.createNativeQuery(JdbcStoryRepository.MARK_STORY_CHECKED)
                     .setParameter("id", storyModel.getId())
                     .executeUpdate();
 
@@ -103,39 +165,182 @@ public class StoryRepositoryImpl implements StoryRepository {
 
     @Override
     @Nonnull
-    public List<StoryModel> findStoriesNeedingUpdate(@Nonnull final Date earliestCreateTime,
-                                                     @Nonnull final Date lastCheckTime,
-                                                     final int limit) {
-        return entityManager.createQuery("SELECT s FROM story s WHERE s.checkedAt <= :lastUpdateTime and s.discoveredAt >= :earliestCreateTime ORDER BY s.hotness DESC", StoryModel.class)
+    @Transactional
+    public List<StoryHistoryModel> addStoryHistories(@Nonnull final Collection<StoryHistoryModel> historyItems) {
+        if (historyItems.size() < copyThreshold) {
+            final List<StoryHistoryModel> added = new ArrayList<>(historyItems.size());
+            for (final StoryHistoryModel historyItem : historyItems) {
+                if (addStoryHistory(historyItem.getStory(), historyItem)) {
+                    added.add(historyItem);
+                }
+            }
+            return added;
+        }
+
+        try {
+            return storyHistoryCopyLoader.load(historyItems);
+        } catch (@Nonnull final SQLException e) {
+            throw new UncategorizedSQLException("addStoryHistories", null, e);
+        }
+    }
+
+    @Override
+    @Transactional
+    public boolean markStoryMissing(@Nonnull final StoryModel storyModel, @Nonnull final Date checkedAt) {
+        final int numRows = entityManager.createNativeQuery(JdbcStoryRepository.MARK_STORY_MISSING)
+                .setParameter("checkedAt", checkedAt)
+                .setParameter("id", storyModel.getId())
+                .executeUpdate();
+
+        return numRows > 0;
+    }
+
+    @Override
+    @Nonnull
+    public List<StoryWorkItem> findStoriesNeedingUpdate(@Nonnull final Date earliestCreateTime,
+                                                        @Nonnull final Date lastCheckTime,
+                                                        final int maxMissedChecks,
+                                                        final int limit) {
+        return entityManager.createQuery("SELECT NEW com.andrewortman.reddcrawl.repository.model.StoryWorkItem(" +
+                "s.id, s.redditShortId, sr.name, s.discoveredAt, s.checkedAt, s.missedChecks) FROM story s JOIN s.subreddit sr " +
+                "WHERE s.checkedAt <= :lastUpdateTime and s.statsDiscoveredAt >= :earliestCreateTime " +
+                "and s.missedChecks < :maxMissedChecks ORDER BY s.hotness DESC", StoryWorkItem.class)
                 .setParameter("lastUpdateTime", lastCheckTime)
                 .setParameter("earliestCreateTime", earliestCreateTime)
+                .setParameter("maxMissedChecks", maxMissedChecks)
                 .setMaxResults(limit)
                 .getResultList();
     }
 
+    @Override
+    @Nonnull
+    @Transactional
+    @SuppressWarnings("unchecked")
+    public List<StoryWorkItem> leaseStoriesNeedingUpdate(@Nonnull final Date earliestCreateTime,
+                                                         @Nonnull final Date lastCheckTime,
+                                                         final int maxMissedChecks,
+                                                         final int limit,
+                                                         @Nonnull final String leaseOwner,
+                                                         final int leaseDurationSeconds) {
+        //SKIP LOCKED lets concurrent workers each grab a different set of due stories without waiting on each other,
+        //and the lease columns keep the stories away from other workers until they are updated or the lease expires.
+        //lease times come from the database clock so nodes with skewed clocks still agree on expiry
+        final List<Object[]> rows = entityManager.createNativeQuery(JdbcStoryRepository.LEASE_STORY_WORK_ITEMS)
+                .setParameter("leaseOwner", leaseOwner)
+                .setParameter("leaseDurationSeconds", leaseDurationSeconds)
+                .setParameter("lastUpdateTime", lastCheckTime)
+                .setParameter("earliestCreateTime", earliestCreateTime)
+                .setParameter("maxMissedChecks", maxMissedChecks)
+                .setParameter("limit", limit)
+                .getResultList();
+
+        final List<StoryWorkItem> workItems = new ArrayList<>(rows.size());
+        for (final Object[] row : rows) {
+            workItems.add(new StoryWorkItem(((Number) row[0]).intValue(), (String) row[1], (String) row[2],
+                    (Date) row[3], (Date) row[4], ((Number) row[5]).intValue()));
+        }
+        return workItems;
+    }
+
+    @Override
+    @Transactional
+    public int releaseStoryLeases(@Nonnull final Collection<StoryModel> stories, @Nonnull final String leaseOwner) {
+        if (stories.isEmpty()) {
+            return 0;
+        }
+
+        final List<Integer> ids = new ArrayList<>(stories.size());
+        for (final StoryModel story : stories) {
+            ids.add(story.getId());
+        }
+
+        return entityManager.createNativeQuery(JdbcStoryRepository.RELEASE_STORY_LEASES)
+                .setParameter("ids", ids)
+                .setParameter("leaseOwner", leaseOwner)
+                .executeUpdate();
+    }
+
+    @Override
+    public long countStoriesWithMissedChecks(@Nonnull final Date earliestCreateTime, final int minMissedChecks, final int maxMissedChecks) {
+        return entityManager.createQuery("SELECT count(s) FROM story s WHERE s.statsDiscoveredAt >= :earliestCreateTime " +
+                "and s.missedChecks >= :minMissedChecks and s.missedChecks < :maxMissedChecks", Long.class)
+                .setParameter("earliestCreateTime", earliestCreateTime)
+                .setParameter("minMissedChecks", minMissedChecks)
+                .setParameter("maxMissedChecks", maxMissedChecks)
+                .getSingleResult();
+    }
+
     @Nonnull
     @Override
-    public List<StoryModel> findArchivableStories(@Nonnull final Date latestCreateDate, final int limit) {
-        return entityManager.createQuery("SELECT s from story s WHERE s.createdAt <= :latestCreateDate", StoryModel.class)
-                .setParameter("latestCreateDate", latestCreateDate)
-                .setMaxResults(limit)
+    public Map<String, Long> countStoriesDiscoveredBySubreddit(@Nonnull final Date discoveredAfter) {
+        final List<Object[]> rows = entityManager.createQuery("SELECT s.subreddit.name, count(s) FROM story s " +
+                "WHERE s.discoveredAt >= :discoveredAfter GROUP BY s.subreddit.name", Object[].class)
+                .setParameter("discoveredAfter", discoveredAfter)
                 .getResultList();
+
+        final Map<String, Long> storyCounts = new HashMap<>(rows.size());
+        for (final Object[] row : rows) {
+            storyCounts.put((String) row[0], (Long) row[1]);
+        }
+
+        return storyCounts;
+    }
+
+    @Override
+    @Transactional
+    public int streamArchivableStories(@Nonnull final Date latestCreateDate,
+                                       final int afterId,
+                                       final int limit,
+                                       @Nonnull final StoryWithHistoryHandler handler) {
+        //hibernate has no good way to stream a story with its history - the stories don't need to be managed anyway
+        try {
+            return archivableStoryReader.read(latestCreateDate, afterId, limit, handler);
+        } catch (@Nonnull final SQLException e) {
+            throw new UncategorizedSQLException("streamArchivableStories", null, e);
+        }
     }
 
     @Nonnull
     @Override
     @Transactional
     public Integer deleteStories(@Nonnull final List<StoryModel> stories) {
-        return entityManager.createQuery("DELETE from story s where s in :stories")
-                .setParameter("stories", stories)
+        if (stories.isEmpty()) {
+            return 0;
+        }
+
+        final List<Integer> ids = new ArrayList<>(stories.size());
+        for (final StoryModel story : stories) {
+            ids.add(story.getId());
+        }
+        if (packedStoryHistoryStore != null) {
+            packedStoryHistoryStore.delete(ids);
+        }
+
+        return entityManager.createNativeQuery(JdbcStoryRepository.DELETE_STORIES)
+                .setParameter("ids", ids)
                 .executeUpdate();
     }
 
     @Override
     @Nonnull
     public List<StoryHistoryModel> getStoryHistory(@Nonnull final StoryModel storyModel) {
-        return entityManager.createQuery("SELECT h FROM story_history h WHERE h.story = :story ORDER BY h.timestamp ASC", StoryHistoryModel.class)
+        if (packedStoryHistoryStore != null) {
+            return packedStoryHistoryStore.getHistory(storyModel);
+        }
+
+        //history is never older than the story's discovery - lets postgres skip the partitions of earlier days
+        return entityManager.createQuery("SELECT h FROM story_history h WHERE h.story = :story AND h.timestamp >= :discoveredAt " +
+                "ORDER BY h.timestamp ASC", StoryHistoryModel.class)
                 .setParameter("story", storyModel)
+                .setParameter("discoveredAt", storyModel.getDiscoveredAt())
                 .getResultList();
     }
+
+    private void saveStoryHistory(@Nonnull final StoryHistoryModel historyItem) {
+        if (packedStoryHistoryStore != null) {
+            packedStoryHistoryStore.append(Collections.singletonList(historyItem));
+        } else {
+            entityManager.persist(historyItem);
+        }
+    }
 }
@@ -0,0 +1,14 @@
+package com.andrewortman.reddcrawl.repository;
+
+import com.andrewortman.reddcrawl.repository.model.StoryHistoryModel;
+import com.andrewortman.reddcrawl.repository.model.StoryModel;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+
+/**
+ * Receives the stories streamed by StoryRepository.streamArchivableStories, one at a time
+ */
+public interface StoryWithHistoryHandler {
+    void handleStory(@Nonnull StoryModel story, @Nonnull List<StoryHistoryModel> history);
+}
@@ -0,0 +1,77 @@
+package com.andrewortman.reddcrawl.repository;
+
+import com.andrewortman.reddcrawl.repository.model.SubredditHistoryRollupModel;
+import com.andrewortman.reddcrawl.repository.model.SubredditHistoryRollupModel.Resolution;
+
+import javax.annotation.Nonnull;
+import java.util.Date;
+
+/**
+ * Sql for the hourly and daily subreddit history rollups, shared by the jdbc and JPA subreddit repositories (both bind
+ * the same named parameters). Every new history sample is folded into the rollup row of its hour and day right away,
+ * in the transaction that inserts it, so the rollups never have to be rebuilt from subreddit_history.
+ */
+final class SubredditHistoryRollups {
+    //the subreddit and period start are the primary key, so a growth chart is a range scan of one subreddit's rows
+    static final String ROLLUP_COLUMNS = "bucket, samples, min_subscribers, max_subscribers, last_subscribers, " +
+            "min_active, max_active, last_active";
+
+    private SubredditHistoryRollups() {
+    }
+
+    /**
+     * Adds a sample to its rollup - parameters subreddit, timestamp, subscribers and active. The last values only move
+     * forward in time, so a late sample can't overwrite a newer one
+     */
+    @Nonnull
+    static String upsertSql(@Nonnull final Resolution resolution) {
+        return "INSERT INTO " + resolution.getTable() + " AS r (subreddit, " + ROLLUP_COLUMNS + ", last_timestamp) " +
+                "VALUES (:subreddit, date_trunc('" + resolution.getTruncation() + "', CAST(:timestamp AS TIMESTAMP)), 1, " +
+                ":subscribers, :subscribers, :subscribers, :active, :active, :active, CAST(:timestamp AS TIMESTAMP)) " +
+                "ON CONFLICT (subreddit, bucket) DO UPDATE SET samples = r.samples + 1, " +
+                "min_subscribers = LEAST(r.min_subscribers, EXCLUDED.min_subscribers), " +
+                "max_subscribers = GREATEST(r.max_subscribers, EXCLUDED.max_subscribers), " +
+                "last_subscribers = CASE WHEN EXCLUDED.last_timestamp >= r.last_timestamp " +
+                "THEN EXCLUDED.last_subscribers ELSE r.last_subscribers END, " +
+                "min_active = LEAST(r.min_active, EXCLUDED.min_active), " +
+                "max_active = GREATEST(r.max_active, EXCLUDED.max_active), " +
+                "last_active = CASE WHEN EXCLUDED.last_timestamp >= r.last_timestamp " +
+                "THEN EXCLUDED.last_active ELSE r.last_active END, " +
+                "last_timestamp = GREATEST(r.last_timestamp, EXCLUDED.last_timestamp)";
+    }
+
+    /**
+     * Selects a subreddit's rollups of the periods overlapping [from, to), oldest first - parameters subreddit, from
+     * and to
+     */
+    @Nonnull
+    static String selectSql(@Nonnull final Resolution resolution) {
+        return "SELECT " + ROLLUP_COLUMNS + " FROM " + resolution.getTable() + " WHERE subreddit = :subreddit " +
+                "AND bucket >= date_trunc('" + resolution.getTruncation() + "', CAST(:from AS TIMESTAMP)) " +
+                "AND bucket < CAST(:to AS TIMESTAMP) ORDER BY bucket";
+    }
+
+    /**
+     * Builds a rollup from the values of a row, in ROLLUP_COLUMNS order
+     */
+    @Nonnull
+    static SubredditHistoryRollupModel createRollup(@Nonnull final Date bucket,
+                                                    final int samples,
+                                                    final long minSubscribers,
+                                                    final long maxSubscribers,
+                                                    final long lastSubscribers,
+                                                    final int minActive,
+                                                    final int maxActive,
+                                                    final int lastActive) {
+        final SubredditHistoryRollupModel rollup = new SubredditHistoryRollupModel();
+        rollup.setBucket(bucket);
+        rollup.setSamples(samples);
+        rollup.setMinSubscribers(minSubscribers);
+        rollup.setMaxSubscribers(maxSubscribers);
+        rollup.setLastSubscribers(lastSubscribers);
+        rollup.setMinActive(minActive);
+        rollup.setMaxActive(maxActive);
+        rollup.setLastActive(lastActive);
+        return rollup;
+    }
+}
@@ -1,13 +1,16 @@
 package com.andrewortman.reddcrawl.repository;
 
 import com.andrewortman.reddcrawl.repository.model.SubredditHistoryModel;
+import com.andrewortman.reddcrawl.repository.model.SubredditHistoryRollupModel;
 import com.andrewortman.reddcrawl.repository.model.SubredditModel;
 import org.springframework.stereotype.Repository;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 @Repository
 public interface SubredditRepository {
@@ -38,6 +41,15 @@ public interface SubredditRepository {
     @Nullable
     SubredditModel findSubredditByName(String name);
 
+    /**
+     * Find all subreddits matching a set of names in one query
+     *
+     * @param names the subreddit names
+     * @return map of subreddit name to subreddit model - names that aren't in the database are left out
+     */
+    @Nonnull
+    Map<String, SubredditModel> findSubredditsByNames(Collection<String> names);
+
     /**
      * Save a newly discovered subreddit
      *
@@ -48,7 +60,16 @@ public interface SubredditRepository {
     SubredditModel saveNewSubreddit(SubredditModel subredditModel);
 
     /**
-     * Add a history item to the subreddit
+     * Save a set of newly discovered subreddits in a single transaction
+     *
+     * @param subredditModels The filled in subreddit models
+     * @return the persisted subreddit models
+     */
+    @Nonnull
+    List<SubredditModel> saveNewSubreddits(Collection<SubredditModel> subredditModels);
+
+    /**
+     * Add a history item to the subreddit, and fold it into the subreddit's hourly and daily rollups
      *
      * @param subredditModel The subredditmodel to add history to
      * @param historyItem    the history item
@@ -58,13 +79,30 @@ public interface SubredditRepository {
     SubredditHistoryModel addSubredditHistory(SubredditModel subredditModel, SubredditHistoryModel historyItem);
 
     /**
-     * Get the first subreddit history item before a given date. If no history found, use the first history item in the db
+     * Get the subreddit's latest history item before a given date (its state as of that date). If there is no history
+     * before the date, use the subreddit's first history item instead
      *
-     * @param date the date to scan behind
+     * @param subredditModel the subreddit
+     * @param date           the date to scan behind
      * @return the subreddit history model or null if no history exists for the subreddit
      */
     @Nullable
-    SubredditHistoryModel getSubredditHistoryModelFirstBeforeDate(Date date);
+    SubredditHistoryModel getSubredditHistoryModelFirstBeforeDate(SubredditModel subredditModel, Date date);
+
+    /**
+     * Get the subreddit's history rolled up per hour or day, without reading the individual history items
+     *
+     * @param subredditModel the subreddit
+     * @param resolution     hourly or daily rollups
+     * @param from           start of the range - the rollup of the period it falls in is included
+     * @param to             end of the range (exclusive)
+     * @return the rollups of the periods that have history, oldest first
+     */
+    @Nonnull
+    List<SubredditHistoryRollupModel> getSubredditHistoryRollups(SubredditModel subredditModel,
+                                                                 SubredditHistoryRollupModel.Resolution resolution,
+                                                                 Date from,
+                                                                 Date to);
 
     /**
      * Mark the subreddit has "seen" - this will allow us to filter subreddits that haven't been seen in a while
@@ -72,4 +110,12 @@ public interface SubredditRepository {
      * @param subredditModel Subreddit to mark as "seen"
      */
     boolean markSubredditAsSeen(SubredditModel subredditModel);
+
+    /**
+     * Mark a set of subreddits as "seen" with a single update
+     *
+     * @param subredditModels Subreddits to mark as "seen"
+     * @return number of subreddits updated
+     */
+    int markSubredditsAsSeen(Collection<SubredditModel> subredditModels);
 }
@@ -1,19 +1,26 @@
 package com.andrewortman.reddcrawl.repository;
 
 import com.andrewortman.reddcrawl.repository.model.SubredditHistoryModel;
+import com.andrewortman.reddcrawl.repository.model.SubredditHistoryRollupModel;
 import com.andrewortman.reddcrawl.repository.model.SubredditModel;
-import org.springframework.stereotype.Repository;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
 import javax.persistence.PersistenceContext;
+import javax.persistence.TemporalType;
 import javax.transaction.Transactional;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
-@Repository
+/**
+ * SubredditRepository on JPA/hibernate
+ */
 public class SubredditRepositoryImpl implements SubredditRepository {
 
     @PersistenceContext
@@ -31,6 +38,26 @@ public class SubredditRepositoryImpl implements SubredditRepository {
         }
     }
 
+    @Override
+    @Nonnull
+    public Map<String, SubredditModel> findSubredditsByNames(@Nonnull final Collection<String> names) {
+        final Map<String, SubredditModel> subredditsByName = new HashMap<>();
+        if (names.isEmpty()) {
+            return subredditsByName; //an empty IN () list isn't valid sql
+        }
+
+        final List<SubredditModel> subredditModels =
+                entityManager.createQuery("SELECT s from subreddit s where s.name in :names", SubredditModel.class)
+                        .setParameter("names", names)
+                        .getResultList();
+
+        for (final SubredditModel subredditModel : subredditModels) {
+            subredditsByName.put(subredditModel.getName(), subredditModel);
+        }
+
+        return subredditsByName;
+    }
+
     @Override
     @Nonnull
     public List<SubredditModel> getAllRecentlySeenSubreddits(@Nonnull final Date lastSeenTime) {
@@ -60,6 +87,22 @@ public class SubredditRepositoryImpl implements SubredditRepository {
         return subredditModel;
     }
 
+    @Override
+    @Nonnull
+    @Transactional
+    public List<SubredditModel> saveNewSubreddits(@Nonnull final Collection<SubredditModel> subredditModels) {
+        final Date now = new Date();
+        final List<SubredditModel> savedSubredditModels = new ArrayList<>(subredditModels.size());
+        for (final SubredditModel subredditModel : subredditModels) {
+            subredditModel.setCreatedAt(now);
+            subredditModel.setUpdatedAt(now);
+            subredditModel.setSeenAt(now);
+            entityManager.persist(subredditModel);
+            savedSubredditModels.add(subredditModel);
+        }
+        return savedSubredditModels;
+    }
+
     @Override
     @Nonnull
     @Transactional
@@ -71,27 +114,61 @@ public class SubredditRepositoryImpl implements SubredditRepository {
         historyItem.setSubreddit(managedSubredditModel);
         entityManager.persist(historyItem);
 
+        for (final SubredditHistoryRollupModel.Resolution resolution : SubredditHistoryRollupModel.Resolution.values()) {
+            entityManager.createNativeQuery(SubredditHistoryRollups.upsertSql(resolution))
+                    .setParameter("subreddit", managedSubredditModel.getId())
+                    .setParameter("timestamp", historyItem.getTimestamp(), TemporalType.TIMESTAMP)
+                    .setParameter("subscribers", historyItem.getSubscribers())
+                    .setParameter("active", historyItem.getActive())
+                    .executeUpdate();
+        }
+
         return historyItem;
     }
 
     @Override
     @Nullable
-    public SubredditHistoryModel getSubredditHistoryModelFirstBeforeDate(@Nonnull final Date date) {
-        final SubredditHistoryModel firstBeforeDate =
-                entityManager.createQuery("SELECT h from subreddit_history where timestamp < :date AND subreddit = :subreddit", SubredditHistoryModel.class)
-                        .getSingleResult();
-
-        if (firstBeforeDate != null) {
-            return firstBeforeDate;
-        } else {
-            //if there was no history before the date, try to select the first one of all time instead
-            try {
-                return entityManager.createQuery("SELECT h from subreddit_history order by timestamp asc", SubredditHistoryModel.class)
-                        .getSingleResult();
-            } catch (@Nonnull final NoResultException ignored) {
-                return null;
-            }
+    public SubredditHistoryModel getSubredditHistoryModelFirstBeforeDate(@Nonnull final SubredditModel subredditModel,
+                                                                        @Nonnull final Date date) {
+        final List<SubredditHistoryModel> beforeDate = entityManager.createQuery("SELECT h from subreddit_history h " +
+                "where h.subreddit.id = :subreddit and h.timestamp < :date order by h.timestamp desc", SubredditHistoryModel.class)
+                .setParameter("subreddit", subredditModel.getId())
+                .setParameter("date", date, TemporalType.TIMESTAMP)
+                .setMaxResults(1)
+                .getResultList();
+        if (!beforeDate.isEmpty()) {
+            return beforeDate.get(0);
         }
+
+        //if there was no history before the date, try to select the subreddit's first one instead
+        final List<SubredditHistoryModel> first = entityManager.createQuery("SELECT h from subreddit_history h " +
+                "where h.subreddit.id = :subreddit order by h.timestamp asc", SubredditHistoryModel.class)
+                .setParameter("subreddit", subredditModel.getId())
+                .setMaxResults(1)
+                .getResultList();
+        return first.isEmpty() ? null : first.get(0);
+    }
+
+    @Override
+    @Nonnull
+    @SuppressWarnings("unchecked")
+    public List<SubredditHistoryRollupModel> getSubredditHistoryRollups(@Nonnull final SubredditModel subredditModel,
+                                                                        @Nonnull final SubredditHistoryRollupModel.Resolution resolution,
+                                                                        @Nonnull final Date from,
+                                                                        @Nonnull final Date to) {
+        final List<Object[]> rows = entityManager.createNativeQuery(SubredditHistoryRollups.selectSql(resolution))
+                .setParameter("subreddit", subredditModel.getId())
+                .setParameter("from", from, TemporalType.TIMESTAMP)
+                .setParameter("to", to, TemporalType.TIMESTAMP)
+                .getResultList();
+
+        final List<SubredditHistoryRollupModel> rollups = new ArrayList<>(rows.size());
+        for (final Object[] row : rows) {
+            rollups.add(SubredditHistoryRollups.createRollup((Date) row[0], ((Number) row[1]).intValue(),
+                    ((Number) row[2]).longValue(), ((Number) row[3]).longValue(), ((Number) row[4]).longValue(),
+                    ((Number) row[5]).intValue(), ((Number) row[6]).intValue(), ((Number) row[7]).intValue()));
+        }
+        return rollups;
     }
 
     @Override
@@ -103,4 +180,21 @@ public class SubredditRepositoryImpl implements SubredditRepository {
 
         return numRows > 0;
     }
+
+    @Override
+    @Transactional
+    public int markSubredditsAsSeen(@Nonnull final Collection<SubredditModel> subredditModels) {
+        if (subredditModels.isEmpty()) {
+            return 0;
+        }
+
+        final List<Integer> ids = new ArrayList<>(subredditModels.size());
+        for (final SubredditModel subredditModel : subredditModels) {
+            ids.add(subredditModel.getId());
+        }
+
+        return entityManager.createQuery("update subreddit s set s.seenAt = current_timestamp where s.id in :ids")
+                .setParameter("ids", ids)
+                .executeUpdate();
+    }
 }
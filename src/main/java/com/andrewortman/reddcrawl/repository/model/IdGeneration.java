@@ -0,0 +1,14 @@
+package com.andrewortman.reddcrawl.repository.model;
+
+/**
+ * The entity ids come from postgres sequences that step by ID_ALLOCATION_SIZE. Hibernate's pooled optimizer hands out
+ * every id of a step from memory, so a persist doesn't need a round trip for its id and inserts can be batched. The
+ * jdbc repositories take their ids the same way (SequenceIdAllocator) - an insert that leaves the id to the column
+ * default would use up a whole step. The INCREMENT BY of the sequences in schema.sql has to match.
+ */
+public final class IdGeneration {
+    public static final int ID_ALLOCATION_SIZE = 50;
+
+    private IdGeneration() {
+    }
+}
@@ -8,8 +8,11 @@ import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
+import javax.persistence.SequenceGenerator;
 import java.util.Date;
 
+import static com.andrewortman.reddcrawl.repository.model.IdGeneration.ID_ALLOCATION_SIZE;
+
 /**
  * Holds the representation of a single entry of reddit subreddit history in the database
  */
@@ -17,7 +20,8 @@ import java.util.Date;
 public class StoryHistoryModel {
     @Id
     @JoinColumn(name = "id", nullable = false)
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @SequenceGenerator(name = "story_history_id_seq", sequenceName = "story_history_id_seq", allocationSize = ID_ALLOCATION_SIZE)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "story_history_id_seq")
     private long id;
 
     @Nonnull
@@ -1,25 +1,40 @@
 package com.andrewortman.reddcrawl.repository.model;
 
+import org.hibernate.annotations.Table;
+
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.persistence.Basic;
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
+import javax.persistence.PrimaryKeyJoinColumn;
+import javax.persistence.SecondaryTable;
+import javax.persistence.SequenceGenerator;
 import java.util.Date;
 
+import static com.andrewortman.reddcrawl.repository.model.IdGeneration.ID_ALLOCATION_SIZE;
+
 /**
- * Holds the representation of a reddit story in the database
+ * Holds the representation of a reddit story in the database. The score, hotness, timestamps and update lease change on
+ * every history update, so they live in the narrow story_stats table - updating them never touches the story row.
  */
 @SuppressWarnings("NullableProblems")
 @Entity(name = "story")
+@SecondaryTable(name = StoryModel.STATS_TABLE, pkJoinColumns = @PrimaryKeyJoinColumn(name = "story"))
+@Table(appliesTo = StoryModel.STATS_TABLE, optional = false)
 public class StoryModel {
+    public static final String STATS_TABLE = "story_stats";
+
     @Id
     @Column(name = "id", nullable = false)
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @SequenceGenerator(name = "story_id_seq", sequenceName = "story_id_seq", allocationSize = ID_ALLOCATION_SIZE)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "story_id_seq")
     private int id;
 
     @Nonnull
@@ -66,20 +81,22 @@ public class StoryModel {
     @Column(name = "is_self", nullable = false)
     private boolean isSelf;
 
+    //only loaded when it's read (needs the build time instrumentation of the model classes)
     @Nullable
+    @Basic(fetch = FetchType.LAZY)
     @Column(name = "selftext", nullable = true)
     private String selftext;
 
-    @Column(name = "score", nullable = false)
+    @Column(name = "score", table = STATS_TABLE, nullable = false)
     private int score;
 
-    @Column(name = "hotness", nullable = false)
+    @Column(name = "hotness", table = STATS_TABLE, nullable = false)
     private double hotness;
 
-    @Column(name = "comments", nullable = false)
+    @Column(name = "comments", table = STATS_TABLE, nullable = false)
     private int comments;
 
-    @Column(name = "gilded", nullable = false)
+    @Column(name = "gilded", table = STATS_TABLE, nullable = false)
     private int gilded;
 
     @Nonnull
@@ -90,18 +107,38 @@ public class StoryModel {
     @Column(name = "discovered_at", nullable = false)
     private Date discoveredAt;
 
+    //copy of discoveredAt in the stats row, so the work queue doesn't need the story row (set along with discoveredAt)
+    @Nonnull
+    @Column(name = "discovered_at", table = STATS_TABLE, nullable = false, updatable = false)
+    private Date statsDiscoveredAt;
+
     //this is the last time the score/hotness/gilded was updated.. meaning a valid history item occurred.
     @Nonnull
-    @Column(name = "updated_at", nullable = false)
+    @Column(name = "updated_at", table = STATS_TABLE, nullable = false)
     private Date updatedAt;
 
     //this is to mark the last time we checked the story history. this does not mean the story item was updated
     //for example, if the story was deleted or hidden (like the subreddit went private) - this would be set but updatedAt
     //would be behind. I put this in here after the reddit blackout of July 2015 caused a lot of subreddits to go private
+    //for stories that reddit keeps not returning, this is pushed into the future to back off checking them
     @Nonnull
-    @Column(name = "checked_at", nullable = false)
+    @Column(name = "checked_at", table = STATS_TABLE, nullable = false)
     private Date checkedAt;
 
+    //number of checks in a row where reddit didn't return the story (deleted, removed or the subreddit went private)
+    @Column(name = "missed_checks", table = STATS_TABLE, nullable = false)
+    private int missedChecks;
+
+    //worker node currently holding the update lease on this story (only used when story update leasing is enabled)
+    @Nullable
+    @Column(name = "lease_owner", table = STATS_TABLE)
+    private String leaseOwner;
+
+    //time the update lease runs out - an expired lease can be taken over by any worker (e.g. after a crash)
+    @Nullable
+    @Column(name = "lease_until", table = STATS_TABLE)
+    private Date leaseUntil;
+
     public int getId() {
         return id;
     }
@@ -272,6 +309,7 @@ public class StoryModel {
 
     public void setDiscoveredAt(@Nonnull final Date discoveredAt) {
         this.discoveredAt = new Date(discoveredAt.getTime());
+        this.statsDiscoveredAt = new Date(discoveredAt.getTime());
     }
 
     @Nonnull
@@ -291,4 +329,30 @@ public class StoryModel {
     public void setCheckedAt(@Nonnull final Date checkedAt) {
         this.checkedAt = new Date(checkedAt.getTime());
     }
+
+    public int getMissedChecks() {
+        return missedChecks;
+    }
+
+    public void setMissedChecks(final int missedChecks) {
+        this.missedChecks = missedChecks;
+    }
+
+    @Nullable
+    public String getLeaseOwner() {
+        return leaseOwner;
+    }
+
+    public void setLeaseOwner(@Nullable final String leaseOwner) {
+        this.leaseOwner = leaseOwner;
+    }
+
+    @Nullable
+    public Date getLeaseUntil() {
+        return leaseUntil == null ? null : new Date(leaseUntil.getTime());
+    }
+
+    public void setLeaseUntil(@Nullable final Date leaseUntil) {
+        this.leaseUntil = leaseUntil == null ? null : new Date(leaseUntil.getTime());
+    }
 }
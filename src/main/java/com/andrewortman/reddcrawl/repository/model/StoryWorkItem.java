@@ -0,0 +1,89 @@
+package com.andrewortman.reddcrawl.repository.model;
+
+import javax.annotation.Nonnull;
+import java.util.Date;
+
+/**
+ * A story due for a history update - just the columns the history updater needs, so the work queue query doesn't
+ * hydrate whole stories and their subreddits
+ */
+public class StoryWorkItem {
+    private final int id;
+
+    @Nonnull
+    private final String redditShortId;
+
+    @Nonnull
+    private final String subredditName;
+
+    @Nonnull
+    private final Date discoveredAt;
+
+    @Nonnull
+    private final Date checkedAt;
+
+    private final int missedChecks;
+
+    public StoryWorkItem(final int id,
+                         @Nonnull final String redditShortId,
+                         @Nonnull final String subredditName,
+                         @Nonnull final Date discoveredAt,
+                         @Nonnull final Date checkedAt,
+                         final int missedChecks) {
+        this.id = id;
+        this.redditShortId = redditShortId;
+        this.subredditName = subredditName;
+        this.discoveredAt = discoveredAt;
+        this.checkedAt = checkedAt;
+        this.missedChecks = missedChecks;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    @Nonnull
+    public String getRedditShortId() {
+        return redditShortId;
+    }
+
+    @Nonnull
+    public String getSubredditName() {
+        return subredditName;
+    }
+
+    @Nonnull
+    public Date getDiscoveredAt() {
+        return discoveredAt;
+    }
+
+    @Nonnull
+    public Date getCheckedAt() {
+        return checkedAt;
+    }
+
+    public int getMissedChecks() {
+        return missedChecks;
+    }
+
+    /**
+     * Creates a story holding only the fields of this work item, for the repository calls that write the update.
+     * They only write by primary key, so the rest of the story never has to be loaded
+     *
+     * @return story reference (not an entity managed by JPA)
+     */
+    @Nonnull
+    public StoryModel toStoryReference() {
+        final SubredditModel subreddit = new SubredditModel();
+        subreddit.setName(subredditName);
+
+        final StoryModel story = new StoryModel();
+        story.setId(id);
+        story.setRedditShortId(redditShortId);
+        story.setSubreddit(subreddit);
+        story.setDiscoveredAt(discoveredAt);
+        story.setCheckedAt(checkedAt);
+        story.setMissedChecks(missedChecks);
+        return story;
+    }
+}
@@ -8,8 +8,11 @@ import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
+import javax.persistence.SequenceGenerator;
 import java.util.Date;
 
+import static com.andrewortman.reddcrawl.repository.model.IdGeneration.ID_ALLOCATION_SIZE;
+
 /**
  * Holds the representation of a single entry of reddit subreddit history in the database
  */
@@ -17,7 +20,8 @@ import java.util.Date;
 @Entity(name = "subreddit_history")
 public class SubredditHistoryModel {
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @SequenceGenerator(name = "subreddit_history_id_seq", sequenceName = "subreddit_history_id_seq", allocationSize = ID_ALLOCATION_SIZE)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "subreddit_history_id_seq")
     private long id;
 
     @Nonnull
@@ -0,0 +1,127 @@
+package com.andrewortman.reddcrawl.repository.model;
+
+import javax.annotation.Nonnull;
+import java.util.Date;
+
+/**
+ * The subreddit history samples of one hour or day, summed up - kept up to date with every new sample, so growth charts
+ * never have to read the raw subreddit history. Not an entity, the rollup tables are read and written with plain sql
+ */
+@SuppressWarnings("NullableProblems")
+public class SubredditHistoryRollupModel {
+
+    /**
+     * Length of the period each rollup covers, with the table it is kept in
+     */
+    public enum Resolution {
+        HOURLY("subreddit_history_hourly", "hour"),
+        DAILY("subreddit_history_daily", "day");
+
+        @Nonnull
+        private final String table;
+
+        @Nonnull
+        private final String truncation;
+
+        Resolution(@Nonnull final String table, @Nonnull final String truncation) {
+            this.table = table;
+            this.truncation = truncation;
+        }
+
+        @Nonnull
+        public String getTable() {
+            return table;
+        }
+
+        /**
+         * @return the date_trunc field that turns a sample timestamp into the start of its period
+         */
+        @Nonnull
+        public String getTruncation() {
+            return truncation;
+        }
+    }
+
+    //start of the hour or day
+    @Nonnull
+    private Date bucket;
+
+    private int samples;
+
+    private long minSubscribers;
+
+    private long maxSubscribers;
+
+    private long lastSubscribers;
+
+    private int minActive;
+
+    private int maxActive;
+
+    private int lastActive;
+
+    @Nonnull
+    public Date getBucket() {
+        return new Date(bucket.getTime());
+    }
+
+    public void setBucket(@Nonnull final Date bucket) {
+        this.bucket = new Date(bucket.getTime());
+    }
+
+    public int getSamples() {
+        return samples;
+    }
+
+    public void setSamples(final int samples) {
+        this.samples = samples;
+    }
+
+    public long getMinSubscribers() {
+        return minSubscribers;
+    }
+
+    public void setMinSubscribers(final long minSubscribers) {
+        this.minSubscribers = minSubscribers;
+    }
+
+    public long getMaxSubscribers() {
+        return maxSubscribers;
+    }
+
+    public void setMaxSubscribers(final long maxSubscribers) {
+        this.maxSubscribers = maxSubscribers;
+    }
+
+    public long getLastSubscribers() {
+        return lastSubscribers;
+    }
+
+    public void setLastSubscribers(final long lastSubscribers) {
+        this.lastSubscribers = lastSubscribers;
+    }
+
+    public int getMinActive() {
+        return minActive;
+    }
+
+    public void setMinActive(final int minActive) {
+        this.minActive = minActive;
+    }
+
+    public int getMaxActive() {
+        return maxActive;
+    }
+
+    public void setMaxActive(final int maxActive) {
+        this.maxActive = maxActive;
+    }
+
+    public int getLastActive() {
+        return lastActive;
+    }
+
+    public void setLastActive(final int lastActive) {
+        this.lastActive = lastActive;
+    }
+}
@@ -1,13 +1,18 @@
 package com.andrewortman.reddcrawl.repository.model;
 
 import javax.annotation.Nonnull;
+import javax.persistence.Basic;
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.SequenceGenerator;
 import java.util.Date;
 
+import static com.andrewortman.reddcrawl.repository.model.IdGeneration.ID_ALLOCATION_SIZE;
+
 /**
  * Holds the representation of a reddit subreddit in the database
  */
@@ -17,7 +22,8 @@ public class SubredditModel {
     @Nonnull
     @Id
     @Column(name = "id", nullable = false)
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @SequenceGenerator(name = "subreddit_id_seq", sequenceName = "subreddit_id_seq", allocationSize = ID_ALLOCATION_SIZE)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "subreddit_id_seq")
     private int id;
 
     @Nonnull
@@ -40,7 +46,9 @@ public class SubredditModel {
     @Column(name = "summary", nullable = false)
     private String summary;
 
+    //only loaded when it's read (needs the build time instrumentation of the model classes)
     @Nonnull
+    @Basic(fetch = FetchType.LAZY)
     @Column(name = "description", nullable = false)
     private String description;
 
@@ -6,7 +6,10 @@ import com.andrewortman.reddcrawl.archive.GoogleStorageJsonArchive;
 import com.andrewortman.reddcrawl.archive.JsonArchive;
 import com.andrewortman.reddcrawl.client.RedditClient;
 import com.andrewortman.reddcrawl.client.RedditClientConfiguration;
+import com.andrewortman.reddcrawl.events.StoryEventRing;
 import com.andrewortman.reddcrawl.repository.PersistenceConfiguration;
+import com.andrewortman.reddcrawl.repository.StoryHistoryJournal;
+import com.andrewortman.reddcrawl.repository.StoryHistoryPartitions;
 import com.andrewortman.reddcrawl.repository.StoryRepository;
 import com.andrewortman.reddcrawl.repository.SubredditRepository;
 import com.codahale.metrics.MetricRegistry;
@@ -20,6 +23,7 @@ import org.springframework.core.env.Environment;
 
 import javax.annotation.Nonnull;
 import java.io.File;
+import java.io.IOException;
 import java.util.List;
 
 @SuppressWarnings("NullableProblems")
@@ -46,26 +50,77 @@ public class BackendServicesConfiguration {
     @Nonnull
     private SubredditRepository subredditRepository;
 
+    @Autowired
+    @Nonnull
+    private StoryHistoryPartitions storyHistoryPartitions;
+
     @Autowired
     @Nonnull
     private MetricRegistry metricRegistry;
 
     @Nonnull
     @Bean
-    public StoryHistoryUpdaterService storyHistoryUpdaterService() {
+    public StoryHistoryUpdaterService storyHistoryUpdaterService() throws IOException {
         return new StoryHistoryUpdaterService(redditClient,
                 storyRepository,
                 environment.getRequiredProperty("service.storyhistoryupdater.workers", Integer.class),
                 environment.getRequiredProperty("service.storyhistoryupdater.oldeststory", Integer.class),
                 environment.getRequiredProperty("service.storyhistoryupdater.interval", Integer.class),
+                environment.getRequiredProperty("service.storyhistoryupdater.maxmissedchecks", Integer.class),
+                environment.getRequiredProperty("service.storyhistoryupdater.maxmissedbackoff", Integer.class),
+                environment.getRequiredProperty("service.storyhistoryupdater.leasing", Boolean.class),
+                environment.getRequiredProperty("service.storyhistoryupdater.leaseduration", Integer.class),
+                workerNode(),
+                storyHistoryJournal(),
+                storyEventRing(),
+                metricRegistry);
+    }
+
+    @Nonnull
+    @Bean(destroyMethod = "close")
+    public StoryHistoryJournal storyHistoryJournal() throws IOException {
+        return new StoryHistoryJournal(new File(environment.getRequiredProperty("service.storyhistoryupdater.journal.file")),
+                environment.getRequiredProperty("service.storyhistoryupdater.journal.size", Integer.class) * 1024 * 1024);
+    }
+
+    @Nonnull
+    @Bean
+    public StoryHistoryWriterService storyHistoryWriterService() throws IOException {
+        return new StoryHistoryWriterService(storyHistoryJournal(),
+                storyRepository,
+                storyEventRing(),
+                environment.getRequiredProperty("service.storyhistoryupdater.journal.batchsize", Integer.class),
                 metricRegistry);
     }
 
+    @Nonnull
+    @Bean
+    public WorkerNode workerNode() {
+        final WorkerNode workerNode = new WorkerNode(environment.getProperty("worker.nodeid"));
+        LOGGER.info("Running as worker node " + workerNode);
+        return workerNode;
+    }
+
+    @Nonnull
+    @Bean
+    public LeaderElection leaderElection() {
+        if (!environment.getRequiredProperty("services.leaderelection.enabled", Boolean.class)) {
+            LOGGER.info("Leader election disabled - running all singleton services on this node");
+            return new SingleNodeLeaderElection();
+        }
+
+        return new PostgresLeaderElection(environment.getRequiredProperty("db.url"),
+                environment.getRequiredProperty("db.username"),
+                environment.getRequiredProperty("db.password"),
+                workerNode());
+    }
+
     @Nonnull
     @Bean
     public NewSubredditScraperService newSubredditScraperService() {
         return new NewSubredditScraperService(redditClient,
                 subredditRepository,
+                environment.getRequiredProperty("service.newsubredditscraper.workers", Integer.class),
                 metricRegistry);
     }
 
@@ -74,8 +129,19 @@ public class BackendServicesConfiguration {
     public SubredditHistoryUpdaterService subredditHistoryUpdaterService() {
         return new SubredditHistoryUpdaterService(redditClient,
                 subredditRepository,
+                subredditUpdateScheduler(),
                 metricRegistry,
-                environment.getRequiredProperty("service.subreddithistoryupdater.interval", Integer.class));
+                environment.getRequiredProperty("service.subreddithistoryupdater.checkinterval", Integer.class));
+    }
+
+    @Nonnull
+    @Bean
+    public SubredditUpdateScheduler subredditUpdateScheduler() {
+        return new SubredditUpdateScheduler(
+                environment.getRequiredProperty("service.subreddithistoryupdater.interval", Integer.class),
+                environment.getRequiredProperty("service.subreddithistoryupdater.busyinterval", Integer.class),
+                environment.getRequiredProperty("service.subreddithistoryupdater.busyactiveusers", Integer.class),
+                environment.getRequiredProperty("service.subreddithistoryupdater.maxbackoff", Integer.class));
     }
 
     @Nonnull
@@ -88,13 +154,37 @@ public class BackendServicesConfiguration {
                 environment.getRequiredProperty("service.newstoryscraper.hotstorycount", Integer.class),
                 environment.getRequiredProperty("service.newstoryscraper.subredditexpirationinterval", Integer.class),
                 environment.getRequiredProperty("service.newstoryscraper.interval", Integer.class),
+                environment.getRequiredProperty("service.newstoryscraper.fullscaninterval", Integer.class),
+                discoveryScheduler(),
+                storyEventRing(),
                 metricRegistry);
     }
 
+    @Nonnull
+    @Bean
+    public StoryEventRing storyEventRing() {
+        return new StoryEventRing(environment.getRequiredProperty("events.story.ringsize", Integer.class),
+                environment.getRequiredProperty("events.story.publishtimeout", Long.class),
+                metricRegistry);
+    }
+
+    @Nonnull
+    @Bean
+    public DiscoveryScheduler discoveryScheduler() {
+        return new DiscoveryScheduler(
+                environment.getRequiredProperty("service.newstoryscraper.tier.fast.postsperhour", Double.class),
+                environment.getRequiredProperty("service.newstoryscraper.tier.normal.postsperhour", Double.class),
+                environment.getRequiredProperty("service.newstoryscraper.tier.ratewindow", Integer.class));
+    }
+
     @Nonnull
     @Bean
     public ServiceManager serviceManager(@Nonnull final List<Service> serviceList) {
-        final ServiceManager serviceManager = new ServiceManager(metricRegistry);
+        final ServiceManager serviceManager = new ServiceManager(metricRegistry,
+                environment.getRequiredProperty("services.jitter", Double.class),
+                leaderElection(),
+                workerNode(),
+                environment.getRequiredProperty("services.leaderelection.retryinterval", Integer.class));
 
         for (final Service service : serviceList) {
             serviceManager.addService(service);
@@ -126,6 +216,13 @@ public class BackendServicesConfiguration {
                 environment.getRequiredProperty("service.archive.oldeststory", Integer.class),
                 environment.getRequiredProperty("service.archive.batchinterval", Integer.class),
                 environment.getRequiredProperty("service.archive.maxbatchsize", Integer.class),
-                metricRegistry, jsonArchive());
+                metricRegistry, jsonArchive(), storyHistoryPartitions);
+    }
+
+    @Nonnull
+    @Bean
+    public StoryHistoryPartitionService storyHistoryPartitionService() {
+        return new StoryHistoryPartitionService(storyHistoryPartitions,
+                environment.getRequiredProperty("service.archive.partitions.daysahead", Integer.class));
     }
 }
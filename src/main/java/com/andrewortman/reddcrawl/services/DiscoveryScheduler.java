@@ -0,0 +1,244 @@
+package com.andrewortman.reddcrawl.services;
+
+import com.google.common.collect.ImmutableSortedSet;
+
+import javax.annotation.Nonnull;
+import java.util.Collection;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which subreddits the new story scraper should poll on each tick. Every subreddit gets a posting rate estimate
+ * from the stories we've discovered in it, and is put in a polling tier based on that rate - busy subreddits get polled
+ * every tick, quiet ones only every few ticks. That way the requests go where the new stories are.
+ * <p/>
+ * The posting rate is an exponentially decayed count of discovered stories, so it follows a subreddit that gets busier
+ * or quieter over the day. Not thread safe - synchronize on the scheduler when sharing it between threads.
+ */
+public class DiscoveryScheduler {
+
+    /**
+     * Polling tiers - a tier is polled once every tickMultiple ticks of the scraper
+     */
+    public enum Tier {
+        FAST(1), NORMAL(4), SLOW(16);
+
+        private final int tickMultiple;
+
+        Tier(final int tickMultiple) {
+            this.tickMultiple = tickMultiple;
+        }
+
+        public int getTickMultiple() {
+            return tickMultiple;
+        }
+    }
+
+    //subreddits with at least this many stories per hour are polled every tick
+    private final double fastTierPostsPerHour;
+
+    //subreddits with at least this many stories per hour are in the normal tier, anything below is slow
+    private final double normalTierPostsPerHour;
+
+    //time constant of the decayed story count (how far back the rate estimate "remembers")
+    private final long rateTimeConstantMillis;
+
+    @Nonnull
+    private final Map<String, PostingRate> postingRates = new HashMap<>();
+
+    //tier assignments are only recomputed once every slow tier cycle so the tier multireddits don't change every tick
+    @Nonnull
+    private final Map<String, Tier> tierAssignments = new HashMap<>();
+
+    private long tick = 0;
+
+    public DiscoveryScheduler(final double fastTierPostsPerHour,
+                              final double normalTierPostsPerHour,
+                              final int rateTimeConstantInSeconds) {
+        this.fastTierPostsPerHour = fastTierPostsPerHour;
+        this.normalTierPostsPerHour = normalTierPostsPerHour;
+        this.rateTimeConstantMillis = TimeUnit.SECONDS.toMillis(rateTimeConstantInSeconds);
+    }
+
+    /**
+     * Seeds the posting rate of a subreddit from history (e.g. after a restart) so it doesn't have to be re-learned
+     *
+     * @param subreddit    subreddit name
+     * @param storyCount   number of stories discovered in the subreddit during the window
+     * @param windowMillis length of the window the stories were counted over
+     * @param now          current time
+     */
+    public void seedPostingRate(@Nonnull final String subreddit, final long storyCount, final long windowMillis, @Nonnull final Date now) {
+        final PostingRate postingRate = new PostingRate(now.getTime());
+        //a steady rate of r stories per ms settles the decayed count at r * time constant
+        postingRate.decayedCount = ((double) storyCount / windowMillis) * rateTimeConstantMillis;
+        //pretend we've been watching long enough for the count to have settled
+        postingRate.observedSince = now.getTime() - 10 * rateTimeConstantMillis;
+        postingRates.put(subreddit, postingRate);
+    }
+
+    /**
+     * @return how far back the posting rate estimate remembers, in milliseconds
+     */
+    public long getRateTimeConstantMillis() {
+        return rateTimeConstantMillis;
+    }
+
+    /**
+     * Records a newly discovered story
+     *
+     * @param subreddit    subreddit the story was posted in
+     * @param discoveredAt time the story was discovered
+     */
+    public void recordStory(@Nonnull final String subreddit, @Nonnull final Date discoveredAt) {
+        getOrCreatePostingRate(subreddit, discoveredAt.getTime()).record(discoveredAt.getTime());
+    }
+
+    /**
+     * Estimated number of stories posted per hour in a subreddit
+     */
+    public double getPostsPerHour(@Nonnull final String subreddit, @Nonnull final Date now) {
+        final PostingRate postingRate = postingRates.get(subreddit);
+        if (postingRate == null) {
+            return Double.NaN;
+        }
+
+        return postingRate.getRatePerMilli(now.getTime()) * TimeUnit.HOURS.toMillis(1);
+    }
+
+    /**
+     * The tier a subreddit is currently polled in. Subreddits we don't know yet are polled in the fast tier
+     */
+    @Nonnull
+    public Tier getTier(@Nonnull final String subreddit) {
+        final Tier tier = tierAssignments.get(subreddit);
+        return tier != null ? tier : Tier.FAST;
+    }
+
+    /**
+     * Advances the scheduler by one tick and returns the subreddits due for polling, grouped by tier
+     *
+     * @param subreddits all subreddits currently being tracked
+     * @param now        current time
+     * @return due tiers with the (sorted) subreddits in them - tiers that aren't due or are empty are left out
+     */
+    @Nonnull
+    public Map<Tier, SortedSet<String>> nextTick(@Nonnull final Collection<String> subreddits, @Nonnull final Date now) {
+        if (tick % Tier.SLOW.getTickMultiple() == 0 || !tierAssignments.keySet().containsAll(subreddits)) {
+            assignTiers(subreddits, now);
+        }
+
+        final Map<Tier, SortedSet<String>> dueTiers = new EnumMap<>(Tier.class);
+        for (final String subreddit : subreddits) {
+            final Tier tier = getTier(subreddit);
+            if (tick % tier.getTickMultiple() != 0) {
+                continue;
+            }
+
+            if (!dueTiers.containsKey(tier)) {
+                dueTiers.put(tier, new TreeSet<String>());
+            }
+            dueTiers.get(tier).add(subreddit);
+        }
+
+        tick++;
+
+        final Map<Tier, SortedSet<String>> immutableDueTiers = new EnumMap<>(Tier.class);
+        for (final Map.Entry<Tier, SortedSet<String>> entry : dueTiers.entrySet()) {
+            immutableDueTiers.put(entry.getKey(), ImmutableSortedSet.copyOfSorted(entry.getValue()));
+        }
+        return immutableDueTiers;
+    }
+
+    /**
+     * @return number of subreddits currently assigned to a tier
+     */
+    public int getSubredditCount(@Nonnull final Tier tier) {
+        int count = 0;
+        for (final Tier assignedTier : tierAssignments.values()) {
+            if (assignedTier == tier) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void assignTiers(@Nonnull final Collection<String> subreddits, @Nonnull final Date now) {
+        tierAssignments.clear();
+        postingRates.keySet().retainAll(subreddits);
+
+        for (final String subreddit : subreddits) {
+            final PostingRate postingRate = getOrCreatePostingRate(subreddit, now.getTime());
+
+            final Tier tier;
+            if (now.getTime() - postingRate.observedSince < rateTimeConstantMillis / 4) {
+                //not enough data yet - keep it in the fast tier until we know better
+                tier = Tier.FAST;
+            } else {
+                final double postsPerHour = postingRate.getRatePerMilli(now.getTime()) * TimeUnit.HOURS.toMillis(1);
+                if (postsPerHour >= fastTierPostsPerHour) {
+                    tier = Tier.FAST;
+                } else if (postsPerHour >= normalTierPostsPerHour) {
+                    tier = Tier.NORMAL;
+                } else {
+                    tier = Tier.SLOW;
+                }
+            }
+
+            tierAssignments.put(subreddit, tier);
+        }
+    }
+
+    @Nonnull
+    private PostingRate getOrCreatePostingRate(@Nonnull final String subreddit, final long nowMillis) {
+        PostingRate postingRate = postingRates.get(subreddit);
+        if (postingRate == null) {
+            postingRate = new PostingRate(nowMillis);
+            postingRates.put(subreddit, postingRate);
+        }
+        return postingRate;
+    }
+
+    /**
+     * Exponentially decayed count of stories for a single subreddit
+     */
+    private class PostingRate {
+        private double decayedCount = 0.0;
+
+        private long lastDecayTime;
+
+        private long observedSince;
+
+        private PostingRate(final long nowMillis) {
+            this.lastDecayTime = nowMillis;
+            this.observedSince = nowMillis;
+        }
+
+        private void record(final long timeMillis) {
+            decayTo(timeMillis);
+            decayedCount += 1.0;
+        }
+
+        private double getRatePerMilli(final long nowMillis) {
+            decayTo(nowMillis);
+
+            //while we've observed the subreddit for less than a few time constants the count hasn't settled yet,
+            //so scale the estimate up by how far it could have gotten
+            final long observedFor = Math.max(1L, nowMillis - observedSince);
+            final double settledFraction = 1.0 - Math.exp(-(double) observedFor / rateTimeConstantMillis);
+            return decayedCount / (rateTimeConstantMillis * settledFraction);
+        }
+
+        private void decayTo(final long timeMillis) {
+            if (timeMillis > lastDecayTime) {
+                decayedCount *= Math.exp(-(double) (timeMillis - lastDecayTime) / rateTimeConstantMillis);
+                lastDecayTime = timeMillis;
+            }
+        }
+    }
+}
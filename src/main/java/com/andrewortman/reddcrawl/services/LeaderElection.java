@@ -0,0 +1,27 @@
+package com.andrewortman.reddcrawl.services;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Decides which worker node runs a singleton service when several workers share one database
+ */
+public interface LeaderElection {
+    /**
+     * Checks that this node is the leader for a service, taking over the leadership if nobody holds it
+     *
+     * @param serviceName name of the singleton service
+     * @return true if this node is the leader and should run the service
+     */
+    boolean acquireLeadership(@Nonnull String serviceName);
+
+    /**
+     * @param serviceName name of the singleton service
+     * @return true if this node held the leadership the last time it was acquired or checked (doesn't hit the database)
+     */
+    boolean isLeader(@Nonnull String serviceName);
+
+    /**
+     * Gives up the leadership of all services so another node can take over right away
+     */
+    void releaseAll();
+}
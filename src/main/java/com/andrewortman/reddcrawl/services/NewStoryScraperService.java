@@ -2,25 +2,38 @@ package com.andrewortman.reddcrawl.services;
 
 import com.andrewortman.reddcrawl.client.RedditClient;
 import com.andrewortman.reddcrawl.client.RedditClientException;
+import com.andrewortman.reddcrawl.client.StoryListingPageHandler;
 import com.andrewortman.reddcrawl.client.models.RedditStory;
+import com.andrewortman.reddcrawl.events.StoryEvent;
+import com.andrewortman.reddcrawl.events.StoryEventRing;
 import com.andrewortman.reddcrawl.repository.StoryRepository;
 import com.andrewortman.reddcrawl.repository.SubredditRepository;
 import com.andrewortman.reddcrawl.repository.model.StoryHistoryModel;
 import com.andrewortman.reddcrawl.repository.model.StoryModel;
 import com.andrewortman.reddcrawl.repository.model.SubredditModel;
+import com.andrewortman.reddcrawl.repository.model.StoryWorkItem;
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
-import com.google.common.collect.Sets;
+import com.google.common.base.Joiner;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 /**
- * This service will scrape the top stories for the hour and add newly discovered stories to the database
+ * This service will scrape the top stories for the hour and the newest stories of the tracked subreddits, and add newly
+ * discovered stories to the database. How often a subreddit's /new listing gets polled is up to the DiscoveryScheduler
  */
 public class NewStoryScraperService extends Service {
 
@@ -32,6 +45,10 @@ public class NewStoryScraperService extends Service {
     @Nonnull
     private final StoryRepository storyRepository;
 
+    //every discovered/updated story is published here for in-process subscribers
+    @Nonnull
+    private final StoryEventRing storyEventRing;
+
     @Nonnull
     private final SubredditRepository subredditRepository;
 
@@ -47,6 +64,24 @@ public class NewStoryScraperService extends Service {
     //number of seconds between fetches
     private final int checkInterval;
 
+    //number of seconds between full-depth scans of /new - every other scan stops paging once it reaches the watermark
+    private final int newListingFullScanInterval;
+
+    //decides which subreddits get their /new listing polled on each run
+    @Nonnull
+    private final DiscoveryScheduler discoveryScheduler;
+
+    //newest story we have seen on /new for each polling tier
+    @Nonnull
+    private final Map<DiscoveryScheduler.Tier, ListingWatermark> newListingWatermarks = new EnumMap<>(DiscoveryScheduler.Tier.class);
+
+    //last time /new was scanned to full depth across all subreddits
+    @Nullable
+    private Date lastNewListingFullScan = null;
+
+    //the posting rates are seeded from the database on the first run
+    private boolean discoverySchedulerSeeded = false;
+
     @Nonnull
     private final Meter storyDiscoveredMeter;
 
@@ -56,9 +91,17 @@ public class NewStoryScraperService extends Service {
     @Nonnull
     private final Histogram newStoryDiscoveredCreatedTimeHistogram;
 
+    @Nonnull
+    private final Map<DiscoveryScheduler.Tier, Histogram> newStoryDiscoveredCreatedTimeHistogramsByTier = new EnumMap<>(DiscoveryScheduler.Tier.class);
+
     @Nonnull
     private final Meter autoHistoryUpdateMeter;
 
+    //runs the listing fetchers of a run side by side - threads are reused across runs
+    @Nonnull
+    private final ExecutorService listingFetcherExecutor = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("story-listing-fetcher-%d").setDaemon(true).build());
+
     public NewStoryScraperService(@Nonnull final RedditClient redditClient,
                                   @Nonnull final StoryRepository storyRepository,
                                   @Nonnull final SubredditRepository subredditRepository,
@@ -66,18 +109,40 @@ public class NewStoryScraperService extends Service {
                                   final int scavengeHotStoryCount,
                                   final int subredditExpirationInterval,
                                   final int checkInterval,
+                                  final int newListingFullScanInterval,
+                                  @Nonnull final DiscoveryScheduler discoveryScheduler,
+                                  @Nonnull final StoryEventRing storyEventRing,
                                   @Nonnull final MetricRegistry metricRegistry) {
         this.redditClient = redditClient;
         this.storyRepository = storyRepository;
+        this.storyEventRing = storyEventRing;
         this.subredditRepository = subredditRepository;
         this.scavengeNewStoryCount = scavengeNewStoryCount;
         this.scavengeHotStoryCount = scavengeHotStoryCount;
         this.subredditExpirationInterval = subredditExpirationInterval;
         this.checkInterval = checkInterval;
+        this.newListingFullScanInterval = newListingFullScanInterval;
+        this.discoveryScheduler = discoveryScheduler;
         this.storyDiscoveredMeter = metricRegistry.meter(MetricRegistry.name("reddcrawl", "story", "discovered"));
         this.hotStoryDiscoveredCreatedTimeHistogram = metricRegistry.histogram(MetricRegistry.name("reddcrawl", "story", "discovered", "time", "hot"));
         this.newStoryDiscoveredCreatedTimeHistogram = metricRegistry.histogram(MetricRegistry.name("reddcrawl", "story", "discovered", "time", "new"));
         this.autoHistoryUpdateMeter = metricRegistry.meter(MetricRegistry.name("reddcrawl", "story", "history", "autoupdate"));
+
+        for (final DiscoveryScheduler.Tier tier : DiscoveryScheduler.Tier.values()) {
+            final String tierName = tier.name().toLowerCase();
+            this.newStoryDiscoveredCreatedTimeHistogramsByTier.put(tier,
+                    metricRegistry.histogram(MetricRegistry.name("reddcrawl", "story", "discovered", "time", "new", tierName)));
+            metricRegistry.register(MetricRegistry.name("reddcrawl", "story", "discovery", "tier", tierName, "subreddits"),
+                    new Gauge<Integer>() {
+                        @Nonnull
+                        @Override
+                        public Integer getValue() {
+                            synchronized (NewStoryScraperService.this.discoveryScheduler) {
+                                return NewStoryScraperService.this.discoveryScheduler.getSubredditCount(tier);
+                            }
+                        }
+                    });
+        }
     }
 
     @Override
@@ -98,83 +163,273 @@ public class NewStoryScraperService extends Service {
             throw new RedditClientException("No subreddits in database - no idea what to fetch for");
         }
 
-        //get the top N hot stories in an aggregated view of those subreddits
-        final Set<RedditStory> hotStories = redditClient.getStoryListingForSubreddits(subreddits.keySet(),
-                RedditClient.SortStyle.TOP, RedditClient.TimeRange.HOUR, this.scavengeHotStoryCount);
+        if (!discoverySchedulerSeeded) {
+            seedDiscoveryScheduler(now);
+        }
 
-        //get the top N new stories in an aggregated view of those subreddits
-        final Set<RedditStory> newStories = redditClient.getStoryListingForSubreddits(subreddits.keySet(),
-                RedditClient.SortStyle.NEW, RedditClient.TimeRange.ALL, this.scavengeNewStoryCount);
+        //busy subreddits get their /new listing polled every run, quiet ones only every few runs. Each tier remembers the
+        //newest story it saw last time and only pages down until it reaches it. Every once in a while we still do a single
+        //full-depth scan across all subreddits to pick up anything the tier scans skipped over (stories that were approved
+        //late, subreddits that moved between tiers, or a watermark story that got removed)
+        final boolean fullScan = lastNewListingFullScan == null ||
+                now.getTime() - lastNewListingFullScan.getTime() >= TimeUnit.SECONDS.toMillis(newListingFullScanInterval);
+        final Map<DiscoveryScheduler.Tier, SortedSet<String>> dueTiers;
+        synchronized (discoveryScheduler) {
+            dueTiers = discoveryScheduler.nextTick(subreddits.keySet(), now);
+        }
 
-        final Set<RedditStory> stories = Sets.union(hotStories, newStories);
+        //fetch the top N hot stories and the new stories in aggregated views of those subreddits at the same time.
+        //all fetchers share the client's rate limiter, so this doesn't cost any extra requests - it just stops the /new
+        //listings from waiting on the /top listing. Pages are handed back through the queue as soon as they arrive so we can
+        //persist the first page while the later ones are still being fetched
+        final BlockingQueue<ListingPage> pageQueue = new LinkedBlockingQueue<>();
+        final ListingFetcher hotListingFetcher = new ListingFetcher(subreddits.keySet(), RedditClient.SortStyle.TOP,
+                RedditClient.TimeRange.HOUR, this.scavengeHotStoryCount, false, null, pageQueue);
+
+        final List<ListingFetcher> listingFetchers = new ArrayList<>();
+        listingFetchers.add(hotListingFetcher);
+
+        final Map<DiscoveryScheduler.Tier, ListingFetcher> tierListingFetchers = new EnumMap<>(DiscoveryScheduler.Tier.class);
+        if (fullScan) {
+            LOGGER.info("scanning /new to full depth");
+            listingFetchers.add(new ListingFetcher(subreddits.keySet(), RedditClient.SortStyle.NEW,
+                    RedditClient.TimeRange.ALL, this.scavengeNewStoryCount, true, null, pageQueue));
+        } else {
+            for (final Map.Entry<DiscoveryScheduler.Tier, SortedSet<String>> dueTier : dueTiers.entrySet()) {
+                final String multiredditKey = Joiner.on("+").join(dueTier.getValue());
+                final ListingWatermark watermark = newListingWatermarks.get(dueTier.getKey());
+
+                final ListingFetcher tierListingFetcher;
+                if (watermark != null && watermark.getMultiredditKey().equals(multiredditKey)) {
+                    LOGGER.info("scanning /new for " + dueTier.getKey() + " tier down to watermark " + watermark.getNewestFullId());
+                    tierListingFetcher = new ListingFetcher(dueTier.getValue(), RedditClient.SortStyle.NEW,
+                            RedditClient.TimeRange.ALL, this.scavengeNewStoryCount, true, watermark, pageQueue);
+                } else {
+                    //the tier changed since we last polled it, so the watermark is no good - one page is enough to
+                    //set a new one, and the full-depth scan will fill in anything older
+                    LOGGER.info("scanning first page of /new for " + dueTier.getKey() + " tier");
+                    tierListingFetcher = new ListingFetcher(dueTier.getValue(), RedditClient.SortStyle.NEW,
+                            RedditClient.TimeRange.ALL, Math.min(this.scavengeNewStoryCount, RedditClient.MAX_ITEMS_PER_LISTING_PAGE),
+                            true, null, pageQueue);
+                }
+
+                tierListingFetchers.put(dueTier.getKey(), tierListingFetcher);
+                listingFetchers.add(tierListingFetcher);
+            }
+        }
 
-        for (final RedditStory story : stories) {
-            //check if the story already exists, and if it does, bail out
-            final StoryModel foundStory = storyRepository.findStoryByRedditShortId(story.getId());
-            if (foundStory != null) {
-                LOGGER.debug("Auto-updating history for story " + story.getId());
+        for (final ListingFetcher listingFetcher : listingFetchers) {
+            listingFetcherExecutor.execute(listingFetcher);
+        }
 
-                final StoryHistoryModel historyModel = new StoryHistoryModel();
-                historyModel.setTimestamp(now);
-                historyModel.setScore(story.getScore());
-                historyModel.setHotness(story.getHotness());
-                historyModel.setComments(story.getNumComments());
-                historyModel.setGilded(story.getGilded());
+        try {
+            //a story can show up in both listings - only handle it the first time we see it. New stories first seen on
+            //the hot listing only count as discovered from /top if /new doesn't turn them up later in the run
+            final Set<String> handledStoryIds = new HashSet<>();
+            final Map<String, Long> hotListingDiscoveryTimes = new HashMap<>();
+            int runningFetchers = listingFetchers.size();
+            while (runningFetchers > 0) {
+                final ListingPage page = pageQueue.take();
+                if (page.isEndOfListing()) {
+                    runningFetchers--;
+                    continue;
+                }
+
+                //stories we already track are looked up and get their history written for the whole page at once
+                final List<RedditStory> unhandledStories = new ArrayList<>(page.getStories().size());
+                for (final RedditStory story : page.getStories()) {
+                    if (handledStoryIds.add(story.getId())) {
+                        unhandledStories.add(story);
+                    } else if (page.isFromNewListing()) {
+                        final Long msForDiscovery = hotListingDiscoveryTimes.remove(story.getId());
+                        if (msForDiscovery != null) {
+                            recordNewListingDiscovery(story, msForDiscovery);
+                        }
+                    }
+                }
+
+                final List<String> unhandledStoryIds = new ArrayList<>(unhandledStories.size());
+                for (final RedditStory story : unhandledStories) {
+                    unhandledStoryIds.add(story.getId());
+                }
+                final Map<String, StoryWorkItem> foundStories = storyRepository.findStoryWorkItemsByRedditShortIds(unhandledStoryIds);
+
+                final List<StoryHistoryModel> autoUpdatedHistories = new ArrayList<>();
+                for (final RedditStory story : unhandledStories) {
+                    handleStory(story, foundStories.get(story.getId()), page.isFromNewListing(), subreddits,
+                            page.getFetchedAt(), autoUpdatedHistories, hotListingDiscoveryTimes);
+                }
+                saveAutoUpdatedHistories(autoUpdatedHistories);
+            }
 
-                storyRepository.addStoryHistory(foundStory, historyModel);
-                this.autoHistoryUpdateMeter.mark();
-                continue;
+            for (final Long msForDiscovery : hotListingDiscoveryTimes.values()) {
+                hotStoryDiscoveredCreatedTimeHistogram.update(msForDiscovery);
+            }
+        } finally {
+            //stop fetchers that are still running (the loop above failed) so they don't keep spending the rate limit,
+            //and wait for them so they never outlive the run
+            for (final ListingFetcher listingFetcher : listingFetchers) {
+                listingFetcher.stop();
+            }
+            for (final ListingFetcher listingFetcher : listingFetchers) {
+                listingFetcher.awaitFinished();
             }
+        }
 
-            if (!subreddits.containsKey(story.getSubreddit())) {
-                LOGGER.error("Subreddit `" + story.getSubreddit() + "` does not exist yet - will not persist story " + story.getId() + " to DB");
-                continue;
+        //only move the watermarks for the listings that came back cleanly, otherwise the next run could skip over the
+        //stories we missed
+        for (final Map.Entry<DiscoveryScheduler.Tier, ListingFetcher> tierListingFetcher : tierListingFetchers.entrySet()) {
+            final ListingFetcher listingFetcher = tierListingFetcher.getValue();
+            if (listingFetcher.getException() == null) {
+                final String multiredditKey = Joiner.on("+").join(listingFetcher.getSubreddits());
+                final ListingWatermark previousWatermark = newListingWatermarks.get(tierListingFetcher.getKey());
+                final ListingWatermark newWatermark = ListingWatermark.advance(
+                        previousWatermark != null && previousWatermark.getMultiredditKey().equals(multiredditKey) ? previousWatermark : null,
+                        multiredditKey, listingFetcher.getNewestStory());
+                if (newWatermark != null) {
+                    newListingWatermarks.put(tierListingFetcher.getKey(), newWatermark);
+                }
             }
+        }
+
+        //rethrow any client failure after persisting whatever we did get back, so the service manager retries us
+        for (final ListingFetcher listingFetcher : listingFetchers) {
+            if (listingFetcher.getException() != null) {
+                throw listingFetcher.getException();
+            }
+        }
+
+        if (fullScan) {
+            lastNewListingFullScan = now;
+        }
+    }
+
+    /**
+     * Seeds the discovery scheduler with the stories discovered per subreddit over the last rate window, so a restart
+     * doesn't put every subreddit back in the fast tier
+     */
+    private void seedDiscoveryScheduler(@Nonnull final Date now) {
+        synchronized (discoveryScheduler) {
+            final long windowMillis = discoveryScheduler.getRateTimeConstantMillis();
+            final Map<String, Long> storyCounts =
+                    storyRepository.countStoriesDiscoveredBySubreddit(new Date(now.getTime() - windowMillis));
+            for (final Map.Entry<String, Long> storyCount : storyCounts.entrySet()) {
+                discoveryScheduler.seedPostingRate(storyCount.getKey(), storyCount.getValue(), windowMillis, now);
+            }
+
+            LOGGER.info("seeded discovery scheduler with posting rates of " + storyCounts.size() + " subreddits");
+        }
+
+        discoverySchedulerSeeded = true;
+    }
+
+    private void saveAutoUpdatedHistories(@Nonnull final List<StoryHistoryModel> historyItems) {
+        if (historyItems.isEmpty()) {
+            return;
+        }
+
+        //items older than the story's last update (e.g. the updater got to it after the page was fetched) are skipped
+        final List<StoryHistoryModel> addedHistoryItems = storyRepository.addStoryHistories(historyItems);
+        for (final StoryHistoryModel addedHistoryItem : addedHistoryItems) {
+            storyEventRing.publish(StoryEvent.fromHistory(StoryEvent.Type.UPDATED, addedHistoryItem.getStory(), addedHistoryItem));
+        }
+        this.autoHistoryUpdateMeter.mark(addedHistoryItems.size());
+    }
+
+    private void handleStory(@Nonnull final RedditStory story,
+                             @Nullable final StoryWorkItem foundStory,
+                             final boolean isFromNewListing,
+                             @Nonnull final Map<String, SubredditModel> subreddits,
+                             @Nonnull final Date fetchedAt,
+                             @Nonnull final List<StoryHistoryModel> autoUpdatedHistories,
+                             @Nonnull final Map<String, Long> hotListingDiscoveryTimes) {
+        //if the story already exists, queue up a history item for it and bail out
+        if (foundStory != null) {
+            LOGGER.debug("Auto-updating history for story " + story.getId());
 
-            final Date discoveredAt = new Date();
-
-            //create the story model
-            final StoryModel storyModel = new StoryModel();
-            storyModel.setRedditShortId(story.getId());
-            storyModel.setCreatedAt(story.getCreatedAt());
-            storyModel.setTitle(story.getTitle());
-            storyModel.setAuthor(story.getAuthor());
-            storyModel.setSubreddit(subreddits.get(story.getSubreddit()));
-            storyModel.setUrl(story.getUrl());
-            storyModel.setDomain(story.getDomain());
-            storyModel.setThumbnail(story.getThumbnail());
-            storyModel.setPermalink(story.getPermalink());
-            storyModel.setIsSelf(story.getIsSelf());
-            storyModel.setSelftext(story.getSelftext());
-            storyModel.setDistinguished(story.getDistinguished());
-            storyModel.setOver18(story.getOver18());
-            storyModel.setStickied(story.getStickied());
-
-            //create the history model - this only needs the basics, the rest is linked up in saveNewStory
             final StoryHistoryModel historyModel = new StoryHistoryModel();
-            historyModel.setTimestamp(discoveredAt);
+            historyModel.setTimestamp(fetchedAt);
             historyModel.setScore(story.getScore());
             historyModel.setHotness(story.getHotness());
             historyModel.setComments(story.getNumComments());
             historyModel.setGilded(story.getGilded());
+            historyModel.setStory(foundStory.toStoryReference());
+            autoUpdatedHistories.add(historyModel);
+            return;
+        }
+
+        if (!subreddits.containsKey(story.getSubreddit())) {
+            LOGGER.error("Subreddit `" + story.getSubreddit() + "` does not exist yet - will not persist story " + story.getId() + " to DB");
+            return;
+        }
 
-            //save!
-            storyRepository.saveNewStory(storyModel, historyModel);
+        final Date discoveredAt = new Date();
+
+        //create the story model
+        final StoryModel storyModel = new StoryModel();
+        storyModel.setRedditShortId(story.getId());
+        storyModel.setCreatedAt(story.getCreatedAt());
+        storyModel.setTitle(story.getTitle());
+        storyModel.setAuthor(story.getAuthor());
+        storyModel.setSubreddit(subreddits.get(story.getSubreddit()));
+        storyModel.setUrl(story.getUrl());
+        storyModel.setDomain(story.getDomain());
+        storyModel.setThumbnail(story.getThumbnail());
+        storyModel.setPermalink(story.getPermalink());
+        storyModel.setIsSelf(story.getIsSelf());
+        storyModel.setSelftext(story.getSelftext());
+        storyModel.setDistinguished(story.getDistinguished());
+        storyModel.setOver18(story.getOver18());
+        storyModel.setStickied(story.getStickied());
+
+        //create the history model - this only needs the basics, the rest is linked up in saveNewStory
+        final StoryHistoryModel historyModel = new StoryHistoryModel();
+        historyModel.setTimestamp(discoveredAt);
+        historyModel.setScore(story.getScore());
+        historyModel.setHotness(story.getHotness());
+        historyModel.setComments(story.getNumComments());
+        historyModel.setGilded(story.getGilded());
+
+        //save!
+        final StoryModel savedStory = storyRepository.saveNewStory(storyModel, historyModel);
+        storyEventRing.publish(StoryEvent.fromHistory(StoryEvent.Type.DISCOVERED, savedStory, historyModel));
+
+        //mark the discovery
+        storyDiscoveredMeter.mark();
+
+        synchronized (discoveryScheduler) {
+            discoveryScheduler.recordStory(story.getSubreddit(), discoveredAt);
+        }
 
-            //mark the discovery
-            storyDiscoveredMeter.mark();
+        //break it the discovery metric out so we can see if a single feed is having issues
+        final long msForDiscovery = discoveredAt.getTime() - storyModel.getCreatedAt().getTime();
+        if (isFromNewListing) {
+            recordNewListingDiscovery(story, msForDiscovery);
+        } else {
+            //recorded at the end of the run, unless /new has the story too
+            hotListingDiscoveryTimes.put(story.getId(), msForDiscovery);
+        }
 
-            //break it the discovery metric out so we can see if a single feed is having issues
-            final long msForDiscovery = discoveredAt.getTime() - storyModel.getCreatedAt().getTime();
-            if (newStories.contains(story)) {
-                //mark the discovery time so we can measure the min/max/median discovery times
-                newStoryDiscoveredCreatedTimeHistogram.update(msForDiscovery);
-            } else {
-                hotStoryDiscoveredCreatedTimeHistogram.update(msForDiscovery);
-            }
+        LOGGER.info("saved new story " + story.getId());
+    }
 
-            LOGGER.info("saved new story " + story.getId());
+    /**
+     * Mark the discovery time so we can measure the min/max/median discovery times, overall and for the tier that polls
+     * the story's subreddit
+     */
+    private void recordNewListingDiscovery(@Nonnull final RedditStory story, final long msForDiscovery) {
+        final DiscoveryScheduler.Tier tier;
+        synchronized (discoveryScheduler) {
+            tier = discoveryScheduler.getTier(story.getSubreddit());
         }
+
+        newStoryDiscoveredCreatedTimeHistogram.update(msForDiscovery);
+        newStoryDiscoveredCreatedTimeHistogramsByTier.get(tier).update(msForDiscovery);
+    }
+
+    @Override
+    public boolean isSingleton() {
+        return true;
     }
 
     @Override
@@ -186,4 +441,245 @@ public class NewStoryScraperService extends Service {
     public int getRepeatDelayInSecondsIfExceptionOccurred() {
         return 5; //try again after 5 seconds on an exception
     }
+
+    /**
+     * A page of stories handed from a listing fetcher thread to the service thread
+     */
+    private static class ListingPage {
+        @Nonnull
+        private final List<RedditStory> stories;
+
+        private final boolean fromNewListing;
+
+        private final boolean endOfListing;
+
+        //when the page came back from reddit - the history of the stories on it is from then
+        @Nonnull
+        private final Date fetchedAt;
+
+        private ListingPage(@Nonnull final List<RedditStory> stories, final boolean fromNewListing) {
+            this(stories, fromNewListing, false);
+        }
+
+        private ListingPage(@Nonnull final List<RedditStory> stories, final boolean fromNewListing, final boolean endOfListing) {
+            this.stories = stories;
+            this.fromNewListing = fromNewListing;
+            this.endOfListing = endOfListing;
+            this.fetchedAt = new Date();
+        }
+
+        @Nonnull
+        private static ListingPage endOfListing(final boolean fromNewListing) {
+            return new ListingPage(Collections.<RedditStory>emptyList(), fromNewListing, true);
+        }
+
+        @Nonnull
+        public Date getFetchedAt() {
+            return fetchedAt;
+        }
+
+        @Nonnull
+        public List<RedditStory> getStories() {
+            return stories;
+        }
+
+        public boolean isFromNewListing() {
+            return fromNewListing;
+        }
+
+        public boolean isEndOfListing() {
+            return endOfListing;
+        }
+    }
+
+    /**
+     * Pages through a listing and pushes every page onto the page queue, followed by an end-of-listing marker
+     * (even if the fetch failed). If given a watermark, it stops paging once a page reaches it.
+     */
+    private class ListingFetcher implements Runnable {
+        @Nonnull
+        private final Set<String> subreddits;
+
+        @Nonnull
+        private final RedditClient.SortStyle sortStyle;
+
+        @Nonnull
+        private final RedditClient.TimeRange timeRange;
+
+        private final int limit;
+
+        private final boolean isNewListing;
+
+        @Nullable
+        private final ListingWatermark stopAtWatermark;
+
+        @Nonnull
+        private final BlockingQueue<ListingPage> pageQueue;
+
+        @Nullable
+        private volatile RedditStory newestStory;
+
+        @Nullable
+        private volatile RedditClientException exception;
+
+        //thread the fetcher runs on, to interrupt it when it has to stop early
+        @Nullable
+        private volatile Thread runningThread;
+
+        private volatile boolean stopped = false;
+
+        @Nonnull
+        private final CountDownLatch finished = new CountDownLatch(1);
+
+        private ListingFetcher(@Nonnull final Set<String> subreddits,
+                               @Nonnull final RedditClient.SortStyle sortStyle,
+                               @Nonnull final RedditClient.TimeRange timeRange,
+                               final int limit,
+                               final boolean isNewListing,
+                               @Nullable final ListingWatermark stopAtWatermark,
+                               @Nonnull final BlockingQueue<ListingPage> pageQueue) {
+            this.subreddits = subreddits;
+            this.sortStyle = sortStyle;
+            this.timeRange = timeRange;
+            this.limit = limit;
+            this.isNewListing = isNewListing;
+            this.stopAtWatermark = stopAtWatermark;
+            this.pageQueue = pageQueue;
+        }
+
+        @Override
+        public void run() {
+            runningThread = Thread.currentThread();
+            try {
+                if (stopped) {
+                    return;
+                }
+
+                redditClient.streamStoryListingForSubreddits(subreddits, sortStyle, timeRange, limit, new StoryListingPageHandler() {
+                    @Override
+                    public boolean handlePage(@Nonnull final List<RedditStory> stories) {
+                        for (final RedditStory story : stories) {
+                            if (newestStory == null || story.getCreatedAt().after(newestStory.getCreatedAt())) {
+                                newestStory = story;
+                            }
+                        }
+
+                        pageQueue.add(new ListingPage(stories, isNewListing));
+                        return !stopped && (stopAtWatermark == null || !stopAtWatermark.isReachedBy(stories));
+                    }
+                });
+            } catch (@Nonnull final RedditClientException redditClientException) {
+                LOGGER.error("Failed to fetch " + sortStyle + " listing: " + redditClientException);
+                exception = redditClientException;
+            } finally {
+                runningThread = null;
+                Thread.interrupted(); //don't leave a stop() interrupt behind on the pooled thread
+                pageQueue.add(ListingPage.endOfListing(isNewListing));
+                finished.countDown();
+            }
+        }
+
+        /**
+         * Stops paging after the current page, interrupting a request that waits on the rate limiter
+         */
+        public void stop() {
+            stopped = true;
+            final Thread thread = runningThread;
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+
+        /**
+         * Waits for the fetcher to finish. Every fetcher handed to the executor runs (the cached pool never queues), so
+         * this always returns
+         */
+        public void awaitFinished() throws InterruptedException {
+            finished.await();
+        }
+
+        @Nonnull
+        public Set<String> getSubreddits() {
+            return subreddits;
+        }
+
+        @Nonnull
+        public RedditClient.SortStyle getSortStyle() {
+            return sortStyle;
+        }
+
+        @Nullable
+        public RedditStory getNewestStory() {
+            return newestStory;
+        }
+
+        @Nullable
+        public RedditClientException getException() {
+            return exception;
+        }
+    }
+
+    /**
+     * The newest story seen on a /new listing, along with the multireddit the listing was for
+     */
+    private static class ListingWatermark {
+        @Nonnull
+        private final String multiredditKey;
+
+        @Nonnull
+        private final String newestFullId;
+
+        @Nonnull
+        private final Date newestCreatedAt;
+
+        private ListingWatermark(@Nonnull final String multiredditKey,
+                                 @Nonnull final String newestFullId,
+                                 @Nonnull final Date newestCreatedAt) {
+            this.multiredditKey = multiredditKey;
+            this.newestFullId = newestFullId;
+            this.newestCreatedAt = new Date(newestCreatedAt.getTime());
+        }
+
+        /**
+         * Moves a watermark forward to the newest story of the latest scan
+         *
+         * @param previous       the current watermark for the same multireddit, or null if there is none yet
+         * @param multiredditKey the multireddit that was scanned
+         * @param newestStory    the newest story of the latest scan, or null if the scan returned nothing
+         * @return the new watermark, or null if there is still nothing to mark
+         */
+        @Nullable
+        private static ListingWatermark advance(@Nullable final ListingWatermark previous,
+                                                @Nonnull final String multiredditKey,
+                                                @Nullable final RedditStory newestStory) {
+            if (newestStory != null && (previous == null || newestStory.getCreatedAt().after(previous.newestCreatedAt))) {
+                return new ListingWatermark(multiredditKey, newestStory.getFullId(), newestStory.getCreatedAt());
+            }
+
+            return previous;
+        }
+
+        /**
+         * @return true if the page contains the watermark story or anything created before it
+         */
+        private boolean isReachedBy(@Nonnull final List<RedditStory> stories) {
+            for (final RedditStory story : stories) {
+                if (story.getFullId().equals(newestFullId) || !story.getCreatedAt().after(newestCreatedAt)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        @Nonnull
+        public String getNewestFullId() {
+            return newestFullId;
+        }
+
+        @Nonnull
+        public String getMultiredditKey() {
+            return multiredditKey;
+        }
+    }
 }
@@ -11,7 +11,15 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This service will occasionally get a list of the subreddits found on the front page and appends those to
@@ -33,11 +41,16 @@ public class NewSubredditScraperService extends Service {
     @Nonnull
     private final Meter subredditSeenMeter;
 
+    //number of concurrent detail requests for newly discovered subreddits (the client rate limiter still applies)
+    private final int numDetailWorkers;
+
     public NewSubredditScraperService(@Nonnull final RedditClient redditClient,
                                       @Nonnull final SubredditRepository subredditRepository,
+                                      final int numDetailWorkers,
                                       @Nonnull final MetricRegistry metricRegistry) {
         this.redditClient = redditClient;
         this.subredditRepository = subredditRepository;
+        this.numDetailWorkers = numDetailWorkers;
 
         //metrics
         this.subredditDiscoveryMeter = metricRegistry.meter(MetricRegistry.name("reddcrawl", "subreddit", "discovered"));
@@ -50,11 +63,52 @@ public class NewSubredditScraperService extends Service {
         final Set<String> subredditsOnFrontPage = redditClient.getDefaultFrontPageSubreddits();
 
         LOGGER.info("front page subreddits are now " + Joiner.on("+").join(subredditsOnFrontPage));
+
+        //resolve all of the front page subreddits in one query and mark the known ones as seen in one update
+        final Map<String, SubredditModel> knownSubreddits = subredditRepository.findSubredditsByNames(subredditsOnFrontPage);
+        subredditRepository.markSubredditsAsSeen(knownSubreddits.values());
+        this.subredditSeenMeter.mark(knownSubreddits.size());
+
+        final List<String> newSubredditNames = new ArrayList<>();
         for (final String discoveredSubredditName : subredditsOnFrontPage) {
-            final SubredditModel subredditModel = subredditRepository.findSubredditByName(discoveredSubredditName);
-            if (subredditModel == null) {
+            if (!knownSubreddits.containsKey(discoveredSubredditName)) {
                 LOGGER.info("Discovered new front page subreddit! name=" + discoveredSubredditName);
-                final RedditSubreddit redditSubreddit = redditClient.getSubredditByName(discoveredSubredditName);
+                newSubredditNames.add(discoveredSubredditName);
+            }
+        }
+
+        if (newSubredditNames.isEmpty()) {
+            return;
+        }
+
+        //fetch the details of the new subreddits concurrently - the rate limiter in the client keeps us within our budget
+        final ExecutorService detailExecutor = Executors.newFixedThreadPool(Math.min(numDetailWorkers, newSubredditNames.size()));
+        final List<SubredditModel> newSubredditModels = new ArrayList<>(newSubredditNames.size());
+        Exception firstException = null;
+        try {
+            final List<Future<RedditSubreddit>> detailFutures = new ArrayList<>(newSubredditNames.size());
+            for (final String newSubredditName : newSubredditNames) {
+                detailFutures.add(detailExecutor.submit(new Callable<RedditSubreddit>() {
+                    @Override
+                    public RedditSubreddit call() throws Exception {
+                        return redditClient.getSubredditByName(newSubredditName);
+                    }
+                }));
+            }
+
+            for (int i = 0; i < detailFutures.size(); i++) {
+                final RedditSubreddit redditSubreddit;
+                try {
+                    redditSubreddit = detailFutures.get(i).get();
+                } catch (@Nonnull final ExecutionException e) {
+                    //save the ones we did get, the rest will be picked up again on the next run
+                    LOGGER.error("Could not fetch details for new subreddit " + newSubredditNames.get(i), e.getCause());
+                    if (firstException == null) {
+                        firstException = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    }
+                    continue;
+                }
+
                 final SubredditModel newSubredditModel = new SubredditModel();
                 newSubredditModel.setSubredditShortId(redditSubreddit.getId());
                 newSubredditModel.setUrl(redditSubreddit.getUrl());
@@ -63,15 +117,23 @@ public class NewSubredditScraperService extends Service {
                 newSubredditModel.setSubmissionType(redditSubreddit.getSubmissionType());
                 newSubredditModel.setName(redditSubreddit.getName());
                 newSubredditModel.setTitle(redditSubreddit.getTitle());
-
-                subredditRepository.saveNewSubreddit(newSubredditModel);
-                this.subredditDiscoveryMeter.mark();
-            } else {
-                LOGGER.debug("marking " + subredditModel.getName() + " as seen");
-                subredditRepository.markSubredditAsSeen(subredditModel);
-                this.subredditSeenMeter.mark();
+                newSubredditModels.add(newSubredditModel);
             }
+        } finally {
+            detailExecutor.shutdownNow();
         }
+
+        subredditRepository.saveNewSubreddits(newSubredditModels);
+        this.subredditDiscoveryMeter.mark(newSubredditModels.size());
+
+        if (firstException != null) {
+            throw firstException;
+        }
+    }
+
+    @Override
+    public boolean isSingleton() {
+        return true;
     }
 
     @Override
@@ -0,0 +1,129 @@
+package com.andrewortman.reddcrawl.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Leader election through postgres session level advisory locks - the node holding the lock for a service is its
+ * leader. The locks live on a dedicated connection (not one from the pool, since a pooled connection would hand the
+ * locks to whoever borrows it next), so if this node dies or loses its database connection the locks are released
+ * by postgres and another node takes over on its next attempt.
+ */
+public class PostgresLeaderElection implements LeaderElection {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PostgresLeaderElection.class);
+
+    //first half of every advisory lock key, so our locks don't collide with anything else using advisory locks
+    private static final int LOCK_NAMESPACE = "reddcrawl".hashCode();
+
+    //seconds to wait when checking if the lock connection is still alive
+    private static final int CONNECTION_VALIDATION_TIMEOUT_SECONDS = 5;
+
+    @Nonnull
+    private final String url;
+
+    @Nonnull
+    private final String username;
+
+    @Nonnull
+    private final String password;
+
+    @Nonnull
+    private final WorkerNode workerNode;
+
+    @Nonnull
+    private final Set<String> heldLeaderships = new HashSet<>();
+
+    @Nullable
+    private Connection connection;
+
+    public PostgresLeaderElection(@Nonnull final String url,
+                                  @Nonnull final String username,
+                                  @Nonnull final String password,
+                                  @Nonnull final WorkerNode workerNode) {
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.workerNode = workerNode;
+    }
+
+    @Override
+    public synchronized boolean acquireLeadership(@Nonnull final String serviceName) {
+        try {
+            final Connection lockConnection = getValidConnection();
+            if (heldLeaderships.contains(serviceName)) {
+                return true; //the session is still alive, so we still hold the lock
+            }
+
+            try (final PreparedStatement statement = lockConnection.prepareStatement("SELECT pg_try_advisory_lock(?, ?)")) {
+                statement.setInt(1, LOCK_NAMESPACE);
+                statement.setInt(2, serviceName.hashCode());
+                try (final ResultSet resultSet = statement.executeQuery()) {
+                    if (resultSet.next() && resultSet.getBoolean(1)) {
+                        LOGGER.info("Node " + workerNode + " is now the leader for " + serviceName);
+                        heldLeaderships.add(serviceName);
+                        return true;
+                    }
+                }
+            }
+
+            return false;
+        } catch (@Nonnull final SQLException e) {
+            LOGGER.error("Could not acquire leadership for " + serviceName + " - giving up all leaderships", e);
+            closeConnection();
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized boolean isLeader(@Nonnull final String serviceName) {
+        return heldLeaderships.contains(serviceName);
+    }
+
+    @Override
+    public synchronized void releaseAll() {
+        //closing the session releases all of its advisory locks
+        closeConnection();
+    }
+
+    @Nonnull
+    private Connection getValidConnection() throws SQLException {
+        if (connection != null && !connection.isValid(CONNECTION_VALIDATION_TIMEOUT_SECONDS)) {
+            //the session is gone and so are its locks - another node may already have taken over
+            LOGGER.warn("Lost the leader election connection - giving up leadership of " + heldLeaderships);
+            closeConnection();
+        }
+
+        if (connection == null) {
+            connection = DriverManager.getConnection(url, username, password);
+            connection.setAutoCommit(true);
+        }
+
+        return connection;
+    }
+
+    private void closeConnection() {
+        if (!heldLeaderships.isEmpty()) {
+            LOGGER.info("Node " + workerNode + " is no longer the leader for " + heldLeaderships);
+        }
+        heldLeaderships.clear();
+
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (@Nonnull final SQLException e) {
+                LOGGER.warn("Could not close leader election connection", e);
+            }
+            connection = null;
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package com.andrewortman.reddcrawl.services;
 
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
 /**
  * Guava's service manager didn't have a nice way of making super resilent services, so I wrote my own Service class
  * This abstract class allows interrupting (clean shutdown), defining a "runIteration" that can be used to run
@@ -7,8 +10,15 @@ package com.andrewortman.reddcrawl.services;
  * iterations over a single period.
  */
 public abstract class Service {
-    //stores interrupted state
-    private boolean isInterrupted = false;
+    //stores interrupted state (set from the shutdown hook, read from the service thread)
+    private volatile boolean isInterrupted = false;
+
+    //set by the ServiceManager for singleton services
+    @Nullable
+    private volatile LeaderElection leaderElection;
+
+    @Nullable
+    private volatile String serviceName;
 
     /**
      * Put your code in here to run. Exceptions are caught and logged automatically
@@ -18,8 +28,8 @@ public abstract class Service {
     public abstract void runIteration() throws Exception;
 
     /**
-     * Minimum amount of time between two consecutive runIteration runs. If a service stops before the next iteration, the thread
-     * it was running in will sleep until the next scheduled time
+     * Minimum amount of time between the starts of two consecutive runIteration runs. If a service stops before the next
+     * iteration is due, the next iteration is scheduled for the due time
      *
      * @return number of seconds between iterations
      */
@@ -33,6 +43,36 @@ public abstract class Service {
         return -1;
     }
 
+    /**
+     * Singleton services must only run on one worker node at a time, because they scrape or archive shared data - the
+     * other nodes would just repeat the same work. When several workers are deployed, the ServiceManager only runs them
+     * on the node elected as their leader
+     */
+    public boolean isSingleton() {
+        return false;
+    }
+
+    /**
+     * The leadership is checked when an iteration starts, but it can be lost while one is running (e.g. the leader
+     * election connection drops and another node takes over). Singleton services that run in batches call this before
+     * each batch and stop when it returns false
+     *
+     * @return true if this node (still) holds the leadership of the service, always true for other services
+     */
+    public boolean holdsLeadership() {
+        final LeaderElection leaderElection = this.leaderElection;
+        final String serviceName = this.serviceName;
+        return leaderElection == null || serviceName == null || leaderElection.acquireLeadership(serviceName);
+    }
+
+    /**
+     * Used by the ServiceManager to hand singleton services the election their leadership is checked with
+     */
+    void setLeaderElection(@Nonnull final LeaderElection leaderElection, @Nonnull final String serviceName) {
+        this.leaderElection = leaderElection;
+        this.serviceName = serviceName;
+    }
+
     /**
      * Interrupt this service
      */
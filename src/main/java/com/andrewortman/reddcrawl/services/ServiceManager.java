@@ -1,44 +1,79 @@
 package com.andrewortman.reddcrawl.services;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.MetricRegistry;
-import org.joda.time.DateTime;
+import com.codahale.metrics.Timer;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 /**
- * Guava's service manager didn't have a nice way of making super resilent services, so I wrote my own Service class
- * This abstract class allows interrupting (clean shutdown), defining a "runIteration" that can be used to run
- * a long loop or a single iteration, and finally an ability to define a minimum repetition time to limit that max
- * iterations over a single period.
+ * Runs the services on a scheduled executor. Every service gets its own due time: the next iteration is due
+ * the minimum repetition time after the previous one started (plus a bit of random jitter so services with the same
+ * interval don't all hit reddit at once), or the exception repeat delay after it failed. A service never runs
+ * concurrently with itself - if an iteration runs past its next due time, the next one starts right after it.
+ * <p/>
+ * Services can be triggered, paused and resumed by name (the simple class name) while the manager is running.
+ * <p/>
+ * Singleton services only run on the node that holds their leadership. The other nodes check back every few seconds,
+ * so a new leader takes over quickly when the old one goes away.
  */
 public class ServiceManager {
     @Nonnull
     private static final Logger LOGGER = LoggerFactory.getLogger(ServiceManager.class);
+
+    //how long to wait for running iterations to notice they've been interrupted when shutting down
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
     @Nonnull
-    private final Map<Service, Thread> serviceThreadMap = new HashMap<>();
+    private final Map<String, ServiceRunner> serviceRunners = new LinkedHashMap<>();
+
     @Nonnull
     private final MetricRegistry metricRegistry;
 
-    public ServiceManager(@Nonnull final MetricRegistry metricRegistry) {
+    //max fraction of a service's interval that is randomly added to each due time
+    private final double jitterFraction;
+
+    @Nonnull
+    private final LeaderElection leaderElection;
+
+    @Nonnull
+    private final WorkerNode workerNode;
+
+    //how often nodes that aren't the leader of a singleton service check if they can take over
+    private final long leaderRetryMillis;
+
+    @Nullable
+    private ScheduledExecutorService executor;
+
+    public ServiceManager(@Nonnull final MetricRegistry metricRegistry,
+                          final double jitterFraction,
+                          @Nonnull final LeaderElection leaderElection,
+                          @Nonnull final WorkerNode workerNode,
+                          final int leaderRetrySeconds) {
         this.metricRegistry = metricRegistry;
+        this.jitterFraction = jitterFraction;
+        this.leaderElection = leaderElection;
+        this.workerNode = workerNode;
+        this.leaderRetryMillis = TimeUnit.SECONDS.toMillis(leaderRetrySeconds);
         //set up shutdown hook for clean shutdowns
         Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
             @Override
             public void run() {
-                LOGGER.info("Shutting down services");
-                synchronized (serviceThreadMap) {
-                    for (final Service service : serviceThreadMap.keySet()) {
-                        LOGGER.info("Interrupting " + service.getClass().getName());
-                        service.interrupt();
-                        serviceThreadMap.get(service).interrupt();
-                    }
-                }
+                stopAllServices();
             }
         }));
     }
@@ -48,74 +83,303 @@ public class ServiceManager {
      *
      * @param service Service to manage
      */
-    public void addService(@Nonnull final Service service) {
-        final Thread thread = new Thread(new Runnable() {
-            @Nonnull
-            private DateTime lastRunTime = DateTime.now();
+    public synchronized void addService(@Nonnull final Service service) {
+        Preconditions.checkState(executor == null, "Cannot add services after the service manager has started");
+        final String serviceName = service.getClass().getSimpleName();
+        Preconditions.checkArgument(!serviceRunners.containsKey(serviceName), "Service " + serviceName + " was already added");
+        serviceRunners.put(serviceName, new ServiceRunner(serviceName, service));
+    }
 
-            @Override
-            public void run() {
-                while (!Thread.interrupted()) {
-                    lastRunTime = DateTime.now();
-                    boolean exceptionOccurred = false;
-                    try {
-                        LOGGER.info("Starting service '" + service.getClass().getName() + "'");
-                        metricRegistry.counter(MetricRegistry.name("reddcrawl", "services", service.getClass().getSimpleName(), "runs")).inc();
-
-                        //run the iteration and time it
-                        final long startTime = new Date().getTime();
-                        service.runIteration();
-                        final long endTime = new Date().getTime();
-                        metricRegistry.timer(MetricRegistry.name("reddcrawl", "service", service.getClass().getSimpleName(), "time")).update((endTime - startTime), TimeUnit.MILLISECONDS);
-                    } catch (@Nonnull final Exception e) {
-                        //handle the exception for a service
-                        exceptionOccurred = true;
-                        LoggerFactory.getLogger(service.getClass()).error("ServiceManager caught exception: " + e.getClass().getName() + " - " + e.getMessage(), e);
-                        metricRegistry.counter(MetricRegistry.name("reddcrawl", "services", service.getClass().getSimpleName(), "exceptions")).inc();
-                    }
+    /**
+     * Starts running all of the services. Services that loop inside runIteration keep their thread busy, so the
+     * executor gets one thread per service
+     */
+    public synchronized void startAllServices() {
+        Preconditions.checkState(executor == null, "Service manager was already started");
+        executor = Executors.newScheduledThreadPool(Math.max(1, serviceRunners.size()),
+                new ThreadFactoryBuilder().setNameFormat("service-%d").build());
 
-                    final DateTime nextStartTime;
-                    if (exceptionOccurred && service.getRepeatDelayInSecondsIfExceptionOccurred() > 0) {
-                        nextStartTime = DateTime.now().plusSeconds(service.getRepeatDelayInSecondsIfExceptionOccurred());
-                        LOGGER.info("An exception occurred for " + service.getClass().getName() + " and it's repeat delay" +
-                                " was set.. going to schedule repetition for " + service.getRepeatDelayInSecondsIfExceptionOccurred() + " seconds from now");
-                    } else {
-                        nextStartTime = lastRunTime.plusSeconds(service.getMinimumRepetitionTimeInSeconds());
-                    }
+        for (final ServiceRunner serviceRunner : serviceRunners.values()) {
+            serviceRunner.scheduleAt(System.currentTimeMillis());
+        }
+    }
 
-                    if (nextStartTime.isAfter(DateTime.now())) {
-                        LOGGER.info("Service '" + service.getClass().getName() + "' not scheduled to run until " + nextStartTime + " - waiting until then");
-                        while (nextStartTime.isAfter(DateTime.now())) {
-                            try {
-                                Thread.sleep(TimeUnit.SECONDS.toMillis(1));
-                            } catch (@Nonnull final InterruptedException ignored) {
-                                LOGGER.info("Received InterruptedException - bailing during sleep");
-                            }
-                        }
-                    }
+    /**
+     * Blocks until all services have stopped after a shutdown
+     */
+    public void awaitTermination() throws InterruptedException {
+        final ScheduledExecutorService runningExecutor;
+        synchronized (this) {
+            runningExecutor = executor;
+        }
+
+        if (runningExecutor != null) {
+            runningExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Interrupts all services, cancels their scheduled iterations and waits a bit for the running ones to finish
+     */
+    public void stopAllServices() {
+        final ScheduledExecutorService runningExecutor;
+        synchronized (this) {
+            LOGGER.info("Shutting down services");
+            for (final ServiceRunner serviceRunner : serviceRunners.values()) {
+                LOGGER.info("Interrupting " + serviceRunner.serviceName);
+                serviceRunner.service.interrupt();
+            }
+            runningExecutor = executor;
+        }
+
+        if (runningExecutor != null) {
+            //interrupts the threads of running iterations and drops all scheduled ones
+            runningExecutor.shutdownNow();
+            try {
+                if (!runningExecutor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    LOGGER.warn("Services did not stop within " + SHUTDOWN_TIMEOUT_SECONDS + " seconds");
                 }
+            } catch (@Nonnull final InterruptedException ignored) {
+                LOGGER.info("Received InterruptedException - bailing while waiting for services to stop");
+                Thread.currentThread().interrupt();
             }
-        });
+        }
 
-        serviceThreadMap.put(service, thread);
+        //let the other nodes take over the singleton services right away
+        leaderElection.releaseAll();
     }
 
     /**
-     * Kicks off all the threads to start
+     * Runs a service as soon as possible instead of waiting for its due time. If the service is running right now,
+     * it runs again right after the current iteration. Triggering a paused service runs it once.
+     *
+     * @param serviceName simple class name of the service
      */
-    public void startAllThreads() {
-        for (final Thread thread : serviceThreadMap.values()) {
-            thread.start();
-        }
+    public synchronized void trigger(@Nonnull final String serviceName) {
+        getServiceRunner(serviceName).trigger();
     }
 
     /**
-     * Joins all threads (blocks until all threads have exited compeltely
+     * Stops scheduling a service. An iteration that is running right now is left to finish
+     *
+     * @param serviceName simple class name of the service
      */
-    public void joinAllThreads() throws InterruptedException {
-        for (final Thread thread : serviceThreadMap.values()) {
-            thread.join();
-        }
+    public synchronized void pause(@Nonnull final String serviceName) {
+        getServiceRunner(serviceName).pause();
     }
 
-}
\ No newline at end of file
+    /**
+     * Resumes a paused service, running it right away
+     *
+     * @param serviceName simple class name of the service
+     */
+    public synchronized void resume(@Nonnull final String serviceName) {
+        getServiceRunner(serviceName).resume();
+    }
+
+    /**
+     * @param serviceName simple class name of the service
+     * @return true if the service is paused
+     */
+    public synchronized boolean isPaused(@Nonnull final String serviceName) {
+        return getServiceRunner(serviceName).paused;
+    }
+
+    @Nonnull
+    private ServiceRunner getServiceRunner(@Nonnull final String serviceName) {
+        final ServiceRunner serviceRunner = serviceRunners.get(serviceName);
+        Preconditions.checkArgument(serviceRunner != null, "Unknown service " + serviceName);
+        return serviceRunner;
+    }
+
+    /**
+     * Schedules and runs the iterations of a single service. All of the state is guarded by the service manager lock,
+     * except for the iteration itself which runs without holding it
+     */
+    private class ServiceRunner {
+        @Nonnull
+        private final String serviceName;
+
+        @Nonnull
+        private final Service service;
+
+        @Nonnull
+        private final Counter runCounter;
+
+        @Nonnull
+        private final Counter exceptionCounter;
+
+        //iterations that ran past the next due time
+        @Nonnull
+        private final Counter overlapCounter;
+
+        @Nonnull
+        private final Timer runTimer;
+
+        //how late an iteration started compared to its due time
+        @Nonnull
+        private final Timer lagTimer;
+
+        @Nullable
+        private ScheduledFuture<?> scheduledRun;
+
+        private long dueAtMillis;
+
+        //bumped every time an iteration is scheduled, so a run that was cancelled too late to stop it can bail out
+        private long scheduleGeneration = 0;
+
+        private boolean running = false;
+
+        private boolean paused = false;
+
+        private boolean triggered = false;
+
+        private ServiceRunner(@Nonnull final String serviceName, @Nonnull final Service service) {
+            this.serviceName = serviceName;
+            this.service = service;
+            this.runCounter = metricRegistry.counter(MetricRegistry.name("reddcrawl", "services", serviceName, "runs"));
+            this.exceptionCounter = metricRegistry.counter(MetricRegistry.name("reddcrawl", "services", serviceName, "exceptions"));
+            this.overlapCounter = metricRegistry.counter(MetricRegistry.name("reddcrawl", "services", serviceName, "overlaps"));
+            this.runTimer = metricRegistry.timer(MetricRegistry.name("reddcrawl", "service", serviceName, "time"));
+            this.lagTimer = metricRegistry.timer(MetricRegistry.name("reddcrawl", "services", serviceName, "lag"));
+
+            if (service.isSingleton()) {
+                service.setLeaderElection(leaderElection, serviceName);
+
+                //1 on the node that currently runs the service, 0 on the others
+                metricRegistry.register(MetricRegistry.name("reddcrawl", "services", serviceName, "node", workerNode.getMetricName(), "leader"),
+                        new Gauge<Integer>() {
+                            @Override
+                            public Integer getValue() {
+                                return leaderElection.isLeader(serviceName) ? 1 : 0;
+                            }
+                        });
+            }
+        }
+
+        private void run(final long generation) {
+            synchronized (ServiceManager.this) {
+                if (generation != scheduleGeneration || running) {
+                    return; //superseded by a later schedule (trigger/pause/resume)
+                }
+                scheduledRun = null;
+                running = true;
+                triggered = false;
+            }
+
+            //singleton services only run on the leader - everyone else checks back shortly in case the leader goes away
+            if (service.isSingleton() && !leaderElection.acquireLeadership(serviceName)) {
+                synchronized (ServiceManager.this) {
+                    running = false;
+                    if (!service.interrupted() && !paused) {
+                        scheduleAt(System.currentTimeMillis() + leaderRetryMillis);
+                    }
+                }
+                return;
+            }
+
+            final long startTime = System.currentTimeMillis();
+            lagTimer.update(Math.max(0L, startTime - dueAtMillis), TimeUnit.MILLISECONDS);
+
+            boolean exceptionOccurred = false;
+            try {
+                LOGGER.info("Starting service '" + serviceName + "'");
+                runCounter.inc();
+                service.runIteration();
+            } catch (@Nonnull final Exception e) {
+                //handle the exception for a service
+                exceptionOccurred = true;
+                LoggerFactory.getLogger(service.getClass()).error("ServiceManager caught exception: " + e.getClass().getName() + " - " + e.getMessage(), e);
+                exceptionCounter.inc();
+            } finally {
+                final long endTime = System.currentTimeMillis();
+                runTimer.update(endTime - startTime, TimeUnit.MILLISECONDS);
+                synchronized (ServiceManager.this) {
+                    running = false;
+                    scheduleNext(startTime, endTime, exceptionOccurred);
+                }
+            }
+        }
+
+        private void scheduleNext(final long startTime, final long endTime, final boolean exceptionOccurred) {
+            if (service.interrupted()) {
+                return;
+            }
+
+            if (triggered) {
+                scheduleAt(endTime);
+                return;
+            }
+
+            if (paused) {
+                return;
+            }
+
+            final long nextDueAt;
+            if (exceptionOccurred && service.getRepeatDelayInSecondsIfExceptionOccurred() > 0) {
+                nextDueAt = endTime + TimeUnit.SECONDS.toMillis(service.getRepeatDelayInSecondsIfExceptionOccurred());
+                LOGGER.info("An exception occurred for " + serviceName + " and it's repeat delay" +
+                        " was set.. going to schedule repetition for " + service.getRepeatDelayInSecondsIfExceptionOccurred() + " seconds from now");
+            } else {
+                final long intervalMillis = TimeUnit.SECONDS.toMillis(service.getMinimumRepetitionTimeInSeconds());
+                final long jitterMillis = (long) (intervalMillis * jitterFraction * ThreadLocalRandom.current().nextDouble());
+                nextDueAt = startTime + intervalMillis + jitterMillis;
+                if (nextDueAt < endTime) {
+                    overlapCounter.inc();
+                }
+            }
+
+            if (nextDueAt > endTime) {
+                LOGGER.info("Service '" + serviceName + "' not scheduled to run until " + new Date(nextDueAt) + " - waiting until then");
+            }
+            scheduleAt(Math.max(nextDueAt, endTime));
+        }
+
+        private void scheduleAt(final long dueAt) {
+            if (executor == null || executor.isShutdown()) {
+                return;
+            }
+
+            if (scheduledRun != null) {
+                scheduledRun.cancel(false);
+            }
+
+            dueAtMillis = dueAt;
+            final long generation = ++scheduleGeneration;
+            scheduledRun = executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    ServiceRunner.this.run(generation);
+                }
+            }, Math.max(0L, dueAt - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+
+        private void trigger() {
+            if (running) {
+                triggered = true;
+            } else {
+                scheduleAt(System.currentTimeMillis());
+            }
+        }
+
+        private void pause() {
+            paused = true;
+            scheduleGeneration++;
+            if (scheduledRun != null) {
+                scheduledRun.cancel(false);
+                scheduledRun = null;
+            }
+        }
+
+        private void resume() {
+            if (!paused) {
+                return;
+            }
+
+            paused = false;
+            if (!running) {
+                scheduleAt(System.currentTimeMillis());
+            }
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.andrewortman.reddcrawl.services;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Leader election for a single worker deployment - this node is always the leader
+ */
+public class SingleNodeLeaderElection implements LeaderElection {
+    @Override
+    public boolean acquireLeadership(@Nonnull final String serviceName) {
+        return true;
+    }
+
+    @Override
+    public boolean isLeader(@Nonnull final String serviceName) {
+        return true;
+    }
+
+    @Override
+    public void releaseAll() {
+        //nothing to release
+    }
+}
@@ -2,8 +2,11 @@ package com.andrewortman.reddcrawl.services;
 
 import com.andrewortman.reddcrawl.archive.JsonArchive;
 import com.andrewortman.reddcrawl.archive.JsonArchiveEventHandler;
+import com.andrewortman.reddcrawl.repository.StoryHistoryPartitions;
 import com.andrewortman.reddcrawl.repository.StoryRepository;
 import com.andrewortman.reddcrawl.json.StoryJsonBuilder;
+import com.andrewortman.reddcrawl.repository.StoryWithHistoryHandler;
+import com.andrewortman.reddcrawl.repository.model.StoryHistoryModel;
 import com.andrewortman.reddcrawl.repository.model.StoryModel;
 import com.codahale.metrics.Counter;
 import com.codahale.metrics.MetricRegistry;
@@ -17,6 +20,11 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nonnull;
 import java.util.*;
 
+/**
+ * Writes stories older than the archive age (with their history) to the json archive and removes them from the
+ * database. Story history is partitioned by day, so it isn't deleted with its story - once every story that could have
+ * history in a day's partition is archived, the whole partition is detached and dropped.
+ */
 public class StoryArchivingService extends Service {
     private static final Logger LOGGER = LoggerFactory.getLogger(StoryArchivingService.class);
 
@@ -38,20 +46,28 @@ public class StoryArchivingService extends Service {
     @Nonnull
     private final JsonArchive jsonArchive;
 
+    @Nonnull
+    private final StoryHistoryPartitions storyHistoryPartitions;
+
+    @Nonnull
+    private final Counter partitionsDroppedCounter;
 
     public StoryArchivingService(@Nonnull final StoryRepository storyRepository,
                                  final int secondsAfterCreateDateToArchive,
                                  final int secondsBetweenArchiveBatches,
                                  final int maxStoryBatchSize,
                                  @Nonnull final MetricRegistry metricRegistry,
-                                 @Nonnull final JsonArchive jsonArchive) {
+                                 @Nonnull final JsonArchive jsonArchive,
+                                 @Nonnull final StoryHistoryPartitions storyHistoryPartitions) {
 
         this.storyRepository = storyRepository;
         this.secondsAfterCreateDateToArchive = secondsAfterCreateDateToArchive;
         this.secondsBetweenArchiveBatches = secondsBetweenArchiveBatches;
         this.maxStoryBatchSize = maxStoryBatchSize;
         this.jsonArchive = jsonArchive;
+        this.storyHistoryPartitions = storyHistoryPartitions;
         this.storiesArchivedCounter = metricRegistry.counter(MetricRegistry.name("reddcrawl", "story", "archives"));
+        this.partitionsDroppedCounter = metricRegistry.counter(MetricRegistry.name("reddcrawl", "story", "history", "partitions", "dropped"));
     }
 
     @Override
@@ -59,27 +75,40 @@ public class StoryArchivingService extends Service {
         final Date lastCreateDate = new Date(new Date().getTime() - secondsAfterCreateDateToArchive * 1000L);
         LOGGER.info("Archiving all stories before " + lastCreateDate.toString());
 
+        //stories that couldn't be archived stay behind, so each batch starts after the last story of the previous one
+        int lastStoryId = 0;
         while (!Thread.currentThread().isInterrupted()) {
-            final List<StoryModel> archivableStories = storyRepository.findArchivableStories(lastCreateDate, maxStoryBatchSize);
-
-            if (archivableStories.size() == 0) {
-                LOGGER.debug("All stories archived - all done.");
-                break;
+            //another node could be archiving the same stories by now
+            if (!holdsLeadership()) {
+                LOGGER.warn("Lost the leadership while archiving - stopping");
+                return;
             }
 
-            LOGGER.debug("Archiving batch of " + archivableStories.size() + " stories");
-
             final Multimap<String, JsonNode> archiveNodesByDate = HashMultimap.create();
 
             //used to look up the storymodel from the json node after sending it through the archiver
             final Map<JsonNode, StoryModel> jsonNodeStoryModelMap = new HashMap<>();
 
-            for (final StoryModel storyModel : archivableStories) {
-                LOGGER.debug("Archiving story " + storyModel.getRedditShortId());
-                final String dateString = DATE_FORMAT.format(storyModel.getCreatedAt());
-                final JsonNode jsonNode = StoryJsonBuilder.renderJsonDetailForStory(storyModel, storyRepository.getStoryHistory(storyModel));
-                archiveNodesByDate.put(dateString, jsonNode);
-                jsonNodeStoryModelMap.put(jsonNode, storyModel); //put a reference of the json node -> story model into a map so we can delete it with the event handler
+            final int archivableStories = storyRepository.streamArchivableStories(lastCreateDate, lastStoryId, maxStoryBatchSize,
+                    new StoryWithHistoryHandler() {
+                        @Override
+                        public void handleStory(@Nonnull final StoryModel storyModel, @Nonnull final List<StoryHistoryModel> history) {
+                            LOGGER.debug("Archiving story " + storyModel.getRedditShortId());
+                            final String dateString = DATE_FORMAT.format(storyModel.getCreatedAt());
+                            final JsonNode jsonNode = StoryJsonBuilder.renderJsonDetailForStory(storyModel, history);
+                            archiveNodesByDate.put(dateString, jsonNode);
+                            jsonNodeStoryModelMap.put(jsonNode, storyModel); //put a reference of the json node -> story model into a map so we can delete it with the event handler
+                        }
+                    });
+
+            if (archivableStories == 0) {
+                LOGGER.debug("All stories archived - all done.");
+                break;
+            }
+
+            LOGGER.debug("Archiving batch of " + archivableStories + " stories");
+            for (final StoryModel storyModel : jsonNodeStoryModelMap.values()) {
+                lastStoryId = Math.max(lastStoryId, storyModel.getId());
             }
 
             //write the nodes, and pass in an event handler to clean up from the database
@@ -102,6 +131,39 @@ public class StoryArchivingService extends Service {
                 Thread.currentThread().interrupt();
             }
         }
+
+        if (holdsLeadership()) {
+            dropArchivedHistoryPartitions(lastCreateDate);
+        }
+    }
+
+    /**
+     * History items are never older than the discovery of their story, so every partition that ends before the
+     * oldest story left in the database only holds history of stories that were archived already. The same goes for
+     * the rows of the default partition from before then
+     */
+    private void dropArchivedHistoryPartitions(@Nonnull final Date lastCreateDate) {
+        final Date oldestStoryDiscoveryTime = storyHistoryPartitions.getOldestStoryDiscoveryTime();
+        Date cutoff = lastCreateDate; //stories being discovered right now can't have history before this
+        if (oldestStoryDiscoveryTime != null && oldestStoryDiscoveryTime.before(cutoff)) {
+            cutoff = oldestStoryDiscoveryTime;
+        }
+
+        final List<String> droppedPartitions = storyHistoryPartitions.dropPartitionsBefore(cutoff);
+        if (!droppedPartitions.isEmpty()) {
+            LOGGER.info("Dropped archived story history partitions " + droppedPartitions);
+            partitionsDroppedCounter.inc(droppedPartitions.size());
+        }
+
+        final int purgedHistoryItems = storyHistoryPartitions.purgeDefaultPartitionBefore(cutoff);
+        if (purgedHistoryItems > 0) {
+            LOGGER.info("Purged " + purgedHistoryItems + " archived history items from the default story history partition");
+        }
+    }
+
+    @Override
+    public boolean isSingleton() {
+        return true;
     }
 
     @Override
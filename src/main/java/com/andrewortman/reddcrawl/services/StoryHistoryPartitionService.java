@@ -0,0 +1,49 @@
+package com.andrewortman.reddcrawl.services;
+
+import com.andrewortman.reddcrawl.repository.StoryHistoryPartitions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.util.Date;
+
+/**
+ * Creates the daily story_history partitions ahead of time, so new history always lands in its own day instead of
+ * the default partition. Dropping old partitions is left to the StoryArchivingService, which knows when their
+ * contents are archived.
+ */
+public class StoryHistoryPartitionService extends Service {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StoryHistoryPartitionService.class);
+
+    @Nonnull
+    private final StoryHistoryPartitions storyHistoryPartitions;
+
+    private final int daysAhead;
+
+    public StoryHistoryPartitionService(@Nonnull final StoryHistoryPartitions storyHistoryPartitions,
+                                        final int daysAhead) {
+        this.storyHistoryPartitions = storyHistoryPartitions;
+        this.daysAhead = daysAhead;
+    }
+
+    @Override
+    public void runIteration() throws Exception {
+        final int created = storyHistoryPartitions.createPartitions(new Date(), daysAhead);
+        LOGGER.debug("Created " + created + " story history partitions");
+    }
+
+    @Override
+    public boolean isSingleton() {
+        return true; //two nodes creating the same partition would just fail on the other one
+    }
+
+    @Override
+    public int getMinimumRepetitionTimeInSeconds() {
+        return 60 * 60; //once an hour is plenty with a few days created ahead
+    }
+
+    @Override
+    public int getRepeatDelayInSecondsIfExceptionOccurred() {
+        return 60;
+    }
+}
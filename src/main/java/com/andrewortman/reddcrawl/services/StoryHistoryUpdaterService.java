@@ -3,15 +3,21 @@ package com.andrewortman.reddcrawl.services;
 import com.andrewortman.reddcrawl.client.RedditClient;
 import com.andrewortman.reddcrawl.client.RedditClientException;
 import com.andrewortman.reddcrawl.client.models.RedditStory;
+import com.andrewortman.reddcrawl.events.StoryEvent;
+import com.andrewortman.reddcrawl.events.StoryEventRing;
+import com.andrewortman.reddcrawl.repository.StoryHistoryJournal;
 import com.andrewortman.reddcrawl.repository.StoryRepository;
 import com.andrewortman.reddcrawl.repository.model.StoryHistoryModel;
 import com.andrewortman.reddcrawl.repository.model.StoryModel;
+import com.andrewortman.reddcrawl.repository.model.StoryWorkItem;
+import com.codahale.metrics.CachedGauge;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.google.common.collect.Lists;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
 
 import javax.annotation.Nonnull;
 import java.util.ArrayList;
@@ -19,11 +25,13 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 /**
  * The story updater crawler is the heart-n-soul of reddcrawl - it fetches the latest histories of the stories
- * and puts it in the database
+ * and puts it in the database. The histories go through the local journal (see StoryHistoryWriterService), so a slow
+ * database doesn't hold up the workers or lose what they fetched
  */
 public class StoryHistoryUpdaterService extends Service {
 
@@ -35,6 +43,14 @@ public class StoryHistoryUpdaterService extends Service {
     @Nonnull
     private final StoryRepository storyRepository;
 
+    //fetched history items are appended here and written to the database in the background
+    @Nonnull
+    private final StoryHistoryJournal storyHistoryJournal;
+
+    //every discovered/updated story is published here for in-process subscribers
+    @Nonnull
+    private final StoryEventRing storyEventRing;
+
     @Nonnull
     private final Integer numUpdateWorkers;
 
@@ -44,6 +60,22 @@ public class StoryHistoryUpdaterService extends Service {
     @Nonnull
     private final Integer historyUpdateIntervalInSeconds;
 
+    //stories reddit didn't return this many checks in a row are retired from the update set
+    @Nonnull
+    private final Integer maxMissedChecks;
+
+    //cap on how far a missing story's next check gets pushed out
+    @Nonnull
+    private final Integer maxMissedBackoffInSeconds;
+
+    //when enabled, stories are leased before they are updated so several worker nodes can share the update work
+    private final boolean leasingEnabled;
+
+    private final int leaseDurationInSeconds;
+
+    @Nonnull
+    private final WorkerNode workerNode;
+
     //marks the times when we bailed because we had no more stories to update (should be never if system is saturated)
     @Nonnull
     private final Meter historyBailMeter;
@@ -56,6 +88,21 @@ public class StoryHistoryUpdaterService extends Service {
     @Nonnull
     private final Meter historyCheckedMeter;
 
+    //marks the times reddit didn't return a story we asked for (deleted, removed or private subreddit)
+    @Nonnull
+    private final Meter historyMissedMeter;
+
+    //marks the times a story was retired from the update set after missing too many checks in a row
+    @Nonnull
+    private final Meter historyRetiredMeter;
+
+    //per node versions of the update/check meters, to see how the work is spread when running several workers
+    @Nonnull
+    private final Meter nodeHistoryUpdateMeter;
+
+    @Nonnull
+    private final Meter nodeHistoryCheckedMeter;
+
     //batch size histogram (to know what the rough batch size is - should remain at workers * 100 if the system is saturated)
     @Nonnull
     private final Histogram historyUpdateBatchHistogram;
@@ -65,16 +112,49 @@ public class StoryHistoryUpdaterService extends Service {
                                       @Nonnull final Integer numUpdateWorkers,
                                       @Nonnull final Integer oldestStoryAgeInSeconds,
                                       @Nonnull final Integer historyUpdateIntervalInSeconds,
+                                      @Nonnull final Integer maxMissedChecks,
+                                      @Nonnull final Integer maxMissedBackoffInSeconds,
+                                      final boolean leasingEnabled,
+                                      final int leaseDurationInSeconds,
+                                      @Nonnull final WorkerNode workerNode,
+                                      @Nonnull final StoryHistoryJournal storyHistoryJournal,
+                                      @Nonnull final StoryEventRing storyEventRing,
                                       @Nonnull final MetricRegistry metricRegistry) {
         this.redditClient = redditClient;
         this.storyRepository = storyRepository;
         this.numUpdateWorkers = numUpdateWorkers;
         this.oldestStoryAgeInSeconds = oldestStoryAgeInSeconds;
         this.historyUpdateIntervalInSeconds = historyUpdateIntervalInSeconds;
+        this.maxMissedChecks = maxMissedChecks;
+        this.maxMissedBackoffInSeconds = maxMissedBackoffInSeconds;
+        this.leasingEnabled = leasingEnabled;
+        this.leaseDurationInSeconds = leaseDurationInSeconds;
+        this.workerNode = workerNode;
+        this.storyHistoryJournal = storyHistoryJournal;
+        this.storyEventRing = storyEventRing;
         this.historyBailMeter = metricRegistry.meter(MetricRegistry.name("reddcrawl", "story", "history", "bails"));
         this.historyUpdateMeter = metricRegistry.meter(MetricRegistry.name("reddcrawl", "story", "history", "updates"));
         this.historyCheckedMeter = metricRegistry.meter(MetricRegistry.name("reddcrawl", "story", "history", "checks"));
+        this.historyMissedMeter = metricRegistry.meter(MetricRegistry.name("reddcrawl", "story", "history", "misses"));
+        this.historyRetiredMeter = metricRegistry.meter(MetricRegistry.name("reddcrawl", "story", "history", "retired"));
+        this.nodeHistoryUpdateMeter = metricRegistry.meter(MetricRegistry.name("reddcrawl", "story", "history", "node", workerNode.getMetricName(), "updates"));
+        this.nodeHistoryCheckedMeter = metricRegistry.meter(MetricRegistry.name("reddcrawl", "story", "history", "node", workerNode.getMetricName(), "checks"));
         this.historyUpdateBatchHistogram = metricRegistry.histogram(MetricRegistry.name("reddcrawl", "story", "history", "batch_size"));
+
+        //counts of tracked stories that are currently backed off or retired - these are count queries so only run them once a minute
+        metricRegistry.register(MetricRegistry.name("reddcrawl", "story", "history", "backoff", "count"), new CachedGauge<Long>(1, TimeUnit.MINUTES) {
+            @Override
+            protected Long loadValue() {
+                return storyRepository.countStoriesWithMissedChecks(getOldestTrackedStoryDate(), 1, maxMissedChecks);
+            }
+        });
+
+        metricRegistry.register(MetricRegistry.name("reddcrawl", "story", "history", "retired", "count"), new CachedGauge<Long>(1, TimeUnit.MINUTES) {
+            @Override
+            protected Long loadValue() {
+                return storyRepository.countStoriesWithMissedChecks(getOldestTrackedStoryDate(), maxMissedChecks, Integer.MAX_VALUE);
+            }
+        });
     }
 
     @Override
@@ -87,11 +167,26 @@ public class StoryHistoryUpdaterService extends Service {
             LOGGER.info("finding front page stories using " + numUpdateWorkers + " workers.");
 
             final Date minTimeAgo = new Date(new Date().getTime() - TimeUnit.SECONDS.toMillis(this.historyUpdateIntervalInSeconds)); //stories dont update sooner than 2 minutes
-            final Date maxTimeAgo = new Date(new Date().getTime() - TimeUnit.SECONDS.toMillis(this.oldestStoryAgeInSeconds)); //dont update past 2 days old
+            final Date maxTimeAgo = getOldestTrackedStoryDate(); //dont update past 2 days old
 
-            //request a big batch of stories up to worker count * max listing size
-            final List<StoryModel> storiesNeedingUpdate =
-                    storyRepository.findStoriesNeedingUpdate(maxTimeAgo, minTimeAgo, this.numUpdateWorkers * RedditClient.MAX_ITEMS_PER_LISTING_PAGE);
+            //request a big batch of stories up to worker count * max listing size. The stories only count as checked
+            //once their history is in the database - while the writer is behind, the leases keep the stories in the
+            //journal out of the batch, and without leasing we leave them out ourselves (and ask for that many more)
+            final int batchSize = this.numUpdateWorkers * RedditClient.MAX_ITEMS_PER_LISTING_PAGE;
+            final List<StoryWorkItem> storiesNeedingUpdate;
+            if (leasingEnabled) {
+                storiesNeedingUpdate = storyRepository.leaseStoriesNeedingUpdate(maxTimeAgo, minTimeAgo, this.maxMissedChecks,
+                        batchSize, workerNode.getId(), leaseDurationInSeconds);
+            } else {
+                final Set<Integer> pendingStoryIds = storyHistoryJournal.getPendingStoryIds();
+                storiesNeedingUpdate = new ArrayList<>(batchSize);
+                for (final StoryWorkItem storyWorkItem : storyRepository.findStoriesNeedingUpdate(maxTimeAgo, minTimeAgo,
+                        this.maxMissedChecks, batchSize + pendingStoryIds.size())) {
+                    if (storiesNeedingUpdate.size() < batchSize && !pendingStoryIds.contains(storyWorkItem.getId())) {
+                        storiesNeedingUpdate.add(storyWorkItem);
+                    }
+                }
+            }
 
             //update the histogram so we can see when we are saturating the batch size or not
             historyUpdateBatchHistogram.update(storiesNeedingUpdate.size());
@@ -103,20 +198,21 @@ public class StoryHistoryUpdaterService extends Service {
             }
 
             //batch it up using guava
-            final List<List<StoryModel>> storiesNeedingUpdateBatched =
+            final List<List<StoryWorkItem>> storiesNeedingUpdateBatched =
                     Lists.partition(storiesNeedingUpdate, RedditClient.MAX_ITEMS_PER_LISTING_PAGE);
 
             //then create a thread for each batch and kick off the job
             final List<Thread> workerThreads = new ArrayList<>(storiesNeedingUpdateBatched.size());
-            for (final List<StoryModel> storyBatchItem : storiesNeedingUpdateBatched) {
+            for (final List<StoryWorkItem> storyBatchItem : storiesNeedingUpdateBatched) {
                 final Thread thread = new Thread(new Runnable() {
                     @Override
                     public void run() {
                         try {
-                            //in each thread, we are going to first convert the story map into a lookup table
+                            //in each thread, we are going to first convert the work items into a lookup table of stories
+                            //to write the updates to (by primary key - the rest of the story is never loaded)
                             final HashMap<String, StoryModel> storyModelLookup = new HashMap<>();
-                            for (final StoryModel storyModel : storyBatchItem) {
-                                storyModelLookup.put(storyModel.getRedditShortId(), storyModel);
+                            for (final StoryWorkItem storyWorkItem : storyBatchItem) {
+                                storyModelLookup.put(storyWorkItem.getRedditShortId(), storyWorkItem.toStoryReference());
                             }
 
                             //and then we will request the list of story ids to be updated via the redditclient
@@ -126,37 +222,60 @@ public class StoryHistoryUpdaterService extends Service {
 
 
                             //then we will create story history items with them
+                            final List<StoryHistoryModel> newHistoryItems = new ArrayList<>(storiesUpdated.size());
+                            final List<StoryModel> missingStories = new ArrayList<>();
                             for (final String storyId : storyModelLookup.keySet()) {
+                                final StoryModel storyModel = storyModelLookup.get(storyId);
+                                historyCheckedMeter.mark(); //mark the checked meter so we know the story was at least marked as 'checked'
+                                nodeHistoryCheckedMeter.mark();
 
-                                final StoryHistoryModel newHistoryItem;
-                                if (storiesUpdated.containsKey(storyId)) {
-                                    final RedditStory updatedRedditStory = storiesUpdated.get(storyId);
-                                    newHistoryItem = new StoryHistoryModel();
-                                    newHistoryItem.setTimestamp(new Date());
-                                    newHistoryItem.setScore(updatedRedditStory.getScore());
-                                    newHistoryItem.setHotness(updatedRedditStory.getHotness());
-                                    newHistoryItem.setComments(updatedRedditStory.getNumComments());
-                                    newHistoryItem.setGilded(updatedRedditStory.getGilded());
-                                } else {
-                                    //if you pass null to addStoryHistory, it will mark it as checked but not updated
-                                    newHistoryItem = null;
+                                if (!storiesUpdated.containsKey(storyId)) {
+                                    //reddit didn't give the story back - it's backed off once the history is safe in the journal
+                                    missingStories.add(storyModel);
+                                    continue;
                                 }
 
-                                //and then store that history item in the database
-                                storyRepository.addStoryHistory(storyModelLookup.get(storyId), newHistoryItem);
-                                historyCheckedMeter.mark(); //mark the checked meter so we know the story was at least marked as 'checked'
-                                if (newHistoryItem == null) {
-                                    LOGGER.debug("Could not update history for " + storyId + " - marked as just checked");
+                                final RedditStory updatedRedditStory = storiesUpdated.get(storyId);
+                                final StoryHistoryModel newHistoryItem = new StoryHistoryModel();
+                                newHistoryItem.setTimestamp(new Date());
+                                newHistoryItem.setScore(updatedRedditStory.getScore());
+                                newHistoryItem.setHotness(updatedRedditStory.getHotness());
+                                newHistoryItem.setComments(updatedRedditStory.getNumComments());
+                                newHistoryItem.setGilded(updatedRedditStory.getGilded());
+                                newHistoryItem.setStory(storyModel);
+                                newHistoryItems.add(newHistoryItem);
+                            }
 
-                                } else {
-                                    LOGGER.trace("Updated history for " + storyId);
-                                    historyUpdateMeter.mark(); //mark as updated succesfully
-                                }
+                            //and then hand the whole batch of history items to the journal - the writer stores them in the
+                            //database (which also clears any missed checks) and publishes the update events
+                            storyHistoryJournal.append(newHistoryItems);
+                            LOGGER.trace("Updated history for " + newHistoryItems.size() + " stories");
+                            historyUpdateMeter.mark(newHistoryItems.size()); //mark as updated succesfully
+                            nodeHistoryUpdateMeter.mark(newHistoryItems.size());
+
+                            //back off checking the missing stories instead of asking again next interval
+                            for (final StoryModel missingStory : missingStories) {
+                                markStoryMissing(missingStory);
                             }
                         } catch (@Nonnull final RedditClientException redditClientException) {
                             //catch point - if a RCE is emitted we are just going to ignore this batch and emit an error to log
                             //the batch will be in the next iteration to be retried
                             LOGGER.error("Worker received RCE: " + redditClientException);
+                            if (leasingEnabled) {
+                                //give the batch back right away instead of waiting for the leases to expire
+                                final List<StoryModel> leasedStories = new ArrayList<>(storyBatchItem.size());
+                                for (final StoryWorkItem storyWorkItem : storyBatchItem) {
+                                    leasedStories.add(storyWorkItem.toStoryReference());
+                                }
+                                try {
+                                    storyRepository.releaseStoryLeases(leasedStories, workerNode.getId());
+                                } catch (@Nonnull final DataAccessException dataAccessException) {
+                                    LOGGER.warn("Could not release the leases of the batch - they run out on their own", dataAccessException);
+                                }
+                            }
+                        } catch (@Nonnull final InterruptedException interruptedException) {
+                            //shutting down while waiting for room in the journal - the leases run out on their own
+                            Thread.currentThread().interrupt();
                         }
                     }
                 });
@@ -173,6 +292,46 @@ public class StoryHistoryUpdaterService extends Service {
         }
     }
 
+    /**
+     * Marks a story reddit didn't return as missing, pushing its next check out exponentially with every miss in a row:
+     * the first miss is checked again after the normal interval, the next after twice that, then four times and so on
+     * (capped). Once the story has missed maxMissedChecks checks it is no longer picked up for updates.
+     */
+    private void markStoryMissing(@Nonnull final StoryModel storyModel) {
+        final int missedChecks = storyModel.getMissedChecks() + 1;
+        historyMissedMeter.mark();
+
+        final long intervalMillis = TimeUnit.SECONDS.toMillis(historyUpdateIntervalInSeconds);
+        final long backoffMillis = Math.min(intervalMillis << Math.min(missedChecks - 1, 30),
+                TimeUnit.SECONDS.toMillis(maxMissedBackoffInSeconds));
+
+        //stories are picked up once checked_at is an interval old, so push checked_at forward by the extra backoff
+        final Date now = new Date();
+        final Date checkedAt = new Date(now.getTime() + Math.max(0L, backoffMillis - intervalMillis));
+        try {
+            if (storyRepository.markStoryMissing(storyModel, checkedAt)) {
+                storyEventRing.publish(StoryEvent.fromStory(StoryEvent.Type.MISSING, storyModel, now));
+            }
+        } catch (@Nonnull final DataAccessException dataAccessException) {
+            //the story is simply checked again once its lease (or the update interval) runs out
+            LOGGER.warn("Could not mark story " + storyModel.getRedditShortId() + " as missing", dataAccessException);
+            return;
+        }
+
+        if (missedChecks >= maxMissedChecks) {
+            historyRetiredMeter.mark();
+            LOGGER.info("Story " + storyModel.getRedditShortId() + " missed " + missedChecks + " checks in a row - retiring it");
+        } else {
+            LOGGER.debug("Could not update history for " + storyModel.getRedditShortId() + " (" + missedChecks +
+                    " missed checks) - backing off until " + checkedAt);
+        }
+    }
+
+    @Nonnull
+    private Date getOldestTrackedStoryDate() {
+        return new Date(new Date().getTime() - TimeUnit.SECONDS.toMillis(this.oldestStoryAgeInSeconds));
+    }
+
     @Override
     public int getMinimumRepetitionTimeInSeconds() {
         return 10; //10 seconds wait time if there are not stories needing update (try to queue up some stories)
@@ -0,0 +1,105 @@
+package com.andrewortman.reddcrawl.services;
+
+import com.andrewortman.reddcrawl.events.StoryEvent;
+import com.andrewortman.reddcrawl.events.StoryEventRing;
+import com.andrewortman.reddcrawl.repository.StoryHistoryJournal;
+import com.andrewortman.reddcrawl.repository.StoryRepository;
+import com.andrewortman.reddcrawl.repository.model.StoryHistoryModel;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+
+/**
+ * Writes the story history items the history updater put in the journal to the database, in batches. When the
+ * database is stalled the batch stays in the journal and is tried again after a short delay, while the updater
+ * keeps on fetching. Runs on every worker node, since every node has its own journal
+ */
+public class StoryHistoryWriterService extends Service {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StoryHistoryWriterService.class);
+
+    //how long to wait for new items before checking if the service was interrupted
+    private static final long IDLE_WAIT_MILLIS = 1000;
+
+    @Nonnull
+    private final StoryHistoryJournal storyHistoryJournal;
+
+    @Nonnull
+    private final StoryRepository storyRepository;
+
+    @Nonnull
+    private final StoryEventRing storyEventRing;
+
+    private final int maxBatchSize;
+
+    //time it takes to write a batch to the database
+    @Nonnull
+    private final Timer flushTimer;
+
+    @Nonnull
+    private final Histogram flushBatchHistogram;
+
+    public StoryHistoryWriterService(@Nonnull final StoryHistoryJournal storyHistoryJournal,
+                                     @Nonnull final StoryRepository storyRepository,
+                                     @Nonnull final StoryEventRing storyEventRing,
+                                     final int maxBatchSize,
+                                     @Nonnull final MetricRegistry metricRegistry) {
+        this.storyHistoryJournal = storyHistoryJournal;
+        this.storyRepository = storyRepository;
+        this.storyEventRing = storyEventRing;
+        this.maxBatchSize = maxBatchSize;
+        this.flushTimer = metricRegistry.timer(MetricRegistry.name("reddcrawl", "story", "history", "journal", "flush"));
+        this.flushBatchHistogram = metricRegistry.histogram(MetricRegistry.name("reddcrawl", "story", "history", "journal", "batch_size"));
+
+        //number of fetched history items that aren't in the database yet
+        metricRegistry.register(MetricRegistry.name("reddcrawl", "story", "history", "journal", "depth"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return storyHistoryJournal.getDepth();
+            }
+        });
+    }
+
+    @Override
+    public void runIteration() throws Exception {
+        while (!interrupted()) {
+            if (!storyHistoryJournal.awaitItems(IDLE_WAIT_MILLIS)) {
+                continue;
+            }
+
+            final StoryHistoryJournal.Batch batch = storyHistoryJournal.take(maxBatchSize);
+            final List<StoryHistoryModel> addedHistoryItems;
+            final Timer.Context timerContext = flushTimer.time();
+            try {
+                addedHistoryItems = storyRepository.addStoryHistories(batch.getHistoryItems());
+            } finally {
+                timerContext.stop();
+            }
+
+            storyHistoryJournal.commit(batch);
+            storyHistoryJournal.force();
+            flushBatchHistogram.update(batch.getHistoryItems().size());
+            LOGGER.trace("Wrote " + batch.getHistoryItems().size() + " history items from the journal");
+
+            for (final StoryHistoryModel addedHistoryItem : addedHistoryItems) {
+                storyEventRing.publish(StoryEvent.fromHistory(StoryEvent.Type.UPDATED, addedHistoryItem.getStory(), addedHistoryItem));
+            }
+        }
+    }
+
+    @Override
+    public int getMinimumRepetitionTimeInSeconds() {
+        return 1;
+    }
+
+    @Override
+    public int getRepeatDelayInSecondsIfExceptionOccurred() {
+        return 5; //the database is having trouble - the batch stays in the journal until it comes back
+    }
+}
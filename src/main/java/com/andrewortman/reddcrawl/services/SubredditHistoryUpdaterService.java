@@ -1,25 +1,28 @@
 package com.andrewortman.reddcrawl.services;
 
 import com.andrewortman.reddcrawl.client.RedditClient;
-import com.andrewortman.reddcrawl.client.RedditClientException;
 import com.andrewortman.reddcrawl.client.models.RedditSubreddit;
 import com.andrewortman.reddcrawl.repository.SubredditRepository;
 import com.andrewortman.reddcrawl.repository.model.SubredditHistoryModel;
 import com.andrewortman.reddcrawl.repository.model.SubredditModel;
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.Lists;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
-import javax.ws.rs.ForbiddenException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
 
 /**
  * This service will simply go out and fetch the details about known subreddits create new history items for them
- * in the database
+ * in the database. Details are fetched in bulk (up to 100 subreddits per request) and the SubredditUpdateScheduler
+ * decides which subreddits are due on each run.
  */
 public class SubredditHistoryUpdaterService extends Service {
 
@@ -31,64 +34,104 @@ public class SubredditHistoryUpdaterService extends Service {
     @Nonnull
     private final SubredditRepository subredditRepository;
 
+    @Nonnull
+    private final SubredditUpdateScheduler updateScheduler;
+
     @Nonnull
     private final Meter historyUpdateMeter;
 
-    private final int updateIntervalSeconds;
+    //marks the times reddit didn't give us the details of a subreddit (private, banned or deleted)
+    @Nonnull
+    private final Meter historyUnavailableMeter;
+
+    private final int checkIntervalSeconds;
 
     public SubredditHistoryUpdaterService(@Nonnull final RedditClient redditClient,
                                           @Nonnull final SubredditRepository subredditRepository,
+                                          @Nonnull final SubredditUpdateScheduler updateScheduler,
                                           @Nonnull final MetricRegistry metricRegistry,
-                                          final int updateIntervalSeconds) {
+                                          final int checkIntervalSeconds) {
         this.redditClient = redditClient;
         this.subredditRepository = subredditRepository;
-        this.updateIntervalSeconds = updateIntervalSeconds;
+        this.updateScheduler = updateScheduler;
+        this.checkIntervalSeconds = checkIntervalSeconds;
 
         //metrics
         this.historyUpdateMeter = metricRegistry.meter(MetricRegistry.name("reddcrawl", "subreddit", "history", "updates"));
+        this.historyUnavailableMeter = metricRegistry.meter(MetricRegistry.name("reddcrawl", "subreddit", "history", "unavailable"));
+        metricRegistry.register(MetricRegistry.name("reddcrawl", "subreddit", "history", "backoff", "count"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return updateScheduler.getUnavailableCount();
+            }
+        });
     }
 
     @Override
     public void runIteration() throws Exception {
-        //hack: need way of doing this without a "divide by 2" window
-        final Date latestDate = new Date(new Date().getTime() - TimeUnit.SECONDS.toMillis(updateIntervalSeconds) / 2);
-
-        final List<SubredditModel> subredditsNeedingUpdate = subredditRepository.findSubredditsNeedingUpdate(latestDate);
-
-        for (final SubredditModel subredditModel : subredditsNeedingUpdate) {
-            LOGGER.info("Fetching subreddit details for subreddit " + subredditModel.getName());
-            final RedditSubreddit redditSubreddit;
-
-            try {
-                redditSubreddit = redditClient.getSubredditByName(subredditModel.getName());
-            } catch (@Nonnull final RedditClientException redditClientException) {
-                //if the subreddit went private, we'll receive a forbidden exception, so we need to handle that special case
-                //I had to do this when IAMA went private on July 2nd, 2015
-                if (redditClientException.getCause() instanceof ForbiddenException) {
-                    LOGGER.warn("Received forbidden exception when fetching subreddit details for " + subredditModel.getName());
-                    continue;
-                } else {
-                    //rethrow
-                    throw redditClientException;
-                }
+        final Date now = new Date();
+
+        //nothing can be due sooner than the shortest interval since its last update - the scheduler does the rest
+        final Date latestDate = new Date(now.getTime() - updateScheduler.getShortestUpdateIntervalMillis());
+        final List<SubredditModel> subredditsNeedingUpdate = new ArrayList<>();
+        for (final SubredditModel subredditModel : subredditRepository.findSubredditsNeedingUpdate(latestDate)) {
+            if (updateScheduler.isDue(subredditModel.getName(), subredditModel.getUpdatedAt(), now)) {
+                subredditsNeedingUpdate.add(subredditModel);
+            }
+        }
+
+        if (subredditsNeedingUpdate.isEmpty()) {
+            return;
+        }
+
+        LOGGER.info("Fetching subreddit details for " + subredditsNeedingUpdate.size() + " subreddits");
+        for (final List<SubredditModel> batch : Lists.partition(subredditsNeedingUpdate, RedditClient.MAX_ITEMS_PER_LISTING_PAGE)) {
+            if (interrupted() || !holdsLeadership()) {
+                return;
+            }
+
+            final Map<String, SubredditModel> subredditModelLookup = new HashMap<>();
+            for (final SubredditModel subredditModel : batch) {
+                subredditModelLookup.put(subredditModel.getSubredditShortId(), subredditModel);
             }
 
-            LOGGER.info("Saving subreddit history for subreddit " + subredditModel.getName());
+            final Map<String, RedditSubreddit> redditSubreddits = redditClient.getSubredditsById(subredditModelLookup.keySet());
+            final Date fetchedAt = new Date();
 
-            final SubredditHistoryModel historyModel = new SubredditHistoryModel();
-            historyModel.setSubreddit(subredditModel);
-            historyModel.setTimestamp(new Date());
-            historyModel.setSubscribers(redditSubreddit.getSubscribers());
-            historyModel.setActive(redditSubreddit.getActive());
-            historyModel.setCommentHideMins(redditSubreddit.getCommentScoreHideMins());
-            subredditRepository.addSubredditHistory(subredditModel, historyModel);
-            historyUpdateMeter.mark();
+            for (final Map.Entry<String, SubredditModel> entry : subredditModelLookup.entrySet()) {
+                final SubredditModel subredditModel = entry.getValue();
+                final RedditSubreddit redditSubreddit = redditSubreddits.get(entry.getKey());
+
+                //banned/deleted subreddits don't come back at all, and private ones have no usable details. I had to deal with
+                //this when IAMA went private on July 2nd, 2015 - back off on them until they come back
+                if (redditSubreddit == null || "private".equals(redditSubreddit.getSubredditType())) {
+                    LOGGER.warn("Could not fetch subreddit details for " + subredditModel.getName() + " - backing off");
+                    updateScheduler.recordUnavailable(subredditModel.getName(), fetchedAt);
+                    historyUnavailableMeter.mark();
+                    continue;
+                }
+
+                final SubredditHistoryModel historyModel = new SubredditHistoryModel();
+                historyModel.setSubreddit(subredditModel);
+                historyModel.setTimestamp(fetchedAt);
+                historyModel.setSubscribers(redditSubreddit.getSubscribers());
+                historyModel.setActive(redditSubreddit.getActive());
+                historyModel.setCommentHideMins(redditSubreddit.getCommentScoreHideMins());
+                subredditRepository.addSubredditHistory(subredditModel, historyModel);
+                updateScheduler.recordUpdate(subredditModel.getName(), redditSubreddit.getActive(), fetchedAt);
+                historyUpdateMeter.mark();
+            }
         }
     }
 
+    @Override
+    public boolean isSingleton() {
+        return true;
+    }
+
     @Override
     public int getMinimumRepetitionTimeInSeconds() {
-        return updateIntervalSeconds; //every 30 minutes
+        return checkIntervalSeconds; //due times are per subreddit now, so just look for due ones every so often
     }
 
     @Override
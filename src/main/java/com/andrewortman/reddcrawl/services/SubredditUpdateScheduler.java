@@ -0,0 +1,111 @@
+package com.andrewortman.reddcrawl.services;
+
+import javax.annotation.Nonnull;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a due time for every subreddit the subreddit history updater samples. Busy subreddits (lots of active users)
+ * are sampled more often than quiet ones, and subreddits reddit won't give us details for (private, banned or deleted)
+ * are backed off exponentially so they don't eat up requests until they come back.
+ * <p/>
+ * Due times are only kept in memory - a subreddit the scheduler hasn't seen yet (e.g. after a restart) is due one
+ * regular interval after its last update in the database.
+ */
+public class SubredditUpdateScheduler {
+
+    private final long updateIntervalMillis;
+
+    private final long busyUpdateIntervalMillis;
+
+    //subreddits with at least this many active users are sampled at the busy interval
+    private final int busyActiveUsers;
+
+    private final long maxBackoffMillis;
+
+    @Nonnull
+    private final Map<String, SubredditSchedule> schedules = new HashMap<>();
+
+    public SubredditUpdateScheduler(final int updateIntervalSeconds,
+                                    final int busyUpdateIntervalSeconds,
+                                    final int busyActiveUsers,
+                                    final int maxBackoffSeconds) {
+        this.updateIntervalMillis = TimeUnit.SECONDS.toMillis(updateIntervalSeconds);
+        this.busyUpdateIntervalMillis = TimeUnit.SECONDS.toMillis(busyUpdateIntervalSeconds);
+        this.busyActiveUsers = busyActiveUsers;
+        this.maxBackoffMillis = TimeUnit.SECONDS.toMillis(maxBackoffSeconds);
+    }
+
+    /**
+     * @return the shortest time between two samples of a subreddit, in milliseconds
+     */
+    public long getShortestUpdateIntervalMillis() {
+        return Math.min(updateIntervalMillis, busyUpdateIntervalMillis);
+    }
+
+    /**
+     * Checks if a subreddit is due to be sampled
+     *
+     * @param subreddit     subreddit name
+     * @param lastUpdatedAt last time the subreddit got a history item - used when the scheduler doesn't know the subreddit yet
+     * @param now           current time
+     * @return true if the subreddit should be sampled now
+     */
+    public synchronized boolean isDue(@Nonnull final String subreddit, @Nonnull final Date lastUpdatedAt, @Nonnull final Date now) {
+        final SubredditSchedule schedule = schedules.get(subreddit);
+        final long dueAt = schedule != null ? schedule.dueAt : lastUpdatedAt.getTime() + updateIntervalMillis;
+        return dueAt <= now.getTime();
+    }
+
+    /**
+     * Records a successful sample of a subreddit, scheduling the next one based on how busy the subreddit is
+     *
+     * @param subreddit   subreddit name
+     * @param activeUsers number of active users reddit reported
+     * @param now         current time
+     */
+    public synchronized void recordUpdate(@Nonnull final String subreddit, final int activeUsers, @Nonnull final Date now) {
+        final long interval = activeUsers >= busyActiveUsers ? busyUpdateIntervalMillis : updateIntervalMillis;
+        schedules.put(subreddit, new SubredditSchedule(now.getTime() + interval, 0));
+    }
+
+    /**
+     * Records that reddit didn't give us details for a subreddit (private, banned or deleted). Every miss in a row
+     * doubles the time until the next attempt, up to the max backoff
+     *
+     * @param subreddit subreddit name
+     * @param now       current time
+     */
+    public synchronized void recordUnavailable(@Nonnull final String subreddit, @Nonnull final Date now) {
+        final SubredditSchedule previous = schedules.get(subreddit);
+        final int misses = previous != null ? previous.misses + 1 : 1;
+        final long backoff = Math.min(updateIntervalMillis << Math.min(misses, 30), maxBackoffMillis);
+        schedules.put(subreddit, new SubredditSchedule(now.getTime() + backoff, misses));
+    }
+
+    /**
+     * @return the number of subreddits currently backed off because reddit didn't give us their details
+     */
+    public synchronized int getUnavailableCount() {
+        int count = 0;
+        for (final SubredditSchedule schedule : schedules.values()) {
+            if (schedule.misses > 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static class SubredditSchedule {
+        private final long dueAt;
+
+        private final int misses;
+
+        private SubredditSchedule(final long dueAt, final int misses) {
+            this.dueAt = dueAt;
+            this.misses = misses;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.andrewortman.reddcrawl.services;
+
+import com.google.common.base.Strings;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Identifies this worker process when several workers share the same database. The id ends up in the story lease
+ * columns and in the per-node metric names, so it should be stable for the life of the process and unique per node.
+ */
+public class WorkerNode {
+    @Nonnull
+    private final String id;
+
+    /**
+     * @param configuredId the configured node id - if empty, falls back to pid@hostname
+     */
+    public WorkerNode(@Nullable final String configuredId) {
+        this.id = Strings.isNullOrEmpty(configuredId) ? ManagementFactory.getRuntimeMXBean().getName() : configuredId;
+    }
+
+    @Nonnull
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the node id with anything that would split up a metric name replaced
+     */
+    @Nonnull
+    public String getMetricName() {
+        return id.replaceAll("[^A-Za-z0-9_-]", "_");
+    }
+
+    @Override
+    public String toString() {
+        return id;
+    }
+}
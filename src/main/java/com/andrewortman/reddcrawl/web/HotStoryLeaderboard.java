@@ -0,0 +1,336 @@
+package com.andrewortman.reddcrawl.web;
+
+import com.andrewortman.reddcrawl.repository.StoryRepository;
+import com.andrewortman.reddcrawl.repository.model.StoryModel;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The hottest stories, overall and per subreddit, kept in memory so the front page never has to ask the database.
+ * The web app doesn't see the crawler's story events (it runs in its own process), so the leaderboard follows the
+ * stories whose counters were updated since its last refresh instead - every tracked story is updated once per history
+ * update interval, so that covers all of them. Stories that stop being updated (retired, missing from reddit or
+ * archived) are dropped from the subreddit boards once they are stale.
+ * <p/>
+ * Updates of stories that fall out of a full board are lost, so every now and then the overall board is replaced by
+ * the hottest stories in the database (an index scan on the hotness, not a sort).
+ */
+public class HotStoryLeaderboard {
+    private static final Logger LOGGER = LoggerFactory.getLogger(HotStoryLeaderboard.class);
+
+    @Nonnull
+    private final StoryRepository storyRepository;
+
+    //read-only, so the queries go to the replica
+    @Nonnull
+    private final TransactionTemplate readOnlyTransactionTemplate;
+
+    private final int subredditSize;
+
+    //history is written behind (see StoryHistoryJournal), so updates can reach the database a little out of order
+    private final long lookbackMillis;
+
+    private final long staleMillis;
+
+    private final int pageSize;
+
+    @Nonnull
+    private final Timer refreshTimer;
+
+    @Nonnull
+    private final Timer reconcileTimer;
+
+    //guarded by this
+    @Nonnull
+    private final Board overallBoard;
+
+    @Nonnull
+    private final Map<String, Board> subredditBoards = new HashMap<>();
+
+    //latest update seen so far, the next refresh continues from there (guarded by this)
+    @Nullable
+    private Date lastUpdatedAt;
+
+    @Nullable
+    private ScheduledExecutorService executor;
+
+    public HotStoryLeaderboard(@Nonnull final StoryRepository storyRepository,
+                               @Nonnull final TransactionTemplate readOnlyTransactionTemplate,
+                               final int size,
+                               final int subredditSize,
+                               final int lookbackSeconds,
+                               final int staleSeconds,
+                               final int pageSize,
+                               @Nonnull final MetricRegistry metricRegistry) {
+        this.storyRepository = storyRepository;
+        this.readOnlyTransactionTemplate = readOnlyTransactionTemplate;
+        this.subredditSize = subredditSize;
+        this.lookbackMillis = TimeUnit.SECONDS.toMillis(lookbackSeconds);
+        this.staleMillis = TimeUnit.SECONDS.toMillis(staleSeconds);
+        this.pageSize = pageSize;
+        this.overallBoard = new Board(size);
+        this.refreshTimer = metricRegistry.timer(MetricRegistry.name("reddcrawl", "leaderboard", "refresh"));
+        this.reconcileTimer = metricRegistry.timer(MetricRegistry.name("reddcrawl", "leaderboard", "reconcile"));
+    }
+
+    /**
+     * @return true once the leaderboard has been loaded from the database
+     */
+    public synchronized boolean isLoaded() {
+        return lastUpdatedAt != null;
+    }
+
+    /**
+     * @return the hottest stories overall, hottest first
+     */
+    @Nonnull
+    public synchronized List<StoryModel> getHottestStories(final int limit) {
+        return overallBoard.getTop(limit);
+    }
+
+    /**
+     * @return the hottest stories of a subreddit, hottest first (empty if the subreddit has no tracked stories)
+     */
+    @Nonnull
+    public synchronized List<StoryModel> getHottestStories(@Nonnull final String subreddit, final int limit) {
+        final Board board = subredditBoards.get(subreddit);
+        return board == null ? Collections.<StoryModel>emptyList() : board.getTop(limit);
+    }
+
+    /**
+     * Applies the stories updated since the last refresh
+     */
+    public void refresh() {
+        final Timer.Context timerContext = refreshTimer.time();
+        try {
+            final Date since;
+            synchronized (this) {
+                if (lastUpdatedAt == null) {
+                    return; //not loaded yet
+                }
+                since = new Date(lastUpdatedAt.getTime() - lookbackMillis);
+            }
+
+            //pages continue from the (update time, id) of the last story, stories updated at the same time are ordered by id
+            Date pageStart = since;
+            int pageStartId = 0;
+            while (true) {
+                final Date updatedAfter = pageStart;
+                final int afterId = pageStartId;
+                final List<StoryModel> updatedStories = readOnlyTransactionTemplate.execute(new TransactionCallback<List<StoryModel>>() {
+                    @Override
+                    public List<StoryModel> doInTransaction(final TransactionStatus status) {
+                        return storyRepository.findStoriesUpdatedSince(updatedAfter, afterId, pageSize);
+                    }
+                });
+                apply(updatedStories);
+                if (updatedStories.size() < pageSize) {
+                    break;
+                }
+                final StoryModel last = updatedStories.get(updatedStories.size() - 1);
+                pageStart = last.getUpdatedAt();
+                pageStartId = last.getId();
+            }
+
+            evictStaleStories();
+        } finally {
+            timerContext.stop();
+        }
+    }
+
+    /**
+     * Replaces the overall board with the hottest stories in the database
+     */
+    public void reconcile() {
+        final Timer.Context timerContext = reconcileTimer.time();
+        try {
+            final List<StoryModel> hottestStories = readOnlyTransactionTemplate.execute(new TransactionCallback<List<StoryModel>>() {
+                @Override
+                public List<StoryModel> doInTransaction(final TransactionStatus status) {
+                    return storyRepository.getHottestStories(overallBoard.capacity, true);
+                }
+            });
+            synchronized (this) {
+                overallBoard.clear();
+                if (lastUpdatedAt == null) {
+                    //the first load - the subreddit boards fill up as the stories get updated from here on. The refreshes
+                    //continue from the newest of the hottest stories, or from now if there are none yet (instead of
+                    //paging through every story there is)
+                    lastUpdatedAt = hottestStories.isEmpty() ? new Date() : new Date(0);
+                }
+                apply(hottestStories);
+            }
+            evictStaleStories();
+        } finally {
+            timerContext.stop();
+        }
+    }
+
+    private synchronized void apply(@Nonnull final Collection<StoryModel> stories) {
+        for (final StoryModel story : stories) {
+            overallBoard.offer(story);
+
+            final String subreddit = story.getSubreddit().getName();
+            Board subredditBoard = subredditBoards.get(subreddit);
+            if (subredditBoard == null) {
+                subredditBoard = new Board(subredditSize);
+                subredditBoards.put(subreddit, subredditBoard);
+            }
+            subredditBoard.offer(story);
+
+            if (lastUpdatedAt != null && story.getUpdatedAt().after(lastUpdatedAt)) {
+                lastUpdatedAt = story.getUpdatedAt();
+            }
+        }
+    }
+
+    private synchronized void evictStaleStories() {
+        if (lastUpdatedAt == null) {
+            return;
+        }
+
+        //stale relative to the newest update, so a stalled crawler doesn't empty the boards. The overall board is left
+        //alone - it is replaced as a whole, and should match what the database has
+        final Date staleBefore = new Date(lastUpdatedAt.getTime() - staleMillis);
+        final Iterator<Board> subredditBoardIterator = subredditBoards.values().iterator();
+        while (subredditBoardIterator.hasNext()) {
+            final Board subredditBoard = subredditBoardIterator.next();
+            subredditBoard.evictUpdatedBefore(staleBefore);
+            if (subredditBoard.isEmpty()) {
+                subredditBoardIterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Loads the leaderboard and keeps it up to date in the background
+     */
+    public synchronized void start(final int refreshIntervalSeconds, final int reconcileIntervalSeconds) {
+        executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("leaderboard-%d").setDaemon(true).build());
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reconcile();
+                } catch (@Nonnull final Exception e) {
+                    LOGGER.error("Could not reconcile the story leaderboard", e);
+                }
+            }
+        }, 0, reconcileIntervalSeconds, TimeUnit.SECONDS);
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                } catch (@Nonnull final Exception e) {
+                    LOGGER.error("Could not refresh the story leaderboard", e);
+                }
+            }
+        }, refreshIntervalSeconds, refreshIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * The hottest stories of one board, kept sorted and bounded - the coldest story goes when a hotter one comes in
+     */
+    private static class Board {
+        private static final Comparator<StoryModel> HOTTEST_FIRST = new Comparator<StoryModel>() {
+            @Override
+            public int compare(final StoryModel a, final StoryModel b) {
+                final int byHotness = Double.compare(b.getHotness(), a.getHotness());
+                return byHotness != 0 ? byHotness : Integer.compare(a.getId(), b.getId());
+            }
+        };
+
+        private final int capacity;
+
+        private final TreeSet<StoryModel> stories = new TreeSet<>(HOTTEST_FIRST);
+
+        //the instance in the set for every story id, to find it again when the story is updated
+        private final Map<Integer, StoryModel> storiesById = new HashMap<>();
+
+        Board(final int capacity) {
+            this.capacity = capacity;
+        }
+
+        void offer(@Nonnull final StoryModel story) {
+            final StoryModel previous = storiesById.get(story.getId());
+            if (previous != null) {
+                if (previous.getUpdatedAt().after(story.getUpdatedAt())) {
+                    return; //already have a newer version
+                }
+                stories.remove(previous);
+                storiesById.remove(story.getId());
+            } else if (stories.size() >= capacity && HOTTEST_FIRST.compare(story, stories.last()) > 0) {
+                return; //not hot enough
+            }
+
+            stories.add(story);
+            storiesById.put(story.getId(), story);
+            if (stories.size() > capacity) {
+                storiesById.remove(stories.pollLast().getId());
+            }
+        }
+
+        void evictUpdatedBefore(@Nonnull final Date staleBefore) {
+            final Iterator<StoryModel> storyIterator = stories.iterator();
+            while (storyIterator.hasNext()) {
+                final StoryModel story = storyIterator.next();
+                if (story.getUpdatedAt().before(staleBefore)) {
+                    storyIterator.remove();
+                    storiesById.remove(story.getId());
+                }
+            }
+        }
+
+        @Nonnull
+        List<StoryModel> getTop(final int limit) {
+            final List<StoryModel> top = new ArrayList<>(Math.min(limit, stories.size()));
+            for (final StoryModel story : stories) {
+                if (top.size() >= limit) {
+                    break;
+                }
+                top.add(story);
+            }
+            return top;
+        }
+
+        boolean isEmpty() {
+            return stories.isEmpty();
+        }
+
+        void clear() {
+            stories.clear();
+            storiesById.clear();
+        }
+    }
+}
@@ -3,10 +3,16 @@ package com.andrewortman.reddcrawl.web;
 import com.andrewortman.reddcrawl.ReddcrawlCommonConfiguration;
 import com.andrewortman.reddcrawl.repository.PersistenceConfiguration;
 import com.andrewortman.reddcrawl.json.StoryJsonBuilder;
+import com.andrewortman.reddcrawl.repository.StoryRepository;
+import com.codahale.metrics.MetricRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
+import org.springframework.core.env.Environment;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.servlet.config.annotation.EnableWebMvc;
 
 import javax.annotation.Nonnull;
@@ -16,9 +22,42 @@ import javax.annotation.Nonnull;
 @EnableWebMvc
 @Import({ReddcrawlCommonConfiguration.class, PersistenceConfiguration.class})
 public class WebConfiguration {
+    @Autowired
+    @Nonnull
+    private Environment environment;
+
+    @Autowired
+    @Nonnull
+    private StoryRepository storyRepository;
+
+    @Autowired
+    @Nonnull
+    private MetricRegistry metricRegistry;
+
+    @Autowired
+    @Nonnull
+    private PlatformTransactionManager transactionManager;
+
     @Nonnull
     @Bean
     public StoryJsonBuilder storyJsonService() {
         return new StoryJsonBuilder();
     }
+
+    @Nonnull
+    @Bean(destroyMethod = "stop")
+    public HotStoryLeaderboard hotStoryLeaderboard() {
+        final TransactionTemplate readOnlyTransactionTemplate = new TransactionTemplate(transactionManager);
+        readOnlyTransactionTemplate.setReadOnly(true);
+        final HotStoryLeaderboard hotStoryLeaderboard = new HotStoryLeaderboard(storyRepository, readOnlyTransactionTemplate,
+                environment.getRequiredProperty("web.leaderboard.size", Integer.class),
+                environment.getRequiredProperty("web.leaderboard.subredditsize", Integer.class),
+                environment.getRequiredProperty("web.leaderboard.lookback", Integer.class),
+                environment.getRequiredProperty("web.leaderboard.staleafter", Integer.class),
+                environment.getRequiredProperty("web.leaderboard.pagesize", Integer.class),
+                metricRegistry);
+        hotStoryLeaderboard.start(environment.getRequiredProperty("web.leaderboard.refreshinterval", Integer.class),
+                environment.getRequiredProperty("web.leaderboard.reconcileinterval", Integer.class));
+        return hotStoryLeaderboard;
+    }
 }
\ No newline at end of file
@@ -1,46 +1,74 @@
 package com.andrewortman.reddcrawl.web.controllers;
 
+import com.andrewortman.reddcrawl.json.SubredditJsonBuilder;
 import com.andrewortman.reddcrawl.repository.StoryRepository;
 import com.andrewortman.reddcrawl.json.StoryJsonBuilder;
+import com.andrewortman.reddcrawl.repository.SubredditRepository;
 import com.andrewortman.reddcrawl.repository.model.StoryHistoryModel;
 import com.andrewortman.reddcrawl.repository.model.StoryModel;
+import com.andrewortman.reddcrawl.repository.model.SubredditHistoryRollupModel;
+import com.andrewortman.reddcrawl.repository.model.SubredditModel;
+import com.andrewortman.reddcrawl.web.HotStoryLeaderboard;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
+import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 
 import javax.annotation.Nonnull;
 import javax.ws.rs.core.MediaType;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Hosts all of the REST API endpoints the frontend uses to render the current state of the word
+ * Hosts all of the REST API endpoints the frontend uses to render the current state of the word. The endpoints only
+ * read, so they run in read only transactions - those go to the read replica when there is one (db.replica.url).
  */
 
 @Controller
+@Transactional(readOnly = true)
 public class APIController {
+    //number of stories on the front page
+    private static final int TOP_STORIES = 100;
+
+    //longest growth chart per resolution, so a request can't read a subreddit's whole history hour by hour
+    private static final int MAX_HOURLY_GROWTH_DAYS = 90;
+    private static final int MAX_DAILY_GROWTH_DAYS = 3650;
 
     @Nonnull
     private final StoryRepository storyRepository;
 
+    @Nonnull
+    private final SubredditRepository subredditRepository;
+
     @Nonnull
     private final StoryJsonBuilder storyJsonBuilder;
 
+    @Nonnull
+    private final HotStoryLeaderboard hotStoryLeaderboard;
+
     @Autowired
     public APIController(@Nonnull final StoryRepository storyRepository,
-                         @Nonnull final StoryJsonBuilder storyJsonBuilder) {
+                         @Nonnull final SubredditRepository subredditRepository,
+                         @Nonnull final StoryJsonBuilder storyJsonBuilder,
+                         @Nonnull final HotStoryLeaderboard hotStoryLeaderboard) {
         this.storyRepository = storyRepository;
+        this.subredditRepository = subredditRepository;
         this.storyJsonBuilder = storyJsonBuilder;
+        this.hotStoryLeaderboard = hotStoryLeaderboard;
     }
 
     @RequestMapping(value = "/story/{id}", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON)
     @ResponseBody
-    public ResponseEntity getStory(@PathVariable("id") @Nonnull final String storyId) {
+    public ResponseEntity getStory(@PathVariable("id") @Nonnull final String storyId,
+                                   @RequestParam(value = "points", defaultValue = "0") final int points) {
         final StoryModel storyModel = storyRepository.findStoryByRedditShortId(storyId);
         if (storyModel == null) {
             return ResponseEntity.notFound().build();
@@ -48,19 +76,59 @@ public class APIController {
 
         final List<StoryHistoryModel> storyHistoryModels = storyRepository.getStoryHistory(storyModel);
 
-        return ResponseEntity.ok(StoryJsonBuilder.renderJsonDetailForStory(storyModel, storyHistoryModels));
+        //points thins the history out to that many points for charting, all of it by default
+        return ResponseEntity.ok(StoryJsonBuilder.renderJsonDetailForStory(storyModel, storyHistoryModels, points));
     }
 
     @RequestMapping(value = "/stories", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON)
     @ResponseBody
     public ResponseEntity getTopStories() {
-        final ArrayNode storiesList = JsonNodeFactory.instance.arrayNode();
-        final List<StoryModel> hottestStories = storyRepository.getHottestStories(100, true);
+        //straight from the database until the leaderboard has been loaded
+        final List<StoryModel> hottestStories = hotStoryLeaderboard.isLoaded() ?
+                hotStoryLeaderboard.getHottestStories(TOP_STORIES) :
+                storyRepository.getHottestStories(TOP_STORIES, true);
 
-        for (final StoryModel storyModel : hottestStories) {
-            storiesList.add(StoryJsonBuilder.renderJsonSummaryForStory(storyModel));
+        return ResponseEntity.ok(renderSummaries(hottestStories));
+    }
+
+    @RequestMapping(value = "/subreddit/{name}/stories", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON)
+    @ResponseBody
+    public ResponseEntity getTopSubredditStories(@PathVariable("name") @Nonnull final String subreddit) {
+        return ResponseEntity.ok(renderSummaries(hotStoryLeaderboard.getHottestStories(subreddit, TOP_STORIES)));
+    }
+
+    @RequestMapping(value = "/subreddit/{name}/growth", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON)
+    @ResponseBody
+    public ResponseEntity getSubredditGrowth(@PathVariable("name") @Nonnull final String subreddit,
+                                             @RequestParam(value = "resolution", defaultValue = "daily") @Nonnull final String resolutionName,
+                                             @RequestParam(value = "days", defaultValue = "30") final int days) {
+        final SubredditHistoryRollupModel.Resolution resolution;
+        try {
+            resolution = SubredditHistoryRollupModel.Resolution.valueOf(resolutionName.toUpperCase());
+        } catch (@Nonnull final IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+
+        final SubredditModel subredditModel = subredditRepository.findSubredditByName(subreddit);
+        if (subredditModel == null) {
+            return ResponseEntity.notFound().build();
         }
 
-        return ResponseEntity.ok(storiesList);
+        final int maxDays = resolution == SubredditHistoryRollupModel.Resolution.HOURLY ? MAX_HOURLY_GROWTH_DAYS : MAX_DAILY_GROWTH_DAYS;
+        final Date to = new Date();
+        final Date from = new Date(to.getTime() - TimeUnit.DAYS.toMillis(Math.max(1, Math.min(days, maxDays))));
+        final List<SubredditHistoryRollupModel> rollups =
+                subredditRepository.getSubredditHistoryRollups(subredditModel, resolution, from, to);
+
+        return ResponseEntity.ok(SubredditJsonBuilder.renderJsonGrowthForSubreddit(subredditModel, resolution, rollups));
+    }
+
+    @Nonnull
+    private static ArrayNode renderSummaries(@Nonnull final List<StoryModel> stories) {
+        final ArrayNode storiesList = JsonNodeFactory.instance.arrayNode();
+        for (final StoryModel storyModel : stories) {
+            storiesList.add(StoryJsonBuilder.renderJsonSummaryForStory(storyModel));
+        }
+        return storiesList;
     }
 }
@@ -0,0 +1,8 @@
+-- tracks how many checks in a row reddit didn't return a story, so the history updater can back off and retire it
+ALTER TABLE story ADD COLUMN missed_checks INTEGER NOT NULL DEFAULT 0;
+
+CREATE INDEX story_missed_checks_idx
+ON story
+USING BTREE
+(missed_checks)
+WHERE missed_checks > 0;
@@ -0,0 +1,3 @@
+-- update leases so several worker nodes can split the story history updates between them (requires postgres 9.5+ for SKIP LOCKED)
+ALTER TABLE story ADD COLUMN lease_owner TEXT;
+ALTER TABLE story ADD COLUMN lease_until TIMESTAMP WITHOUT TIME ZONE;
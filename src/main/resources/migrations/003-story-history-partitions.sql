@@ -0,0 +1,36 @@
+-- partitions story_history by day so the archiver can drop archived history a day at a time (requires postgres 11+)
+-- the existing table becomes the partition for everything up to tomorrow, and is dropped once all of its stories are
+-- archived. The application creates the daily partitions from there on
+ALTER TABLE story_history DROP CONSTRAINT story_fk;
+ALTER TABLE story_history RENAME TO story_history_legacy;
+ALTER INDEX story_history_pkey RENAME TO story_history_legacy_pkey;
+ALTER INDEX story_history_story_idx RENAME TO story_history_legacy_story_idx;
+
+CREATE TABLE story_history
+(
+  id          BIGINT                      NOT NULL DEFAULT nextval('story_history_id_seq'),
+  "timestamp" TIMESTAMP WITHOUT TIME ZONE NOT NULL,
+  story       INTEGER                     NOT NULL,
+  score       INTEGER                     NOT NULL,
+  hotness     DOUBLE PRECISION            NOT NULL,
+  comments    INTEGER                     NOT NULL,
+  gilded      INTEGER                     NOT NULL,
+  CONSTRAINT story_history_pkey PRIMARY KEY (id, "timestamp")
+) PARTITION BY RANGE ("timestamp");
+
+-- keep the id sequence around when the legacy partition is dropped
+ALTER SEQUENCE story_history_id_seq OWNED BY story_history.id;
+
+CREATE INDEX story_history_story_idx
+ON story_history
+USING BTREE
+(story DESC)
+WITH (fillfactor=90);
+
+DO $$
+BEGIN
+  EXECUTE format('ALTER TABLE story_history ATTACH PARTITION story_history_legacy FOR VALUES FROM (MINVALUE) TO (%L)',
+                 date_trunc('day', localtimestamp) + INTERVAL '1 day');
+END $$;
+
+CREATE TABLE story_history_default PARTITION OF story_history DEFAULT;
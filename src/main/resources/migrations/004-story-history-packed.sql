@@ -0,0 +1,10 @@
+-- packed story history (db.historystore=packed): one row per story and chunk of its lifetime, holding the encoded samples
+-- back to back instead of one story_history row per sample (requires postgres 9.5+ for ON CONFLICT)
+CREATE TABLE story_history_packed
+(
+  story   INTEGER NOT NULL,
+  chunk   INTEGER NOT NULL,
+  samples INTEGER NOT NULL,
+  data    BYTEA   NOT NULL,
+  CONSTRAINT story_history_packed_pkey PRIMARY KEY (story, chunk)
+) WITH (fillfactor=70);
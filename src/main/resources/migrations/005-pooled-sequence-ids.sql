@@ -0,0 +1,6 @@
+-- hibernate takes ids from the sequences in blocks of 50 (pooled optimizer) so inserts can be batched - the sequences
+-- have to step by the same amount (IdGeneration.ID_ALLOCATION_SIZE)
+ALTER SEQUENCE subreddit_id_seq INCREMENT BY 50;
+ALTER SEQUENCE subreddit_history_id_seq INCREMENT BY 50;
+ALTER SEQUENCE story_id_seq INCREMENT BY 50;
+ALTER SEQUENCE story_history_id_seq INCREMENT BY 50;
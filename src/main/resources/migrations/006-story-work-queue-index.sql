@@ -0,0 +1,7 @@
+-- covers the history update work queue (findStoriesNeedingUpdate/leaseStoriesNeedingUpdate) so it is answered from the
+-- index alone (requires postgres 11+ for INCLUDE)
+CREATE INDEX CONCURRENTLY story_work_queue_idx
+ON story
+USING BTREE
+(checked_at, discovered_at, hotness)
+INCLUDE (id, reddit_short_id, subreddit, missed_checks, lease_until);
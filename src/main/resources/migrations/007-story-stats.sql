@@ -0,0 +1,54 @@
+-- moves the parts of a story that change on every history update into the narrow story_stats table, so an update no
+-- longer rewrites the wide story row and its indexes. Run while the crawler is stopped
+CREATE TABLE story_stats
+(
+  story         INTEGER                     NOT NULL,
+  score         INTEGER                     NOT NULL,
+  hotness       DOUBLE PRECISION            NOT NULL,
+  comments      INTEGER                     NOT NULL,
+  gilded        INTEGER                     NOT NULL,
+  updated_at    TIMESTAMP WITHOUT TIME ZONE NOT NULL,
+  checked_at    TIMESTAMP WITHOUT TIME ZONE NOT NULL,
+  missed_checks INTEGER                     NOT NULL DEFAULT 0,
+  lease_owner   TEXT,
+  lease_until   TIMESTAMP WITHOUT TIME ZONE,
+  CONSTRAINT story_stats_pkey PRIMARY KEY (story),
+  CONSTRAINT story_stats_story_fk FOREIGN KEY (story)
+  REFERENCES story (id) MATCH SIMPLE
+  ON UPDATE NO ACTION ON DELETE CASCADE
+) WITH (fillfactor=70);
+
+INSERT INTO story_stats (story, score, hotness, comments, gilded, updated_at, checked_at, missed_checks, lease_owner, lease_until)
+  SELECT id, score, hotness, comments, gilded, updated_at, checked_at, missed_checks, lease_owner, lease_until FROM story;
+
+CREATE INDEX story_stats_hotness_idx
+ON story_stats
+USING BTREE
+(hotness DESC);
+
+CREATE INDEX story_stats_missed_checks_idx
+ON story_stats
+USING BTREE
+(missed_checks)
+WHERE missed_checks > 0;
+
+CREATE INDEX story_stats_work_queue_idx
+ON story_stats
+USING BTREE
+(checked_at)
+INCLUDE (hotness, missed_checks);
+
+-- drops story_hotness_idx, story_missed_checks_idx and story_work_queue_idx along with their columns
+ALTER TABLE story
+  DROP COLUMN score,
+  DROP COLUMN hotness,
+  DROP COLUMN comments,
+  DROP COLUMN gilded,
+  DROP COLUMN updated_at,
+  DROP COLUMN checked_at,
+  DROP COLUMN missed_checks,
+  DROP COLUMN lease_owner,
+  DROP COLUMN lease_until;
+
+-- the dropped columns only go away once the rows are rewritten
+VACUUM FULL story;
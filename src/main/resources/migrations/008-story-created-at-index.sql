@@ -0,0 +1,5 @@
+-- finds the stories old enough to archive, in id order (created_at was only ever the last column of the hotness index)
+CREATE INDEX CONCURRENTLY story_created_at_idx
+ON story
+USING BTREE
+(created_at, id);
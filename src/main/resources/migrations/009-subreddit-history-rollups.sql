@@ -0,0 +1,51 @@
+-- hourly and daily rollups of subreddit_history, filled from the existing history. Run while the crawler is stopped -
+-- from then on the application adds every new sample to them
+CREATE TABLE subreddit_history_hourly
+(
+  subreddit        INTEGER                     NOT NULL,
+  bucket           TIMESTAMP WITHOUT TIME ZONE NOT NULL,
+  samples          INTEGER                     NOT NULL,
+  min_subscribers  BIGINT                      NOT NULL,
+  max_subscribers  BIGINT                      NOT NULL,
+  last_subscribers BIGINT                      NOT NULL,
+  min_active       INTEGER                     NOT NULL,
+  max_active       INTEGER                     NOT NULL,
+  last_active      INTEGER                     NOT NULL,
+  last_timestamp   TIMESTAMP WITHOUT TIME ZONE NOT NULL,
+  CONSTRAINT subreddit_history_hourly_pkey PRIMARY KEY (subreddit, bucket),
+  CONSTRAINT subreddit_history_hourly_subreddit_fk FOREIGN KEY (subreddit)
+  REFERENCES subreddit (id) MATCH SIMPLE
+  ON UPDATE NO ACTION ON DELETE CASCADE
+) WITH (fillfactor=70);
+
+CREATE TABLE subreddit_history_daily
+(
+  subreddit        INTEGER                     NOT NULL,
+  bucket           TIMESTAMP WITHOUT TIME ZONE NOT NULL,
+  samples          INTEGER                     NOT NULL,
+  min_subscribers  BIGINT                      NOT NULL,
+  max_subscribers  BIGINT                      NOT NULL,
+  last_subscribers BIGINT                      NOT NULL,
+  min_active       INTEGER                     NOT NULL,
+  max_active       INTEGER                     NOT NULL,
+  last_active      INTEGER                     NOT NULL,
+  last_timestamp   TIMESTAMP WITHOUT TIME ZONE NOT NULL,
+  CONSTRAINT subreddit_history_daily_pkey PRIMARY KEY (subreddit, bucket),
+  CONSTRAINT subreddit_history_daily_subreddit_fk FOREIGN KEY (subreddit)
+  REFERENCES subreddit (id) MATCH SIMPLE
+  ON UPDATE NO ACTION ON DELETE CASCADE
+) WITH (fillfactor=70);
+
+INSERT INTO subreddit_history_hourly (subreddit, bucket, samples, min_subscribers, max_subscribers, last_subscribers,
+                                      min_active, max_active, last_active, last_timestamp)
+  SELECT subreddit, date_trunc('hour', "timestamp"), count(*), min(subscribers), max(subscribers),
+    (array_agg(subscribers ORDER BY "timestamp" DESC))[1], min(active), max(active),
+    (array_agg(active ORDER BY "timestamp" DESC))[1], max("timestamp")
+  FROM subreddit_history GROUP BY subreddit, date_trunc('hour', "timestamp");
+
+INSERT INTO subreddit_history_daily (subreddit, bucket, samples, min_subscribers, max_subscribers, last_subscribers,
+                                     min_active, max_active, last_active, last_timestamp)
+  SELECT subreddit, date_trunc('day', "timestamp"), count(*), min(subscribers), max(subscribers),
+    (array_agg(subscribers ORDER BY "timestamp" DESC))[1], min(active), max(active),
+    (array_agg(active ORDER BY "timestamp" DESC))[1], max("timestamp")
+  FROM subreddit_history GROUP BY subreddit, date_trunc('day', "timestamp");
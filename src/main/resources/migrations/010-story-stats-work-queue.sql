@@ -0,0 +1,18 @@
+-- copies the (never changing) discovered_at of a story into story_stats, so the history update work queue is answered
+-- from story_stats and its index alone instead of joining story for every candidate. Run while the crawler is stopped
+ALTER TABLE story_stats ADD COLUMN discovered_at TIMESTAMP WITHOUT TIME ZONE;
+
+UPDATE story_stats ss SET discovered_at = s.discovered_at FROM story s WHERE s.id = ss.story;
+
+ALTER TABLE story_stats ALTER COLUMN discovered_at SET NOT NULL;
+
+DROP INDEX story_stats_work_queue_idx;
+
+CREATE INDEX story_stats_work_queue_idx
+ON story_stats
+USING BTREE
+(checked_at, discovered_at)
+INCLUDE (hotness, missed_checks, lease_until);
+
+-- the update rewrote every row
+VACUUM FULL ANALYZE story_stats;
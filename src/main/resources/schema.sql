@@ -1,4 +1,4 @@
-DROP TABLE IF EXISTS subreddit, subreddit_history, story, story_history CASCADE;
+DROP TABLE IF EXISTS subreddit, subreddit_history, subreddit_history_hourly, subreddit_history_daily, story, story_stats, story_history, story_history_packed CASCADE;
 
 CREATE TABLE subreddit
 (
@@ -52,6 +52,44 @@ ON subreddit_history
 USING BTREE
 ("subreddit", "timestamp" DESC);
 
+-- subreddit history rolled up per hour and day (see SubredditHistoryRollups), kept up to date as samples come in.
+-- Rows are rewritten by every sample of their period, so leave room on the page for HOT updates
+CREATE TABLE subreddit_history_hourly
+(
+  subreddit        INTEGER                     NOT NULL,
+  bucket           TIMESTAMP WITHOUT TIME ZONE NOT NULL,
+  samples          INTEGER                     NOT NULL,
+  min_subscribers  BIGINT                      NOT NULL,
+  max_subscribers  BIGINT                      NOT NULL,
+  last_subscribers BIGINT                      NOT NULL,
+  min_active       INTEGER                     NOT NULL,
+  max_active       INTEGER                     NOT NULL,
+  last_active      INTEGER                     NOT NULL,
+  last_timestamp   TIMESTAMP WITHOUT TIME ZONE NOT NULL,
+  CONSTRAINT subreddit_history_hourly_pkey PRIMARY KEY (subreddit, bucket),
+  CONSTRAINT subreddit_history_hourly_subreddit_fk FOREIGN KEY (subreddit)
+  REFERENCES subreddit (id) MATCH SIMPLE
+  ON UPDATE NO ACTION ON DELETE CASCADE
+) WITH (fillfactor=70);
+
+CREATE TABLE subreddit_history_daily
+(
+  subreddit        INTEGER                     NOT NULL,
+  bucket           TIMESTAMP WITHOUT TIME ZONE NOT NULL,
+  samples          INTEGER                     NOT NULL,
+  min_subscribers  BIGINT                      NOT NULL,
+  max_subscribers  BIGINT                      NOT NULL,
+  last_subscribers BIGINT                      NOT NULL,
+  min_active       INTEGER                     NOT NULL,
+  max_active       INTEGER                     NOT NULL,
+  last_active      INTEGER                     NOT NULL,
+  last_timestamp   TIMESTAMP WITHOUT TIME ZONE NOT NULL,
+  CONSTRAINT subreddit_history_daily_pkey PRIMARY KEY (subreddit, bucket),
+  CONSTRAINT subreddit_history_daily_subreddit_fk FOREIGN KEY (subreddit)
+  REFERENCES subreddit (id) MATCH SIMPLE
+  ON UPDATE NO ACTION ON DELETE CASCADE
+) WITH (fillfactor=70);
+
 CREATE TABLE story
 (
   id              SERIAL                      NOT NULL,
@@ -69,13 +107,7 @@ CREATE TABLE story
   selftext        TEXT,
   stickied        BOOLEAN                     NOT NULL,
   created_at      TIMESTAMP WITHOUT TIME ZONE NOT NULL,
-  score           INTEGER                     NOT NULL,
-  hotness         DOUBLE PRECISION            NOT NULL,
-  comments        INTEGER                     NOT NULL,
-  gilded          INTEGER                     NOT NULL,
   discovered_at   TIMESTAMP WITHOUT TIME ZONE NOT NULL,
-  updated_at      TIMESTAMP WITHOUT TIME ZONE NOT NULL,
-  checked_at      TIMESTAMP WITHOUT TIME ZONE NOT NULL,
   CONSTRAINT story_pkey PRIMARY KEY (id),
   CONSTRAINT unique_story_short_id UNIQUE (reddit_short_id),
   CONSTRAINT subreddit_fk FOREIGN KEY (subreddit)
@@ -83,16 +115,63 @@ CREATE TABLE story
   ON UPDATE NO ACTION ON DELETE CASCADE
 );
 
-CREATE INDEX story_hotness_idx
+CREATE INDEX story_subreddit_idx
 ON story
 USING BTREE
-(hotness DESC, checked_at DESC, created_at DESC);
+(subreddit);
 
-CREATE INDEX story_subreddit_idx
+-- finds the stories old enough to archive, in id order
+CREATE INDEX story_created_at_idx
 ON story
 USING BTREE
-(subreddit);
+(created_at, id);
+
+-- the parts of a story that change on every history update, kept apart from the (wide, never changing) story row so
+-- an update only rewrites a narrow tuple and none of the story indexes. A history update changes hotness and checked_at,
+-- which are both indexed, so it is never a HOT update and adds an entry to each story_stats index - the free space only
+-- keeps the new row version on the same page. discovered_at is a copy of the story's, for the work queue
+CREATE TABLE story_stats
+(
+  story         INTEGER                     NOT NULL,
+  score         INTEGER                     NOT NULL,
+  hotness       DOUBLE PRECISION            NOT NULL,
+  comments      INTEGER                     NOT NULL,
+  gilded        INTEGER                     NOT NULL,
+  updated_at    TIMESTAMP WITHOUT TIME ZONE NOT NULL,
+  checked_at    TIMESTAMP WITHOUT TIME ZONE NOT NULL,
+  missed_checks INTEGER                     NOT NULL DEFAULT 0,
+  lease_owner   TEXT,
+  lease_until   TIMESTAMP WITHOUT TIME ZONE,
+  discovered_at TIMESTAMP WITHOUT TIME ZONE NOT NULL,
+  CONSTRAINT story_stats_pkey PRIMARY KEY (story),
+  CONSTRAINT story_stats_story_fk FOREIGN KEY (story)
+  REFERENCES story (id) MATCH SIMPLE
+  ON UPDATE NO ACTION ON DELETE CASCADE
+) WITH (fillfactor=70);
+
+CREATE INDEX story_stats_hotness_idx
+ON story_stats
+USING BTREE
+(hotness DESC);
+
+CREATE INDEX story_stats_missed_checks_idx
+ON story_stats
+USING BTREE
+(missed_checks)
+WHERE missed_checks > 0;
 
+-- covers the history update work queue (findStoriesNeedingUpdate/leaseStoriesNeedingUpdate) so the candidates are
+-- filtered without joining story or visiting the heap. Not partial on missed_checks because the limit is configurable
+-- (service.storyhistoryupdater.maxmissedchecks). Covering lease_until means taking and releasing a lease isn't a HOT
+-- update either - the history update that follows it never is anyway
+CREATE INDEX story_stats_work_queue_idx
+ON story_stats
+USING BTREE
+(checked_at, discovered_at)
+INCLUDE (hotness, missed_checks, lease_until);
+
+-- partitioned by day so archived history can be dropped a day at a time (requires postgres 11+). There is no foreign
+-- key to story - history stays behind when its story is archived, until the partition for its day is dropped
 CREATE TABLE story_history
 (
   id          BIGSERIAL                   NOT NULL,
@@ -102,16 +181,32 @@ CREATE TABLE story_history
   hotness     DOUBLE PRECISION            NOT NULL,
   comments    INTEGER                     NOT NULL,
   gilded      INTEGER                     NOT NULL,
-  CONSTRAINT story_history_pkey PRIMARY KEY (id),
-  CONSTRAINT story_fk FOREIGN KEY (story)
-  REFERENCES story (id) MATCH SIMPLE
-  ON UPDATE NO ACTION ON DELETE CASCADE
-) WITH (fillfactor=60);
+  CONSTRAINT story_history_pkey PRIMARY KEY (id, "timestamp")
+) PARTITION BY RANGE ("timestamp");
 
 CREATE INDEX story_history_story_idx
 ON story_history
 USING BTREE
 (story DESC)
-WITH (fillfactory=90);
+WITH (fillfactor=90);
+
+-- the daily partitions are created by the application, anything outside of them ends up here
+CREATE TABLE story_history_default PARTITION OF story_history DEFAULT;
+
+-- story history with db.historystore=packed: one row per story and chunk of its lifetime, holding the encoded samples
+-- back to back (see PackedStoryHistory). Rows grow by an in-place append, so leave room on the page for HOT updates
+CREATE TABLE story_history_packed
+(
+  story   INTEGER NOT NULL,
+  chunk   INTEGER NOT NULL,
+  samples INTEGER NOT NULL,
+  data    BYTEA   NOT NULL,
+  CONSTRAINT story_history_packed_pkey PRIMARY KEY (story, chunk)
+) WITH (fillfactor=70);
 
-CLUSTER story_history using story_history_story_idx;
\ No newline at end of file
+-- ids are handed out by hibernate in blocks of 50 from memory (IdGeneration.ID_ALLOCATION_SIZE), so the sequences
+-- have to step by the same amount. Inserts that use the column default skip the rest of a block
+ALTER SEQUENCE subreddit_id_seq INCREMENT BY 50;
+ALTER SEQUENCE subreddit_history_id_seq INCREMENT BY 50;
+ALTER SEQUENCE story_id_seq INCREMENT BY 50;
+ALTER SEQUENCE story_history_id_seq INCREMENT BY 50;
@@ -31,7 +31,7 @@
                     $historyRow.toggle();
 
                     if(!scope.showChart) {
-                        $http.get("/api/story/" + scope.story.id)
+                        $http.get("/api/story/" + scope.story.id + "?points=500")
                             .then(function(res, err) {
                                 console.log(res.data);
                                 var data = new google.visualization.DataTable();
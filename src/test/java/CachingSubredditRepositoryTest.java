@@ -0,0 +1,193 @@
+import com.andrewortman.reddcrawl.repository.CachingSubredditRepository;
+import com.andrewortman.reddcrawl.repository.SubredditRepository;
+import com.andrewortman.reddcrawl.repository.model.SubredditHistoryModel;
+import com.andrewortman.reddcrawl.repository.model.SubredditHistoryRollupModel;
+import com.andrewortman.reddcrawl.repository.model.SubredditModel;
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CachingSubredditRepositoryTest {
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+    private final Date now = new Date();
+
+    private CountingSubredditRepository database;
+
+    private MetricRegistry metricRegistry;
+
+    private CachingSubredditRepository repository;
+
+    @Before
+    public void setUp() {
+        database = new CountingSubredditRepository();
+        database.subreddits.add(createSubreddit(1, "funny", now.getTime() - 10 * MINUTE));
+        database.subreddits.add(createSubreddit(2, "news", now.getTime() - 30 * MINUTE));
+        database.subreddits.add(createSubreddit(3, "pics", now.getTime() - 120 * MINUTE));
+
+        metricRegistry = new MetricRegistry();
+        repository = new CachingSubredditRepository(database, 100, 300, metricRegistry);
+    }
+
+    @Test
+    public void testRecentlySeenSnapshotAnswersLaterWindows() {
+        assertEquals(2, repository.getAllRecentlySeenSubreddits(new Date(now.getTime() - 60 * MINUTE)).size());
+
+        //the window moved forward by a run - news drops out without asking the database again
+        final List<SubredditModel> subreddits = repository.getAllRecentlySeenSubreddits(new Date(now.getTime() - 20 * MINUTE));
+        assertEquals(1, subreddits.size());
+        assertEquals("funny", subreddits.get(0).getName());
+        assertEquals(1, database.queries);
+
+        //an earlier window than the snapshot's can't be answered from it
+        assertEquals(3, repository.getAllRecentlySeenSubreddits(new Date(now.getTime() - 180 * MINUTE)).size());
+        assertEquals(2, database.queries);
+
+        assertEquals(1, metricRegistry.meter("reddcrawl.subreddit.cache.hits").getCount());
+        assertEquals(2, metricRegistry.meter("reddcrawl.subreddit.cache.misses").getCount());
+    }
+
+    @Test
+    public void testNameLookupsOnlyLoadMissingNames() {
+        assertNotNull(repository.findSubredditByName("funny"));
+        assertEquals(1, database.queries);
+
+        final Map<String, SubredditModel> found = repository.findSubredditsByNames(Arrays.asList("funny", "news", "unknown"));
+        assertEquals(2, found.size());
+        assertEquals(2, database.queries);
+        assertEquals(Arrays.asList("news", "unknown"), database.lastNames);
+
+        assertNotNull(repository.findSubredditByName("news"));
+        assertEquals(2, database.queries);
+    }
+
+    @Test
+    public void testWritesInvalidate() {
+        final Date lastSeenTime = new Date(now.getTime() - 60 * MINUTE);
+        repository.getAllRecentlySeenSubreddits(lastSeenTime);
+        assertNotNull(repository.findSubredditByName("pics"));
+        assertEquals(2, database.queries);
+
+        //pics comes back into the window once it's seen again (and the reload caches it by name again)
+        final SubredditModel pics = database.subreddits.get(2);
+        repository.markSubredditsAsSeen(Collections.singletonList(pics));
+        assertEquals(3, repository.getAllRecentlySeenSubreddits(lastSeenTime).size());
+        assertNotNull(repository.findSubredditByName("pics"));
+        assertEquals(3, database.queries);
+
+        //new subreddits show up right away
+        repository.saveNewSubreddit(createSubreddit(4, "aww", now.getTime()));
+        assertEquals(4, repository.getAllRecentlySeenSubreddits(lastSeenTime).size());
+        assertEquals(4, database.queries);
+    }
+
+    private static SubredditModel createSubreddit(final int id, final String name, final long seenAt) {
+        final SubredditModel subreddit = new SubredditModel();
+        subreddit.setId(id);
+        subreddit.setName(name);
+        subreddit.setSeenAt(new Date(seenAt));
+        return subreddit;
+    }
+
+    /**
+     * An in memory subreddit "database" that counts the reads that reach it
+     */
+    private class CountingSubredditRepository implements SubredditRepository {
+        private final List<SubredditModel> subreddits = new ArrayList<>();
+
+        private int queries = 0;
+
+        private List<String> lastNames;
+
+        @Override
+        public List<SubredditModel> getAllRecentlySeenSubreddits(final Date lastSeenTime) {
+            queries++;
+            final List<SubredditModel> found = new ArrayList<>();
+            for (final SubredditModel subreddit : subreddits) {
+                if (subreddit.getSeenAt().after(lastSeenTime)) {
+                    found.add(subreddit);
+                }
+            }
+            return found;
+        }
+
+        @Override
+        public List<SubredditModel> findSubredditsNeedingUpdate(final Date lastUpdateTime) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SubredditModel findSubredditByName(final String name) {
+            return findSubredditsByNames(Collections.singletonList(name)).get(name);
+        }
+
+        @Override
+        public Map<String, SubredditModel> findSubredditsByNames(final Collection<String> names) {
+            queries++;
+            lastNames = new ArrayList<>(names);
+            final Map<String, SubredditModel> found = new HashMap<>();
+            for (final SubredditModel subreddit : subreddits) {
+                if (names.contains(subreddit.getName())) {
+                    found.put(subreddit.getName(), subreddit);
+                }
+            }
+            return found;
+        }
+
+        @Override
+        public SubredditModel saveNewSubreddit(final SubredditModel subredditModel) {
+            subreddits.add(subredditModel);
+            return subredditModel;
+        }
+
+        @Override
+        public List<SubredditModel> saveNewSubreddits(final Collection<SubredditModel> subredditModels) {
+            subreddits.addAll(subredditModels);
+            return new ArrayList<>(subredditModels);
+        }
+
+        @Override
+        public SubredditHistoryModel addSubredditHistory(final SubredditModel subredditModel, final SubredditHistoryModel historyItem) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SubredditHistoryModel getSubredditHistoryModelFirstBeforeDate(final SubredditModel subredditModel, final Date date) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<SubredditHistoryRollupModel> getSubredditHistoryRollups(final SubredditModel subredditModel,
+                                                                            final SubredditHistoryRollupModel.Resolution resolution,
+                                                                            final Date from,
+                                                                            final Date to) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean markSubredditAsSeen(final SubredditModel subredditModel) {
+            return markSubredditsAsSeen(Collections.singletonList(subredditModel)) > 0;
+        }
+
+        @Override
+        public int markSubredditsAsSeen(final Collection<SubredditModel> subredditModels) {
+            for (final SubredditModel subredditModel : subredditModels) {
+                subredditModel.setSeenAt(now);
+            }
+            return subredditModels.size();
+        }
+    }
+}
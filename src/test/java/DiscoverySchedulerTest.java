@@ -0,0 +1,78 @@
+import com.andrewortman.reddcrawl.services.DiscoveryScheduler;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DiscoverySchedulerTest {
+
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    private static final List<String> SUBREDDITS = Arrays.asList("askreddit", "news", "austin");
+
+    private DiscoveryScheduler scheduler;
+
+    private Date now;
+
+    @Before
+    public void setUp() {
+        scheduler = new DiscoveryScheduler(30, 5, 6 * 60 * 60);
+        now = new Date(1000L * HOUR);
+        scheduler.seedPostingRate("askreddit", 600, 6 * HOUR, now); //100 an hour
+        scheduler.seedPostingRate("news", 60, 6 * HOUR, now); //10 an hour
+        scheduler.seedPostingRate("austin", 6, 6 * HOUR, now); //1 an hour
+    }
+
+    @Test
+    public void testSeededRates() {
+        assertEquals(100.0, scheduler.getPostsPerHour("askreddit", now), 0.5);
+        assertEquals(10.0, scheduler.getPostsPerHour("news", now), 0.5);
+        assertEquals(1.0, scheduler.getPostsPerHour("austin", now), 0.5);
+    }
+
+    @Test
+    public void testTiersArePolledAtTheirOwnCadence() {
+        int askredditPolls = 0;
+        int newsPolls = 0;
+        int austinPolls = 0;
+        for (int i = 0; i < 16; i++) {
+            final Map<DiscoveryScheduler.Tier, SortedSet<String>> dueTiers = scheduler.nextTick(SUBREDDITS, now);
+            for (final SortedSet<String> subreddits : dueTiers.values()) {
+                if (subreddits.contains("askreddit")) askredditPolls++;
+                if (subreddits.contains("news")) newsPolls++;
+                if (subreddits.contains("austin")) austinPolls++;
+            }
+        }
+
+        assertEquals(DiscoveryScheduler.Tier.FAST, scheduler.getTier("askreddit"));
+        assertEquals(DiscoveryScheduler.Tier.NORMAL, scheduler.getTier("news"));
+        assertEquals(DiscoveryScheduler.Tier.SLOW, scheduler.getTier("austin"));
+        assertEquals(16, askredditPolls);
+        assertEquals(4, newsPolls);
+        assertEquals(1, austinPolls);
+    }
+
+    @Test
+    public void testUnknownSubredditStartsInFastTier() {
+        scheduler.nextTick(Arrays.asList("askreddit", "news", "austin", "brandnew"), now);
+        assertEquals(DiscoveryScheduler.Tier.FAST, scheduler.getTier("brandnew"));
+    }
+
+    @Test
+    public void testRateFollowsNewStories() {
+        //austin suddenly gets 60 stories in an hour
+        for (int i = 0; i < 60; i++) {
+            scheduler.recordStory("austin", new Date(now.getTime() + i * HOUR / 60));
+        }
+
+        final Date later = new Date(now.getTime() + HOUR);
+        assertTrue(scheduler.getPostsPerHour("austin", later) > 5.0);
+    }
+}
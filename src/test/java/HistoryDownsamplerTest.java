@@ -0,0 +1,58 @@
+import com.andrewortman.reddcrawl.json.HistoryDownsampler;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistoryDownsamplerTest {
+
+    @Test
+    public void testShortHistoryIsKept() {
+        final int[] indices = HistoryDownsampler.selectIndices(new long[]{1, 2, 3}, new double[][]{{5, 6, 7}}, 10);
+        assertArrayEquals(new int[]{0, 1, 2}, indices);
+    }
+
+    @Test
+    public void testEndpointsAndPointCount() {
+        final int size = 1000;
+        final long[] timestamps = new long[size];
+        final double[][] series = new double[2][size];
+        for (int i = 0; i < size; i++) {
+            timestamps[i] = i * 120000L;
+            series[0][i] = Math.sqrt(i) * 100;
+            series[1][i] = i % 7;
+        }
+
+        final int[] indices = HistoryDownsampler.selectIndices(timestamps, series, 50);
+        assertEquals(50, indices.length);
+        assertEquals(0, indices[0]);
+        assertEquals(size - 1, indices[indices.length - 1]);
+        for (int i = 1; i < indices.length; i++) {
+            assertTrue(indices[i] > indices[i - 1]);
+        }
+    }
+
+    @Test
+    public void testPeaksOfEverySeriesAreKept() {
+        final int size = 500;
+        final long[] timestamps = new long[size];
+        final double[][] series = new double[2][size];
+        for (int i = 0; i < size; i++) {
+            timestamps[i] = i;
+            series[0][i] = 10000 + i; //large and steady, would drown out the second series without scaling
+            series[1][i] = 0;
+        }
+        series[0][123] = 20000;
+        series[1][321] = 5;
+
+        boolean keptFirstPeak = false;
+        boolean keptSecondPeak = false;
+        for (final int index : HistoryDownsampler.selectIndices(timestamps, series, 20)) {
+            keptFirstPeak |= index == 123;
+            keptSecondPeak |= index == 321;
+        }
+        assertTrue(keptFirstPeak);
+        assertTrue(keptSecondPeak);
+    }
+}
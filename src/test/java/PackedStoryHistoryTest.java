@@ -0,0 +1,94 @@
+import com.andrewortman.reddcrawl.repository.PackedStoryHistory;
+import com.andrewortman.reddcrawl.repository.model.StoryHistoryModel;
+import com.andrewortman.reddcrawl.repository.model.StoryModel;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PackedStoryHistoryTest {
+
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    private PackedStoryHistory packedStoryHistory;
+
+    private StoryModel story;
+
+    @Before
+    public void setUp() {
+        packedStoryHistory = new PackedStoryHistory(3600);
+        story = new StoryModel();
+        story.setId(42);
+        story.setDiscoveredAt(new Date(1000L * HOUR + 123));
+    }
+
+    @Test
+    public void testRoundTrip() {
+        final StoryHistoryModel historyItem = createHistory(90 * 60 * 1000L + 7, 12345, 678, 3, 1234.5678);
+
+        final List<StoryHistoryModel> decoded = packedStoryHistory.decode(story, packedStoryHistory.encode(story, historyItem));
+        assertEquals(1, decoded.size());
+        assertEquals(historyItem.getTimestamp(), decoded.get(0).getTimestamp());
+        assertEquals(12345, decoded.get(0).getScore());
+        assertEquals(678, decoded.get(0).getComments());
+        assertEquals(3, decoded.get(0).getGilded());
+        assertEquals(1234.5678, decoded.get(0).getHotness(), 0.0);
+        assertSame(story, decoded.get(0).getStory());
+    }
+
+    @Test
+    public void testNegativeScore() {
+        final StoryHistoryModel historyItem = createHistory(0, -250, 0, 0, -3.25);
+
+        final StoryHistoryModel decoded = packedStoryHistory.decode(story, packedStoryHistory.encode(story, historyItem)).get(0);
+        assertEquals(-250, decoded.getScore());
+        assertEquals(-3.25, decoded.getHotness(), 0.0);
+    }
+
+    @Test
+    public void testSamplesAreSmall() {
+        //two days in, with a big score - still far below a story_history row
+        assertTrue(packedStoryHistory.encode(story, createHistory(48 * HOUR, 100000, 20000, 10, 5000.0)).length <= 20);
+    }
+
+    @Test
+    public void testChunks() {
+        assertEquals(0, packedStoryHistory.getChunk(story, createHistory(0, 1, 0, 0, 0)));
+        assertEquals(0, packedStoryHistory.getChunk(story, createHistory(HOUR - 1, 1, 0, 0, 0)));
+        assertEquals(1, packedStoryHistory.getChunk(story, createHistory(HOUR, 1, 0, 0, 0)));
+        assertEquals(47, packedStoryHistory.getChunk(story, createHistory(47 * HOUR + 5, 1, 0, 0, 0)));
+        //clock skew between nodes can put a sample just before the discovery
+        assertEquals(0, packedStoryHistory.getChunk(story, createHistory(-1000, 1, 0, 0, 0)));
+    }
+
+    @Test
+    public void testConcatenatedSamplesDecodeInOrder() {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (final long offset : new long[]{2 * HOUR, 0, HOUR}) {
+            final byte[] sample = packedStoryHistory.encode(story, createHistory(offset, (int) (offset / 1000), 0, 0, 0));
+            data.write(sample, 0, sample.length);
+        }
+
+        final List<StoryHistoryModel> decoded = packedStoryHistory.decode(story, data.toByteArray());
+        assertEquals(3, decoded.size());
+        assertEquals(0, decoded.get(0).getScore());
+        assertEquals(3600, decoded.get(1).getScore());
+        assertEquals(7200, decoded.get(2).getScore());
+    }
+
+    private StoryHistoryModel createHistory(final long offsetMillis, final int score, final int comments, final int gilded, final double hotness) {
+        final StoryHistoryModel historyItem = new StoryHistoryModel();
+        historyItem.setStory(story);
+        historyItem.setTimestamp(new Date(story.getDiscoveredAt().getTime() + offsetMillis));
+        historyItem.setScore(score);
+        historyItem.setComments(comments);
+        historyItem.setGilded(gilded);
+        historyItem.setHotness(hotness);
+        return historyItem;
+    }
+}
@@ -0,0 +1,253 @@
+import com.andrewortman.reddcrawl.repository.PersistenceConfiguration;
+import com.andrewortman.reddcrawl.repository.model.StoryHistoryModel;
+import com.andrewortman.reddcrawl.repository.model.StoryModel;
+import com.andrewortman.reddcrawl.repository.model.SubredditModel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.core.io.support.ResourcePropertySource;
+import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+import org.springframework.orm.jpa.vendor.HibernateJpaVendorAdapter;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Counts the statements hibernate sends for inserts, against a fake database that records them
+ */
+public class StatementBatchingTest {
+
+    private RecordingDatabase database;
+
+    private EntityManagerFactory entityManagerFactory;
+
+    @Before
+    public void setUp() throws IOException {
+        final StandardEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new ResourcePropertySource("classpath:application.properties"));
+
+        database = new RecordingDatabase();
+        final LocalContainerEntityManagerFactoryBean factory = new LocalContainerEntityManagerFactoryBean();
+        factory.setJpaVendorAdapter(new HibernateJpaVendorAdapter());
+        factory.setDataSource(database.getDataSource());
+        factory.setPackagesToScan(PersistenceConfiguration.class.getPackage().getName());
+        factory.setJpaProperties(PersistenceConfiguration.getJpaProperties(environment));
+        factory.afterPropertiesSet();
+        entityManagerFactory = factory.getObject();
+    }
+
+    @After
+    public void tearDown() {
+        entityManagerFactory.close();
+    }
+
+    @Test
+    public void testHistoryInsertsAreBatched() {
+        final StoryModel story = createStory(createSubreddit(1));
+        story.setId(1);
+
+        final EntityManager entityManager = entityManagerFactory.createEntityManager();
+        entityManager.getTransaction().begin();
+        for (int i = 0; i < 120; i++) {
+            final StoryHistoryModel historyItem = new StoryHistoryModel();
+            historyItem.setStory(story);
+            historyItem.setTimestamp(new Date());
+            historyItem.setScore(i);
+            entityManager.persist(historyItem);
+        }
+        entityManager.getTransaction().commit();
+        entityManager.close();
+
+        //120 rows go out in batches of 50, and the ids need a sequence call per 50 (plus one to start the pool)
+        assertEquals(3, database.getExecutions("insert into story_history"));
+        assertEquals(120, database.getBatchedRows("insert into story_history"));
+        assertTrue(database.getExecutions("nextval ('story_history_id_seq')") <= 4);
+    }
+
+    @Test
+    public void testInsertsAreGroupedByTable() {
+        final SubredditModel subreddit = createSubreddit(1);
+
+        final EntityManager entityManager = entityManagerFactory.createEntityManager();
+        entityManager.getTransaction().begin();
+        for (int i = 0; i < 10; i++) {
+            final StoryModel story = createStory(subreddit);
+            story.setRedditShortId("story" + i);
+            entityManager.persist(story);
+
+            final StoryHistoryModel historyItem = new StoryHistoryModel();
+            historyItem.setStory(story);
+            historyItem.setTimestamp(new Date());
+            entityManager.persist(historyItem);
+        }
+        entityManager.getTransaction().commit();
+        entityManager.close();
+
+        //the interleaved persists are ordered into one batch per table instead of alternating statements. Stories are
+        //the exception - hibernate never batches the story_stats half of a story, and sending it ends the story batch
+        //(stories are saved one at a time by the scraper anyway)
+        assertEquals(10, database.getBatchedRows("insert into story ("));
+        assertEquals(10, database.getExecutions("insert into story_stats"));
+        assertEquals(1, database.getExecutions("insert into story_history"));
+        assertEquals(10, database.getBatchedRows("insert into story_history"));
+    }
+
+    private static SubredditModel createSubreddit(final int id) {
+        final SubredditModel subreddit = new SubredditModel();
+        subreddit.setId(id);
+        subreddit.setName("subreddit" + id);
+        return subreddit;
+    }
+
+    private static StoryModel createStory(final SubredditModel subreddit) {
+        final StoryModel story = new StoryModel();
+        story.setRedditShortId("story");
+        story.setSubreddit(subreddit);
+        story.setTitle("title");
+        story.setUrl("url");
+        story.setPermalink("permalink");
+        story.setDomain("domain");
+        story.setCreatedAt(new Date());
+        story.setDiscoveredAt(new Date());
+        story.setUpdatedAt(new Date());
+        story.setCheckedAt(new Date());
+        return story;
+    }
+
+    /**
+     * A jdbc "database" that accepts every statement, answers sequence calls like a postgres sequence stepping by 50,
+     * and records how often each statement is executed and how many rows went through batches
+     */
+    private static class RecordingDatabase {
+        private final List<String> executions = new ArrayList<>();
+
+        private final List<String> batchedRows = new ArrayList<>();
+
+        private long sequenceValue = 1 - 50;
+
+        public DataSource getDataSource() {
+            return proxy(DataSource.class, new InvocationHandler() {
+                @Override
+                public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                    if (method.getName().equals("getConnection")) {
+                        return createConnection();
+                    }
+                    return defaultValue(method);
+                }
+            });
+        }
+
+        public int getExecutions(final String sqlPrefix) {
+            return count(executions, sqlPrefix);
+        }
+
+        public int getBatchedRows(final String sqlPrefix) {
+            return count(batchedRows, sqlPrefix);
+        }
+
+        private int count(final List<String> statements, final String sqlPrefix) {
+            int count = 0;
+            for (final String sql : statements) {
+                if (sql.startsWith(sqlPrefix) || (sqlPrefix.startsWith("nextval") && sql.contains(sqlPrefix))) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private Connection createConnection() {
+            return proxy(Connection.class, new InvocationHandler() {
+                @Override
+                public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                    if (method.getName().equals("prepareStatement")) {
+                        return createStatement((String) args[0]);
+                    }
+                    return defaultValue(method);
+                }
+            });
+        }
+
+        private PreparedStatement createStatement(final String sql) {
+            return proxy(PreparedStatement.class, new InvocationHandler() {
+                private int pendingRows = 0;
+
+                @Override
+                public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                    switch (method.getName()) {
+                        case "addBatch":
+                            pendingRows++;
+                            batchedRows.add(sql);
+                            return null;
+                        case "executeBatch":
+                            executions.add(sql);
+                            final int[] rowCounts = new int[pendingRows];
+                            Arrays.fill(rowCounts, 1);
+                            pendingRows = 0;
+                            return rowCounts;
+                        case "executeUpdate":
+                            executions.add(sql);
+                            return 1;
+                        case "executeQuery":
+                            executions.add(sql);
+                            sequenceValue += 50;
+                            return createSequenceResult(sequenceValue);
+                        default:
+                            return defaultValue(method);
+                    }
+                }
+            });
+        }
+
+        private ResultSet createSequenceResult(final long value) {
+            return proxy(ResultSet.class, new InvocationHandler() {
+                private boolean read = false;
+
+                @Override
+                public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                    switch (method.getName()) {
+                        case "next":
+                            final boolean hasRow = !read;
+                            read = true;
+                            return hasRow;
+                        case "getLong":
+                            return value;
+                        default:
+                            return defaultValue(method);
+                    }
+                }
+            });
+        }
+
+        private static Object defaultValue(final Method method) {
+            final Class<?> type = method.getReturnType();
+            if (type == boolean.class) {
+                return false;
+            } else if (type == int.class) {
+                return 0;
+            } else if (type == long.class) {
+                return 0L;
+            }
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> T proxy(final Class<T> type, final InvocationHandler handler) {
+            return (T) Proxy.newProxyInstance(StatementBatchingTest.class.getClassLoader(), new Class<?>[]{type}, handler);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+import com.andrewortman.reddcrawl.events.StoryEvent;
+import com.andrewortman.reddcrawl.events.StoryEventHandler;
+import com.andrewortman.reddcrawl.events.StoryEventRing;
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StoryEventRingTest {
+
+    private static StoryEvent event(final int storyId) {
+        return new StoryEvent(StoryEvent.Type.UPDATED, storyId, "s" + storyId, "news", new Date(), storyId, 0.0, 0, 0);
+    }
+
+    private static class CollectingHandler implements StoryEventHandler {
+        private final List<StoryEvent> events = new ArrayList<>();
+        private final List<Long> sequences = new ArrayList<>();
+
+        @Override
+        public void onEvent(@Nonnull final StoryEvent event, final long sequence) {
+            events.add(event);
+            sequences.add(sequence);
+        }
+    }
+
+    @Test
+    public void testSubscribersSeeEventsInOrderWithSequences() {
+        final StoryEventRing ring = new StoryEventRing(8, 0, new MetricRegistry());
+        ring.publish(event(0)); //before anyone subscribed
+        final StoryEventRing.Subscription first = ring.subscribe("first");
+        final StoryEventRing.Subscription second = ring.subscribe("second");
+
+        for (int i = 1; i <= 5; i++) {
+            assertTrue(ring.publish(event(i)));
+        }
+
+        final CollectingHandler firstHandler = new CollectingHandler();
+        assertEquals(3, first.poll(firstHandler, 3));
+        assertEquals(2, first.poll(firstHandler, 100));
+        assertEquals(0, first.poll(firstHandler, 100));
+
+        final CollectingHandler secondHandler = new CollectingHandler();
+        assertEquals(5, second.poll(secondHandler, 100));
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i + 1, firstHandler.events.get(i).getStoryId());
+            assertEquals(i + 1, (long) firstHandler.sequences.get(i));
+            assertEquals(i + 1, secondHandler.events.get(i).getStoryId());
+        }
+        assertEquals(0, first.getLag());
+    }
+
+    @Test
+    public void testSlowSubscriberCausesDropsInsteadOfBlocking() {
+        final MetricRegistry metricRegistry = new MetricRegistry();
+        final StoryEventRing ring = new StoryEventRing(4, 1, metricRegistry);
+        final StoryEventRing.Subscription slow = ring.subscribe("slow");
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.publish(event(i)));
+        }
+        assertFalse(ring.publish(event(4))); //the ring is full until the subscriber catches up
+        assertEquals(1, metricRegistry.meter("reddcrawl.events.story.dropped").getCount());
+
+        final CollectingHandler handler = new CollectingHandler();
+        assertEquals(4, slow.poll(handler, 100));
+        assertTrue(ring.publish(event(5)));
+        assertEquals(1, slow.poll(handler, 100));
+        assertEquals(5, handler.events.get(4).getStoryId());
+
+        //a closed subscription doesn't hold up producers any more
+        slow.close();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(ring.publish(event(i)));
+        }
+    }
+
+    @Test
+    public void testConcurrentProducersDeliverEveryEventOnce() throws InterruptedException {
+        final StoryEventRing ring = new StoryEventRing(64, 10000, new MetricRegistry());
+        final StoryEventRing.Subscription subscription = ring.subscribe("consumer");
+        final int producers = 4;
+        final int eventsPerProducer = 5000;
+
+        final List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < eventsPerProducer; i++) {
+                        ring.publish(event(producer * eventsPerProducer + i));
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        final boolean[] seen = new boolean[producers * eventsPerProducer];
+        final long[] lastSequence = {-1};
+        int received = 0;
+        while (received < seen.length) {
+            received += subscription.poll(new StoryEventHandler() {
+                @Override
+                public void onEvent(@Nonnull final StoryEvent event, final long sequence) {
+                    assertFalse(seen[event.getStoryId()]);
+                    seen[event.getStoryId()] = true;
+                    assertEquals(lastSequence[0] + 1, sequence);
+                    lastSequence[0] = sequence;
+                }
+            }, 100);
+        }
+
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(seen.length - 1, ring.getCursor());
+    }
+}
@@ -0,0 +1,157 @@
+import com.andrewortman.reddcrawl.repository.StoryHistoryJournal;
+import com.andrewortman.reddcrawl.repository.model.StoryHistoryModel;
+import com.andrewortman.reddcrawl.repository.model.StoryModel;
+import com.andrewortman.reddcrawl.repository.model.SubredditModel;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StoryHistoryJournalTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testItemsRoundTrip() throws Exception {
+        try (final StoryHistoryJournal journal = new StoryHistoryJournal(folder.newFile(), 4096)) {
+            journal.append(Arrays.asList(createHistoryItem(1, 10), createHistoryItem(2, 20)));
+            assertEquals(2, journal.getDepth());
+
+            final StoryHistoryJournal.Batch batch = journal.take(10);
+            assertEquals(2, batch.getHistoryItems().size());
+
+            final StoryHistoryModel historyItem = batch.getHistoryItems().get(1);
+            assertEquals(2, historyItem.getStory().getId());
+            assertEquals("story2", historyItem.getStory().getRedditShortId());
+            assertEquals("subreddit2", historyItem.getStory().getSubreddit().getName());
+            assertEquals(2000L, historyItem.getStory().getDiscoveredAt().getTime());
+            assertEquals(20, historyItem.getScore());
+            assertEquals(20.5, historyItem.getHotness(), 0);
+            assertEquals(21, historyItem.getComments());
+            assertEquals(22, historyItem.getGilded());
+            assertEquals(20000L, historyItem.getTimestamp().getTime());
+
+            //taking doesn't remove anything until the batch is committed
+            assertEquals(2, journal.getDepth());
+            journal.commit(batch);
+            assertEquals(0, journal.getDepth());
+            assertTrue(journal.take(10).isEmpty());
+            assertTrue(journal.getPendingStoryIds().isEmpty());
+        }
+    }
+
+    @Test
+    public void testUncommittedItemsAreReplayed() throws Exception {
+        final File file = folder.newFile();
+        try (final StoryHistoryJournal journal = new StoryHistoryJournal(file, 4096)) {
+            journal.append(Arrays.asList(createHistoryItem(1, 10), createHistoryItem(2, 20), createHistoryItem(3, 30)));
+            journal.commit(journal.take(1));
+            //taken but not committed when the process "died"
+            journal.take(1);
+        }
+
+        try (final StoryHistoryJournal journal = new StoryHistoryJournal(file, 4096)) {
+            assertEquals(2, journal.getDepth());
+            assertEquals(new HashSet<>(Arrays.asList(2, 3)), journal.getPendingStoryIds());
+            final List<StoryHistoryModel> historyItems = journal.take(10).getHistoryItems();
+            assertEquals(2, historyItems.get(0).getStory().getId());
+            assertEquals(3, historyItems.get(1).getStory().getId());
+        }
+    }
+
+    @Test
+    public void testTornRecordIsDropped() throws Exception {
+        final File file = folder.newFile();
+        try (final StoryHistoryJournal journal = new StoryHistoryJournal(file, 4096)) {
+            journal.append(Collections.singletonList(createHistoryItem(1, 10)));
+            journal.append(Collections.singletonList(createHistoryItem(2, 20)));
+        }
+
+        //damage the last byte of the second record
+        try (final RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            long position = 16;
+            raw.seek(position);
+            position += 8 + raw.readInt();
+            raw.seek(position);
+            position += 8 + raw.readInt();
+            raw.seek(position - 1);
+            final int lastByte = raw.read();
+            raw.seek(position - 1);
+            raw.write(lastByte ^ 0xff);
+        }
+
+        try (final StoryHistoryJournal journal = new StoryHistoryJournal(file, 4096)) {
+            assertEquals(1, journal.getDepth());
+            assertEquals(1, journal.take(10).getHistoryItems().get(0).getStory().getId());
+
+            //appends go after the last good record
+            journal.append(Collections.singletonList(createHistoryItem(3, 30)));
+            assertEquals(3, journal.take(10).getHistoryItems().get(1).getStory().getId());
+        }
+    }
+
+    @Test
+    public void testSpaceIsReclaimed() throws Exception {
+        final File file = folder.newFile();
+        final List<Integer> written = new ArrayList<>();
+        try (final StoryHistoryJournal journal = new StoryHistoryJournal(file, 1024)) {
+            //far more items than fit at once, and the writer stays two items behind - the journal never runs empty, so
+            //the uncommitted items have to be moved to the front
+            journal.append(Arrays.asList(createHistoryItem(0, 0), createHistoryItem(1, 1)));
+            int next = 2;
+            while (next < 200) {
+                journal.append(Arrays.asList(createHistoryItem(next, next), createHistoryItem(next + 1, next + 1)));
+                next += 2;
+
+                final StoryHistoryJournal.Batch batch = journal.take(2);
+                for (final StoryHistoryModel historyItem : batch.getHistoryItems()) {
+                    written.add(historyItem.getStory().getId());
+                }
+                journal.commit(batch);
+            }
+            assertEquals(2, journal.getDepth());
+        }
+
+        try (final StoryHistoryJournal journal = new StoryHistoryJournal(file, 1024)) {
+            for (final StoryHistoryModel historyItem : journal.take(1000).getHistoryItems()) {
+                written.add(historyItem.getStory().getId());
+            }
+        }
+
+        assertEquals(200, written.size());
+        for (int i = 0; i < written.size(); i++) {
+            assertEquals(i, (int) written.get(i));
+        }
+    }
+
+    private static StoryHistoryModel createHistoryItem(final int storyId, final int score) {
+        final SubredditModel subreddit = new SubredditModel();
+        subreddit.setName("subreddit" + storyId);
+
+        final StoryModel story = new StoryModel();
+        story.setId(storyId);
+        story.setRedditShortId("story" + storyId);
+        story.setDiscoveredAt(new Date(storyId * 1000L));
+        story.setSubreddit(subreddit);
+
+        final StoryHistoryModel historyItem = new StoryHistoryModel();
+        historyItem.setStory(story);
+        historyItem.setTimestamp(new Date(score * 1000L));
+        historyItem.setScore(score);
+        historyItem.setHotness(score + 0.5);
+        historyItem.setComments(score + 1);
+        historyItem.setGilded(score + 2);
+        return historyItem;
+    }
+}
@@ -0,0 +1,62 @@
+import com.andrewortman.reddcrawl.services.SubredditUpdateScheduler;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SubredditUpdateSchedulerTest {
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+    private SubredditUpdateScheduler scheduler;
+
+    private Date now;
+
+    @Before
+    public void setUp() {
+        //30 minutes normally, 10 minutes for subreddits with 1000+ active users, back off up to a day
+        scheduler = new SubredditUpdateScheduler(30 * 60, 10 * 60, 1000, 24 * 60 * 60);
+        now = new Date(10000 * MINUTE);
+    }
+
+    @Test
+    public void testUnknownSubredditsAreDueAnIntervalAfterLastUpdate() {
+        assertFalse(scheduler.isDue("news", new Date(now.getTime() - 29 * MINUTE), now));
+        assertTrue(scheduler.isDue("news", new Date(now.getTime() - 30 * MINUTE), now));
+    }
+
+    @Test
+    public void testBusySubredditsAreSampledMoreOften() {
+        scheduler.recordUpdate("askreddit", 20000, now);
+        scheduler.recordUpdate("austin", 50, now);
+
+        final Date tenMinutesLater = new Date(now.getTime() + 10 * MINUTE);
+        assertTrue(scheduler.isDue("askreddit", now, tenMinutesLater));
+        assertFalse(scheduler.isDue("austin", now, tenMinutesLater));
+        assertTrue(scheduler.isDue("austin", now, new Date(now.getTime() + 30 * MINUTE)));
+    }
+
+    @Test
+    public void testUnavailableSubredditsBackOffUntilTheyComeBack() {
+        scheduler.recordUnavailable("iama", now);
+        assertEquals(1, scheduler.getUnavailableCount());
+        assertFalse(scheduler.isDue("iama", now, new Date(now.getTime() + 59 * MINUTE)));
+        assertTrue(scheduler.isDue("iama", now, new Date(now.getTime() + 60 * MINUTE)));
+
+        scheduler.recordUnavailable("iama", now);
+        assertFalse(scheduler.isDue("iama", now, new Date(now.getTime() + 119 * MINUTE)));
+
+        //the backoff is capped at the max
+        for (int i = 0; i < 20; i++) {
+            scheduler.recordUnavailable("iama", now);
+        }
+        assertTrue(scheduler.isDue("iama", now, new Date(now.getTime() + 24 * 60 * MINUTE)));
+
+        scheduler.recordUpdate("iama", 5000, now);
+        assertEquals(0, scheduler.getUnavailableCount());
+        assertTrue(scheduler.isDue("iama", now, new Date(now.getTime() + 10 * MINUTE)));
+    }
+}